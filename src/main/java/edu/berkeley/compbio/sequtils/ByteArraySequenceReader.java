@@ -27,7 +27,6 @@ public class ByteArraySequenceReader extends TranslatingSequenceReader
 	public ByteArraySequenceReader(byte[] b)
 		{
 		buf = b;
-		initTranslationBuffer(b.length);
 		}
 
 	public ByteArraySequenceReader(String s)
@@ -102,8 +101,9 @@ public class ByteArraySequenceReader extends TranslatingSequenceReader
 	public int read(byte[] buffer, int length)
 			throws IOException, FilterException, NotEnoughSequenceException// Read one character from the buffer
 		{
-		length = Math.min(length, buf.length);
+		length = Math.max(0, Math.min(length, buf.length - bufPosition));
 		System.arraycopy(buf, bufPosition, buffer, 0, length);
+		bufPosition += length;
 		return length;
 		}
 
@@ -63,6 +63,14 @@ public class FilteringSequenceReader implements SequenceReader
 		return base.getName();
 		}
 
+	/**
+	 * The filter isn't identified, so the filtered sequence has no persistent identifier.
+	 */
+	public String getPersistentId()
+		{
+		return null;
+		}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -99,14 +107,40 @@ public class FilteringSequenceReader implements SequenceReader
 	public int readTranslated() throws IOException, FilterException, NotEnoughSequenceException, TranslationException
 		{
 		byte c = read();
-		for (int i = 0; i < translationAlphabet.length; i++)
+		int result = getTranslationTable()[c & 0xFF];
+		if (result == -1)
 			{
-			if (c == translationAlphabet[i])
-				{
-				return i;
-				}
+			throw new TranslationException("Character not in translation alphabet: " + c);
 			}
-		throw new TranslationException("Character not in translation alphabet: " + c);
+		return result;
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int readTranslated(int[] dst, int length)
+			throws IOException, FilterException, NotEnoughSequenceException, TranslationException
+		{
+		final int[] table = getTranslationTable();
+		if (rawBuf == null || rawBuf.length < length)
+			{
+			rawBuf = new byte[length];
+			}
+		int count = read(rawBuf, length);
+		for (int i = 0; i < count; i++)
+			{
+			dst[i] = table[rawBuf[i] & 0xFF];
+			}
+		return count;
+		}
+
+	private int[] getTranslationTable() throws TranslationException
+		{
+		if (translationTable == null)
+			{
+			throw new TranslationException("No translation alphabet set");
+			}
+		return translationTable;
 		}
 
 	/**
@@ -134,6 +168,14 @@ public class FilteringSequenceReader implements SequenceReader
 		base.seek(section, offset);
 		}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	public byte[] getTranslationAlphabet()
+		{
+		return translationAlphabet;
+		}
+
 	/**
 	 * Set the character mapping to be used when reading nucleotides.
 	 *
@@ -148,10 +190,15 @@ public class FilteringSequenceReader implements SequenceReader
 		if (!Arrays.equals(this.translationAlphabet, alphabet))
 			{
 			this.translationAlphabet = alphabet;
+			translationTable = alphabet == null ? null : SequenceArrayUtils.translationTable(alphabet);
 			return true;
 			}
 		return false;
 		}
 
 	private byte[] translationAlphabet;
+	private int[] translationTable;
+
+	// scratch space for the bulk readTranslated()
+	private byte[] rawBuf;
 	}
@@ -342,6 +342,24 @@ public class SequenceArrayUtils
 		}
 */
 
+	/**
+	 * Builds a lookup table mapping every byte value (taken as unsigned) to its index in the given alphabet, or to -1 if it
+	 * does not appear.  If a symbol appears more than once, the first index wins.
+	 *
+	 * @param alphabet the translation alphabet, as passed to SequenceReader.setTranslationAlphabet()
+	 * @return a 256-entry table, to be indexed by (b & 0xFF)
+	 */
+	public static int[] translationTable(byte[] alphabet)
+		{
+		int[] table = new int[256];
+		Arrays.fill(table, -1);
+		for (int i = alphabet.length - 1; i >= 0; i--)
+			{
+			table[alphabet[i] & 0xFF] = i;
+			}
+		return table;
+		}
+
 	public static boolean isGap(byte x)//, String gapChars)
 		{
 		return x == '-' || x == '.' || x == ' ';
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the fragments in a fixed collection that overlap a given position or range, without comparing against each one.
+ * The fragments are grouped by root sequence, and each group is kept sorted by start position (with respect to the
+ * root) as an implicit balanced search tree, in which each node records the furthest end of any fragment beneath it.  A
+ * query then takes O(log n + k log n) time for k results, so n fragments can be checked against m others in O((n + m)
+ * log n) when overlaps are few.
+ * <p/>
+ * Coordinates are read once when the index is built; fragments must not be moved or resized while they're indexed.  Two
+ * fragments overlap, as in SequenceFragmentMetadata.overlaps(), if their roots have equal values and they share a
+ * position or have the same start.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class SequenceFragmentIntervalIndex<T extends SequenceFragmentMetadata>
+	{
+	// ------------------------------ FIELDS ------------------------------
+
+	private final Map<RootKey, Intervals<T>> roots = new HashMap<RootKey, Intervals<T>>();
+	private final int size;
+
+
+	// --------------------------- CONSTRUCTORS ---------------------------
+
+	/**
+	 * @param fragments the fragments to index
+	 * @throws SequenceException if a fragment has an unknown length
+	 */
+	public SequenceFragmentIntervalIndex(Collection<? extends T> fragments) throws SequenceException
+		{
+		Map<RootKey, List<T>> byRoot = new HashMap<RootKey, List<T>>();
+		for (T fragment : fragments)
+			{
+			if (fragment.getLength() == SequenceFragmentMetadata.UNKNOWN_LENGTH)
+				{
+				throw new SequenceException("Can't index a fragment of unknown length: " + fragment);
+				}
+			RootKey key = new RootKey(fragment.getRootMetadata());
+			List<T> group = byRoot.get(key);
+			if (group == null)
+				{
+				group = new ArrayList<T>();
+				byRoot.put(key, group);
+				}
+			group.add(fragment);
+			}
+		for (Map.Entry<RootKey, List<T>> entry : byRoot.entrySet())
+			{
+			roots.put(entry.getKey(), new Intervals<T>(entry.getValue()));
+			}
+		size = fragments.size();
+		}
+
+	// --------------------- GETTER / SETTER METHODS ---------------------
+
+	public int size()
+		{
+		return size;
+		}
+
+	// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * Stabbing query
+	 *
+	 * @param root     the root sequence
+	 * @param position a position with respect to the root
+	 * @return the indexed fragments of the root containing the position, in order of their start positions
+	 */
+	public List<T> containing(SequenceFragmentMetadata root, long position)
+		{
+		return overlapping(root, position, position + 1);
+		}
+
+	/**
+	 * Range query
+	 *
+	 * @param root  the root sequence
+	 * @param start the first position of the range, with respect to the root
+	 * @param end   the position after the last one in the range
+	 * @return the indexed fragments of the root overlapping the range, in order of their start positions
+	 */
+	public List<T> overlapping(SequenceFragmentMetadata root, long start, long end)
+		{
+		Intervals<T> intervals = roots.get(new RootKey(root));
+		if (intervals == null)
+			{
+			return Collections.emptyList();
+			}
+		List<T> result = new ArrayList<T>();
+		intervals.collect(0, intervals.starts.length, start, end, result);
+		return result;
+		}
+
+	/**
+	 * @return the indexed fragments overlapping the given one, in order of their start positions
+	 * @throws SequenceException if the fragment has an unknown length
+	 */
+	public List<T> overlapping(SequenceFragmentMetadata fragment) throws SequenceException
+		{
+		if (fragment.getLength() == SequenceFragmentMetadata.UNKNOWN_LENGTH)
+			{
+			throw new SequenceException("Can't determine overlap for unknown length");
+			}
+		long start = fragment.getStartPositionFromRoot();
+		return overlapping(fragment.getRootMetadata(), start, start + fragment.getLength());
+		}
+
+	// -------------------------- INNER CLASSES --------------------------
+
+	/**
+	 * The fragments of one root, sorted by start position.  The node of the subtree spanning [lo, hi) is at the midpoint,
+	 * and maxEnds[mid] is the furthest end of any fragment in [lo, hi).
+	 */
+	private static class Intervals<T extends SequenceFragmentMetadata>
+		{
+		private final long[] starts;
+		private final long[] ends;
+		private final long[] maxEnds;
+		private final List<T> fragments;
+
+		Intervals(List<T> unsorted)
+			{
+			int n = unsorted.size();
+			final long[] unsortedStarts = new long[n];
+			Integer[] order = new Integer[n];
+			for (int i = 0; i < n; i++)
+				{
+				unsortedStarts[i] = unsorted.get(i).getStartPositionFromRoot();
+				order[i] = i;
+				}
+			Arrays.sort(order, new Comparator<Integer>()
+			{
+			public int compare(Integer a, Integer b)
+				{
+				long diff = unsortedStarts[a] - unsortedStarts[b];
+				return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+				}
+			});
+
+			starts = new long[n];
+			ends = new long[n];
+			maxEnds = new long[n];
+			fragments = new ArrayList<T>(n);
+			for (int i = 0; i < n; i++)
+				{
+				T fragment = unsorted.get(order[i]);
+				starts[i] = unsortedStarts[order[i]];
+				ends[i] = starts[i] + fragment.getLength();
+				fragments.add(fragment);
+				}
+			computeMaxEnds(0, n);
+			}
+
+		private long computeMaxEnds(int lo, int hi)
+			{
+			if (lo >= hi)
+				{
+				return Long.MIN_VALUE;
+				}
+			int mid = (lo + hi) >>> 1;
+			maxEnds[mid] = Math.max(ends[mid], Math.max(computeMaxEnds(lo, mid), computeMaxEnds(mid + 1, hi)));
+			return maxEnds[mid];
+			}
+
+		/**
+		 * Adds the fragments in [lo, hi) overlapping [start, end) to the result, in order
+		 */
+		private void collect(int lo, int hi, long start, long end, List<T> result)
+			{
+			if (lo >= hi)
+				{
+				return;
+				}
+			int mid = (lo + hi) >>> 1;
+			if (maxEnds[mid] <= start && starts[hi - 1] < start)
+				{
+				// everything here ends before the range (the second test admits empty fragments at its start)
+				return;
+				}
+			collect(lo, mid, start, end, result);
+			if (starts[mid] >= end && starts[mid] != start)
+				{
+				// this and everything after it starts after the range
+				return;
+				}
+			if (ends[mid] > start || starts[mid] == start)
+				{
+				result.add(fragments.get(mid));
+				}
+			collect(mid + 1, hi, start, end, result);
+			}
+		}
+
+	/**
+	 * Compares roots by value, as SequenceFragmentMetadata.overlaps() does, since equal roots may be distinct objects
+	 */
+	private static class RootKey
+		{
+		private final SequenceFragmentMetadata root;
+		private final int hash;
+
+		RootKey(SequenceFragmentMetadata root)
+			{
+			this.root = root;
+			String name = root.getSequenceName();
+			hash = 31 * (name == null ? 0 : name.hashCode()) + (int) (root.getStartPosition() ^ root.getLength());
+			}
+
+		@Override
+		public boolean equals(Object o)
+			{
+			return o instanceof RootKey && root.equalValue(((RootKey) o).root);
+			}
+
+		@Override
+		public int hashCode()
+			{
+			return hash;
+			}
+		}
+	}
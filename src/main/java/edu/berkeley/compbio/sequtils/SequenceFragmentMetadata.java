@@ -20,6 +20,9 @@ import java.io.Serializable;
  * <p/>
  * While a SequenceFragmentMetadata may consist of unconnected sequences (e.g., chromosomes), it assumes these are
  * contiguous, and in a consistent order, for the sake of sequence coordinates.
+ * <p/>
+ * The parent and the start position within it are fixed when the metadata is made, so the root and the start position
+ * from the root are resolved then, from the parent's, and never change.
  *
  * @author David Soergel
  * @version $Id$
@@ -39,12 +42,15 @@ public class SequenceFragmentMetadata<C extends SequenceFragmentMetadata> extend
 	 */
 	protected long length = 0;
 
-	protected SequenceFragmentMetadata parentMetadata = null;
+	private final SequenceFragmentMetadata parentMetadata;
 
 	protected String sequenceName = null;
-	protected long startPosition = 0;
+	private final long startPosition;
 	private Integer taxid;
 
+	private final SequenceFragmentMetadata rootMetadata;
+	private final long startPositionFromRoot;
+
 	// --------------------------- CONSTRUCTORS ---------------------------
 
 	/**
@@ -78,6 +84,8 @@ public class SequenceFragmentMetadata<C extends SequenceFragmentMetadata> extend
 		this.taxid = taxid;
 		this.startPosition = startPosition;
 		this.length = length;
+		rootMetadata = parent == null ? this : parent.rootMetadata;
+		startPositionFromRoot = parent == null ? startPosition : parent.startPositionFromRoot + startPosition;
 		}
 
 	// --------------------- GETTER / SETTER METHODS ---------------------
@@ -112,17 +120,6 @@ public class SequenceFragmentMetadata<C extends SequenceFragmentMetadata> extend
 		return parentMetadata;
 		}
 
-	/**
-	 * Sets the SequenceFragmentMetadata representing the parent sequence, a longer sequence that contains this one.
-	 *
-	 * @param parentMetadata a SequenceFragmentMetadata representing the parent sequence, a longer sequence that contains
-	 *                       this one.
-	 */
-	public void setParentMetadata(SequenceFragmentMetadata parentMetadata)
-		{
-		this.parentMetadata = parentMetadata;
-		}
-
 	/**
 	 * Returns a String identifying this sequence.  If this sequence does not have its own unique name, give the name of
 	 * the parent sequence with the start position and length.
@@ -177,23 +174,15 @@ public class SequenceFragmentMetadata<C extends SequenceFragmentMetadata> extend
 		return startPosition;
 		}
 
-	public long getStartPositionFromRoot()
-		{
-		if (parentMetadata != null)
-			{
-			return startPosition + parentMetadata.getStartPositionFromRoot();
-			}
-		return startPosition;
-		}
-
 	/**
-	 * Sets the start position of this sequence, a 0-based index with respect to the parent sequence.
+	 * Returns the start position of this sequence with respect to the root of the parent hierarchy, as resolved when this
+	 * metadata was made.
 	 *
-	 * @param startPosition the start position of this sequence, a 0-based index with respect to the parent sequence.
+	 * @return the start position of this sequence with respect to the root
 	 */
-	public void setStartPosition(long startPosition)
+	public long getStartPositionFromRoot()
 		{
-		this.startPosition = startPosition;
+		return startPositionFromRoot;
 		}
 
 	/*
@@ -264,11 +253,26 @@ public class SequenceFragmentMetadata<C extends SequenceFragmentMetadata> extend
 	@NotNull
 	public SequenceFragmentMetadata getRootMetadata()
 		{
-		if (parentMetadata != null)
-			{
-			return parentMetadata.getRootMetadata();
-			}
-		return this;
+		return rootMetadata;
+		}
+
+	/**
+	 * Makes the metadata of a fragment of the given sequence, with the root as its immediate parent and its start given
+	 * from the root.  Such metadata holds no chain of intermediate sequences, so it's the compact form to use when making
+	 * large numbers of fragments.  Its name, if none is given, is derived from the root's.
+	 *
+	 * @param sequence     any sequence in the hierarchy
+	 * @param sequenceName a String identifier for the fragment, or null
+	 * @param offset       the start of the fragment with respect to the given sequence
+	 * @param length       the length of the fragment
+	 * @return the metadata of the fragment
+	 */
+	public static SequenceFragmentMetadata flattened(SequenceFragmentMetadata sequence, String sequenceName, long offset,
+	                                                 long length)
+		{
+		SequenceFragmentMetadata root = sequence.getRootMetadata();
+		long start = sequence.getStartPositionFromRoot() - root.startPosition + offset;
+		return new SequenceFragmentMetadata(root, sequenceName, sequence.getTaxid(), start, length);
 		}
 
 	/*	public String getExclusiveLabel()
@@ -54,6 +54,14 @@ public interface SequenceReader
 	 */
 	String getName();
 
+	/**
+	 * Returns an identifier of the sequence this reader supplies that is the same from one run to the next (e.g. derived
+	 * from the paths of its files), so that results computed from it can be kept between runs.
+	 *
+	 * @return the identifier, or null if the reader's sequence can't be identified across runs
+	 */
+	String getPersistentId();
+
 	/**
 	 * Seek to a particular position
 	 */
@@ -99,6 +107,19 @@ public interface SequenceReader
 	 */
 	int readTranslated() throws IOException, FilterException, NotEnoughSequenceException, TranslationException;
 
+	/**
+	 * Reads a run of nucleotides, mapping each through the translation table as in readTranslated().  Symbols not in the
+	 * translation alphabet are stored as -1 rather than causing an exception, so the caller can handle them inline.
+	 *
+	 * @param dst    an int[] to read into
+	 * @param length how many nucleotides to read (must be less than or equal to the size of the given array)
+	 * @return The number of nucleotides read, which is less than length only if the section or file has ended
+	 * @throws TranslationException if no translation alphabet has been set
+	 * @see #setTranslationAlphabet(byte[] alphabet)
+	 */
+	int readTranslated(int[] dst, int length)
+			throws IOException, FilterException, NotEnoughSequenceException, TranslationException;
+
 	/**
 	 * reset the stream to the beginning.
 	 */
@@ -133,6 +154,11 @@ public interface SequenceReader
 	 */
 	boolean setTranslationAlphabet(byte[] alphabet);
 
+	/**
+	 * @return the alphabet last given to setTranslationAlphabet(), or null if there is none
+	 */
+	byte[] getTranslationAlphabet();
+
 
 	/**
 	 * Frees up memory, filehandles, etc. from caches that can be re-filled if necessary
@@ -18,17 +18,23 @@ import java.util.Arrays;
 public abstract class TranslatingSequenceReader implements SequenceReader
 	{
 
-	boolean translationValid = false;
 	private byte[] translationAlphabet;
 
-	private int[] translatedBuf;
+	// built once per alphabet; symbols are translated one at a time as they are read
+	private int[] translationTable;
+
+	// scratch space for the bulk readTranslated()
+	private byte[] rawBuf;
 
 	protected byte[] buf;
 	protected int bufPosition = 0;
 
+	/**
+	 * Translation is now done by table lookup as each symbol is read, so no translation buffer is needed.
+	 */
+	@Deprecated
 	public void initTranslationBuffer(int buffersize)
 		{
-		translatedBuf = new int[buffersize];
 		}
 
 
@@ -37,6 +43,22 @@ public abstract class TranslatingSequenceReader implements SequenceReader
 		buf = new byte[buffersize];
 		}
 
+	/**
+	 * {@inheritDoc}  By default there is no such identifier.
+	 */
+	public String getPersistentId()
+		{
+		return null;
+		}
+
+	/**
+	 * @return the alphabet last given to setTranslationAlphabet(), or null if there is none
+	 */
+	public byte[] getTranslationAlphabet()
+		{
+		return translationAlphabet;
+		}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -45,7 +67,7 @@ public abstract class TranslatingSequenceReader implements SequenceReader
 		if (!Arrays.equals(this.translationAlphabet, translationAlphabet))
 			{
 			this.translationAlphabet = translationAlphabet;
-			translationValid = false;
+			translationTable = translationAlphabet == null ? null : SequenceArrayUtils.translationTable(translationAlphabet);
 			return true;
 			}
 		return false;
@@ -56,44 +78,58 @@ public abstract class TranslatingSequenceReader implements SequenceReader
 	 */
 	public int readTranslated() throws IOException, FilterException, NotEnoughSequenceException, TranslationException
 		{
-		// make sure the buffer is valid
-		read();
-
-		// then translate it if needed
-		if (!translationValid)
-			{
-			translate();
-			}
-		// ** count on bufPosition being incremented by the read call above... yucky
-		int result = translatedBuf[bufPosition - 1];
+		byte c = read();
+		int result = translate(c);
 		if (result == -1)
 			{
-			throw new TranslationException("Symbol not in alphabet: " + buf[bufPosition - 1]);
+			throw new TranslationException("Symbol not in alphabet: " + c);
 			}
 		return result;
 		}
 
+	/**
+	 * Maps a symbol through the translation table
+	 *
+	 * @return the index of the symbol in the translation alphabet, or -1 if it isn't there
+	 * @throws TranslationException if no translation alphabet has been set
+	 */
+	protected int translate(byte c) throws TranslationException
+		{
+		if (translationTable == null)
+			{
+			throw new TranslationException("No translation alphabet set");
+			}
+		return translationTable[c & 0xFF];
+		}
 
-	private void translate()
+	/**
+	 * {@inheritDoc}
+	 */
+	public int readTranslated(int[] dst, int length)
+			throws IOException, FilterException, NotEnoughSequenceException, TranslationException
 		{
-		for (int j = 0; j < buf.length; j++)
+		if (translationTable == null)
+			{
+			throw new TranslationException("No translation alphabet set");
+			}
+		if (rawBuf == null || rawBuf.length < length)
 			{
-			translatedBuf[j] = -1;// default assumption: symbol not in alphabet
-
-			for (int i = 0; i < translationAlphabet.length; i++)
-				{
-				if (buf[j] == translationAlphabet[i])
-					{
-					translatedBuf[j] = i;
-					break;
-					}
-				}
+			rawBuf = new byte[length];
 			}
-		translationValid = true;
+		int count = read(rawBuf, length);
+		final int[] table = translationTable;
+		for (int i = 0; i < count; i++)
+			{
+			dst[i] = table[rawBuf[i] & 0xFF];
+			}
+		return count;
 		}
 
+	/**
+	 * Translation no longer depends on the buffer contents, so there is nothing to invalidate.
+	 */
+	@Deprecated
 	protected void setTranslationInvalid()
 		{
-		translationValid = false;
 		}
 	}
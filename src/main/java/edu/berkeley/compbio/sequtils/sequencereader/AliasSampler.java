@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.sequencereader;
+
+import com.davidsoergel.dsutils.math.MersenneTwisterFast;
+
+/**
+ * Samples indexes in proportion to fixed weights (e.g. section lengths) in constant time, using Walker's alias method as
+ * constructed by Vose.  Each index i has a bucket holding itself with probability prob[i] and alias[i] otherwise, so a
+ * sample takes one random number and two array reads however many indexes there are.  Building the table takes linear
+ * time, so it should be built once and reused.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class AliasSampler
+	{
+	// ------------------------------ FIELDS ------------------------------
+
+	private final double[] prob;
+	private final int[] alias;
+
+
+	// --------------------------- CONSTRUCTORS ---------------------------
+
+	/**
+	 * @param weights the nonnegative weight of each index
+	 * @throws IllegalArgumentException if there are no weights, or they are all zero
+	 */
+	public AliasSampler(long[] weights)
+		{
+		int n = weights.length;
+		double total = 0;
+		for (long w : weights)
+			{
+			if (w < 0)
+				{
+				throw new IllegalArgumentException("Negative weight: " + w);
+				}
+			total += w;
+			}
+		if (total == 0)
+			{
+			throw new IllegalArgumentException("Can't sample from zero total weight");
+			}
+
+		prob = new double[n];
+		alias = new int[n];
+
+		// scale so that the average bucket is exactly full, then pair each underfull bucket with an overfull one
+		double[] scaled = new double[n];
+		int[] small = new int[n];
+		int[] large = new int[n];
+		int smallCount = 0;
+		int largeCount = 0;
+		for (int i = 0; i < n; i++)
+			{
+			scaled[i] = weights[i] * n / total;
+			if (scaled[i] < 1)
+				{
+				small[smallCount++] = i;
+				}
+			else
+				{
+				large[largeCount++] = i;
+				}
+			}
+		while (smallCount > 0 && largeCount > 0)
+			{
+			int s = small[--smallCount];
+			int l = large[--largeCount];
+			prob[s] = scaled[s];
+			alias[s] = l;
+			scaled[l] = (scaled[l] + scaled[s]) - 1;
+			if (scaled[l] < 1)
+				{
+				small[smallCount++] = l;
+				}
+			else
+				{
+				large[largeCount++] = l;
+				}
+			}
+
+		// whatever is left is full, up to rounding error
+		while (largeCount > 0)
+			{
+			int l = large[--largeCount];
+			prob[l] = 1;
+			alias[l] = l;
+			}
+		while (smallCount > 0)
+			{
+			int s = small[--smallCount];
+			prob[s] = 1;
+			alias[s] = s;
+			}
+		}
+
+	// -------------------------- OTHER METHODS --------------------------
+
+	public int size()
+		{
+		return prob.length;
+		}
+
+	/**
+	 * @return an index chosen with probability proportional to its weight
+	 */
+	public int sample()
+		{
+		return sample(MersenneTwisterFast.random());
+		}
+
+	/**
+	 * @return an index chosen with probability proportional to its weight, using the given random generator
+	 */
+	public int sample(MersenneTwisterFast random)
+		{
+		return sample(random.nextDouble());
+		}
+
+	private int sample(double uniform)
+		{
+		// the integer part picks the bucket, and the fractional part picks within it
+		double u = uniform * prob.length;
+		int i = Math.min((int) u, prob.length - 1);
+		return u - i < prob[i] ? i : alias[i];
+		}
+	}
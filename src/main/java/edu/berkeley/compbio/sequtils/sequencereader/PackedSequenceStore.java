@@ -0,0 +1,661 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.sequencereader;
+
+import com.davidsoergel.dsutils.math.MersenneTwisterFast;
+import edu.berkeley.compbio.sequtils.FilterException;
+import edu.berkeley.compbio.sequtils.NotEnoughSequenceException;
+import edu.berkeley.compbio.sequtils.SequenceArrayUtils;
+import edu.berkeley.compbio.sequtils.SequenceException;
+import edu.berkeley.compbio.sequtils.SequenceFragmentMetadata;
+import edu.berkeley.compbio.sequtils.TranslatingSequenceReader;
+import edu.berkeley.compbio.sequtils.TranslationException;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * An in-memory copy of all the sequence in a SectionList, stored at two bits per base.  Runs of anything other than
+ * A, C, G or T (N, IUPAC ambiguity codes, gaps) are kept in a sparse side table, as are runs of lowercase (soft-masked)
+ * bases, so reading gives back exactly the symbols the source provided.  For a typical genome this takes about a
+ * quarter of the memory of the raw sequence, and sequential reads decode each 64-bit word of 32 bases in one go.
+ * <p/>
+ * Positions are counted in bases, concatenating the sections in order: each section returned by next() is a child of
+ * the root metadata starting at its first base, so unlike FastaParser there are no headers or line breaks to step
+ * over.  The packed sequence never changes once built, so a second reader over the same data (e.g. for another thread)
+ * can be made cheaply with the copy constructor.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class PackedSequenceStore extends TranslatingSequenceReader implements SectionList
+	{
+	// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(PackedSequenceStore.class);
+
+	private static final byte[] UPPER_BASES = {'A', 'C', 'G', 'T'};
+	private static final byte[] LOWER_BASES = {'a', 'c', 'g', 't'};
+
+	// the 2-bit code of each base, or -1 for symbols that go in the side table
+	private static final byte[] CODES = new byte[256];
+
+	static
+		{
+		Arrays.fill(CODES, (byte) -1);
+		for (byte i = 0; i < 4; i++)
+			{
+			CODES[UPPER_BASES[i]] = i;
+			CODES[LOWER_BASES[i]] = i;
+			}
+		}
+
+	private static final int READ_CHUNK = 65536;
+
+	private final String name;
+	private final String persistentId;
+	private final SequenceFragmentMetadata rootMetadata;
+	private final long totalBases;
+
+	// bases, 32 to a word, lowest bits first
+	private final long[] words;
+
+	// runs of symbols that aren't ACGT, sorted and disjoint; the packed bits under them are meaningless
+	private final long[] exceptionStarts;
+	private final long[] exceptionEnds;
+	private final byte[] exceptionSymbols;
+
+	// runs of lowercase ACGT
+	private final long[] lowercaseStarts;
+	private final long[] lowercaseEnds;
+
+	private final SequenceFragmentMetadata[] sections;
+	private final long[] sectionStarts;
+	private final HashMap<String, SequenceFragmentMetadata> idToSection;
+
+	// the reader state
+
+	private long position = 0;
+	private long sectionEnd = 0;
+	private int exceptionIndex = 0;// the first exception run ending after the position
+	private int lowercaseIndex = 0;// the first lowercase run ending after the position
+
+	private int sectionIndex = -1;
+	private int[] indexesShuffled;
+	private int shuffledIndex;
+
+	// the translations of the packed codes, uppercase and lowercase
+	private int[] upperTranslations;
+	private int[] lowerTranslations;
+
+
+	// --------------------------- CONSTRUCTORS ---------------------------
+
+	/**
+	 * Reads all the sections of the given source, in order, into memory.  The source is left at its end.
+	 *
+	 * @param source a SectionList (e.g. a FastaParser) positioned at its beginning
+	 */
+	public PackedSequenceStore(SectionList source) throws IOException
+		{
+		name = source.getName();
+		persistentId = source.getPersistentId();
+		Packer packer = new Packer();
+		byte[] chunk = new byte[READ_CHUNK];
+		try
+			{
+			while (true)
+				{
+				SequenceFragmentMetadata s = source.next();
+				long start = packer.length;
+				int r;
+				while ((r = source.read(chunk, chunk.length)) > 0)
+					{
+					packer.append(chunk, r);
+					}
+				packer.addSection(s.getSequenceName(), s.getTaxid(), start);
+				}
+			}
+		catch (NotEnoughSequenceException e)
+			{
+			// exhausted sections
+			}
+		catch (FilterException e)
+			{
+			throw new IOException(e);
+			}
+
+		totalBases = packer.length;
+		rootMetadata = new SequenceFragmentMetadata(null, name, null, 0, totalBases);
+
+		words = Arrays.copyOf(packer.words, (int) ((totalBases + 31) >>> 5));
+		exceptionStarts = Arrays.copyOf(packer.exceptionStarts, packer.exceptionCount);
+		exceptionEnds = Arrays.copyOf(packer.exceptionEnds, packer.exceptionCount);
+		exceptionSymbols = Arrays.copyOf(packer.exceptionSymbols, packer.exceptionCount);
+		lowercaseStarts = Arrays.copyOf(packer.lowercaseStarts, packer.lowercaseCount);
+		lowercaseEnds = Arrays.copyOf(packer.lowercaseEnds, packer.lowercaseCount);
+
+		sections = new SequenceFragmentMetadata[packer.sectionCount];
+		sectionStarts = Arrays.copyOf(packer.sectionStarts, packer.sectionCount);
+		idToSection = new HashMap<String, SequenceFragmentMetadata>();
+		for (int i = 0; i < sections.length; i++)
+			{
+			long end = i + 1 < sections.length ? sectionStarts[i + 1] : totalBases;
+			sections[i] = new SequenceFragmentMetadata(rootMetadata, packer.sectionNames[i], packer.sectionTaxids[i],
+			                                           sectionStarts[i], end - sectionStarts[i]);
+			idToSection.put(packer.sectionNames[i], sections[i]);
+			}
+
+		logger.info("Packed " + totalBases + " bases of " + name + " in " + sections.length + " sections, with "
+		            + exceptionStarts.length + " non-ACGT runs and " + lowercaseStarts.length + " lowercase runs");
+		reset();
+		}
+
+	/**
+	 * Makes an independent reader over the same packed sequence, starting at the beginning
+	 */
+	public PackedSequenceStore(PackedSequenceStore other)
+		{
+		name = other.name;
+		persistentId = other.persistentId;
+		rootMetadata = other.rootMetadata;
+		totalBases = other.totalBases;
+		words = other.words;
+		exceptionStarts = other.exceptionStarts;
+		exceptionEnds = other.exceptionEnds;
+		exceptionSymbols = other.exceptionSymbols;
+		lowercaseStarts = other.lowercaseStarts;
+		lowercaseEnds = other.lowercaseEnds;
+		sections = other.sections;
+		sectionStarts = other.sectionStarts;
+		idToSection = other.idToSection;
+		reset();
+		}
+
+	// --------------------- GETTER / SETTER METHODS ---------------------
+
+	public String getName()
+		{
+		return name;
+		}
+
+	/**
+	 * @return the persistent identifier of the source this was packed from
+	 */
+	@Override
+	public String getPersistentId()
+		{
+		return persistentId;
+		}
+
+	public SequenceFragmentMetadata getRootMetadata()
+		{
+		return rootMetadata;
+		}
+
+	// ------------------------ CANONICAL METHODS ------------------------
+
+	public void close()
+		{
+		// nothing to release; the packed sequence is just memory
+		}
+
+	@Override
+	public String toString()
+		{
+		return name;
+		}
+
+	// ------------------------ INTERFACE METHODS ------------------------
+
+
+	// --------------------- Interface SectionList ---------------------
+
+	@NotNull
+	public SequenceFragmentMetadata next() throws NotEnoughSequenceException
+		{
+		sectionIndex++;
+		if (sectionIndex >= sections.length)
+			{
+			throw new NotEnoughSequenceException("End of sequence, no more sections");
+			}
+		seekToBase(sectionStarts[sectionIndex]);
+		return sections[sectionIndex];
+		}
+
+	@NotNull
+	public SequenceFragmentMetadata nextShuffled() throws NotEnoughSequenceException
+		{
+		if (indexesShuffled == null)
+			{
+			indexesShuffled = new int[sections.length];
+			for (int i = 0; i < indexesShuffled.length; i++)
+				{
+				indexesShuffled[i] = i;
+				}
+			for (int i = indexesShuffled.length - 1; i > 0; i--)
+				{
+				int j = MersenneTwisterFast.randomInt(i + 1);
+				int tmp = indexesShuffled[i];
+				indexesShuffled[i] = indexesShuffled[j];
+				indexesShuffled[j] = tmp;
+				}
+			shuffledIndex = -1;
+			}
+		shuffledIndex++;
+		if (shuffledIndex >= indexesShuffled.length)
+			{
+			throw new NotEnoughSequenceException("");
+			}
+		return sections[indexesShuffled[shuffledIndex]];
+		}
+
+	/**
+	 * Picks a base uniformly from all the sections, and returns a fragment starting there (as a child of its section).
+	 */
+	@NotNull
+	public SequenceFragmentMetadata randomSectionFragment() throws NotEnoughSequenceException
+		{
+		if (totalBases == 0)
+			{
+			throw new NotEnoughSequenceException("No sequence in " + name);
+			}
+		long base = (long) (totalBases * MersenneTwisterFast.random());
+		SequenceFragmentMetadata section = sections[sectionContainingBase(base)];
+		return new SequenceFragmentMetadata(section, "Random sequence from " + name, section.getTaxid(),
+		                                    base - section.getStartPosition(),
+		                                    SequenceFragmentMetadata.UNKNOWN_LENGTH);
+		}
+
+	public SequenceFragmentMetadata randomSectionLengthWeighted() throws NotEnoughSequenceException
+		{
+		return randomSectionFragment().getParentMetadata();
+		}
+
+	public SequenceFragmentMetadata randomSectionUniform()
+		{
+		return sections[MersenneTwisterFast.randomInt(sections.length)];
+		}
+
+	// --------------------- Interface SequenceReader ---------------------
+
+	public long getTotalSequence()
+		{
+		return totalBases;
+		}
+
+	public byte read() throws NotEnoughSequenceException
+		{
+		if (position >= sectionEnd)
+			{
+			throw new NotEnoughSequenceException("End of sequence");
+			}
+		byte result = symbolAt(position);
+		position++;
+		return result;
+		}
+
+	public int read(byte[] buffer, int length)
+		{
+		final long end = position + Math.max(0, Math.min(length, sectionEnd - position));
+		int count = 0;
+		while (position < end)
+			{
+			advanceRuns(position);
+			long runEnd;
+			if (inException(position))
+				{
+				runEnd = Math.min(end, exceptionEnds[exceptionIndex]);
+				Arrays.fill(buffer, count, count + (int) (runEnd - position), exceptionSymbols[exceptionIndex]);
+				}
+			else
+				{
+				runEnd = Math.min(end, plainRunEnd(position));
+				unpack(position, (int) (runEnd - position), inLowercase(position) ? LOWER_BASES : UPPER_BASES, buffer,
+				       count);
+				}
+			count += runEnd - position;
+			position = runEnd;
+			}
+		return count;
+		}
+
+	/**
+	 * {@inheritDoc}  The packed bases are translated by their codes directly; only symbols from the side table go
+	 * through the translation table.
+	 */
+	@Override
+	public int readTranslated(int[] dst, int length) throws TranslationException
+		{
+		if (upperTranslations == null)
+			{
+			throw new TranslationException("No translation alphabet set");
+			}
+		final long end = position + Math.max(0, Math.min(length, sectionEnd - position));
+		int count = 0;
+		while (position < end)
+			{
+			advanceRuns(position);
+			long runEnd;
+			if (inException(position))
+				{
+				runEnd = Math.min(end, exceptionEnds[exceptionIndex]);
+				Arrays.fill(dst, count, count + (int) (runEnd - position), translate(exceptionSymbols[exceptionIndex]));
+				}
+			else
+				{
+				runEnd = Math.min(end, plainRunEnd(position));
+				unpack(position, (int) (runEnd - position), inLowercase(position) ? lowerTranslations : upperTranslations,
+				       dst, count);
+				}
+			count += runEnd - position;
+			position = runEnd;
+			}
+		return count;
+		}
+
+	public void reset()
+		{
+		sectionIndex = -1;
+		seekToBase(0);
+		}
+
+	public void seek(SequenceFragmentMetadata section)
+		{
+		seek(section, 0);
+		}
+
+	public void seek(SequenceFragmentMetadata section, long offset)
+		{
+		seekToBase(section == null ? offset : section.getStartPositionFromRoot() + offset);
+		}
+
+	@Override
+	public boolean setTranslationAlphabet(byte[] alphabet)
+		{
+		if (!super.setTranslationAlphabet(alphabet))
+			{
+			return false;
+			}
+		if (alphabet == null)
+			{
+			upperTranslations = null;
+			lowerTranslations = null;
+			}
+		else
+			{
+			int[] table = SequenceArrayUtils.translationTable(alphabet);
+			upperTranslations = new int[4];
+			lowerTranslations = new int[4];
+			for (int i = 0; i < 4; i++)
+				{
+				upperTranslations[i] = table[UPPER_BASES[i]];
+				lowerTranslations[i] = table[LOWER_BASES[i]];
+				}
+			}
+		return true;
+		}
+
+	// -------------------------- OTHER METHODS --------------------------
+
+	@NotNull
+	public SequenceFragmentMetadata getSequenceFragmentMetadata(final String id) throws SequenceException
+		{
+		final SequenceFragmentMetadata result = idToSection.get(id);
+		if (result == null)
+			{
+			throw new SequenceException("Sequence fragment " + id + " not found");
+			}
+		return result;
+		}
+
+	/**
+	 * Moves to the given base, counting from the start of the first section.  Reads then continue to the end of the
+	 * section containing that base.
+	 */
+	private void seekToBase(long base)
+		{
+		position = base;
+		if (base < 0 || base >= totalBases)
+			{
+			sectionEnd = base;
+			}
+		else
+			{
+			SequenceFragmentMetadata section = sections[sectionContainingBase(base)];
+			sectionEnd = section.getStartPosition() + section.getLength();
+			}
+		exceptionIndex = firstRunEndingAfter(exceptionEnds, base);
+		lowercaseIndex = firstRunEndingAfter(lowercaseEnds, base);
+		}
+
+	/**
+	 * @return the index of the last section starting at or before the given base, which is the one containing it (empty
+	 *         sections starting at the same base come before it)
+	 */
+	private int sectionContainingBase(long base)
+		{
+		int lo = 0;
+		int hi = sectionStarts.length;
+		while (lo < hi)
+			{
+			int mid = (lo + hi) >>> 1;
+			if (sectionStarts[mid] <= base)
+				{
+				lo = mid + 1;
+				}
+			else
+				{
+				hi = mid;
+				}
+			}
+		return lo - 1;
+		}
+
+	private static int firstRunEndingAfter(long[] ends, long base)
+		{
+		int i = Arrays.binarySearch(ends, base);
+		// a run ending exactly here doesn't contain the base
+		return i >= 0 ? i + 1 : -i - 1;
+		}
+
+	/**
+	 * Moves the run cursors forward past any runs that end at or before the given base
+	 */
+	private void advanceRuns(long base)
+		{
+		while (exceptionIndex < exceptionEnds.length && exceptionEnds[exceptionIndex] <= base)
+			{
+			exceptionIndex++;
+			}
+		while (lowercaseIndex < lowercaseEnds.length && lowercaseEnds[lowercaseIndex] <= base)
+			{
+			lowercaseIndex++;
+			}
+		}
+
+	private boolean inException(long base)
+		{
+		return exceptionIndex < exceptionStarts.length && exceptionStarts[exceptionIndex] <= base;
+		}
+
+	private boolean inLowercase(long base)
+		{
+		return lowercaseIndex < lowercaseStarts.length && lowercaseStarts[lowercaseIndex] <= base;
+		}
+
+	/**
+	 * @return the end of the run of packed bases of the same case starting at the given base
+	 */
+	private long plainRunEnd(long base)
+		{
+		long end = exceptionIndex < exceptionStarts.length ? exceptionStarts[exceptionIndex] : totalBases;
+		if (lowercaseIndex < lowercaseStarts.length)
+			{
+			end = Math.min(end, inLowercase(base) ? lowercaseEnds[lowercaseIndex] : lowercaseStarts[lowercaseIndex]);
+			}
+		return end;
+		}
+
+	private byte symbolAt(long base)
+		{
+		advanceRuns(base);
+		if (inException(base))
+			{
+			return exceptionSymbols[exceptionIndex];
+			}
+		int code = (int) (words[(int) (base >>> 5)] >>> ((base & 31) << 1)) & 3;
+		return inLowercase(base) ? LOWER_BASES[code] : UPPER_BASES[code];
+		}
+
+	private void unpack(long from, int length, byte[] symbols, byte[] dst, int offset)
+		{
+		int wordIndex = (int) (from >>> 5);
+		long word = words[wordIndex] >>> ((from & 31) << 1);
+		int left = 32 - (int) (from & 31);
+		for (int i = 0; i < length; i++)
+			{
+			if (left == 0)
+				{
+				word = words[++wordIndex];
+				left = 32;
+				}
+			dst[offset + i] = symbols[(int) word & 3];
+			word >>>= 2;
+			left--;
+			}
+		}
+
+	private void unpack(long from, int length, int[] translations, int[] dst, int offset)
+		{
+		int wordIndex = (int) (from >>> 5);
+		long word = words[wordIndex] >>> ((from & 31) << 1);
+		int left = 32 - (int) (from & 31);
+		for (int i = 0; i < length; i++)
+			{
+			if (left == 0)
+				{
+				word = words[++wordIndex];
+				left = 32;
+				}
+			dst[offset + i] = translations[(int) word & 3];
+			word >>>= 2;
+			left--;
+			}
+		}
+
+	// -------------------------- INNER CLASSES --------------------------
+
+	/**
+	 * Accumulates the packed sequence and its side tables in growable arrays while the source is read
+	 */
+	private static class Packer
+		{
+		long length = 0;
+		long[] words = new long[1024];
+
+		int exceptionCount = 0;
+		long[] exceptionStarts = new long[16];
+		long[] exceptionEnds = new long[16];
+		byte[] exceptionSymbols = new byte[16];
+
+		int lowercaseCount = 0;
+		long[] lowercaseStarts = new long[16];
+		long[] lowercaseEnds = new long[16];
+
+		int sectionCount = 0;
+		long[] sectionStarts = new long[16];
+		String[] sectionNames = new String[16];
+		Integer[] sectionTaxids = new Integer[16];
+
+		void append(byte[] chunk, int count)
+			{
+			int wordsNeeded = (int) ((length + count + 31) >>> 5);
+			if (wordsNeeded > words.length)
+				{
+				words = Arrays.copyOf(words, Math.max(wordsNeeded, 2 * words.length));
+				}
+			for (int i = 0; i < count; i++)
+				{
+				byte c = chunk[i];
+				int code = CODES[c & 0xFF];
+				if (code == -1)
+					{
+					addException(c);
+					}
+				else
+					{
+					words[(int) (length >>> 5)] |= ((long) code) << ((length & 31) << 1);
+					if (c >= 'a')
+						{
+						addLowercase();
+						}
+					}
+				length++;
+				}
+			}
+
+		void addSection(String name, Integer taxid, long start)
+			{
+			if (sectionCount == sectionStarts.length)
+				{
+				int n = 2 * sectionCount;
+				sectionStarts = Arrays.copyOf(sectionStarts, n);
+				sectionNames = Arrays.copyOf(sectionNames, n);
+				sectionTaxids = Arrays.copyOf(sectionTaxids, n);
+				}
+			sectionStarts[sectionCount] = start;
+			sectionNames[sectionCount] = name;
+			sectionTaxids[sectionCount] = taxid;
+			sectionCount++;
+			}
+
+		private void addException(byte c)
+			{
+			int last = exceptionCount - 1;
+			if (last >= 0 && exceptionEnds[last] == length && exceptionSymbols[last] == c)
+				{
+				exceptionEnds[last]++;
+				return;
+				}
+			if (exceptionCount == exceptionStarts.length)
+				{
+				int n = 2 * exceptionCount;
+				exceptionStarts = Arrays.copyOf(exceptionStarts, n);
+				exceptionEnds = Arrays.copyOf(exceptionEnds, n);
+				exceptionSymbols = Arrays.copyOf(exceptionSymbols, n);
+				}
+			exceptionStarts[exceptionCount] = length;
+			exceptionEnds[exceptionCount] = length + 1;
+			exceptionSymbols[exceptionCount] = c;
+			exceptionCount++;
+			}
+
+		private void addLowercase()
+			{
+			int last = lowercaseCount - 1;
+			if (last >= 0 && lowercaseEnds[last] == length)
+				{
+				lowercaseEnds[last]++;
+				return;
+				}
+			if (lowercaseCount == lowercaseStarts.length)
+				{
+				int n = 2 * lowercaseCount;
+				lowercaseStarts = Arrays.copyOf(lowercaseStarts, n);
+				lowercaseEnds = Arrays.copyOf(lowercaseEnds, n);
+				}
+			lowercaseStarts[lowercaseCount] = length;
+			lowercaseEnds[lowercaseCount] = length + 1;
+			lowercaseCount++;
+			}
+		}
+	}
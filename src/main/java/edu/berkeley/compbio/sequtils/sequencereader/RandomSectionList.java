@@ -84,6 +84,11 @@ public class RandomSectionList implements SectionList
 		return "Random Sequence";
 		}
 
+	public String getPersistentId()
+		{
+		return null;
+		}
+
 	public void reset()
 		{
 		//Do Nothing
@@ -124,6 +129,12 @@ public class RandomSectionList implements SectionList
 		throw new NotImplementedException();
 		}
 
+	public int readTranslated(int[] dst, int length)
+			throws IOException, FilterException, NotEnoughSequenceException, TranslationException
+		{
+		throw new NotImplementedException();
+		}
+
 	public void seek(SequenceFragmentMetadata section) throws IOException
 		{
 		//Do Nothing
@@ -139,6 +150,11 @@ public class RandomSectionList implements SectionList
 		throw new NotImplementedException();
 		}
 
+	public byte[] getTranslationAlphabet()
+		{
+		return null;
+		}
+
 	// -------------------------- OTHER METHODS --------------------------
 
 	private String randomName()
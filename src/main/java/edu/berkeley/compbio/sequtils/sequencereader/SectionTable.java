@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.sequencereader;
+
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A compact index of the sections of a SectionList: the start and length of each, in parallel arrays, with the names
+ * packed end to end as UTF-8 and an open-addressing hash table from name to index.  This costs a few dozen bytes per
+ * section plus the name itself, rather than the several hundred of a map of SequenceFragmentMetadata, so read sets with
+ * tens of millions of records can be indexed; the metadata objects are made by the SectionList as they are asked for.
+ * <p/>
+ * Sections must be added in order of their start positions.  If two sections have the same name, lookups find the later
+ * one.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class SectionTable implements Serializable
+	{
+	// ------------------------------ FIELDS ------------------------------
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private int size = 0;
+	private long[] starts = new long[16];
+	private long[] lengths = new long[16];
+
+	// the name of section i is names[nameStarts[i]] up to names[nameStarts[i + 1]]
+	private int[] nameStarts = new int[17];
+	private byte[] names = new byte[256];
+
+	// index + 1 of the section with each name, or 0 for an empty slot; the capacity is a power of two
+	private int[] slots = new int[32];
+
+
+	// --------------------- GETTER / SETTER METHODS ---------------------
+
+	public int size()
+		{
+		return size;
+		}
+
+	public long getStart(int i)
+		{
+		return starts[i];
+		}
+
+	public long getLength(int i)
+		{
+		return lengths[i];
+		}
+
+	public String getName(int i)
+		{
+		return new String(names, nameStarts[i], nameStarts[i + 1] - nameStarts[i], UTF8);
+		}
+
+	// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * Appends a section
+	 *
+	 * @return the index of the new section
+	 */
+	public int add(String name, long start, long length)
+		{
+		if (size > 0 && start < starts[size - 1])
+			{
+			throw new IllegalArgumentException("Sections must be added in order: " + start + " < " + starts[size - 1]);
+			}
+		if (size == starts.length)
+			{
+			int capacity = Math.max(16, 2 * size);
+			starts = Arrays.copyOf(starts, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			nameStarts = Arrays.copyOf(nameStarts, capacity + 1);
+			}
+		byte[] nameBytes = name.getBytes(UTF8);
+		int nameEnd = nameStarts[size] + nameBytes.length;
+		if (nameEnd < 0)
+			{
+			throw new IllegalStateException("Section names exceed 2 GB");
+			}
+		if (nameEnd > names.length)
+			{
+			names = Arrays.copyOf(names, (int) Math.min(Integer.MAX_VALUE, Math.max(nameEnd, 2L * names.length)));
+			}
+		System.arraycopy(nameBytes, 0, names, nameStarts[size], nameBytes.length);
+
+		starts[size] = start;
+		lengths[size] = length;
+		nameStarts[size + 1] = nameEnd;
+		size++;
+
+		if (2 * size > slots.length)
+			{
+			rehash(2 * slots.length);
+			}
+		else
+			{
+			insert(size - 1, nameBytes, 0, nameBytes.length);
+			}
+		return size - 1;
+		}
+
+	/**
+	 * Releases the spare capacity left from growing the arrays, once all the sections have been added
+	 */
+	public void trim()
+		{
+		starts = Arrays.copyOf(starts, size);
+		lengths = Arrays.copyOf(lengths, size);
+		nameStarts = Arrays.copyOf(nameStarts, size + 1);
+		names = Arrays.copyOf(names, nameStarts[size]);
+		}
+
+	/**
+	 * @return the index of the section with the given name, or -1 if there is none
+	 */
+	public int indexOf(String name)
+		{
+		byte[] nameBytes = name.getBytes(UTF8);
+		int mask = slots.length - 1;
+		for (int slot = hash(nameBytes, 0, nameBytes.length) & mask; slots[slot] != 0; slot = (slot + 1) & mask)
+			{
+			int i = slots[slot] - 1;
+			if (nameEquals(i, nameBytes, 0, nameBytes.length))
+				{
+				return i;
+				}
+			}
+		return -1;
+		}
+
+	/**
+	 * @return the index of the section starting exactly at the given position, or -1 if there is none
+	 */
+	public int indexOfStart(long start)
+		{
+		int i = sectionContaining(start);
+		return i >= 0 && starts[i] == start ? i : -1;
+		}
+
+	/**
+	 * @return the index of the last section starting at or before the given position, or -1 if there is none
+	 */
+	public int sectionContaining(long position)
+		{
+		int lo = 0;
+		int hi = size;
+		while (lo < hi)
+			{
+			int mid = (lo + hi) >>> 1;
+			if (starts[mid] <= position)
+				{
+				lo = mid + 1;
+				}
+			else
+				{
+				hi = mid;
+				}
+			}
+		return lo - 1;
+		}
+
+	private void rehash(int capacity)
+		{
+		slots = new int[capacity];
+		for (int i = 0; i < size; i++)
+			{
+			insert(i, names, nameStarts[i], nameStarts[i + 1] - nameStarts[i]);
+			}
+		}
+
+	private void insert(int index, byte[] nameBytes, int from, int length)
+		{
+		int mask = slots.length - 1;
+		int slot = hash(nameBytes, from, length) & mask;
+		while (slots[slot] != 0)
+			{
+			if (nameEquals(slots[slot] - 1, nameBytes, from, length))
+				{
+				// a later section with the same name replaces the earlier one
+				break;
+				}
+			slot = (slot + 1) & mask;
+			}
+		slots[slot] = index + 1;
+		}
+
+	private boolean nameEquals(int i, byte[] nameBytes, int from, int length)
+		{
+		int start = nameStarts[i];
+		if (nameStarts[i + 1] - start != length)
+			{
+			return false;
+			}
+		for (int j = 0; j < length; j++)
+			{
+			if (names[start + j] != nameBytes[from + j])
+				{
+				return false;
+				}
+			}
+		return true;
+		}
+
+	private static int hash(byte[] bytes, int from, int length)
+		{
+		int h = 0;
+		for (int j = from; j < from + length; j++)
+			{
+			h = 31 * h + bytes[j];
+			}
+		// spread the high bits down, since only the low ones pick the slot
+		return h ^ (h >>> 16);
+		}
+	}
@@ -0,0 +1,455 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.sequencereader.fasta;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Random access to a BGZF-compressed file.  BGZF splits the data into independently compressed blocks of at most 64 KB,
+ * so a block index mapping each block's compressed offset to its uncompressed offset (the same information as a samtools
+ * .gzi file, and equivalent to BGZF virtual offsets) lets us decompress just the block containing any position.
+ * <p/>
+ * The index is loaded from a .gzi next to the file when one is present and current, and otherwise built by walking the
+ * block headers and written back.  Reads inflate the requested block and schedule the following blocks on a shared pool,
+ * so sequential scans are inflated on several cores while the reader consumes them.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+class BgzfFastaFile extends CompressedFastaFile
+	{
+	// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(BgzfFastaFile.class);
+
+	private static final int MAX_BLOCK_SIZE = 65536;
+	private static final int BLOCK_HEADER_SIZE = 18;
+	private static final int BLOCK_FOOTER_SIZE = 8;
+
+	private static final int READ_AHEAD_BLOCKS = Math.max(4, Runtime.getRuntime().availableProcessors());
+	private static final int CACHED_BLOCKS = 4 * READ_AHEAD_BLOCKS;
+
+	private static final ExecutorService inflaters =
+			Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+			{
+			public Thread newThread(Runnable r)
+				{
+				Thread t = new Thread(r, "BGZF inflater");
+				t.setDaemon(true);
+				return t;
+				}
+			});
+
+	// compressed and uncompressed start of each block, in file order
+	private final long[] blockStarts;
+	private final long[] blockUncompressedStarts;
+	private final long length;
+
+	private RandomAccessFile raf;
+
+	private final Map<Integer, Future<byte[]>> blockCache = new LinkedHashMap<Integer, Future<byte[]>>(16, 0.75f, true)
+	{
+	protected boolean removeEldestEntry(Map.Entry<Integer, Future<byte[]>> eldest)
+		{
+		return size() > CACHED_BLOCKS;
+		}
+	};
+
+
+	// --------------------------- CONSTRUCTORS ---------------------------
+
+	BgzfFastaFile(File file) throws IOException
+		{
+		super(file);
+		List<long[]> blocks = readGziIfCurrent();
+		if (blocks == null)
+			{
+			blocks = scanBlocks();
+			writeGziQuietly(blocks);
+			}
+		blockStarts = new long[blocks.size()];
+		blockUncompressedStarts = new long[blocks.size()];
+		for (int i = 0; i < blockStarts.length; i++)
+			{
+			blockStarts[i] = blocks.get(i)[0];
+			blockUncompressedStarts[i] = blocks.get(i)[1];
+			}
+		int last = blockStarts.length - 1;
+		length = blockUncompressedStarts[last] + readBlock(last).length;
+		}
+
+	// --------------------- GETTER / SETTER METHODS ---------------------
+
+	long length()
+		{
+		return length;
+		}
+
+	boolean isLengthKnown()
+		{
+		return true;
+		}
+
+	boolean isRandomAccess()
+		{
+		return true;
+		}
+
+	// -------------------------- OTHER METHODS --------------------------
+
+	int read(byte[] buf, int offset, long position, int length) throws IOException
+		{
+		int charactersRead = 0;
+		while (charactersRead < length && position < this.length)
+			{
+			int block = findBlock(position);
+			byte[] data = getBlock(block);
+			int within = (int) (position - blockUncompressedStarts[block]);
+			int r = Math.min(length - charactersRead, data.length - within);
+			System.arraycopy(data, within, buf, offset + charactersRead, r);
+			charactersRead += r;
+			position += r;
+			}
+		return charactersRead;
+		}
+
+	synchronized void releaseCachedResources()
+		{
+		blockCache.clear();
+		if (raf != null)
+			{
+			try
+				{
+				raf.close();
+				}
+			catch (IOException e)
+				{
+				// Already Closed
+				}
+			raf = null;
+			}
+		}
+
+	/**
+	 * @return the index of the last block starting at or before the given uncompressed position
+	 */
+	private int findBlock(long position)
+		{
+		int low = 0;
+		int high = blockUncompressedStarts.length - 1;
+		while (low < high)
+			{
+			int mid = (low + high + 1) >>> 1;
+			if (blockUncompressedStarts[mid] <= position)
+				{
+				low = mid;
+				}
+			else
+				{
+				high = mid - 1;
+				}
+			}
+		return low;
+		}
+
+	/**
+	 * Returns the inflated contents of a block, and makes sure that the following blocks are being inflated too.
+	 */
+	private byte[] getBlock(int block) throws IOException
+		{
+		Future<byte[]> result;
+		synchronized (this)
+			{
+			result = scheduleBlock(block);
+			for (int i = block + 1; i <= block + READ_AHEAD_BLOCKS && i < blockStarts.length; i++)
+				{
+				scheduleBlock(i);
+				}
+			}
+		try
+			{
+			return result.get();
+			}
+		catch (InterruptedException e)
+			{
+			throw new InterruptedIOException("Interrupted while inflating " + file);
+			}
+		catch (ExecutionException e)
+			{
+			synchronized (this)
+				{
+				// don't keep returning a failure that a retry might fix
+				blockCache.remove(block);
+				}
+			if (e.getCause() instanceof IOException)
+				{
+				throw (IOException) e.getCause();
+				}
+			throw new IOException("Could not inflate block " + block + " of " + file + ": " + e.getCause());
+			}
+		}
+
+	private Future<byte[]> scheduleBlock(final int block)
+		{
+		Future<byte[]> result = blockCache.get(block);
+		if (result == null)
+			{
+			result = inflaters.submit(new Callable<byte[]>()
+			{
+			public byte[] call() throws IOException
+				{
+				return readBlock(block);
+				}
+			});
+			blockCache.put(block, result);
+			}
+		return result;
+		}
+
+	private byte[] readBlock(int block) throws IOException
+		{
+		long start = blockStarts[block];
+		byte[] compressed;
+		try
+			{
+			compressed = readCompressed(start);
+			}
+		catch (ClosedChannelException e)
+			{
+			// the file was closed by releaseCachedResources(); reopen it
+			compressed = readCompressed(start);
+			}
+		int blockSize = blockSize(compressed, start);
+		int uncompressedSize = (int) readUnsignedIntLE(compressed, blockSize - 4);
+		byte[] result = new byte[uncompressedSize];
+
+		Inflater inflater = new Inflater(true);
+		try
+			{
+			inflater.setInput(compressed, BLOCK_HEADER_SIZE, blockSize - BLOCK_HEADER_SIZE - BLOCK_FOOTER_SIZE);
+			int inflated = 0;
+			while (inflated < uncompressedSize)
+				{
+				int r = inflater.inflate(result, inflated, uncompressedSize - inflated);
+				if (r == 0 && (inflater.finished() || inflater.needsInput()))
+					{
+					throw new IOException("Truncated BGZF block at " + start + " in " + file);
+					}
+				inflated += r;
+				}
+			}
+		catch (DataFormatException e)
+			{
+			throw new IOException("Corrupt BGZF block at " + start + " in " + file + ": " + e.getMessage());
+			}
+		finally
+			{
+			inflater.end();
+			}
+		return result;
+		}
+
+	/**
+	 * Reads up to a maximal block's worth of compressed data, using a positional read so that any number of threads can
+	 * read at once
+	 */
+	private byte[] readCompressed(long start) throws IOException
+		{
+		FileChannel channel = getChannel();
+		int size = (int) Math.min(MAX_BLOCK_SIZE, channel.size() - start);
+		ByteBuffer bb = ByteBuffer.allocate(size);
+		while (bb.hasRemaining())
+			{
+			if (channel.read(bb, start + bb.position()) < 0)
+				{
+				break;
+				}
+			}
+		return bb.array();
+		}
+
+	private synchronized FileChannel getChannel() throws IOException
+		{
+		if (raf == null)
+			{
+			raf = new RandomAccessFile(file, "r");
+			}
+		return raf.getChannel();
+		}
+
+	/**
+	 * Parses a BGZF block header as written by bgzip (a single "BC" extra subfield)
+	 *
+	 * @return the total size of the block, including header and footer
+	 */
+	private int blockSize(byte[] header, long start) throws IOException
+		{
+		if (header.length < BLOCK_HEADER_SIZE || (header[0] & 0xFF) != GZIP_ID1 || (header[1] & 0xFF) != GZIP_ID2
+		    || (header[3] & GZIP_FEXTRA) == 0 || readUnsignedShortLE(header, 10) != 6 || header[12] != 'B'
+		    || header[13] != 'C')
+			{
+			throw new IOException("Unsupported BGZF block header at " + start + " in " + file);
+			}
+		return readUnsignedShortLE(header, 16) + 1;
+		}
+
+	/**
+	 * Walks the block headers, reading only each header and the uncompressed size at the end of each block
+	 */
+	private List<long[]> scanBlocks() throws IOException
+		{
+		List<long[]> result = new ArrayList<long[]>();
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try
+			{
+			long fileSize = in.length();
+			byte[] header = new byte[BLOCK_HEADER_SIZE];
+			byte[] footer = new byte[4];
+			long position = 0;
+			long uncompressedPosition = 0;
+			while (position < fileSize)
+				{
+				in.seek(position);
+				in.readFully(header);
+				int blockSize = blockSize(header, position);
+				in.seek(position + blockSize - 4);
+				in.readFully(footer);
+				result.add(new long[]{position, uncompressedPosition});
+				position += blockSize;
+				uncompressedPosition += readUnsignedIntLE(footer, 0);
+				}
+			}
+		finally
+			{
+			in.close();
+			}
+		if (result.isEmpty())
+			{
+			throw new IOException("Empty BGZF file: " + file);
+			}
+		return result;
+		}
+
+	private File gziFile()
+		{
+		return new File(file.getPath() + ".gzi");
+		}
+
+	/**
+	 * Reads a samtools .gzi: a little-endian count of entries, then a (compressed, uncompressed) offset pair for each block
+	 * after the first.
+	 */
+	private List<long[]> readGziIfCurrent()
+		{
+		File gzi = gziFile();
+		if (!gzi.canRead() || gzi.lastModified() < file.lastModified())
+			{
+			return null;
+			}
+		try
+			{
+			FileInputStream in = new FileInputStream(gzi);
+			try
+				{
+				FileChannel channel = in.getChannel();
+				ByteBuffer bb = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+				while (bb.hasRemaining() && channel.read(bb) >= 0)
+					{
+					}
+				bb.flip();
+				long count = bb.getLong();
+				if (bb.remaining() != count * 16)
+					{
+					logger.warn("Malformed " + gzi + "; rebuilding");
+					return null;
+					}
+				List<long[]> result = new ArrayList<long[]>();
+				result.add(new long[]{0, 0});
+				for (long i = 0; i < count; i++)
+					{
+					long compressed = bb.getLong();
+					long uncompressed = bb.getLong();
+					if (compressed >= file.length())
+						{
+						logger.warn(gzi + " doesn't match the size of " + file + "; rebuilding");
+						return null;
+						}
+					result.add(new long[]{compressed, uncompressed});
+					}
+				return result;
+				}
+			finally
+				{
+				in.close();
+				}
+			}
+		catch (IOException e)
+			{
+			logger.warn("Could not read " + gzi + "; rebuilding", e);
+			return null;
+			}
+		catch (RuntimeException e)
+			{
+			// e.g. BufferUnderflowException
+			logger.warn("Could not parse " + gzi + "; rebuilding", e);
+			return null;
+			}
+		}
+
+	private void writeGziQuietly(List<long[]> blocks)
+		{
+		File gzi = gziFile();
+		ByteBuffer bb = ByteBuffer.allocate(8 + 16 * (blocks.size() - 1)).order(ByteOrder.LITTLE_ENDIAN);
+		bb.putLong(blocks.size() - 1);
+		for (int i = 1; i < blocks.size(); i++)
+			{
+			bb.putLong(blocks.get(i)[0]);
+			bb.putLong(blocks.get(i)[1]);
+			}
+		try
+			{
+			FileOutputStream out = new FileOutputStream(gzi);
+			try
+				{
+				out.write(bb.array());
+				}
+			finally
+				{
+				out.close();
+				}
+			}
+		catch (IOException e)
+			{
+			logger.warn("Could not write " + gzi + ": " + e.getMessage());
+			gzi.delete();
+			}
+		}
+	}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.sequencereader.fasta;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A gzip-compressed FASTA file, presented as its uncompressed bytes so that FastaFileSet positions (and hence FastaParser
+ * sections and indexes) are uncompressed offsets.  BGZF files (blocked gzip, as produced by bgzip) support efficient
+ * random access; other gzip files can only be read efficiently in the forward direction.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+abstract class CompressedFastaFile
+	{
+	// ------------------------------ FIELDS ------------------------------
+
+	static final int GZIP_ID1 = 31;
+	static final int GZIP_ID2 = 139;
+	static final int GZIP_FEXTRA = 4;
+
+	protected final File file;
+
+
+	// --------------------------- CONSTRUCTORS ---------------------------
+
+	protected CompressedFastaFile(File file)
+		{
+		this.file = file;
+		}
+
+	// -------------------------- STATIC METHODS --------------------------
+
+	static boolean isCompressed(File file)
+		{
+		String name = file.getName().toLowerCase();
+		return name.endsWith(".gz") || name.endsWith(".bgz");
+		}
+
+	/**
+	 * Opens a compressed file, choosing random access if it is BGZF and streaming otherwise
+	 *
+	 * @param file a gzip-compressed file
+	 * @return a reader for the uncompressed contents
+	 * @throws IOException if the file can't be read or isn't gzip-compressed
+	 */
+	static CompressedFastaFile open(File file) throws IOException
+		{
+		if (isBgzf(file))
+			{
+			return new BgzfFastaFile(file);
+			}
+		return new GzipFastaFile(file);
+		}
+
+	/**
+	 * A BGZF file is a series of gzip members, each of which carries its own compressed size in a "BC" extra subfield.
+	 */
+	private static boolean isBgzf(File file) throws IOException
+		{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+			{
+			byte[] header = new byte[18];
+			if (raf.read(header) < header.length)
+				{
+				return false;
+				}
+			if ((header[0] & 0xFF) != GZIP_ID1 || (header[1] & 0xFF) != GZIP_ID2)
+				{
+				throw new IOException("Not a gzip file: " + file);
+				}
+			return (header[3] & GZIP_FEXTRA) != 0 && header[12] == 'B' && header[13] == 'C';
+			}
+		finally
+			{
+			raf.close();
+			}
+		}
+
+	static int readUnsignedShortLE(byte[] b, int offset)
+		{
+		return (b[offset] & 0xFF) | ((b[offset + 1] & 0xFF) << 8);
+		}
+
+	static long readUnsignedIntLE(byte[] b, int offset)
+		{
+		return (readUnsignedShortLE(b, offset) | ((long) readUnsignedShortLE(b, offset + 2) << 16));
+		}
+
+	// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * @return the uncompressed length of the file
+	 * @throws IOException if the length has to be found by decompressing the file, and that fails
+	 */
+	abstract long length() throws IOException;
+
+	/**
+	 * @return true if the uncompressed length is known without decompressing the file
+	 */
+	abstract boolean isLengthKnown();
+
+	/**
+	 * @return true if any position can be read without decompressing everything before it
+	 */
+	abstract boolean isRandomAccess();
+
+	/**
+	 * Copies uncompressed bytes out of the file.
+	 *
+	 * @param buf      Buffer to read the data in
+	 * @param offset   Offset in the buffer at which to start writing
+	 * @param position Uncompressed offset in the file to start reading (inclusive)
+	 * @param length   Maximum number of bytes to read
+	 * @return The number of bytes actually read, which is less than length only at the end of the file
+	 * @throws IOException if the file can't be read or decompressed
+	 */
+	abstract int read(byte[] buf, int offset, long position, int length) throws IOException;
+
+	/**
+	 * Closes the underlying file and drops any decompressed data; the file is reopened on the next read.
+	 */
+	abstract void releaseCachedResources();
+	}
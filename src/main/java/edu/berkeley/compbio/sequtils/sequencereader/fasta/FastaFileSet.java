@@ -10,17 +10,20 @@ package edu.berkeley.compbio.sequtils.sequencereader.fasta;
 import com.davidsoergel.dsutils.CachedResourceReleaser;
 import com.davidsoergel.dsutils.HasReleaseableResources;
 import edu.berkeley.compbio.sequtils.NotEnoughSequenceException;
+import edu.berkeley.compbio.sequtils.SequenceError;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Fasta File Set, useful in treating multiple fasta files as one
+ * Fasta File Set, useful in treating multiple fasta files as one.  Files may be gzip-compressed (.gz), in which case
+ * positions refer to the uncompressed contents; BGZF files support efficient random access, while plain gzip files are
+ * best read sequentially.
  *
  * @author David Tulga
  * @version $Id: FastaFileSet.java 1098 2009-07-19 01:41:49Z soergel $
@@ -30,17 +33,44 @@ public class FastaFileSet implements HasReleaseableResources
 	// ------------------------------ FIELDS ------------------------------
 
 	//private static final Logger logger = Logger.getLogger(FastaFileSet.class);
+
+	/**
+	 * The file extensions picked up from a directory by default
+	 */
+	public static final List<String> FASTA_EXTENSIONS = Collections.unmodifiableList(Arrays.asList(".fna", ".fasta"));
+
 	private long totalSequence = 0;// how many nucleotides of sequence are in all files in the directory
-	private Map<File, Long> fileStarts = new HashMap<File, Long>();
-	// start position of each file if they were concatenated (inclusive)
-	private Map<File, Long> fileEnds = new HashMap<File, Long>();
-// end position of each file if they were concatenated (exclusive)
+
+	// fileBoundaries[i] is the start position of file i if they were concatenated (inclusive), and so also the end of
+	// file i - 1 (exclusive); the last entry is totalSequence.  Sorted, so the file containing a position is found by
+	// binary search.
+	private long[] fileBoundaries = new long[17];
+
+	// the first file added before its uncompressed length was known, or -1.  The boundaries from there on, and
+	// totalSequence, are worked out when first needed, so that plain gzip files are only decompressed if they're used.
+	private volatile int firstUnmeasuredFile = -1;
 
 	private List<File> theFiles = new ArrayList<File>();
 	// List rather than Set because order matters in keeping the start positions etc. straight
-	private Map<File, RandomAccessFile> theRAFiles = new HashMap<File, RandomAccessFile>();
+
+	// the index of each file in theFiles
+	private Map<File, Integer> fileIndexes = new HashMap<File, Integer>();
+
+	// uncompressed files are read through handles borrowed from this pool, so sets don't each hold every file open
+	private volatile FileHandlePool handlePool = FileHandlePool.getSharedPool();
+
+	// only used in memory-mapped mode; read without taking the lock
+	private final Map<File, MappedFastaFile> theMappedFiles = new ConcurrentHashMap<File, MappedFastaFile>();
+	private volatile boolean memoryMapped = false;
+
+	// gzip-compressed files are always read through these, in either mode
+	private final Map<File, CompressedFastaFile> theCompressedFiles = new ConcurrentHashMap<File, CompressedFastaFile>();
 
 	private String name = null;
+
+	// derived from the absolute paths of the files, in order, and updated as each is added
+	private long pathHash = 0xcbf29ce484222325L;
+	private volatile String persistentId = null;
 	private Integer taxid = null;
 	private int genomeCount;
 
@@ -83,18 +113,30 @@ public class FastaFileSet implements HasReleaseableResources
 	 * @throws IOException If any data errors occur
 	 */
 	public FastaFileSet(File input) throws IOException
+		{
+		this(input, FASTA_EXTENSIONS);
+		}
+
+	/**
+	 * Initializes a file set from a file or directory, choosing files in a directory by extension
+	 *
+	 * @param input      File or directory to initialize
+	 * @param extensions Extensions (including the dot, and ignoring any .gz) of the files to use from a directory
+	 * @throws IOException If any data errors occur
+	 */
+	public FastaFileSet(File input, Collection<String> extensions) throws IOException
 		{
 		name = input.getName();
 
 		if (input.isDirectory())
 			{
-			addDirectory(input);
+			addDirectory(input, extensions);
 			}
 		else
 			{
 			addFile(input);
 			}
-		if (fileStarts.size() != fileEnds.size() || fileStarts.size() != theFiles.size())
+		if (fileIndexes.size() != theFiles.size())
 			{
 			throw new Error("Impossible");
 			}
@@ -121,7 +163,7 @@ public class FastaFileSet implements HasReleaseableResources
 				{
 				addFile(input);
 				}
-			if (fileStarts.size() != fileEnds.size() || fileStarts.size() != theFiles.size())
+			if (fileIndexes.size() != theFiles.size())
 				{
 				throw new Error("Impossible");
 				}
@@ -135,6 +177,11 @@ public class FastaFileSet implements HasReleaseableResources
 		}
 
 	public void addDirectory(File input) throws IOException
+		{
+		addDirectory(input, FASTA_EXTENSIONS);
+		}
+
+	public void addDirectory(File input, Collection<String> extensions) throws IOException
 		{
 		lock.lock();
 		try
@@ -161,9 +208,17 @@ public class FastaFileSet implements HasReleaseableResources
 					{
 					continue;
 					}
-				String ext = file.getName().substring(file.getName().lastIndexOf('.'), file.getName().length())
-						.toLowerCase();
-				if (ext.equals(".fna") || ext.equals(".fasta"))
+				String name = file.getName();
+				if (CompressedFastaFile.isCompressed(file))
+					{
+					name = name.substring(0, name.lastIndexOf('.'));
+					if (!name.contains("."))
+						{
+						continue;
+						}
+					}
+				String ext = name.substring(name.lastIndexOf('.'), name.length()).toLowerCase();
+				if (extensions.contains(ext))
 					{
 					addFile(file);
 					//theFiles.add(file);
@@ -171,7 +226,7 @@ public class FastaFileSet implements HasReleaseableResources
 					//lastPosition = totalSequence;
 					}
 				}
-			if (fileStarts.size() != fileEnds.size() || fileStarts.size() != theFiles.size())
+			if (fileIndexes.size() != theFiles.size())
 				{
 				throw new Error("Impossible");
 				}
@@ -182,17 +237,40 @@ public class FastaFileSet implements HasReleaseableResources
 			}
 		}
 
-	public void addFile(File file)
+	public void addFile(File file) throws IOException
 		{
 		lock.lock();
 		try
 			{
-			if (!theFiles.contains(file))
+			if (!fileIndexes.containsKey(file))
 				{
-				fileStarts.put(file, totalSequence);
-				totalSequence += file.length();// including the FASTA headers and newlines
-				fileEnds.put(file, totalSequence);
+				long length = file.length();
+				boolean measured = true;
+				if (CompressedFastaFile.isCompressed(file))
+					{
+					CompressedFastaFile compressed = theCompressedFiles.get(file);
+					if (compressed == null)
+						{
+						compressed = CompressedFastaFile.open(file);
+						theCompressedFiles.put(file, compressed);
+						}
+					measured = compressed.isLengthKnown();
+					length = measured ? compressed.length() : 0;
+					}
+				int i = theFiles.size();
+				ensureFileCapacity(i + 1);
+				if (!measured && firstUnmeasuredFile < 0)
+					{
+					firstUnmeasuredFile = i;
+					}
+				if (firstUnmeasuredFile < 0)
+					{
+					totalSequence += length;// including the FASTA headers and newlines
+					fileBoundaries[i + 1] = totalSequence;
+					}
+				fileIndexes.put(file, i);
 				theFiles.add(file);
+				addToPersistentId(file);
 				//if(logger.isDebugEnabled()) logger.debug("Found file: " + file + " " + + totalSequence);
 				}
 			}
@@ -210,7 +288,7 @@ public class FastaFileSet implements HasReleaseableResources
 		for (FastaFileSet mergeSet : mergeSets)
 			{
 			addAll(mergeSet);
-			if (fileStarts.size() != fileEnds.size() || fileStarts.size() != theFiles.size())
+			if (fileIndexes.size() != theFiles.size())
 				{
 				throw new Error("Impossible");
 				}
@@ -230,7 +308,7 @@ public class FastaFileSet implements HasReleaseableResources
 					}
 				}
 			}
-		if (fileStarts.size() != fileEnds.size() || fileStarts.size() != theFiles.size())
+		if (fileIndexes.size() != theFiles.size())
 			{
 			throw new Error("Impossible");
 			}
@@ -241,11 +319,27 @@ public class FastaFileSet implements HasReleaseableResources
 		lock.lock();
 		try
 			{
+			// grow the boundaries once, rather than repeatedly while adding a large set
+			ensureFileCapacity(theFiles.size() + otherset.theFiles.size());
 			for (File f : otherset.theFiles)
 				{
-				addFile(f);
+				CompressedFastaFile compressed = otherset.theCompressedFiles.get(f);
+				if (compressed != null && !fileIndexes.containsKey(f))
+					{
+					// share the block index (or uncompressed length) rather than working it out again
+					theCompressedFiles.put(f, compressed);
+					}
+				try
+					{
+					addFile(f);
+					}
+				catch (IOException e)
+					{
+					// the other set already opened it successfully
+					throw new SequenceError(e);
+					}
 				}
-			if (fileStarts.size() != fileEnds.size() || fileStarts.size() != theFiles.size())
+			if (fileIndexes.size() != theFiles.size())
 				{
 				throw new Error("Impossible");
 				}
@@ -273,6 +367,17 @@ public class FastaFileSet implements HasReleaseableResources
 		return taxid;
 		}
 
+	/**
+	 * Returns an identifier of the files in this set, in order, which is the same from one run to the next.  Unlike
+	 * toString(), this doesn't take the lock.
+	 *
+	 * @return the identifier, or null if the set is empty
+	 */
+	public String getPersistentId()
+		{
+		return persistentId;
+		}
+
 	/**
 	 * Returns the total amount of sequence present in all files
 	 *
@@ -283,6 +388,7 @@ public class FastaFileSet implements HasReleaseableResources
 		lock.lock();
 		try
 			{
+			measureFiles();
 			// REVIEW Fix this so it doesn't count FASTA Headers and newlines
 			return totalSequence;
 			}
@@ -296,7 +402,117 @@ public class FastaFileSet implements HasReleaseableResources
 
 	public long getAverageGenomeSize()
 		{
-		return totalSequence / genomeCount;
+		return getTotalSequence() / genomeCount;
+		}
+
+	/**
+	 * Returns the files in this set, in the order in which they are concatenated
+	 *
+	 * @return An unmodifiable snapshot of the list of files
+	 */
+	public List<File> getFiles()
+		{
+		lock.lock();
+		try
+			{
+			return Collections.unmodifiableList(new ArrayList<File>(theFiles));
+			}
+		finally
+			{
+			lock.unlock();
+			}
+		}
+
+	/**
+	 * Returns the position in the set of the first byte of the given file
+	 *
+	 * @param file A file in this set
+	 * @return The start position (inclusive)
+	 */
+	public long getFileStart(File file)
+		{
+		lock.lock();
+		try
+			{
+			measureFiles();
+			return fileBoundaries[fileIndexes.get(file)];
+			}
+		finally
+			{
+			lock.unlock();
+			}
+		}
+
+	/**
+	 * Returns the position in the set just past the last byte of the given file
+	 *
+	 * @param file A file in this set
+	 * @return The end position (exclusive)
+	 */
+	public long getFileEnd(File file)
+		{
+		lock.lock();
+		try
+			{
+			measureFiles();
+			return fileBoundaries[fileIndexes.get(file) + 1];
+			}
+		finally
+			{
+			lock.unlock();
+			}
+		}
+
+	public boolean isMemoryMapped()
+		{
+		return memoryMapped;
+		}
+
+	/**
+	 * @param file A file in this set
+	 * @return false if the file is plain gzip, which can only be decompressed from the start
+	 */
+	boolean isRandomAccess(File file)
+		{
+		CompressedFastaFile compressed = theCompressedFiles.get(file);
+		return compressed == null || compressed.isRandomAccess();
+		}
+
+	public FileHandlePool getFileHandlePool()
+		{
+		return handlePool;
+		}
+
+	/**
+	 * Reads uncompressed files through handles from the given pool, rather than the shared one.  Handles held in the old
+	 * pool are closed as they become idle.
+	 *
+	 * @param handlePool the pool to use
+	 */
+	public void setFileHandlePool(FileHandlePool handlePool)
+		{
+		lock.lock();
+		try
+			{
+			this.handlePool.closeIdle(theFiles);
+			this.handlePool = handlePool;
+			}
+		finally
+			{
+			lock.unlock();
+			}
+		}
+
+	/**
+	 * Switches between reading through a pooled file handle per file (the default) and reading out of a read-only memory
+	 * mapping of each file.  In memory-mapped mode readAt() takes no lock, so any number of parsers sharing this set may
+	 * read at the same time.  The set of files should be complete before concurrent reads begin.
+	 *
+	 * @param memoryMapped true to read through memory mappings
+	 */
+	public void setMemoryMapped(boolean memoryMapped)
+		{
+		this.memoryMapped = memoryMapped;
 		}
 
 	// ------------------------ CANONICAL METHODS ------------------------
@@ -310,7 +526,7 @@ public class FastaFileSet implements HasReleaseableResources
 */
 
 	/**
-	 * Closes all the open filehandles
+	 * Closes all the open filehandles that aren't in use
 	 */
 	public void releaseCachedResources()
 		{
@@ -319,21 +535,12 @@ public class FastaFileSet implements HasReleaseableResources
 			try
 				{
 				//if(logger.isDebugEnabled()) logger.debug("Closing Fileset.");
-				for (File file : theFiles)
+				handlePool.closeIdle(theFiles);
+				// readers already holding a mapping keep using it; the rest will remap on demand
+				theMappedFiles.clear();
+				for (CompressedFastaFile compressed : theCompressedFiles.values())
 					{
-					RandomAccessFile r = theRAFiles.get(file);
-					if (r != null)
-						{
-						try
-							{
-							r.close();
-							theRAFiles.remove(file);
-							}
-						catch (IOException e)
-							{
-							// Already Closed
-							}
-						}
+					compressed.releaseCachedResources();
 					}
 				}
 			finally
@@ -371,6 +578,23 @@ public class FastaFileSet implements HasReleaseableResources
 
 	// -------------------------- OTHER METHODS --------------------------
 
+	/**
+	 * Folds a newly added file's path into the persistent identifier (64-bit FNV-1a over the paths).  Must be called
+	 * holding the lock.
+	 */
+	private void addToPersistentId(File file)
+		{
+		String path = file.getAbsolutePath() + "\n";
+		long h = pathHash;
+		for (int i = 0; i < path.length(); i++)
+			{
+			h ^= path.charAt(i);
+			h *= 0x100000001b3L;
+			}
+		pathHash = h;
+		persistentId = "fasta:" + theFiles.size() + ":" + Long.toHexString(h);
+		}
+
 	/**
 	 * Reads a section from the files
 	 *
@@ -384,78 +608,184 @@ public class FastaFileSet implements HasReleaseableResources
 
 	public int readAt(byte[] buf, long position, int length) throws NotEnoughSequenceException, IOException
 		{
+		if (memoryMapped && firstUnmeasuredFile < 0)
+			{
+			// lock-free, copying out of the memory mapping of each file
+			return readSpanningFiles(buf, position, length);
+			}
 		lock.lock();
 		try
 			{
-			if (theFiles.size() == 0)
+			measureFiles();
+			return readSpanningFiles(buf, position, length);
+			}
+		finally
+
+			{
+			lock.unlock();
+			}
+		}
+
+	/**
+	 * Finds the file containing the position by binary search, then reads from it and on into the following files until
+	 * the request is satisfied or a file reads short.
+	 */
+	private int readSpanningFiles(byte[] buf, long position, int length) throws NotEnoughSequenceException, IOException
+		{
+		// take local copies, since in memory-mapped mode there is no lock
+		final long[] boundaries = fileBoundaries;
+		final int numFiles = Math.min(theFiles.size(), boundaries.length - 1);
+		if (numFiles == 0)
+			{
+			throw new NotEnoughSequenceException("Fileset contains no files!");
+			}
+		if (position < 0 || position >= boundaries[numFiles])
+			{
+			throw new NotEnoughSequenceException("Offset " + position + " outside of available sequence range!");
+			}
+		int charactersRead = 0;
+		for (int i = fileContaining(boundaries, numFiles, position); i < numFiles && length > 0; i++)
+			{
+			long fileStart = boundaries[i];
+			long fileEnd = boundaries[i + 1];
+			if (fileEnd == fileStart)
 				{
-				throw new NotEnoughSequenceException("Fileset contains no files!");
+				continue;
 				}
-			if (position < 0 || position >= fileEnds.get(theFiles.get(theFiles.size() - 1)))
+			//if(logger.isDebugEnabled()) logger.debug("Read at Start: " + (position-fileStart) + " Length: " + length);
+			int r = readFile(theFiles.get(i), buf, charactersRead, position - fileStart,
+			                 (int) Math.min(length, fileEnd - position));
+
+			charactersRead += r;
+			position += r;
+			length -= r;
+			if (position < fileEnd)
 				{
-				throw new NotEnoughSequenceException("Offset " + position + " outside of available sequence range!");
+				break;
 				}
-			int charactersRead = 0;
-			for (File file : theFiles)
-				{
-				if (fileStarts.get(file) <= position && position < fileEnds.get(file))
-					{
-					//if(logger.isDebugEnabled()) logger.debug("Read at Start: " + (position-fileStarts.get(file)) + " Length: " + length);
-					RandomAccessFile raf = getRandomAccessFile(file);
-					raf.seek(position - fileStarts.get(file));
-
-					int r = raf.read(buf, charactersRead, length);
+			}
+		if (charactersRead == 0)
+			{
+			throw new NotEnoughSequenceException("No characters read");
+			}
+		return charactersRead;
+		}
 
-					charactersRead += r;
-					position += r;
-					length -= r;
-					}
+	/**
+	 * @return the index of the last file starting at or before the given position; since empty files end where they
+	 *         start, this is the file that contains it
+	 */
+	private static int fileContaining(long[] boundaries, int numFiles, long position)
+		{
+		int lo = 0;
+		int hi = numFiles;
+		while (lo < hi)
+			{
+			int mid = (lo + hi) >>> 1;
+			if (boundaries[mid] <= position)
+				{
+				lo = mid + 1;
 				}
-			if (charactersRead == 0)
+			else
 				{
-				throw new NotEnoughSequenceException("No characters read");
+				hi = mid;
 				}
-			return charactersRead;
 			}
-		finally
+		return lo - 1;
+		}
 
+	private int readFile(File file, byte[] buf, int offset, long position, int length) throws IOException
+		{
+		CompressedFastaFile compressed = theCompressedFiles.get(file);
+		if (compressed != null)
 			{
-			lock.unlock();
+			return compressed.read(buf, offset, position, length);
+			}
+		if (memoryMapped)
+			{
+			return getMappedFile(file).read(buf, offset, position, length);
+			}
+		FileHandlePool.Handle handle = handlePool.acquire(file);
+		try
+			{
+			return handle.read(buf, offset, position, length);
+			}
+		finally
+			{
+			handlePool.release(handle);
 			}
 		}
 
-	private RandomAccessFile getRandomAccessFile(File f) throws FileNotFoundException
+	/**
+	 * Works out the boundaries of the files added before their uncompressed lengths were known, decompressing them if need
+	 * be.  Must be called holding the lock.
+	 */
+	private void measureFiles()
 		{
-		lock.lock();
+		if (firstUnmeasuredFile < 0)
+			{
+			return;
+			}
 		try
 			{
+			for (int i = firstUnmeasuredFile; i < theFiles.size(); i++)
+				{
+				File file = theFiles.get(i);
+				CompressedFastaFile compressed = theCompressedFiles.get(file);
+				fileBoundaries[i + 1] = fileBoundaries[i] + (compressed == null ? file.length() : compressed.length());
+				}
+			}
+		catch (IOException e)
+			{
+			throw new SequenceError(e);
+			}
+		totalSequence = fileBoundaries[theFiles.size()];
+		firstUnmeasuredFile = -1;
+		}
+
+	/**
+	 * Makes room in fileBoundaries for the given number of files
+	 */
+	private void ensureFileCapacity(int numFiles)
+		{
+		if (numFiles + 1 > fileBoundaries.length)
+			{
+			fileBoundaries = Arrays.copyOf(fileBoundaries, Math.max(numFiles + 1, 2 * fileBoundaries.length));
+			}
+		}
+
+	private MappedFastaFile getMappedFile(File f) throws IOException
+		{
+		MappedFastaFile result = theMappedFiles.get(f);
+		if (result == null)
+			{
+			// only the first reader of each file pays for the lock
+			lock.lock();
 			try
 				{
-				RandomAccessFile tmp = theRAFiles.get(f);
-				if (tmp == null) // || !tmp.getFD().valid())
+				result = theMappedFiles.get(f);
+				if (result == null)
 					{
-					tmp = new RandomAccessFile(f, "r");
-					theRAFiles.put(f, tmp);
+					try
+						{
+						result = new MappedFastaFile(f);
+						}
+					catch (FileNotFoundException e)
+						{
+						CachedResourceReleaser.release();
+
+						// try again, but really throw the exception if it occurs this time
+						result = new MappedFastaFile(f);
+						}
+					theMappedFiles.put(f, result);
 					}
-				return tmp;
 				}
-			catch (FileNotFoundException e)
+			finally
 				{
-				// avoid synchronization on this for the release call
-				CachedResourceReleaser.release();
-
-
-				// try again, but really throw the exception if it occurs this time
-				RandomAccessFile tmp = new RandomAccessFile(f, "r");
-				theRAFiles.put(f, tmp);
-				return tmp;
+				lock.unlock();
 				}
 			}
-		finally
-
-			{
-			lock.unlock();
-			}
+		return result;
 		}
 
 	public void incrementGenomeCount()
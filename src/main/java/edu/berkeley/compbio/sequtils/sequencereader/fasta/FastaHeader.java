@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.sequencereader.fasta;
+
+/**
+ * Reads the name from a FASTA header line, one byte at a time after the '>'.  The name runs up to the first space, tab or
+ * line terminator, and the line, along with the header, ends at the '\n', whether or not a '\r' precedes it; the section
+ * starts with the following byte.  FastaParser and FastaIndex both read headers through this, so that the names and
+ * section offsets found by scanning agree with those in the index.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+class FastaHeader
+	{
+	// ------------------------------ FIELDS ------------------------------
+
+	private final StringBuilder name = new StringBuilder();
+	private boolean readingName = true;
+
+
+	// --------------------- GETTER / SETTER METHODS ---------------------
+
+	String getName()
+		{
+		return name.toString();
+		}
+
+	// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * Takes the next byte of the header line
+	 *
+	 * @param b a byte following the '>'
+	 * @return true if the byte ends the header line, so that the section starts with the next one
+	 */
+	boolean add(byte b)
+		{
+		if (b == '\n')
+			{
+			return true;
+			}
+		if (readingName)
+			{
+			if (b == ' ' || b == '\t' || b == '\r')
+				{
+				readingName = false;
+				}
+			else
+				{
+				name.append((char) b);
+				}
+			}
+		return false;
+		}
+	}
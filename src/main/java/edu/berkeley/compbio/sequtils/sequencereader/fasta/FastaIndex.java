@@ -0,0 +1,634 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.sequencereader.fasta;
+
+import edu.berkeley.compbio.sequtils.NotEnoughSequenceException;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The section index of a single FASTA file, stored on disk next to the file in the samtools .fai format: one
+ * tab-separated line per sequence giving its name, its length in residues, the offset of its first residue within the
+ * file, the number of residues per line, and the number of bytes per line including the line terminator.
+ * <p/>
+ * Offsets are relative to the file; the position of a section within a FastaFileSet is the file's start position in the
+ * set plus the offset.  Sections whose lines are not all the same width (apart from the last) can't be described by a
+ * .fai line; for those we write 0 for both line fields, so samtools will refuse such an index just as it would refuse to
+ * build one.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+class FastaIndex
+	{
+	// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(FastaIndex.class);
+
+	private static final String SUFFIX = ".fai";
+	private static final int BUFFER_SIZE = 65536;
+	private static final long CHUNK_SIZE = 16L << 20;
+
+	private final List<Entry> entries;
+
+
+	// --------------------------- CONSTRUCTORS ---------------------------
+
+	FastaIndex(List<Entry> entries)
+		{
+		this.entries = entries;
+		}
+
+	// --------------------- GETTER / SETTER METHODS ---------------------
+
+	List<Entry> getEntries()
+		{
+		return entries;
+		}
+
+	// -------------------------- STATIC METHODS --------------------------
+
+	static File indexFileFor(File fastaFile)
+		{
+		return new File(fastaFile.getPath() + SUFFIX);
+		}
+
+	/**
+	 * Returns the index for every file in the set, in the same order as fileset.getFiles().  Indexes that are present on
+	 * disk and current are loaded; the rest are rebuilt and written back next to their FASTA files when possible.  All the
+	 * stale files are split into chunks, which are scanned in parallel.
+	 *
+	 * @param fileset the files to index
+	 * @return the indexes, one per file
+	 * @throws IOException if a file can't be read
+	 */
+	static List<FastaIndex> loadOrBuild(FastaFileSet fileset) throws IOException
+		{
+		List<File> files = fileset.getFiles();
+		List<FastaIndex> result = new ArrayList<FastaIndex>(files.size());
+		boolean anyStale = false;
+		for (File file : files)
+			{
+			FastaIndex index = readIfCurrent(file, fileset.getFileEnd(file) - fileset.getFileStart(file));
+			result.add(index);
+			anyStale |= index == null;
+			}
+		if (!anyStale)
+			{
+			return result;
+			}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try
+			{
+			// queue every chunk of every stale file before waiting for any of them
+			List<List<Future<ChunkScan>>> scans = new ArrayList<List<Future<ChunkScan>>>(files.size());
+			for (int i = 0; i < files.size(); i++)
+				{
+				scans.add(result.get(i) == null ? scanChunks(fileset, files.get(i), CHUNK_SIZE, executor) : null);
+				}
+			for (int i = 0; i < files.size(); i++)
+				{
+				if (result.get(i) == null)
+					{
+					FastaIndex index = merge(scans.get(i));
+					index.writeQuietly(files.get(i));
+					result.set(i, index);
+					}
+				}
+			}
+		finally
+			{
+			executor.shutdownNow();
+			}
+		return result;
+		}
+
+	/**
+	 * Loads the index of the given FASTA file, if one exists and is at least as new as the FASTA file.  The index is also
+	 * checked against the size of the file: an index describing sequence beyond the end of the file is stale.
+	 *
+	 * @param fastaFile the FASTA file whose index is wanted
+	 * @param size      the (uncompressed) length of the file
+	 * @return the index, or null if there is no usable index on disk
+	 */
+	static FastaIndex readIfCurrent(File fastaFile, long size)
+		{
+		File indexFile = indexFileFor(fastaFile);
+		if (!indexFile.canRead() || indexFile.lastModified() < fastaFile.lastModified())
+			{
+			return null;
+			}
+		try
+			{
+			FastaIndex index = read(indexFile);
+			for (Entry entry : index.entries)
+				{
+				if (entry.getOffset() + entry.getLength() > size + 1 || entry.rawEnd() > size + entry.getLineWidth())
+					{
+					logger.info("Index " + indexFile + " doesn't match the size of " + fastaFile + "; rebuilding");
+					return null;
+					}
+				}
+			return index;
+			}
+		catch (IOException e)
+			{
+			logger.warn("Could not read index " + indexFile + "; rebuilding", e);
+			return null;
+			}
+		catch (NumberFormatException e)
+			{
+			logger.warn("Could not parse index " + indexFile + "; rebuilding", e);
+			return null;
+			}
+		}
+
+	static FastaIndex read(File indexFile) throws IOException
+		{
+		List<Entry> entries = new ArrayList<Entry>();
+		BufferedReader in = new BufferedReader(new FileReader(indexFile));
+		try
+			{
+			String line;
+			while ((line = in.readLine()) != null)
+				{
+				if (line.length() == 0)
+					{
+					continue;
+					}
+				String[] fields = line.split("\t");
+				if (fields.length < 5)
+					{
+					throw new IOException("Malformed index line in " + indexFile + ": " + line);
+					}
+				entries.add(new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+				                      Integer.parseInt(fields[3]), Integer.parseInt(fields[4])));
+				}
+			}
+		finally
+			{
+			in.close();
+			}
+		return new FastaIndex(Collections.unmodifiableList(entries));
+		}
+
+	/**
+	 * Scans one file of the set to find its sections.  The file is read through the FastaFileSet, so the index describes
+	 * the same bytes that a FastaParser will see.
+	 *
+	 * @param fileset   the set containing the file
+	 * @param file      the file to scan
+	 * @param chunkSize the approximate number of bytes to scan in each task
+	 * @param executor  the pool on which to scan the chunks
+	 * @return the index of the file
+	 * @throws IOException if the file can't be read
+	 */
+	static FastaIndex build(FastaFileSet fileset, File file, long chunkSize, ExecutorService executor)
+			throws IOException
+		{
+		return merge(scanChunks(fileset, file, chunkSize, executor));
+		}
+
+	/**
+	 * Splits a file into chunks and queues a scan of each.  A chunk owns the lines that start within it, so a boundary that
+	 * falls in the middle of a line is effectively moved to the start of the next line, without any coordination between
+	 * the tasks.  A plain gzip file can only be decompressed from the start, so it's scanned as a single chunk.
+	 */
+	private static List<Future<ChunkScan>> scanChunks(final FastaFileSet fileset, final File file, long chunkSize,
+	                                                  ExecutorService executor)
+		{
+		if (!fileset.isRandomAccess(file))
+			{
+			chunkSize = Long.MAX_VALUE;
+			}
+		long fileLength = fileset.getFileEnd(file) - fileset.getFileStart(file);
+		List<Future<ChunkScan>> result = new ArrayList<Future<ChunkScan>>();
+		for (long start = 0; start == 0 || start < fileLength; start += chunkSize)
+			{
+			final long chunkStart = start;
+			final long chunkEnd = Math.min(start + chunkSize, fileLength);
+			result.add(executor.submit(new Callable<ChunkScan>()
+			{
+			public ChunkScan call() throws IOException
+				{
+				return scanChunk(fileset, file, chunkStart, chunkEnd);
+				}
+			}));
+			}
+		return result;
+		}
+
+	/**
+	 * Joins the chunk scans of a file, in order: the lines at the start of each chunk continue the last section of the
+	 * previous one.
+	 */
+	private static FastaIndex merge(List<Future<ChunkScan>> scans) throws IOException
+		{
+		List<Entry> entries = new ArrayList<Entry>();
+		PartialSection open = null;
+		try
+			{
+			for (Future<ChunkScan> future : scans)
+				{
+				ChunkScan scan = future.get();
+				if (open != null)
+					{
+					open.lines.append(scan.leadingLines);
+					}
+				for (PartialSection section : scan.sections)
+					{
+					if (open != null)
+						{
+						entries.add(open.toEntry());
+						}
+					open = section;
+					}
+				}
+			}
+		catch (InterruptedException e)
+			{
+			throw new InterruptedIOException("Interrupted while indexing");
+			}
+		catch (ExecutionException e)
+			{
+			if (e.getCause() instanceof IOException)
+				{
+				throw (IOException) e.getCause();
+				}
+			throw new IOException("Could not index: " + e.getCause());
+			}
+		if (open != null)
+			{
+			entries.add(open.toEntry());
+			}
+		return new FastaIndex(Collections.unmodifiableList(entries));
+		}
+
+	/**
+	 * Scans the lines starting in the given range of a file (relative to the file), reading past the end of the range to
+	 * finish the last line
+	 */
+	private static ChunkScan scanChunk(FastaFileSet fileset, File file, long start, long end) throws IOException
+		{
+		long fileStart = fileset.getFileStart(file);
+		long fileLength = fileset.getFileEnd(file) - fileStart;
+
+		ChunkScan result = new ChunkScan();
+		LineRun lines = result.leadingLines;
+		byte[] buf = new byte[BUFFER_SIZE];
+
+		// unless we're at the start of the file, skip the line in progress: it belongs to the previous chunk
+		boolean seekingLineStart = start > 0;
+		long position = seekingLineStart ? start - 1 : 0;
+		boolean atLineStart = !seekingLineStart;
+		boolean inHeader = false;
+		FastaHeader header = null;
+		int lineBases = 0;
+		int lineWidth = 0;
+
+		while (position < fileLength)
+			{
+			int validChars;
+			try
+				{
+				validChars = fileset.readAt(buf, fileStart + position, (int) Math.min(BUFFER_SIZE, fileLength - position));
+				}
+			catch (NotEnoughSequenceException e)
+				{
+				break;
+				}
+			for (int i = 0; i < validChars; i++, position++)
+				{
+				byte t = buf[i];
+				if (seekingLineStart)
+					{
+					if (position >= end)
+						{
+						// no line starts in this chunk, e.g. it lies within one long line of sequence
+						return result;
+						}
+					if (t == '\n')
+						{
+						seekingLineStart = false;
+						atLineStart = true;
+						}
+					continue;
+					}
+				if (atLineStart)
+					{
+					if (position >= end)
+						{
+						// this line belongs to the next chunk
+						return result;
+						}
+					atLineStart = false;
+					inHeader = t == '>';
+					if (inHeader)
+						{
+						header = new FastaHeader();
+						continue;
+						}
+					lineBases = 0;
+					lineWidth = 0;
+					}
+				if (inHeader)
+					{
+					if (header.add(t))
+						{
+						PartialSection section = new PartialSection(header.getName(), position + 1);
+						result.sections.add(section);
+						lines = section.lines;
+						atLineStart = true;
+						}
+					}
+				else
+					{
+					lineWidth++;
+					if (t == '\n')
+						{
+						lines.addLine(lineBases, lineWidth, true);
+						atLineStart = true;
+						}
+					else if (t != '\r')
+						{
+						lineBases++;
+						}
+					}
+				}
+			}
+		if (!atLineStart && !inHeader && !seekingLineStart)
+			{
+			// a final line without a terminator, at the end of the file
+			lines.addLine(lineBases, lineWidth, false);
+			}
+		return result;
+		}
+
+	// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * Writes this index next to the given FASTA file.  The index is written to a temporary file first and then renamed, so
+	 * a concurrent reader never sees a partial index.
+	 *
+	 * @param fastaFile the FASTA file that this index describes
+	 * @throws IOException if the index can't be written
+	 */
+	void write(File fastaFile) throws IOException
+		{
+		File indexFile = indexFileFor(fastaFile);
+		File tmpFile = new File(indexFile.getPath() + ".tmp");
+		BufferedWriter out = new BufferedWriter(new FileWriter(tmpFile));
+		try
+			{
+			for (Entry entry : entries)
+				{
+				out.write(entry.getName());
+				out.write('\t');
+				out.write(Long.toString(entry.getLength()));
+				out.write('\t');
+				out.write(Long.toString(entry.getOffset()));
+				out.write('\t');
+				out.write(Integer.toString(entry.getLineBases()));
+				out.write('\t');
+				out.write(Integer.toString(entry.getLineWidth()));
+				out.write('\n');
+				}
+			}
+		finally
+			{
+			out.close();
+			}
+		if (!tmpFile.renameTo(indexFile))
+			{
+			// on some platforms rename won't replace an existing file
+			indexFile.delete();
+			if (!tmpFile.renameTo(indexFile))
+				{
+				tmpFile.delete();
+				throw new IOException("Could not write index " + indexFile);
+				}
+			}
+		}
+
+	/**
+	 * Writes this index next to the given FASTA file if possible; an unwritable directory just means that the index will be
+	 * rebuilt next time.
+	 */
+	void writeQuietly(File fastaFile)
+		{
+		try
+			{
+			write(fastaFile);
+			}
+		catch (IOException e)
+			{
+			logger.warn("Could not write index for " + fastaFile + ": " + e.getMessage());
+			}
+		}
+
+	// -------------------------- INNER CLASSES --------------------------
+
+	/**
+	 * One line of a .fai file
+	 */
+	static class Entry implements Serializable
+		{
+		private final String name;
+		private final long length;
+		private final long offset;
+		private final int lineBases;
+		private final int lineWidth;
+
+		Entry(String name, long length, long offset, int lineBases, int lineWidth)
+			{
+			this.name = name;
+			this.length = length;
+			this.offset = offset;
+			this.lineBases = lineBases;
+			this.lineWidth = lineWidth;
+			}
+
+		String getName()
+			{
+			return name;
+			}
+
+		/**
+		 * @return the number of residues in the section, counting everything but line terminators (so gap characters are
+		 *         included, as in samtools)
+		 */
+		long getLength()
+			{
+			return length;
+			}
+
+		/**
+		 * @return the offset within the file of the first byte after the header line
+		 */
+		long getOffset()
+			{
+			return offset;
+			}
+
+		/**
+		 * @return the number of residues on each line but the last, or 0 if the lines have varying widths
+		 */
+		int getLineBases()
+			{
+			return lineBases;
+			}
+
+		/**
+		 * @return the number of bytes on each line but the last, including the terminator, or 0 if the lines have varying
+		 *         widths
+		 */
+		int getLineWidth()
+			{
+			return lineWidth;
+			}
+
+		boolean hasFixedLineWidth()
+			{
+			return lineBases > 0;
+			}
+
+		/**
+		 * @return the offset within the file just past the last residue of the section (for fixed-width sections only;
+		 *         otherwise the residue count is a lower bound)
+		 */
+		long rawEnd()
+			{
+			if (!hasFixedLineWidth())
+				{
+				return offset + length;
+				}
+			return offset + (length / lineBases) * lineWidth + (length % lineBases);
+			}
+		}
+
+	/**
+	 * The residue count and line geometry of a run of sequence lines.  Runs from adjacent chunks can be appended, so each
+	 * chunk of a file can be summarized independently.  The run has a fixed line width if every line but the last has the
+	 * same number of residues and bytes as the first, and the last is no longer than the first.
+	 */
+	private static class LineRun
+		{
+		private int lineCount = 0;
+		private long length = 0;
+		private int firstBases;
+		private int firstWidth;
+		private int lastBases;
+		private int lastWidth;
+		private boolean lastTerminated;
+
+		// whether every line but the last matches the first; the last is checked when the run is complete
+		private boolean fixedWidth = true;
+
+		void addLine(int bases, int width, boolean terminated)
+			{
+			LineRun line = new LineRun();
+			line.lineCount = 1;
+			line.length = bases;
+			line.firstBases = line.lastBases = bases;
+			line.firstWidth = line.lastWidth = width;
+			line.lastTerminated = terminated;
+			append(line);
+			}
+
+		void append(LineRun other)
+			{
+			if (other.lineCount == 0)
+				{
+				return;
+				}
+			if (lineCount == 0)
+				{
+				firstBases = other.firstBases;
+				firstWidth = other.firstWidth;
+				fixedWidth = other.fixedWidth;
+				}
+			else
+				{
+				// our last line is no longer last, so it must be full; and so must the other run's first, unless it's last
+				fixedWidth &= other.fixedWidth && lastBases == firstBases && lastWidth == firstWidth && lastTerminated
+				              && (other.lineCount == 1 || (other.firstBases == firstBases
+				                                            && other.firstWidth == firstWidth));
+				}
+			lineCount += other.lineCount;
+			length += other.length;
+			lastBases = other.lastBases;
+			lastWidth = other.lastWidth;
+			lastTerminated = other.lastTerminated;
+			}
+
+		boolean hasFixedLineWidth()
+			{
+			if (!fixedWidth || lineCount == 0 || firstBases == 0)
+				{
+				return false;
+				}
+			// an unterminated last line only needs to be no longer than the others
+			return lineCount == 1 || lastBases < firstBases || (lastBases == firstBases && (lastWidth == firstWidth
+			                                                                               || !lastTerminated));
+			}
+		}
+
+	/**
+	 * A section whose header was found in a chunk, with as many of its lines as that chunk contains
+	 */
+	private static class PartialSection
+		{
+		private final String name;
+		private final long offset;
+		private final LineRun lines = new LineRun();
+
+		PartialSection(String name, long offset)
+			{
+			this.name = name;
+			this.offset = offset;
+			}
+
+		Entry toEntry()
+			{
+			if (!lines.hasFixedLineWidth())
+				{
+				return new Entry(name, lines.length, offset, 0, 0);
+				}
+			// a single unterminated line has the width it would have with a newline
+			int lineWidth = lines.lineCount == 1 && !lines.lastTerminated ? lines.firstBases + 1 : lines.firstWidth;
+			return new Entry(name, lines.length, offset, lines.firstBases, lineWidth);
+			}
+		}
+
+	/**
+	 * The result of scanning one chunk of a file: the lines before the first header (which continue the previous chunk's
+	 * last section), and the sections whose headers are in the chunk
+	 */
+	private static class ChunkScan
+		{
+		private final LineRun leadingLines = new LineRun();
+		private final List<PartialSection> sections = new ArrayList<PartialSection>();
+		}
+	}
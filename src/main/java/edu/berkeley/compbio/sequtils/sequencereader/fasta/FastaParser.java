@@ -8,7 +8,6 @@
 package edu.berkeley.compbio.sequtils.sequencereader.fasta;
 
 import com.davidsoergel.dsutils.CacheManager;
-import com.davidsoergel.dsutils.DSArrayUtils;
 import com.davidsoergel.dsutils.math.MersenneTwisterFast;
 import edu.berkeley.compbio.sequtils.NotEnoughSequenceException;
 import edu.berkeley.compbio.sequtils.SequenceArrayUtils;
@@ -17,14 +16,16 @@ import edu.berkeley.compbio.sequtils.SequenceException;
 import edu.berkeley.compbio.sequtils.SequenceFragmentMetadata;
 import edu.berkeley.compbio.sequtils.SequenceReader;
 import edu.berkeley.compbio.sequtils.TranslatingSequenceReader;
+import edu.berkeley.compbio.sequtils.sequencereader.AliasSampler;
 import edu.berkeley.compbio.sequtils.sequencereader.SectionList;
+import edu.berkeley.compbio.sequtils.sequencereader.SectionTable;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Fasta File Parser
@@ -40,15 +41,31 @@ public class FastaParser extends TranslatingSequenceReader implements SectionLis
 
 	private static final int DEFAULT_BUFFER_SIZE = 16384;
 
-	private static final int upstreamBufferSize = 256;
 	private final int buffersize;// = 16384;
 	//private final int peekbuffersize = 16;
-	private final int maxidlen = 256;
 
-	private final int MAX_RANDOM_ATTEMPTS = 50;
+	// how the bulk read treats each byte value
+	static final byte SEQUENCE = 0;
+	static final byte SKIPPED = 1;
+	static final byte SECTION_END = 2;
+
+	static final byte[] SYMBOL_TYPES = new byte[256];
+	static final byte[] SYMBOL_TYPES_SKIPPING_GAPS = new byte[256];
+
+	static
+		{
+		SYMBOL_TYPES['\n'] = SKIPPED;
+		SYMBOL_TYPES['\r'] = SKIPPED;
+		SYMBOL_TYPES['>'] = SECTION_END;
+		SYMBOL_TYPES[0xFF] = SECTION_END;// EOF
+		System.arraycopy(SYMBOL_TYPES, 0, SYMBOL_TYPES_SKIPPING_GAPS, 0, 256);
+		for (int i = 0; i < SequenceArrayUtils.gapChars.length(); i++)
+			{
+			SYMBOL_TYPES_SKIPPING_GAPS[SequenceArrayUtils.gapChars.charAt(i)] = SKIPPED;
+			}
+		}
 
 	private FastaFileSet fileset;
-	private long totalsequence;
 
 	final boolean skipGaps;
 
@@ -56,15 +73,29 @@ public class FastaParser extends TranslatingSequenceReader implements SectionLis
 	private int validCharsInBuffer = 0;
 	private long filePosition = 0;
 	private final byte EOF = -1;
-	private byte[] idStr;
-
-	private final byte[] upstreamBuffer = new byte[upstreamBufferSize + 1];
 
+	// made when first asked for, since finding the length of a plain gzip file means decompressing it
 	private SequenceFragmentMetadata rootMetadata;
 
-	private TreeMap<Long, SequenceFragmentMetadata> offsetToSectionIndex;
-	private SequenceFragmentMetadata[] allSectionsInOffsetOrder;
-	private HashMap<String, SequenceFragmentMetadata> idToSection;
+	// all the sections, in offset order; the metadata objects are made as they are asked for
+	private SectionTable sections;
+
+	// the line geometry of each section, in the same order, so positions can be computed rather than searched for
+	private int[] lineBases;
+	private int[] lineWidths;
+	private long[] cumulativeResidues;
+
+	// for drawing sections weighted by length; built from the index on first use
+	private AliasSampler lengthWeightedSampler;
+
+	// the shuffled traversal order is drawn from this if it's set, or from the shared generator otherwise
+	private MersenneTwisterFast shuffleRandom;
+
+	// for counting residues through sections whose lines vary in width
+	private byte[] scanBuffer;
+
+	// null unless sequential reads are prefetched
+	private ReadAheadBuffer readAhead;
 
 
 	// --------------------------- CONSTRUCTORS ---------------------------
@@ -90,13 +121,8 @@ public class FastaParser extends TranslatingSequenceReader implements SectionLis
 		this.skipGaps = skipGaps;
 		buffersize = bufsize;//Math.max(bufsize, buffersize);
 		fileset = fs;
-		totalsequence = fs.getTotalSequence();
-		rootMetadata = new SequenceFragmentMetadata(null, getName(), null, 0, totalsequence);
 
 		initMainBuffer(buffersize);
-		initTranslationBuffer(buffersize);
-
-		idStr = new byte[maxidlen];
 		}
 
 	/*	public void releaseCachedResources()
@@ -105,11 +131,49 @@ public class FastaParser extends TranslatingSequenceReader implements SectionLis
 		 }
  */
 
+	/**
+	 * Turns on reading ahead: background threads keep the given number of buffers filled with the sequence following the
+	 * current position, so that sequential scans overlap I/O with processing.  Seeking outside the prefetched window
+	 * abandons the pending reads.  Random access (e.g. checking sampled positions) bypasses the read-ahead.
+	 *
+	 * @param bufferCount how many buffers to keep in flight, or 0 to turn reading ahead off
+	 * @param bufferSize  the size of each buffer in bytes; this should be much larger than the parser's own buffer
+	 */
+	public void setReadAhead(int bufferCount, int bufferSize)
+		{
+		if (readAhead != null)
+			{
+			readAhead.cancel();
+			}
+		readAhead = bufferCount == 0 ? null : new ReadAheadBuffer(fileset, bufferCount, bufferSize);
+		}
+
+	/**
+	 * Makes the order of the sections returned by nextShuffled() reproducible.  Takes effect the next time the shuffled
+	 * traversal starts.
+	 *
+	 * @param seed the seed for the permutation
+	 */
+	public void setShuffleSeed(long seed)
+		{
+		shuffleRandom = new MersenneTwisterFast(seed);
+		indexesShuffled = null;
+		}
+
 	public String getName()
 		{
 		return fileset.getName();
 		}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getPersistentId()
+		{
+		return fileset.getPersistentId();
+		}
+
 	// ------------------------ CANONICAL METHODS ------------------------
 
 /*	@Override
@@ -175,6 +239,10 @@ public class FastaParser extends TranslatingSequenceReader implements SectionLis
 	public void close()
 		{
 		//if(logger.isDebugEnabled()) logger.debug("Closing Parser.");
+		if (readAhead != null)
+			{
+			readAhead.cancel();
+			}
 		fileset.close();
 		}
 
@@ -190,96 +258,111 @@ public class FastaParser extends TranslatingSequenceReader implements SectionLis
 	// --------------------- Interface SectionList ---------------------
 
 
+	/**
+	 * Picks a residue uniformly from all the sections, and returns a fragment starting there.  The position is computed
+	 * from the section index, so no sampled position ever lands in a header or on a line break.  For sections with a fixed
+	 * line width this needs no I/O at all; otherwise the section is scanned up to the chosen residue.
+	 */
 	@NotNull
 	public SequenceFragmentMetadata randomSectionFragment() throws NotEnoughSequenceException, IOException
 		{
-		int i = 0;
-		int position;
-		while (i++ < MAX_RANDOM_ATTEMPTS)
+		if (sections == null)
 			{
-			try
-				{
-				position = (int) (totalsequence * MersenneTwisterFast.random());
-				seek(position);
-				checkCurrentPositionIsValidSequence();
-				}
-			/*	catch (IOException e)
-			   {
-			   continue;
-			   }*/
-			catch (NotEnoughSequenceException e)
-				{
-				logger.trace("trace", e);
-				continue;
-				}
-
-			return new SequenceFragmentMetadata(rootMetadata, "Random sequence from " + getName(), getTaxid(),
-			                                    position);
+			generateIndex();
 			}
-		throw new NotEnoughSequenceException(
-				"Could not find valid sequence after " + MAX_RANDOM_ATTEMPTS + " random attempts");
+		long total = cumulativeResidues.length == 0 ? 0 : cumulativeResidues[cumulativeResidues.length - 1];
+		if (total == 0)
+			{
+			throw new NotEnoughSequenceException("No sequence in " + getName());
+			}
+		long residue = (long) (total * MersenneTwisterFast.random());
+		int i = sectionContainingResidue(residue);
+		long position = rawPosition(i, residue - (i == 0 ? 0 : cumulativeResidues[i - 1]));
+		return new SequenceFragmentMetadata(getRootMetadata(), "Random sequence from " + getName(), getTaxid(), position,
+		                                    SequenceFragmentMetadata.UNKNOWN_LENGTH);
 		}
 
 	/**
-	 * Return a section, randomly chosen nucleotidewise (i.e., weighted by section length).
+	 * Return a section, randomly chosen nucleotidewise (i.e., weighted by section length).  Sections are drawn from an
+	 * alias table over the section lengths, so each call takes constant time and no I/O.
 	 *
 	 * @return The section
 	 */
 	public SequenceFragmentMetadata randomSectionLengthWeighted() throws IOException
 		{
-		SequenceFragmentMetadata result;
-		try
+		if (lengthWeightedSampler == null)
 			{
-			result = randomSectionFragment();
-			result = findParentSection(result);
-			}
-		/*catch (IOException e)
-			{
-			logger.error("Error", e);
-			throw new MsensrError(e);
-			}*/
-		catch (NotEnoughSequenceException e)
-			{
-			logger.error("Error", e);
-			throw new SequenceError(e);
+			if (sections == null)
+				{
+				generateIndex();
+				}
+			long[] lengths = new long[sections.size()];
+			for (int i = 0; i < lengths.length; i++)
+				{
+				lengths[i] = cumulativeResidues[i] - (i == 0 ? 0 : cumulativeResidues[i - 1]);
+				}
+			try
+				{
+				lengthWeightedSampler = new AliasSampler(lengths);
+				}
+			catch (IllegalArgumentException e)
+				{
+				logger.error("Error", e);
+				throw new SequenceError(new NotEnoughSequenceException("No sequence in " + getName()));
+				}
 			}
-		return result;
+		return sectionMetadata(lengthWeightedSampler.sample());
 		}
 
 	public SequenceFragmentMetadata randomSectionUniform() throws IOException
 		{
-		if (offsetToSectionIndex == null)
+		if (sections == null)
 			{
 			generateIndex();
 			//if(sectionIndex.isEmpty()) { throw new IOException("Section Index is empty!"); }
 			}
 		double rand = MersenneTwisterFast.random();
-		int index = (int) Math.floor(rand * allSectionsInOffsetOrder.length);
-		return allSectionsInOffsetOrder[index];
+		int index = (int) Math.floor(rand * sections.size());
+		return sectionMetadata(index);
 		}
 
-	int[] indexesShuffled;
-	int shuffledIndex;
+	private int[] indexesShuffled;
+	private int shuffledIndex;
+
+	/**
+	 * Returns each section once, in an order given by a Fisher-Yates shuffle of the index
+	 */
 
 	@NotNull
 	public SequenceFragmentMetadata nextShuffled() throws IOException, NotEnoughSequenceException
 		{
-		if (offsetToSectionIndex == null)
+		if (sections == null)
 			{
 			generateIndex();
 			//if(sectionIndex.isEmpty()) { throw new IOException("Section Index is empty!"); }
 			}
 		if (indexesShuffled == null)
 			{
-			indexesShuffled = DSArrayUtils.createIncrementingIntArray(allSectionsInOffsetOrder.length, 0, 1);
+			indexesShuffled = new int[sections.size()];
+			for (int i = 0; i < indexesShuffled.length; i++)
+				{
+				indexesShuffled[i] = i;
+				}
+			for (int i = indexesShuffled.length - 1; i > 0; i--)
+				{
+				int j = shuffleRandom == null ? MersenneTwisterFast.randomInt(i + 1) : shuffleRandom.nextInt(i + 1);
+				int tmp = indexesShuffled[i];
+				indexesShuffled[i] = indexesShuffled[j];
+				indexesShuffled[j] = tmp;
+				}
 			shuffledIndex = -1;
 			}
 		shuffledIndex++;
-		if (shuffledIndex >= allSectionsInOffsetOrder.length)
+		if (shuffledIndex >= indexesShuffled.length)
 			{
 			throw new NotEnoughSequenceException("");
 			}
-		return allSectionsInOffsetOrder[shuffledIndex];
+		return sectionMetadata(indexesShuffled[shuffledIndex]);
 		}
 
 	// --------------------- Interface SequenceReader ---------------------
@@ -296,20 +379,7 @@ public class FastaParser extends TranslatingSequenceReader implements SectionLis
 			{
 			if (bufPosition >= validCharsInBuffer)
 				{
-				try
-					{
-					setTranslationInvalid();
-					validCharsInBuffer = fileset.readAt(buf, filePosition, buffersize);
-					filePosition += validCharsInBuffer;
-					bufPosition = 0;
-					}
-				catch (IOException e)
-					{
-					validCharsInBuffer = 1;
-					bufPosition = 0;
-					buf[bufPosition] = EOF;
-					throw e;
-					}
+				fillBuffer();
 				}
 			t = buf[bufPosition];
 			if (t == EOF || t == '>')
@@ -336,24 +406,96 @@ public class FastaParser extends TranslatingSequenceReader implements SectionLis
 			}
 		}
 
-	public int read(byte[] buffer, int length)
+	public int read(byte[] buffer, int length) throws IOException
 		{
-		int ok = 0;
-		try
+		int result = read(buffer, 0, length);
+		return result == -1 ? 0 : result;
+		}
+
+	/**
+	 * Reads up to length nucleotides from the current section, copying each run of sequence between line breaks (and gaps,
+	 * if they are skipped) in one go.  Unlike read(), the end of the section is reported through the return value rather
+	 * than by throwing an exception; as with read(), the position is left at the end of the section, so subsequent calls
+	 * keep returning -1 until the reader is moved.
+	 *
+	 * @param buffer a byte[] to read into
+	 * @param offset the position in the buffer at which to start writing
+	 * @param length how many nucleotides to read
+	 * @return The number of nucleotides read, which is less than length only if the section ended; or -1 if the section
+	 *         had already ended
+	 * @throws IOException If any data errors occur
+	 */
+	public int read(byte[] buffer, int offset, int length) throws IOException
+		{
+		final byte[] symbolTypes = skipGaps ? SYMBOL_TYPES_SKIPPING_GAPS : SYMBOL_TYPES;
+		int count = 0;
+		boolean sectionEnded = false;
+		while (count < length)
 			{
-			for (int i = 0; i < length; i++)
+			if (bufPosition >= validCharsInBuffer)
 				{
-				buffer[i] = read();
-				ok++;
+				try
+					{
+					fillBuffer();
+					}
+				catch (NotEnoughSequenceException e)
+					{
+					// end of the file set
+					sectionEnded = true;
+					break;
+					}
+				}
+
+			// find the run of sequence starting here, up to the end of the buffer or of the request
+			final int runStart = bufPosition;
+			final int limit = Math.min(validCharsInBuffer, runStart + (length - count));
+			int i = runStart;
+			while (i < limit && symbolTypes[buf[i] & 0xFF] == SEQUENCE)
+				{
+				i++;
+				}
+			System.arraycopy(buf, runStart, buffer, offset + count, i - runStart);
+			count += i - runStart;
+			bufPosition = i;
+
+			if (i < limit)
+				{
+				if (symbolTypes[buf[i] & 0xFF] == SECTION_END)
+					{
+					// don't advance, so we stay at the end of the section
+					sectionEnded = true;
+					break;
+					}
+				bufPosition++;
 				}
 			}
-		catch (IOException e)
+		return (sectionEnded && count == 0) ? -1 : count;
+		}
+
+	private void fillBuffer() throws IOException, NotEnoughSequenceException
+		{
+		try
 			{
+			validCharsInBuffer = readSequential();
+			filePosition += validCharsInBuffer;
+			bufPosition = 0;
 			}
-		catch (NotEnoughSequenceException e)
+		catch (IOException e)
 			{
+			validCharsInBuffer = 1;
+			bufPosition = 0;
+			buf[bufPosition] = EOF;
+			throw e;
 			}
-		return ok;
+		}
+
+	/**
+	 * Refills the buffer from the file position, through the read-ahead if there is one
+	 */
+	private int readSequential() throws IOException, NotEnoughSequenceException
+		{
+		return readAhead == null ? fileset.readAt(buf, filePosition, buffersize)
+		                         : readAhead.readAt(buf, filePosition, buffersize);
 		}
 
 
@@ -365,135 +507,145 @@ public class FastaParser extends TranslatingSequenceReader implements SectionLis
 
 	// -------------------------- OTHER METHODS --------------------------
 
-	private void checkCurrentPositionIsValidSequence() throws NotEnoughSequenceException, IOException
+	private void generateIndex() throws IOException
 		{
-		//if(logger.isDebugEnabled()) logger.debug("Checking if valid...");
-		//	try
-		//		{
-		//we are testing backwards from fileposition _inclusive_, so we need to read fileTrav+1 characters.
-
-		long fileTrav = filePosition - validCharsInBuffer + bufPosition;
-		//System.out.println(fileTrav);
-
-		//long desiredChars = Math.min(upstreamBufferSize, fileTrav + 1);
-		long upstreamStartPosition = Math.max(fileTrav - upstreamBufferSize, 0);
+		sections = (SectionTable) CacheManager.get(this, getName() + ".sectionTable");
+		int[][] lineGeometry = (int[][]) CacheManager.get(this, getName() + ".lineGeometry");
 
-		long desiredChars = fileTrav - upstreamStartPosition;
-
-		int upstreamCharsAvailable = fileset.readAt(upstreamBuffer, upstreamStartPosition, (int) desiredChars);
-
-		if (upstreamCharsAvailable != desiredChars)
+		if (sections == null || lineGeometry == null)
 			{
-			// this should never happen
-			throw new SequenceError("Didn't get as much upstream sequence as we wanted");
-			}
+			sections = new SectionTable();
 
-		// TODO: what's this for?
-		/*			if (upstreamCharsAvailable != Math.min(upstreamBufferSize, fileTrav) + 1
-							   && filePosition - upstreamBufferSize > 0)
-						   {
-						   upstreamCharsAvailable = fileset.read(upstreamBuffer,
-																 fileTrav - upstreamBufferSize + upstreamCharsAvailable,
-																 upstreamBufferSize - upstreamCharsAvailable + 1);
-						   //System.out.print(".2." + new String(upstreamBuffer) + ".2.");
-						   //if(temp != updist - temp)
-						   //	{
-						   //    throw new IOException("Too close to beginning of file!");
-						   //	}
-						   }
-
-		   */
-		//if(fileset.read(upstreamBuffer, Math.max(filePosition - updist, 0), updist) != updist)
-		//	{
-		//    throw new NotEnoughSequenceException("Too close to beginning of file!");
-		//	}
-		//System.out.println(":");
-		//System.out.println(temp);
-		int j = upstreamCharsAvailable - 1;// the array is zero-based, so j is now the max valid position
-		while (j >= 0)
-			{
-			//System.out.print((char) upstreamBuffer[j]);
-			if (upstreamBuffer[j] == '>')
+			// each file has its own .fai index, loaded from disk if it's current and rebuilt otherwise
+			List<File> files = fileset.getFiles();
+			List<FastaIndex> indexes = FastaIndex.loadOrBuild(fileset);
+			int count = 0;
+			for (FastaIndex index : indexes)
 				{
-				//if(logger.isDebugEnabled()) logger.debug("Inside of header!");
-				throw new NotEnoughSequenceException("Inside of header!");
+				count += index.getEntries().size();
 				}
-			if (upstreamBuffer[j] == '\n' || upstreamBuffer[j] == '\r')
+			lineGeometry = new int[2][count];
+			for (int i = 0; i < files.size(); i++)
 				{
-				//if(logger.isDebugEnabled()) logger.debug("Valid!");
-				return;
+				long fileStart = fileset.getFileStart(files.get(i));
+				for (FastaIndex.Entry entry : indexes.get(i).getEntries())
+					{
+					int added = sections.add(entry.getName(), fileStart + entry.getOffset(), entry.getLength());
+					lineGeometry[0][added] = entry.getLineBases();
+					lineGeometry[1][added] = entry.getLineWidth();
+					}
 				}
-			j--;
+			sections.trim();
+
+			CacheManager.put(this, getName() + ".sectionTable", sections);
+			CacheManager.put(this, getName() + ".lineGeometry", lineGeometry);
+			}
+		lineBases = lineGeometry[0];
+		lineWidths = lineGeometry[1];
+
+		cumulativeResidues = new long[sections.size()];
+		long total = 0;
+		for (int i = 0; i < cumulativeResidues.length; i++)
+			{
+			total += sections.getLength(i);
+			cumulativeResidues[i] = total;
 			}
-		//if(logger.isDebugEnabled()) logger.debug("Lines longer than " + updist + " bytes.");
-		throw new NotEnoughSequenceException("Lines longer than " + upstreamBufferSize + " bytes.");
-		/*		}
-	   catch (IOException e)
-		   {
-		   //if(logger.isDebugEnabled()) logger.debug("IOException!",e);
-		   throw new NotEnoughSequenceException(e);
-		   }*/
 		}
 
 	/**
-	 * Return the metadata of the section containing the given section (i.e., the nearest upstream header).
+	 * @return the metadata of the i'th section, as a child of the root
+	 */
+	private SequenceFragmentMetadata sectionMetadata(int i)
+		{
+		// the index counts gap characters, so the length is only what read() will return if we don't skip them
+		long length = skipGaps ? SequenceFragmentMetadata.UNKNOWN_LENGTH : sections.getLength(i);
+		return new SequenceFragmentMetadata(getRootMetadata(), sections.getName(i), getTaxid(), sections.getStart(i),
+		                                    length);
+		}
+
+	/**
+	 * Moves to the given residue of a section, counting only residues (not line breaks) from the start of the section.
+	 * Gap characters count as residues, as they do in the section index, even if they are skipped when reading.  For
+	 * sections with a fixed line width the position is computed directly; otherwise the section is scanned up to it.
 	 *
-	 * @param childLocation Section to find the parent of
-	 * @return The section's metadata
+	 * @param section a section, as returned by next() or getSequenceFragmentMetadata()
+	 * @param residue the number of residues to skip
 	 * @throws IOException If any data errors occur
 	 */
-	private SequenceFragmentMetadata findParentSection(SequenceFragmentMetadata childLocation) throws IOException
+	public void seekToResidue(SequenceFragmentMetadata section, long residue) throws IOException
 		{
-		if (offsetToSectionIndex == null)
+		if (sections == null)
 			{
 			generateIndex();
-			//if(sectionIndex.isEmpty()) { throw new IOException("Section Index is empty!"); }
 			}
-		SortedMap<Long, SequenceFragmentMetadata> head =
-				offsetToSectionIndex.headMap(childLocation.getStartPosition() + 1);
-		return head.get(head.lastKey());
+		int i = sections.indexOfStart(section.getStartPositionFromRoot());
+		if (i < 0)
+			{
+			throw new SequenceError("Not the start of a section: " + section);
+			}
+		seek(rawPosition(i, residue));
 		}
 
-	private void generateIndex() throws IOException
+	/**
+	 * @return the index of the section containing the given residue, counting residues across all sections
+	 */
+	private int sectionContainingResidue(long residue)
 		{
-		offsetToSectionIndex =
-				(TreeMap<Long, SequenceFragmentMetadata>) CacheManager.get(this, getName() + ".offsetToSection");
-		idToSection = (HashMap<String, SequenceFragmentMetadata>) CacheManager.get(this, getName() + ".idToSection");
+		int i = Arrays.binarySearch(cumulativeResidues, residue);
+		// an exact hit is the first residue of the following section (skipping any empty ones)
+		if (i < 0)
+			{
+			return -i - 1;
+			}
+		while (cumulativeResidues[i] == residue)
+			{
+			i++;
+			}
+		return i;
+		}
 
-		if (offsetToSectionIndex == null)
+	/**
+	 * @return the position in the file set of the given residue of the i'th section
+	 */
+	private long rawPosition(int i, long residue) throws IOException
+		{
+		final long start = sections.getStart(i);
+		if (lineBases[i] > 0)
 			{
-			long currentLocation = filePosition - validCharsInBuffer + bufPosition;
-			reset();
-			offsetToSectionIndex = new TreeMap<Long, SequenceFragmentMetadata>();
-			idToSection = new HashMap<String, SequenceFragmentMetadata>();
+			return start + (residue / lineBases[i]) * lineWidths[i] + residue % lineBases[i];
+			}
 
-			SequenceFragmentMetadata section;
-			try
+		if (scanBuffer == null)
+			{
+			scanBuffer = new byte[buffersize];
+			}
+		long position = start;
+		long remaining = residue;
+		try
+			{
+			while (true)
 				{
-				while (true)
+				int n = fileset.readAt(scanBuffer, position, scanBuffer.length);
+				for (int j = 0; j < n; j++)
 					{
-					section = next();
-					offsetToSectionIndex.put(section.getStartPosition(), section);
-					idToSection.put(section.getSequenceName(), section);
+					byte c = scanBuffer[j];
+					if (c != '\n' && c != '\r')
+						{
+						if (remaining == 0)
+							{
+							return position + j;
+							}
+						remaining--;
+						}
 					}
+				position += n;
 				}
-			/*catch (IOException e)
+			}
+		catch (NotEnoughSequenceException e)
 			{
-			logger.error("Error", e);
-			}*/
-			catch (NotEnoughSequenceException e)
-				{
-				// exhausted sections
-				//logger.error("Error", e);
-				}
-
-			seek(currentLocation);
-
-			CacheManager.put(this, getName() + ".offsetToSection", offsetToSectionIndex);
-			CacheManager.put(this, getName() + ".idToSection", idToSection);
+			// past the end of the file set
+			return position;
 			}
-		SequenceFragmentMetadata[] a = new SequenceFragmentMetadata[offsetToSectionIndex.size()];
-		allSectionsInOffsetOrder = offsetToSectionIndex.values().toArray(a);// hope the items stay sorted...
 		}
 
 	public void reset()
@@ -532,15 +684,19 @@ public class FastaParser extends TranslatingSequenceReader implements SectionLis
 		{
 		logger.trace("Next Section...");
 
-		SequenceFragmentMetadata section =
-				new SequenceFragmentMetadata(rootMetadata, readNextSectionHeader(), getTaxid(), 0);
-		//section.setSequenceName(readNextSectionHeader());
-		section.setStartPosition(filePosition - validCharsInBuffer + bufPosition);
-		return section;
+		// the header must be read first, to find where the section starts
+		String name = readNextSectionHeader();
+		return new SequenceFragmentMetadata(getRootMetadata(), name, getTaxid(),
+		                                    filePosition - validCharsInBuffer + bufPosition,
+		                                    SequenceFragmentMetadata.UNKNOWN_LENGTH);
 		}
 
-	public SequenceFragmentMetadata getRootMetadata()
+	public synchronized SequenceFragmentMetadata getRootMetadata()
 		{
+		if (rootMetadata == null)
+			{
+			rootMetadata = new SequenceFragmentMetadata(null, getName(), null, 0, fileset.getTotalSequence());
+			}
 		return rootMetadata;
 		}
 
@@ -603,6 +759,10 @@ public class FastaParser extends TranslatingSequenceReader implements SectionLis
 	else
 		{
 		filePosition = newRawPosition;
+		if (readAhead != null && !readAhead.covers(newRawPosition))
+			{
+			readAhead.cancel();
+			}
 		//validCharsInBuffer = fileset.read(buf, filePosition, buffersize);
 		//filePosition += validCharsInBuffer;
 		validCharsInBuffer = 0;
@@ -646,17 +806,11 @@ public class FastaParser extends TranslatingSequenceReader implements SectionLis
 
 	public void seek(SequenceFragmentMetadata location, long offset) //throws IOException
 	{
-	long newRawPosition = offset;
 	if (location == null)
 		{
 		throw new SequenceError("Can't seek to null location");
 		}
-	while (location != null)
-		{
-		newRawPosition += location.getStartPosition();
-		location = location.getParentMetadata();
-		}
-	seek(newRawPosition);
+	seek(location.getStartPositionFromRoot() + offset);
 	}
 
 	public Integer getTaxid()
@@ -666,78 +820,43 @@ public class FastaParser extends TranslatingSequenceReader implements SectionLis
 
 	/**
 	 * Read forward from the current position until a new section header is encountered.  Return it, leaving the traversal
-	 * pointer at the beginning of the sequence following the header.
+	 * pointer at the beginning of the sequence following the header.  The header is read by the same rule as the index
+	 * uses, so the name and start position agree with those of the indexed section.
 	 *
-	 * @return
+	 * @return the name of the section
 	 * @throws IOException
-	 * @throws NotEnoughSequenceException
+	 * @throws NotEnoughSequenceException if there are no more sections
 	 */
 	private String readNextSectionHeader() throws NotEnoughSequenceException, IOException
 		{
-		//if(logger.isDebugEnabled()) logger.debug("Reading header...");
-		boolean readingId = false;
-		boolean finishedReadingId = false;
-		//boolean done = false;
-		byte t;
-		int idLen = 0;
+		FastaHeader header = null;
 		while (true)
 			{
 			if (bufPosition >= validCharsInBuffer)
 				{
-				setTranslationInvalid();
-				validCharsInBuffer = fileset.readAt(buf, filePosition, buffersize);
+				validCharsInBuffer = readSequential();
 				filePosition += validCharsInBuffer;
 				bufPosition = 0;
 				}
-			t = buf[bufPosition++];
-			if (t == '>')
-				{
-				// Start reading id
-				readingId = true;
-				//done = false;
-				//bufPosition++;
-				}
-			else if (t == EOF || ((readingId || finishedReadingId) && (t == '\n' || t == '\r')))
+			byte t = buf[bufPosition++];
+			if (t == EOF)
 				{
-				if (idLen == 0)
+				if (header == null)
 					{
 					throw new NotEnoughSequenceException("End of Files, no more sections");
 					}
-				return new String(idStr, 0, idLen);
+				return header.getName();
 				}
-			/*if (t == EOF || t == '>' || t == '\n')
+			if (header == null)
 				{
-				// Section end
-				if(t == '>')
-					{
-					// Start reading id
-					readId = true;
-					done = false;
-					}
-				if(done || t == '\n' || t == EOF)
-					{
-					return new String(idStr, 0, idLen);
-					}
-				bufPosition++;
-				}*/
-			else if (t == ' ')
-				{
-				if (readingId)
+				if (t == '>')
 					{
-					readingId = false;
-					finishedReadingId = true;
-					//done = true;
+					header = new FastaHeader();
 					}
-				//bufPosition++;
 				}
-			else
+			else if (header.add(t))
 				{
-				//bufPosition++;
-				if (readingId)
-					{
-					idStr[idLen] = t;
-					idLen++;
-					}
+				return header.getName();
 				}
 			}
 		}
@@ -746,16 +865,16 @@ public class FastaParser extends TranslatingSequenceReader implements SectionLis
 	public synchronized SequenceFragmentMetadata getSequenceFragmentMetadata(final String id)
 			throws SequenceException, IOException
 		{
-		if (idToSection == null)
+		if (sections == null)
 			{
 			generateIndex();
 			//if(sectionIndex.isEmpty()) { throw new IOException("Section Index is empty!"); }
 			}
-		final SequenceFragmentMetadata result = idToSection.get(id);
-		if (result == null)
+		final int i = sections.indexOf(id);
+		if (i == -1)
 			{
 			throw new SequenceException("Sequence fragment " + id + " not found");
 			}
-		return result;
+		return sectionMetadata(i);
 		}
 	}
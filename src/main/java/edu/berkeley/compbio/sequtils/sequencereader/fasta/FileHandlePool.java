@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.sequencereader.fasta;
+
+import com.davidsoergel.dsutils.CachedResourceReleaser;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded pool of open file channels, shared by any number of FastaFileSets.  When opening a file would exceed the
+ * limit, the least recently used handle that nobody is reading through is closed.  Handles are reference counted, so a
+ * handle in use is never closed; if every handle is in use the pool briefly goes over its limit rather than blocking.
+ * <p/>
+ * Reads are positional, so several threads may read through the same handle at once.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class FileHandlePool
+	{
+	// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(FileHandlePool.class);
+
+	public static final int DEFAULT_MAX_OPEN_FILES = 256;
+
+	private static final FileHandlePool sharedPool = new FileHandlePool(DEFAULT_MAX_OPEN_FILES);
+
+	private int maxOpenFiles;
+
+	// in access order, so the eldest entry is the least recently used
+	private final LinkedHashMap<File, Handle> handles = new LinkedHashMap<File, Handle>(16, 0.75f, true);
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	private final Lock lock = new ReentrantLock();
+
+
+	// -------------------------- STATIC METHODS --------------------------
+
+	/**
+	 * @return the pool used by FastaFileSets unless they are given another one
+	 */
+	public static FileHandlePool getSharedPool()
+		{
+		return sharedPool;
+		}
+
+	// --------------------------- CONSTRUCTORS ---------------------------
+
+	public FileHandlePool(int maxOpenFiles)
+		{
+		setMaxOpenFiles(maxOpenFiles);
+		}
+
+	// --------------------- GETTER / SETTER METHODS ---------------------
+
+	public int getMaxOpenFiles()
+		{
+		lock.lock();
+		try
+			{
+			return maxOpenFiles;
+			}
+		finally
+			{
+			lock.unlock();
+			}
+		}
+
+	/**
+	 * Changes the limit on open handles, closing idle ones at once if there are now too many
+	 */
+	public void setMaxOpenFiles(int maxOpenFiles)
+		{
+		if (maxOpenFiles < 1)
+			{
+			throw new IllegalArgumentException("Need at least one open file, not " + maxOpenFiles);
+			}
+		lock.lock();
+		try
+			{
+			this.maxOpenFiles = maxOpenFiles;
+			evictIdle(handles.size() - maxOpenFiles);
+			}
+		finally
+			{
+			lock.unlock();
+			}
+		}
+
+	public int getOpenFiles()
+		{
+		lock.lock();
+		try
+			{
+			return handles.size();
+			}
+		finally
+			{
+			lock.unlock();
+			}
+		}
+
+	/**
+	 * @return how many times a file was requested while its handle was open
+	 */
+	public long getHits()
+		{
+		lock.lock();
+		try
+			{
+			return hits;
+			}
+		finally
+			{
+			lock.unlock();
+			}
+		}
+
+	/**
+	 * @return how many times a file had to be opened
+	 */
+	public long getMisses()
+		{
+		lock.lock();
+		try
+			{
+			return misses;
+			}
+		finally
+			{
+			lock.unlock();
+			}
+		}
+
+	/**
+	 * @return how many handles were closed to make room for others
+	 */
+	public long getEvictions()
+		{
+		lock.lock();
+		try
+			{
+			return evictions;
+			}
+		finally
+			{
+			lock.unlock();
+			}
+		}
+
+	// ------------------------ CANONICAL METHODS ------------------------
+
+	@Override
+	public String toString()
+		{
+		lock.lock();
+		try
+			{
+			return "FileHandlePool (" + handles.size() + "/" + maxOpenFiles + " open, " + hits + " hits, " + misses
+			       + " misses, " + evictions + " evictions)";
+			}
+		finally
+			{
+			lock.unlock();
+			}
+		}
+
+	// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * Gets an open handle on the given file, opening it if necessary.  Every call must be matched by a call to release().
+	 *
+	 * @throws FileNotFoundException if the file can't be opened even after closing all idle handles
+	 */
+	Handle acquire(File file) throws FileNotFoundException
+		{
+		lock.lock();
+		try
+			{
+			Handle result = handles.get(file);
+			if (result != null)
+				{
+				hits++;
+				}
+			else
+				{
+				misses++;
+				evictIdle(handles.size() + 1 - maxOpenFiles);
+				RandomAccessFile raf;
+				try
+					{
+					raf = new RandomAccessFile(file, "r");
+					}
+				catch (FileNotFoundException e)
+					{
+					// probably out of file descriptors; give back everything we can and try once more
+					evictIdle(handles.size());
+					CachedResourceReleaser.release();
+					raf = new RandomAccessFile(file, "r");
+					}
+				result = new Handle(raf);
+				handles.put(file, result);
+				}
+			result.references++;
+			return result;
+			}
+		finally
+			{
+			lock.unlock();
+			}
+		}
+
+	void release(Handle handle)
+		{
+		lock.lock();
+		try
+			{
+			handle.references--;
+			if (handle.references == 0 && handles.size() > maxOpenFiles)
+				{
+				// we went over the limit while everything was busy
+				evictIdle(handles.size() - maxOpenFiles);
+				}
+			}
+		finally
+			{
+			lock.unlock();
+			}
+		}
+
+	/**
+	 * Closes the handles on the given files, unless they are in use
+	 */
+	void closeIdle(Collection<File> files)
+		{
+		lock.lock();
+		try
+			{
+			for (File file : files)
+				{
+				Handle handle = handles.get(file);
+				if (handle != null && handle.references == 0)
+					{
+					handles.remove(file);
+					handle.close();
+					}
+				}
+			}
+		finally
+			{
+			lock.unlock();
+			}
+		}
+
+	/**
+	 * Closes up to the given number of idle handles, least recently used first
+	 */
+	private void evictIdle(int count)
+		{
+		Iterator<Handle> it = handles.values().iterator();
+		while (count > 0 && it.hasNext())
+			{
+			Handle handle = it.next();
+			if (handle.references == 0)
+				{
+				it.remove();
+				handle.close();
+				evictions++;
+				count--;
+				}
+			}
+		if (count > 0 && logger.isDebugEnabled())
+			{
+			logger.debug("All " + handles.size() + " open files are in use; exceeding the limit of " + maxOpenFiles);
+			}
+		}
+
+	// -------------------------- INNER CLASSES --------------------------
+
+	/**
+	 * An open file, with a count of the readers using it (guarded by the pool's lock)
+	 */
+	static class Handle
+		{
+		private final RandomAccessFile raf;
+		private final FileChannel channel;
+		private int references = 0;
+
+		private Handle(RandomAccessFile raf)
+			{
+			this.raf = raf;
+			this.channel = raf.getChannel();
+			}
+
+		/**
+		 * Reads from the given position in the file without moving the file pointer, so concurrent reads don't interfere
+		 *
+		 * @return The number of bytes actually read, which is less than length only at the end of the file
+		 */
+		int read(byte[] buf, int offset, long position, int length) throws IOException
+			{
+			ByteBuffer bb = ByteBuffer.wrap(buf, offset, length);
+			while (bb.hasRemaining())
+				{
+				if (channel.read(bb, position + bb.position() - offset) < 0)
+					{
+					break;
+					}
+				}
+			return bb.position() - offset;
+			}
+
+		private void close()
+			{
+			try
+				{
+				raf.close();
+				}
+			catch (IOException e)
+				{
+				// Already Closed
+				}
+			}
+		}
+	}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.sequencereader.fasta;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streaming access to a plain gzip file, which can only be decompressed from the beginning.  Forward reads continue the
+ * current stream; the previous and current chunks are kept so that the short backward steps FastaParser takes (e.g. to
+ * check whether a position is inside a header) don't restart it.  Any other backward seek reopens the stream and
+ * decompresses up to the requested position, so random access works but is slow; use bgzip for files that need it.
+ * <p/>
+ * The gzip trailer records the uncompressed length only modulo 2^32, and only for the last member, so the length is found
+ * by decompressing the whole file.  That's put off until the length is first asked for, so that opening a set of gzip
+ * files doesn't decompress any that are never read.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+class GzipFastaFile extends CompressedFastaFile
+	{
+	// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(GzipFastaFile.class);
+
+	private static final int CHUNK_SIZE = 65536;
+
+	private long length = -1;// found on first use
+
+	private InputStream in;
+	private long streamPosition;// uncompressed position of the next byte from the stream
+
+	private byte[] previousChunk = new byte[CHUNK_SIZE];
+	private byte[] currentChunk = new byte[CHUNK_SIZE];
+	private long previousChunkStart = 0;
+	private int previousChunkLength = 0;
+	private long currentChunkStart = 0;
+	private int currentChunkLength = 0;
+
+
+	// --------------------------- CONSTRUCTORS ---------------------------
+
+	GzipFastaFile(File file)
+		{
+		super(file);
+		}
+
+	// --------------------- GETTER / SETTER METHODS ---------------------
+
+	synchronized long length() throws IOException
+		{
+		if (length < 0)
+			{
+			logger.info("Counting uncompressed length of " + file + "; use bgzip for random access");
+			InputStream counter = openStream();
+			try
+				{
+				long count = 0;
+				byte[] skipBuf = new byte[CHUNK_SIZE];
+				int r;
+				while ((r = counter.read(skipBuf)) != -1)
+					{
+					count += r;
+					}
+				length = count;
+				}
+			finally
+				{
+				counter.close();
+				}
+			}
+		return length;
+		}
+
+	synchronized boolean isLengthKnown()
+		{
+		return length >= 0;
+		}
+
+	boolean isRandomAccess()
+		{
+		return false;
+		}
+
+	// -------------------------- OTHER METHODS --------------------------
+
+	synchronized int read(byte[] buf, int offset, long position, int length) throws IOException
+		{
+		int charactersRead = 0;
+		long end = length();
+		while (charactersRead < length && position < end)
+			{
+			byte[] chunk;
+			int within;
+			int available;
+			if (position >= currentChunkStart && position < currentChunkStart + currentChunkLength)
+				{
+				chunk = currentChunk;
+				within = (int) (position - currentChunkStart);
+				available = currentChunkLength - within;
+				}
+			else if (position >= previousChunkStart && position < previousChunkStart + previousChunkLength)
+				{
+				chunk = previousChunk;
+				within = (int) (position - previousChunkStart);
+				available = previousChunkLength - within;
+				}
+			else
+				{
+				advanceTo(position);
+				continue;
+				}
+			int r = Math.min(length - charactersRead, available);
+			System.arraycopy(chunk, within, buf, offset + charactersRead, r);
+			charactersRead += r;
+			position += r;
+			}
+		return charactersRead;
+		}
+
+	synchronized void releaseCachedResources()
+		{
+		closeStream();
+		previousChunkLength = 0;
+		currentChunkLength = 0;
+		}
+
+	/**
+	 * Decompresses chunks until the current chunk contains the given position, reopening the stream first if the position
+	 * is behind it
+	 */
+	private void advanceTo(long position) throws IOException
+		{
+		if (in == null || position < streamPosition)
+			{
+			closeStream();
+			in = openStream();
+			streamPosition = 0;
+			previousChunkLength = 0;
+			currentChunkLength = 0;
+			}
+		while (streamPosition <= position)
+			{
+			byte[] swap = previousChunk;
+			previousChunk = currentChunk;
+			previousChunkStart = currentChunkStart;
+			previousChunkLength = currentChunkLength;
+			currentChunk = swap;
+			currentChunkStart = streamPosition;
+			currentChunkLength = readChunk(currentChunk);
+			if (currentChunkLength == 0)
+				{
+				throw new IOException("Unexpected end of " + file + " at " + streamPosition);
+				}
+			streamPosition += currentChunkLength;
+			}
+		}
+
+	private int readChunk(byte[] chunk) throws IOException
+		{
+		int n = 0;
+		while (n < chunk.length)
+			{
+			int r = in.read(chunk, n, chunk.length - n);
+			if (r == -1)
+				{
+				break;
+				}
+			n += r;
+			}
+		return n;
+		}
+
+	private InputStream openStream() throws IOException
+		{
+		return new GZIPInputStream(new BufferedInputStream(new FileInputStream(file), CHUNK_SIZE), CHUNK_SIZE);
+		}
+
+	private void closeStream()
+		{
+		if (in != null)
+			{
+			try
+				{
+				in.close();
+				}
+			catch (IOException e)
+				{
+				// Already Closed
+				}
+			in = null;
+			}
+		}
+	}
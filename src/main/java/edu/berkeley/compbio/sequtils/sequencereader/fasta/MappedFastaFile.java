@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.sequencereader.fasta;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only memory mapping of an entire file.  A single MappedByteBuffer can address at most 2 GB, so larger files are
+ * mapped as a series of fixed-size chunks.  Reads never touch the position of the shared buffers (each read works on its
+ * own duplicate), so any number of threads may read concurrently without locking.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+class MappedFastaFile
+	{
+	// ------------------------------ FIELDS ------------------------------
+
+	static final int CHUNK_SIZE = 1 << 30;
+
+	private final ByteBuffer[] chunks;
+	private final long length;
+
+
+	// --------------------------- CONSTRUCTORS ---------------------------
+
+	MappedFastaFile(File file) throws IOException
+		{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+			{
+			FileChannel channel = raf.getChannel();
+			length = channel.size();
+			int numChunks = (int) ((length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+			chunks = new ByteBuffer[numChunks];
+			for (int i = 0; i < numChunks; i++)
+				{
+				long chunkStart = (long) i * CHUNK_SIZE;
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, chunkStart,
+				                        Math.min(CHUNK_SIZE, length - chunkStart));
+				}
+			}
+		finally
+			{
+			// the mapping remains valid after the channel is closed
+			raf.close();
+			}
+		}
+
+	// --------------------- GETTER / SETTER METHODS ---------------------
+
+	long length()
+		{
+		return length;
+		}
+
+	// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * Copies bytes out of the mapping, crossing chunk boundaries as needed.
+	 *
+	 * @param buf      Buffer to read the data in
+	 * @param offset   Offset in the buffer at which to start writing
+	 * @param position Offset in the file to start reading (inclusive)
+	 * @param length   Maximum number of bytes to read
+	 * @return The number of bytes actually read, which is less than length only at the end of the file
+	 */
+	int read(byte[] buf, int offset, long position, int length)
+		{
+		int charactersRead = 0;
+		while (charactersRead < length && position < this.length)
+			{
+			ByteBuffer chunk = chunks[(int) (position / CHUNK_SIZE)].duplicate();
+			chunk.position((int) (position % CHUNK_SIZE));
+			int r = Math.min(length - charactersRead, chunk.remaining());
+			chunk.get(buf, offset + charactersRead, r);
+			charactersRead += r;
+			position += r;
+			}
+		return charactersRead;
+		}
+	}
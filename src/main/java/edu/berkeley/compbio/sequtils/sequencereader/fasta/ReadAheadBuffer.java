@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.sequencereader.fasta;
+
+import edu.berkeley.compbio.sequtils.NotEnoughSequenceException;
+import edu.berkeley.compbio.sequtils.SequenceError;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads a FastaFileSet ahead of a sequential consumer.  A ring of buffers is kept filled by background threads with the
+ * bytes following the consumer's position, so that the consumer only waits when it catches up with the I/O.  A read
+ * outside the prefetched window cancels the pending prefetches and starts again from the new position.
+ * <p/>
+ * A ReadAheadBuffer serves a single consumer, and is not itself thread-safe.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+class ReadAheadBuffer
+	{
+	// ------------------------------ FIELDS ------------------------------
+
+	// I/O bound, so not limited to the number of processors; idle threads go away after a minute
+	private static final ExecutorService prefetchers = Executors.newCachedThreadPool(new ThreadFactory()
+	{
+	public Thread newThread(Runnable r)
+		{
+		Thread t = new Thread(r, "FASTA read-ahead");
+		t.setDaemon(true);
+		return t;
+		}
+	});
+
+	private final ExecutorService executor;
+	private final FastaFileSet fileset;
+	private final long totalSequence;
+
+	private final ArrayDeque<byte[]> freeBuffers = new ArrayDeque<byte[]>();
+
+	// prefetches in position order, the first being the one containing (or just after) the consumer's position
+	private final LinkedList<Prefetch> pending = new LinkedList<Prefetch>();
+	private long windowStart;
+	private long nextPrefetch;
+
+
+	// --------------------------- CONSTRUCTORS ---------------------------
+
+	ReadAheadBuffer(FastaFileSet fileset, int bufferCount, int bufferSize)
+		{
+		this(fileset, bufferCount, bufferSize, prefetchers);
+		}
+
+	/**
+	 * @param executor runs the prefetches, in place of the shared pool
+	 */
+	ReadAheadBuffer(FastaFileSet fileset, int bufferCount, int bufferSize, ExecutorService executor)
+		{
+		if (bufferCount < 1 || bufferSize < 1)
+			{
+			throw new IllegalArgumentException("Need at least one nonempty buffer");
+			}
+		this.fileset = fileset;
+		this.executor = executor;
+		totalSequence = fileset.getTotalSequence();
+		for (int i = 0; i < bufferCount; i++)
+			{
+			freeBuffers.add(new byte[bufferSize]);
+			}
+		}
+
+	// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * Reads from the prefetched buffers, as FastaFileSet.readAt() reads from the files.  Fewer bytes than requested may be
+	 * returned even before the end of the set, when the request crosses the end of a buffer.
+	 *
+	 * @throws NotEnoughSequenceException If there is no more sequence before the end of the set
+	 */
+	int readAt(byte[] buf, long position, int length) throws NotEnoughSequenceException, IOException
+		{
+		if (position < 0 || position >= totalSequence)
+			{
+			throw new NotEnoughSequenceException("Offset " + position + " outside of available sequence range!");
+			}
+		while (true)
+			{
+			if (pending.isEmpty())
+				{
+				windowStart = position;
+				nextPrefetch = position;
+				schedulePrefetches();
+				if (pending.isEmpty())
+					{
+					throw new IOException("No read-ahead buffer is free");
+					}
+				}
+			Chunk head = await(pending.getFirst());
+			if (head.length == 0)
+				{
+				throw new NotEnoughSequenceException("No characters read");
+				}
+			if (position >= head.start && position < head.start + head.length)
+				{
+				int r = (int) Math.min(length, head.start + head.length - position);
+				System.arraycopy(head.buffer, (int) (position - head.start), buf, 0, r);
+				return r;
+				}
+			else if (position >= head.start && position < nextPrefetch)
+				{
+				// the consumer has moved on to a later buffer; recycle this one to read further ahead
+				pending.removeFirst();
+				freeBuffers.add(head.buffer);
+				windowStart = head.start + head.length;
+				schedulePrefetches();
+				}
+			else
+				{
+				cancel();
+				}
+			}
+		}
+
+	/**
+	 * @return whether the given position has been prefetched, or is being
+	 */
+	boolean covers(long position)
+		{
+		return !pending.isEmpty() && position >= windowStart && position < nextPrefetch;
+		}
+
+	/**
+	 * Abandons all the pending prefetches, returning their buffers to the free list.  Prefetches that have already started
+	 * are waited for, so that their buffers can be reused safely; none is interrupted, since that would close the file
+	 * channels they are reading.
+	 */
+	void cancel()
+		{
+		while (!pending.isEmpty())
+			{
+			Prefetch p = pending.removeFirst();
+			if (p.abandon())
+				{
+				// it will never touch the buffer
+				p.future.cancel(false);
+				freeBuffers.add(p.buffer);
+				continue;
+				}
+			try
+				{
+				await(p);
+				freeBuffers.add(p.buffer);
+				}
+			catch (InterruptedIOException e)
+				{
+				// the prefetch may still be writing to its buffer, so it can't be reused
+				Thread.currentThread().interrupt();
+				}
+			catch (IOException e)
+				{
+				// the prefetch failed, and await() has already returned its buffer
+				}
+			}
+		}
+
+	private void schedulePrefetches()
+		{
+		while (!freeBuffers.isEmpty() && nextPrefetch < totalSequence)
+			{
+			byte[] buffer = freeBuffers.removeFirst();
+			long start = nextPrefetch;
+			int length = (int) Math.min(buffer.length, totalSequence - start);
+			nextPrefetch += length;
+			Prefetch p = new Prefetch(start, buffer, length);
+			p.future = executor.submit(p);
+			pending.add(p);
+			}
+		}
+
+	/**
+	 * Waits for a prefetch to finish
+	 *
+	 * @throws IOException if it failed; its buffer is returned to the free list first
+	 */
+	private Chunk await(Prefetch p) throws IOException
+		{
+		try
+			{
+			return p.future.get();
+			}
+		catch (InterruptedException e)
+			{
+			throw new InterruptedIOException("Interrupted waiting for read-ahead");
+			}
+		catch (ExecutionException e)
+			{
+			pending.remove(p);
+			freeBuffers.add(p.buffer);
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				{
+				throw (IOException) cause;
+				}
+			if (cause instanceof RuntimeException)
+				{
+				throw (RuntimeException) cause;
+				}
+			if (cause instanceof Error)
+				{
+				throw (Error) cause;
+				}
+			throw new SequenceError((Exception) cause);
+			}
+		}
+
+	// -------------------------- INNER CLASSES --------------------------
+
+	private static class Chunk
+		{
+		final long start;
+		final byte[] buffer;
+		final int length;
+
+		Chunk(long start, byte[] buffer, int length)
+			{
+			this.start = start;
+			this.buffer = buffer;
+			this.length = length;
+			}
+		}
+
+	/**
+	 * Fills one buffer.  The buffer belongs to the prefetch, rather than only to the Chunk it produces, so that the
+	 * consumer can take it back whether the prefetch finished, failed, or never ran.
+	 */
+	private class Prefetch implements Callable<Chunk>
+		{
+		private static final int WAITING = 0;
+		private static final int STARTED = 1;
+		private static final int ABANDONED = 2;
+
+		final long start;
+		final byte[] buffer;
+		final int length;
+		final AtomicInteger state = new AtomicInteger(WAITING);
+		Future<Chunk> future;
+
+		Prefetch(long start, byte[] buffer, int length)
+			{
+			this.start = start;
+			this.buffer = buffer;
+			this.length = length;
+			}
+
+		/**
+		 * @return true if the prefetch had not started, and now never will
+		 */
+		boolean abandon()
+			{
+			return state.compareAndSet(WAITING, ABANDONED);
+			}
+
+		public Chunk call() throws IOException
+			{
+			if (!state.compareAndSet(WAITING, STARTED))
+				{
+				return null;
+				}
+			int n = 0;
+			try
+				{
+				while (n < length)
+					{
+					n += fileset.readAt(buffer, start + n, length - n);
+					}
+				}
+			catch (NotEnoughSequenceException e)
+				{
+				// the set is shorter than it was when we started; pass on what there is
+				}
+			return new Chunk(start, buffer, n);
+			}
+		}
+	}
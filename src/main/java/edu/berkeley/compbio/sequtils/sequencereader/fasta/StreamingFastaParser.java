@@ -0,0 +1,343 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.sequencereader.fasta;
+
+import edu.berkeley.compbio.sequtils.NotEnoughSequenceException;
+import edu.berkeley.compbio.sequtils.SequenceFragmentMetadata;
+import edu.berkeley.compbio.sequtils.TranslatingSequenceReader;
+import edu.berkeley.compbio.sequtils.sequencereader.SectionList;
+import org.apache.commons.lang.NotImplementedException;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Forward-only FASTA parser reading from a stream, e.g. the output of zcat or of another process, so sequence can be
+ * scanned without first being written to a file.  Sections are returned by next() and read as in FastaParser, with
+ * positions counted in bytes from the start of the stream; the parser holds only one buffer, so it can scan unbounded
+ * input.
+ * <p/>
+ * Seeking is allowed only forwards (including to the current position, as SequenceFragment does before reading a
+ * section).  Everything that needs random access, such as sampling random sections or seeking backwards, throws
+ * NotImplementedException; use FastaParser on a FastaFileSet for those.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class StreamingFastaParser extends TranslatingSequenceReader implements SectionList
+	{
+	// ------------------------------ FIELDS ------------------------------
+
+	private static final int DEFAULT_BUFFER_SIZE = 65536;
+
+	private final InputStream in;
+	private final String name;
+	private final Integer taxid;
+	private final boolean skipGaps;
+
+	private final SequenceFragmentMetadata rootMetadata;
+
+	private int validCharsInBuffer = 0;
+	private long bufferStart = 0;// the position in the stream of buf[0]
+	private boolean endOfStream = false;
+
+	private byte[] idStr = new byte[256];
+
+
+	// --------------------------- CONSTRUCTORS ---------------------------
+
+	public StreamingFastaParser(InputStream in, String name, Integer taxid, boolean skipGaps)
+		{
+		this(in, name, taxid, DEFAULT_BUFFER_SIZE, skipGaps);
+		}
+
+	public StreamingFastaParser(InputStream in, String name, Integer taxid, int bufsize, boolean skipGaps)
+		{
+		this.in = in;
+		this.name = name;
+		this.taxid = taxid;
+		this.skipGaps = skipGaps;
+		rootMetadata = new SequenceFragmentMetadata(null, name, taxid, 0, SequenceFragmentMetadata.UNKNOWN_LENGTH);
+		initMainBuffer(bufsize);
+		}
+
+	public StreamingFastaParser(ReadableByteChannel channel, String name, Integer taxid, boolean skipGaps)
+		{
+		this(Channels.newInputStream(channel), name, taxid, skipGaps);
+		}
+
+	// --------------------- GETTER / SETTER METHODS ---------------------
+
+	public String getName()
+		{
+		return name;
+		}
+
+	public Integer getTaxid()
+		{
+		return taxid;
+		}
+
+	public SequenceFragmentMetadata getRootMetadata()
+		{
+		return rootMetadata;
+		}
+
+	// ------------------------ CANONICAL METHODS ------------------------
+
+	public void close()
+		{
+		try
+			{
+			in.close();
+			}
+		catch (IOException e)
+			{
+			// Already Closed
+			}
+		}
+
+	@Override
+	public String toString()
+		{
+		return name;
+		}
+
+	// ------------------------ INTERFACE METHODS ------------------------
+
+
+	// --------------------- Interface SectionList ---------------------
+
+	/**
+	 * Reads forward to the next section header, leaving the reader at the first symbol of the section
+	 */
+	@NotNull
+	public SequenceFragmentMetadata next() throws IOException, NotEnoughSequenceException
+		{
+		// find the '>'
+		while (true)
+			{
+			if (bufPosition >= validCharsInBuffer && !fillBuffer())
+				{
+				throw new NotEnoughSequenceException("End of stream, no more sections");
+				}
+			if (buf[bufPosition++] == '>')
+				{
+				break;
+				}
+			}
+
+		// the id runs up to the first space; the rest of the line is ignored
+		int idLen = 0;
+		boolean readingId = true;
+		while (bufPosition < validCharsInBuffer || fillBuffer())
+			{
+			byte t = buf[bufPosition++];
+			if (t == '\n')
+				{
+				break;
+				}
+			else if (t == ' ' || t == '\r')
+				{
+				readingId = false;
+				}
+			else if (readingId)
+				{
+				if (idLen == idStr.length)
+					{
+					idStr = Arrays.copyOf(idStr, 2 * idLen);
+					}
+				idStr[idLen++] = t;
+				}
+			}
+		if (idLen == 0)
+			{
+			throw new NotEnoughSequenceException("Section without a name at " + position());
+			}
+		return new SequenceFragmentMetadata(rootMetadata, new String(idStr, 0, idLen), taxid, position(),
+		                                    SequenceFragmentMetadata.UNKNOWN_LENGTH);
+		}
+
+	@NotNull
+	public SequenceFragmentMetadata nextShuffled()
+		{
+		throw new NotImplementedException("Can't shuffle the sections of a stream");
+		}
+
+	@NotNull
+	public SequenceFragmentMetadata randomSectionFragment()
+		{
+		throw new NotImplementedException("Can't sample random positions from a stream");
+		}
+
+	public SequenceFragmentMetadata randomSectionLengthWeighted()
+		{
+		throw new NotImplementedException("Can't sample random sections from a stream");
+		}
+
+	public SequenceFragmentMetadata randomSectionUniform()
+		{
+		throw new NotImplementedException("Can't sample random sections from a stream");
+		}
+
+	// --------------------- Interface SequenceReader ---------------------
+
+	/**
+	 * @return the number of bytes read from the stream so far, since the total isn't known until the end
+	 */
+	public long getTotalSequence()
+		{
+		return bufferStart + validCharsInBuffer;
+		}
+
+	public byte read() throws IOException, NotEnoughSequenceException
+		{
+		final byte[] symbolTypes = skipGaps ? FastaParser.SYMBOL_TYPES_SKIPPING_GAPS : FastaParser.SYMBOL_TYPES;
+		while (true)
+			{
+			if (bufPosition >= validCharsInBuffer && !fillBuffer())
+				{
+				throw new NotEnoughSequenceException("End of sequence");
+				}
+			byte t = buf[bufPosition];
+			byte type = symbolTypes[t & 0xFF];
+			if (type == FastaParser.SECTION_END)
+				{
+				// don't advance, so we stay at the end of the section
+				throw new NotEnoughSequenceException("End of sequence");
+				}
+			bufPosition++;
+			if (type == FastaParser.SEQUENCE)
+				{
+				return t;
+				}
+			}
+		}
+
+	public int read(byte[] buffer, int length) throws IOException
+		{
+		int result = read(buffer, 0, length);
+		return result == -1 ? 0 : result;
+		}
+
+	/**
+	 * Reads up to length symbols from the current section, as FastaParser.read(byte[], int, int) does
+	 *
+	 * @return The number of symbols read, which is less than length only if the section ended; or -1 if the section had
+	 *         already ended
+	 */
+	public int read(byte[] buffer, int offset, int length) throws IOException
+		{
+		final byte[] symbolTypes = skipGaps ? FastaParser.SYMBOL_TYPES_SKIPPING_GAPS : FastaParser.SYMBOL_TYPES;
+		int count = 0;
+		boolean sectionEnded = false;
+		while (count < length)
+			{
+			if (bufPosition >= validCharsInBuffer && !fillBuffer())
+				{
+				sectionEnded = true;
+				break;
+				}
+
+			final int runStart = bufPosition;
+			final int limit = Math.min(validCharsInBuffer, runStart + (length - count));
+			int i = runStart;
+			while (i < limit && symbolTypes[buf[i] & 0xFF] == FastaParser.SEQUENCE)
+				{
+				i++;
+				}
+			System.arraycopy(buf, runStart, buffer, offset + count, i - runStart);
+			count += i - runStart;
+			bufPosition = i;
+
+			if (i < limit)
+				{
+				if (symbolTypes[buf[i] & 0xFF] == FastaParser.SECTION_END)
+					{
+					sectionEnded = true;
+					break;
+					}
+				bufPosition++;
+				}
+			}
+		return (sectionEnded && count == 0) ? -1 : count;
+		}
+
+	/**
+	 * Allowed only before anything has been read
+	 */
+	public void reset()
+		{
+		if (position() != 0)
+			{
+			throw new NotImplementedException("Can't rewind a stream");
+			}
+		}
+
+	public void seek(SequenceFragmentMetadata section) throws IOException
+		{
+		seek(section, 0);
+		}
+
+	/**
+	 * Skips forward to the given position
+	 *
+	 * @throws NotImplementedException if the position has already been passed
+	 */
+	public void seek(SequenceFragmentMetadata section, long offset) throws IOException
+		{
+		final long target = section == null ? offset : section.getStartPositionFromRoot() + offset;
+		if (target < position())
+			{
+			throw new NotImplementedException(
+					"Can't seek backwards in a stream, from " + position() + " to " + target);
+			}
+		while (position() < target && (bufPosition < validCharsInBuffer || fillBuffer()))
+			{
+			bufPosition += (int) Math.min(validCharsInBuffer - bufPosition, target - position());
+			}
+		}
+
+	// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * @return the position in the stream of the next byte to be read
+	 */
+	private long position()
+		{
+		return bufferStart + bufPosition;
+		}
+
+	/**
+	 * Replaces the buffer with the next bytes of the stream
+	 *
+	 * @return false if the stream has ended
+	 */
+	private boolean fillBuffer() throws IOException
+		{
+		if (endOfStream)
+			{
+			return false;
+			}
+		bufferStart += validCharsInBuffer;
+		bufPosition = 0;
+		validCharsInBuffer = 0;
+		int r = in.read(buf, 0, buf.length);
+		if (r == -1)
+			{
+			endOfStream = true;
+			return false;
+			}
+		validCharsInBuffer = r;
+		return true;
+		}
+	}
@@ -0,0 +1,582 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.sequencereader.fastq;
+
+import com.davidsoergel.dsutils.CacheManager;
+import com.davidsoergel.dsutils.math.MersenneTwisterFast;
+import edu.berkeley.compbio.sequtils.NotEnoughSequenceException;
+import edu.berkeley.compbio.sequtils.SequenceArrayUtils;
+import edu.berkeley.compbio.sequtils.SequenceException;
+import edu.berkeley.compbio.sequtils.SequenceFragmentMetadata;
+import edu.berkeley.compbio.sequtils.TranslatingSequenceReader;
+import edu.berkeley.compbio.sequtils.TranslationException;
+import edu.berkeley.compbio.sequtils.sequencereader.SectionList;
+import edu.berkeley.compbio.sequtils.sequencereader.SectionTable;
+import edu.berkeley.compbio.sequtils.sequencereader.fasta.FastaFileSet;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * FASTQ File Parser.  Each record is a section, starting at the first base of its sequence line, so FASTQ reads can be
+ * used anywhere FASTA sections can without converting the files.  The files are read through a FastaFileSet, so they may
+ * be compressed; use the FASTQ_EXTENSIONS when building the set from a directory.
+ * <p/>
+ * Records must have the sequence and the quality string each on a single line, as is universal for short-read data.
+ * Qualities are phred scores, decoded from the Sanger / Illumina 1.8+ encoding (ASCII offset 33).  Since the quality
+ * line has the same length as the sequence line, the quality of a base is found by reading forward from it, so seeking
+ * into the middle of a record works just as it does in FastaParser.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class FastqParser extends TranslatingSequenceReader implements SectionList
+	{
+	// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(FastqParser.class);
+
+	public static final List<String> FASTQ_EXTENSIONS = Collections.unmodifiableList(Arrays.asList(".fastq", ".fq"));
+
+	public static final int PHRED_OFFSET = 33;
+
+	private static final int DEFAULT_BUFFER_SIZE = 16384;
+
+	private final FastaFileSet fileset;
+	private final int buffersize;
+	private final LineReader lines;
+
+	private SequenceFragmentMetadata rootMetadata;
+
+	// the current record: the bases from the seek position to the end of the sequence line, with their qualities
+	private byte[] qualities = new byte[256];
+	private int validCharsInBuffer = 0;
+	private long nextRecordPosition = 0;
+
+	private int minQuality = 0;
+
+	// all the reads; the metadata objects are made as they are asked for
+	private SectionTable sections;
+	private long[] cumulativeLengths;
+
+	private int[] indexesShuffled;
+	private int shuffledIndex;
+
+
+	// --------------------------- CONSTRUCTORS ---------------------------
+
+	public FastqParser(FastaFileSet fs)
+		{
+		this(fs, DEFAULT_BUFFER_SIZE);
+		}
+
+	public FastqParser(FastaFileSet fs, int bufsize)
+		{
+		fileset = fs;
+		buffersize = bufsize;
+		lines = new LineReader(bufsize);
+		rootMetadata = new SequenceFragmentMetadata(null, getName(), null, 0, fs.getTotalSequence());
+		buf = new byte[256];
+		}
+
+	// --------------------- GETTER / SETTER METHODS ---------------------
+
+	public String getName()
+		{
+		return fileset.getName();
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String getPersistentId()
+		{
+		return fileset.getPersistentId();
+		}
+
+	public Integer getTaxid()
+		{
+		return fileset.getTaxid();
+		}
+
+	public SequenceFragmentMetadata getRootMetadata()
+		{
+		return rootMetadata;
+		}
+
+	public int getMinQuality()
+		{
+		return minQuality;
+		}
+
+	/**
+	 * Bases with a phred quality below the given threshold are reported as unknown (N) by readTranslated(), and so are
+	 * skipped by scanners that ignore untranslatable symbols.  read() always returns the bases as written.
+	 *
+	 * @param minQuality the lowest phred score to accept, or 0 to accept everything
+	 */
+	public void setMinQuality(int minQuality)
+		{
+		this.minQuality = minQuality;
+		}
+
+	// ------------------------ CANONICAL METHODS ------------------------
+
+	public void close()
+		{
+		fileset.close();
+		}
+
+	@Override
+	public String toString()
+		{
+		return fileset.toString();
+		}
+
+	// ------------------------ INTERFACE METHODS ------------------------
+
+
+	// --------------------- Interface SectionList ---------------------
+
+	@NotNull
+	public SequenceFragmentMetadata next() throws IOException, NotEnoughSequenceException
+		{
+		long position = nextRecordPosition;
+		String name = lines.readHeader(position);
+		long sequenceStart = lines.getLineEnd();
+		loadRecord(sequenceStart);
+		return new SequenceFragmentMetadata(rootMetadata, name, getTaxid(), sequenceStart, validCharsInBuffer);
+		}
+
+	@NotNull
+	public SequenceFragmentMetadata nextShuffled() throws IOException, NotEnoughSequenceException
+		{
+		if (sections == null)
+			{
+			generateIndex();
+			}
+		if (indexesShuffled == null)
+			{
+			indexesShuffled = new int[sections.size()];
+			for (int i = 0; i < indexesShuffled.length; i++)
+				{
+				indexesShuffled[i] = i;
+				}
+			for (int i = indexesShuffled.length - 1; i > 0; i--)
+				{
+				int j = MersenneTwisterFast.randomInt(i + 1);
+				int tmp = indexesShuffled[i];
+				indexesShuffled[i] = indexesShuffled[j];
+				indexesShuffled[j] = tmp;
+				}
+			shuffledIndex = -1;
+			}
+		shuffledIndex++;
+		if (shuffledIndex >= indexesShuffled.length)
+			{
+			throw new NotEnoughSequenceException("");
+			}
+		return sectionMetadata(indexesShuffled[shuffledIndex]);
+		}
+
+	/**
+	 * Picks a base uniformly from all the reads, and returns a fragment starting there (as a child of its read).
+	 */
+	@NotNull
+	public SequenceFragmentMetadata randomSectionFragment() throws NotEnoughSequenceException, IOException
+		{
+		if (sections == null)
+			{
+			generateIndex();
+			}
+		if (cumulativeLengths.length == 0 || cumulativeLengths[cumulativeLengths.length - 1] == 0)
+			{
+			throw new NotEnoughSequenceException("No reads in " + getName());
+			}
+		long base = (long) (cumulativeLengths[cumulativeLengths.length - 1] * MersenneTwisterFast.random());
+		int index = sectionContainingBase(base);
+		long offset = base - (index == 0 ? 0 : cumulativeLengths[index - 1]);
+		return new SequenceFragmentMetadata(sectionMetadata(index), "Random sequence from " + getName(), getTaxid(),
+		                                    offset, SequenceFragmentMetadata.UNKNOWN_LENGTH);
+		}
+
+	public SequenceFragmentMetadata randomSectionLengthWeighted() throws NotEnoughSequenceException, IOException
+		{
+		return randomSectionFragment().getParentMetadata();
+		}
+
+	public SequenceFragmentMetadata randomSectionUniform() throws IOException
+		{
+		if (sections == null)
+			{
+			generateIndex();
+			}
+		return sectionMetadata(MersenneTwisterFast.randomInt(sections.size()));
+		}
+
+	// --------------------- Interface SequenceReader ---------------------
+
+	public long getTotalSequence()
+		{
+		return fileset.getTotalSequence();
+		}
+
+	public byte read() throws NotEnoughSequenceException
+		{
+		if (bufPosition >= validCharsInBuffer)
+			{
+			throw new NotEnoughSequenceException("End of sequence");
+			}
+		return buf[bufPosition++];
+		}
+
+	public int read(byte[] buffer, int length)
+		{
+		int r = Math.max(0, Math.min(length, validCharsInBuffer - bufPosition));
+		System.arraycopy(buf, bufPosition, buffer, 0, r);
+		bufPosition += r;
+		return r;
+		}
+
+	/**
+	 * Reads bases together with their phred quality scores
+	 *
+	 * @param buffer    a byte[] to read the bases into
+	 * @param qualities a byte[] to read the corresponding quality scores into
+	 * @param length    how many bases to read
+	 * @return The number of bases read, which is less than length only if the read ended
+	 */
+	public int read(byte[] buffer, byte[] qualities, int length)
+		{
+		int r = Math.max(0, Math.min(length, validCharsInBuffer - bufPosition));
+		System.arraycopy(buf, bufPosition, buffer, 0, r);
+		System.arraycopy(this.qualities, bufPosition, qualities, 0, r);
+		bufPosition += r;
+		return r;
+		}
+
+	/**
+	 * {@inheritDoc}  Bases below the quality threshold are translated as N.
+	 */
+	@Override
+	public int readTranslated() throws NotEnoughSequenceException, TranslationException
+		{
+		if (bufPosition >= validCharsInBuffer)
+			{
+			throw new NotEnoughSequenceException("End of sequence");
+			}
+		byte c = maskedBase(bufPosition++);
+		int result = translate(c);
+		if (result == -1)
+			{
+			throw new TranslationException("Symbol not in alphabet: " + c);
+			}
+		return result;
+		}
+
+	/**
+	 * {@inheritDoc}  Bases below the quality threshold are translated as N.
+	 */
+	@Override
+	public int readTranslated(int[] dst, int length) throws TranslationException
+		{
+		int r = Math.max(0, Math.min(length, validCharsInBuffer - bufPosition));
+		for (int i = 0; i < r; i++)
+			{
+			dst[i] = translate(maskedBase(bufPosition++));
+			}
+		return r;
+		}
+
+	public void reset()
+		{
+		nextRecordPosition = 0;
+		validCharsInBuffer = 0;
+		bufPosition = 0;
+		}
+
+	public void seek(SequenceFragmentMetadata section) throws IOException
+		{
+		seek(section, 0);
+		}
+
+	public void seek(SequenceFragmentMetadata section, long offset) throws IOException
+		{
+		final long newRawPosition = section == null ? offset : section.getStartPositionFromRoot() + offset;
+		try
+			{
+			loadRecord(newRawPosition);
+			}
+		catch (NotEnoughSequenceException e)
+			{
+			// past the end; reads will report the end of sequence
+			validCharsInBuffer = 0;
+			bufPosition = 0;
+			}
+		}
+
+	// -------------------------- OTHER METHODS --------------------------
+
+	@NotNull
+	public synchronized SequenceFragmentMetadata getSequenceFragmentMetadata(final String id)
+			throws SequenceException, IOException
+		{
+		if (sections == null)
+			{
+			generateIndex();
+			}
+		final int i = sections.indexOf(id);
+		if (i == -1)
+			{
+			throw new SequenceException("Sequence fragment " + id + " not found");
+			}
+		return sectionMetadata(i);
+		}
+
+	private SequenceFragmentMetadata sectionMetadata(int i)
+		{
+		return new SequenceFragmentMetadata(rootMetadata, sections.getName(i), getTaxid(), sections.getStart(i),
+		                                    sections.getLength(i));
+		}
+
+	private byte maskedBase(int i)
+		{
+		return qualities[i] < minQuality ? SequenceArrayUtils.UNKNOWN_BYTE : buf[i];
+		}
+
+	/**
+	 * Loads the bases from the given position to the end of its sequence line, and the corresponding tail of the quality
+	 * line
+	 */
+	private void loadRecord(long position) throws IOException, NotEnoughSequenceException
+		{
+		validCharsInBuffer = lines.readLine(position);
+		if (buf.length < validCharsInBuffer)
+			{
+			buf = new byte[Math.max(validCharsInBuffer, 2 * buf.length)];
+			qualities = new byte[buf.length];
+			}
+		System.arraycopy(lines.getLine(), 0, buf, 0, validCharsInBuffer);
+		bufPosition = 0;
+
+		long plusLine = lines.getLineEnd();
+		lines.readLine(plusLine);
+		if (lines.getLineLength() == 0 || lines.getLine()[0] != '+')
+			{
+			throw new IOException("Malformed FASTQ record in " + getName() + ": expected '+' at " + plusLine);
+			}
+
+		int qualityLength = lines.readLine(lines.getLineEnd());
+		if (qualityLength < validCharsInBuffer)
+			{
+			throw new IOException("Malformed FASTQ record in " + getName() + ": quality line shorter than sequence before "
+			                      + lines.getLineEnd());
+			}
+		byte[] line = lines.getLine();
+		int skip = qualityLength - validCharsInBuffer;
+		for (int i = 0; i < validCharsInBuffer; i++)
+			{
+			qualities[i] = (byte) (line[skip + i] - PHRED_OFFSET);
+			}
+		nextRecordPosition = lines.getLineEnd();
+		}
+
+	private void generateIndex() throws IOException
+		{
+		sections = (SectionTable) CacheManager.get(this, getName() + ".fastqSections");
+
+		if (sections == null)
+			{
+			sections = new SectionTable();
+
+			// scan with a separate reader, so as not to disturb the current position
+			LineReader scanner = new LineReader(buffersize);
+			long position = 0;
+			try
+				{
+				while (true)
+					{
+					String name = scanner.readHeader(position);
+					long sequenceStart = scanner.getLineEnd();
+					int length = scanner.readLine(sequenceStart);
+					scanner.readLine(scanner.getLineEnd());// '+' line
+					scanner.readLine(scanner.getLineEnd());// qualities
+					position = scanner.getLineEnd();
+
+					sections.add(name, sequenceStart, length);
+					}
+				}
+			catch (NotEnoughSequenceException e)
+				{
+				// exhausted records
+				}
+
+			sections.trim();
+
+			CacheManager.put(this, getName() + ".fastqSections", sections);
+			}
+
+		cumulativeLengths = new long[sections.size()];
+		long total = 0;
+		for (int i = 0; i < cumulativeLengths.length; i++)
+			{
+			total += sections.getLength(i);
+			cumulativeLengths[i] = total;
+			}
+		}
+
+	/**
+	 * @return the index of the section containing the given base, counting bases across all sections
+	 */
+	private int sectionContainingBase(long base)
+		{
+		int i = Arrays.binarySearch(cumulativeLengths, base);
+		// an exact hit is the first base of the following section (skipping any empty reads, which repeat the total)
+		if (i < 0)
+			{
+			return -i - 1;
+			}
+		while (cumulativeLengths[i] == base)
+			{
+			i++;
+			}
+		return i;
+		}
+
+	// -------------------------- INNER CLASSES --------------------------
+
+	/**
+	 * Reads lines by position from the file set, through a buffer
+	 */
+	private class LineReader
+		{
+		private final byte[] raw;
+		private long rawStart = 0;
+		private int rawLength = 0;
+
+		private byte[] line = new byte[256];
+		private int lineLength;
+		private long lineEnd;
+
+		LineReader(int bufsize)
+			{
+			raw = new byte[bufsize];
+			}
+
+		byte[] getLine()
+			{
+			return line;
+			}
+
+		int getLineLength()
+			{
+			return lineLength;
+			}
+
+		/**
+		 * @return the position just past the terminator of the last line read
+		 */
+		long getLineEnd()
+			{
+			return lineEnd;
+			}
+
+		/**
+		 * Reads the line starting at the given position, without its terminator
+		 *
+		 * @return the length of the line
+		 * @throws NotEnoughSequenceException if the position is at the end of the file set
+		 */
+		int readLine(long position) throws IOException, NotEnoughSequenceException
+			{
+			lineLength = 0;
+			boolean first = true;
+			while (true)
+				{
+				if (position < rawStart || position >= rawStart + rawLength)
+					{
+					try
+						{
+						rawLength = fileset.readAt(raw, position, raw.length);
+						rawStart = position;
+						}
+					catch (NotEnoughSequenceException e)
+						{
+						if (first)
+							{
+							throw e;
+							}
+						// an unterminated last line
+						break;
+						}
+					}
+				first = false;
+				int i = (int) (position - rawStart);
+				int start = i;
+				while (i < rawLength && raw[i] != '\n')
+					{
+					i++;
+					}
+				append(start, i - start);
+				position += i - start;
+				if (i < rawLength)
+					{
+					position++;// the newline
+					break;
+					}
+				}
+			if (lineLength > 0 && line[lineLength - 1] == '\r')
+				{
+				lineLength--;
+				}
+			lineEnd = position;
+			return lineLength;
+			}
+
+		/**
+		 * Reads the header line of the record starting at the given position
+		 *
+		 * @return the read name, up to the first whitespace
+		 * @throws NotEnoughSequenceException if there are no more records
+		 */
+		String readHeader(long position) throws IOException, NotEnoughSequenceException
+			{
+			readLine(position);
+			while (lineLength == 0)
+				{
+				// tolerate blank lines between records
+				readLine(lineEnd);
+				}
+			if (line[0] != '@')
+				{
+				throw new IOException("Malformed FASTQ record in " + getName() + ": expected '@' at " + position);
+				}
+			int end = 1;
+			while (end < lineLength && line[end] != ' ' && line[end] != '\t')
+				{
+				end++;
+				}
+			return new String(line, 1, end - 1);
+			}
+
+		private void append(int start, int length)
+			{
+			if (lineLength + length > line.length)
+				{
+				line = Arrays.copyOf(line, Math.max(lineLength + length, 2 * line.length));
+				}
+			System.arraycopy(raw, start, line, lineLength, length);
+			lineLength += length;
+			}
+		}
+	}
@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.strings;
+
+/**
+ * A SequenceSpectrumScanner that can also build its spectrum from symbols fed to it, so that it can share a single read
+ * of the sequence with other scanners in a CompositeSpectrumScanner
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public interface AccumulatingSpectrumScanner extends SequenceSpectrumScanner
+	{
+// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * Makes an accumulator that builds the same spectrum that scanSequence(fragment) would
+	 *
+	 * @param fragment the SequenceFragment whose symbols will be added
+	 * @return a new, empty accumulator
+	 */
+	SpectrumAccumulator newAccumulator(SequenceFragment fragment);
+	}
@@ -95,7 +95,7 @@ public class AggregateSequenceFragment extends SequenceFragment
 		throw new NotImplementedException();
 		}
 
-	protected synchronized void rescanSpectrum()
+	protected SequenceSpectrum rescanSpectrum()
 		{
 /*		SequenceSpectrum baseSpectrum = getBaseSpectrum();
 		if (baseSpectrum != null && baseSpectrum.getOriginalSequenceLength() != UNKNOWN_LENGTH)
@@ -120,6 +120,7 @@ public class AggregateSequenceFragment extends SequenceFragment
 				}
 			}
 		fireUpdated(baseSpectrum);
+		return baseSpectrum;
 		}
 
 /*	public void setScanner(@NotNull final SequenceSpectrumScanner scanner)
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.strings;
+
+import com.davidsoergel.dsutils.GenericFactoryException;
+import com.davidsoergel.stats.DistributionProcessorException;
+import edu.berkeley.compbio.sequtils.FilterException;
+import edu.berkeley.compbio.sequtils.NotEnoughSequenceException;
+import edu.berkeley.compbio.sequtils.SequenceReader;
+import edu.berkeley.compbio.sequtils.SubstitutionFilter;
+import edu.berkeley.compbio.sequtils.TranslationException;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Builds several spectra of a sequence (e.g. Kcounts for various k) from a single read of it.  The sequence is read and
+ * translated once, a block at a time, and each block is handed to the accumulator of every member scanner in turn
+ * while it's still in cache.
+ * <p/>
+ * The first scanner is the primary one: its spectrum is the one returned by scanSequence(), and so becomes the base
+ * spectrum of a SequenceFragment scanned with this.  The fragment keeps the spectra of the other scanners too, each
+ * under the scanner that made it, so getSpectrum(SequenceSpectrumScanner) finds them without another read even when
+ * several are of the same class (e.g. Kcounts for various k).  getSpectrum(Class) finds the first of them that is
+ * assignable to the class.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class CompositeSpectrumScanner implements SequenceSpectrumScanner
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(CompositeSpectrumScanner.class);
+
+	// small enough that a block is still in cache when the last accumulator reads it
+	private static final int BLOCK_SIZE = 16384;
+
+	private final byte[] alphabet;
+	private final List<AccumulatingSpectrumScanner> scanners;
+
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	/**
+	 * @param alphabet the alphabet through which to translate the sequence for all the scanners, or null to use whatever
+	 *                 the reader has already been given
+	 * @param primary  the scanner whose spectrum is returned by scanSequence()
+	 * @param others   the scanners whose spectra are made alongside it
+	 * @throws IllegalArgumentException if a scanner is given more than once, since its spectra couldn't be told apart
+	 */
+	public CompositeSpectrumScanner(final byte[] alphabet, final AccumulatingSpectrumScanner primary,
+	                                final AccumulatingSpectrumScanner... others)
+		{
+		this.alphabet = alphabet;
+		final List<AccumulatingSpectrumScanner> all = new ArrayList<AccumulatingSpectrumScanner>(others.length + 1);
+		all.add(primary);
+		all.addAll(Arrays.asList(others));
+		final Set<AccumulatingSpectrumScanner> distinct =
+				Collections.newSetFromMap(new IdentityHashMap<AccumulatingSpectrumScanner, Boolean>());
+		for (final AccumulatingSpectrumScanner scanner : all)
+			{
+			if (!distinct.add(scanner))
+				{
+				throw new IllegalArgumentException("Scanner given more than once: " + scanner);
+				}
+			}
+		scanners = Collections.unmodifiableList(all);
+		}
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+	public AccumulatingSpectrumScanner getPrimaryScanner()
+		{
+		return scanners.get(0);
+		}
+
+	/**
+	 * @return the scanners other than the primary one, in the order of the spectra after the first from scanAll()
+	 */
+	public List<AccumulatingSpectrumScanner> getDerivedScanners()
+		{
+		return scanners.subList(1, scanners.size());
+		}
+
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface SequenceSpectrumScanner ---------------------
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public SequenceSpectrum getEmpty()
+		{
+		return getPrimaryScanner().getEmpty();
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public SubstitutionFilter getNucleotideFilter()
+		{
+		return getPrimaryScanner().getNucleotideFilter();
+		}
+
+	/**
+	 * Describes the alphabet and every member scanner, in order
+	 *
+	 * @return the description, or null if any member scanner can't be identified across runs
+	 */
+	public String getPersistentId()
+		{
+		final StringBuilder sb = new StringBuilder(getClass().getName()).append('(');
+		sb.append(alphabet == null ? "reader alphabet" : Arrays.toString(alphabet));
+		for (final AccumulatingSpectrumScanner scanner : scanners)
+			{
+			final String id = scanner.getPersistentId();
+			if (id == null)
+				{
+				return null;
+				}
+			sb.append(", ").append(id);
+			}
+		return sb.append(')').toString();
+		}
+
+	/**
+	 * Scans with the primary scanner alone, since there would be nowhere to put the other spectra; SequenceFragment uses
+	 * scanAll() instead.
+	 */
+	public SequenceSpectrum scanSequence(final SequenceFragment fragment)
+			throws IOException, FilterException, NotEnoughSequenceException, DistributionProcessorException,
+			       GenericFactoryException
+		{
+		return getPrimaryScanner().scanSequence(fragment);
+		}
+
+	/**
+	 * Prefixed scans aren't shared, so this just uses the primary scanner
+	 */
+	public SequenceSpectrum scanSequence(final SequenceFragment fragment, final byte[] prefix)
+			throws IOException, FilterException, NotEnoughSequenceException, DistributionProcessorException,
+			       GenericFactoryException
+		{
+		return getPrimaryScanner().scanSequence(fragment, prefix);
+		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * Reads the fragment once, feeding every scanner's accumulator
+	 *
+	 * @param fragment the SequenceFragment providing the sequence to be scanned
+	 * @return the spectrum of each scanner, the primary one first
+	 * @throws NotEnoughSequenceException when the reader cannot supply the desired amount of sequence
+	 */
+	public List<SequenceSpectrum> scanAll(final SequenceFragment fragment)
+			throws IOException, FilterException, NotEnoughSequenceException, DistributionProcessorException
+		{
+		final SpectrumAccumulator[] accumulators = new SpectrumAccumulator[scanners.size()];
+		for (int i = 0; i < accumulators.length; i++)
+			{
+			accumulators[i] = scanners.get(i).newAccumulator(fragment);
+			}
+
+		readBlocks(fragment, alphabet, accumulators);
+
+		final List<SequenceSpectrum> result = new ArrayList<SequenceSpectrum>(accumulators.length);
+		for (final SpectrumAccumulator accumulator : accumulators)
+			{
+			result.add(accumulator.finish());
+			}
+		return result;
+		}
+
+	/**
+	 * Reads the fragment a block at a time under the reader's lock, translating it through the given alphabet, and hands
+	 * each block to every accumulator in turn
+	 *
+	 * @param alphabet the alphabet through which to translate the sequence, or null to use whatever the reader has
+	 *                 already been given
+	 * @throws NotEnoughSequenceException when the reader cannot supply the desired amount of sequence
+	 */
+	static void readBlocks(final SequenceFragment fragment, final byte[] alphabet,
+	                       final SpectrumAccumulator... accumulators)
+			throws IOException, FilterException, NotEnoughSequenceException
+		{
+		final boolean toEnd = fragment.desiredLengthUnknown();
+		long remaining = fragment.getDesiredLength();
+		final int[] block = new int[BLOCK_SIZE];
+		synchronized (fragment.getReaderForSynchronizing())
+			{
+			if (alphabet != null)
+				{
+				fragment.setTranslationAlphabet(alphabet);
+				}
+			final SequenceReader in = fragment.getResetReader();
+			while (toEnd || remaining > 0)
+				{
+				final int wanted = toEnd ? BLOCK_SIZE : (int) Math.min(BLOCK_SIZE, remaining);
+				int count;
+				try
+					{
+					count = in.readTranslated(block, wanted);
+					}
+				catch (NotEnoughSequenceException e)
+					{
+					if (!toEnd)
+						{
+						throw e;
+						}
+					// OK, no problem, we're done
+					count = 0;
+					}
+				catch (TranslationException e)
+					{
+					// no translation alphabet set
+					logger.error("Error", e);
+					throw new SequenceSpectrumRuntimeException(e);
+					}
+				for (final SpectrumAccumulator accumulator : accumulators)
+					{
+					accumulator.add(block, count);
+					}
+				remaining -= count;
+				if (count < wanted)
+					{
+					if (!toEnd)
+						{
+						throw new NotEnoughSequenceException("Sequence ended before the desired length");
+						}
+					break;
+					}
+				}
+			}
+		}
+	}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.strings;
+
+import java.util.Arrays;
+
+/**
+ * A map from nonnegative long keys to nonzero int values, stored in two primitive arrays with open addressing and
+ * linear probing, so that an entry costs twelve bytes at most twice over rather than the several dozen of a boxed
+ * HashMap entry.  A key that is absent has the value zero, and an entry whose value is brought to zero is removed, so the
+ * map holds only nonzero counts.
+ * <p/>
+ * Entries are visited with a Cursor, which skips the empty slots.  Not thread-safe.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class LongIntHashMap
+	{
+	// ------------------------------ FIELDS ------------------------------
+
+	private static final long FREE = -1;
+
+	private static final int MIN_CAPACITY = 16;
+
+	// power-of-two sized; a slot is empty if its key is FREE
+	private long[] keys;
+	private int[] values;
+	private int size = 0;
+	private int shift;
+
+
+	// --------------------------- CONSTRUCTORS ---------------------------
+
+	public LongIntHashMap()
+		{
+		this(MIN_CAPACITY / 2);
+		}
+
+	/**
+	 * @param expectedSize the number of entries to make room for before the table must grow
+	 */
+	public LongIntHashMap(int expectedSize)
+		{
+		int capacity = MIN_CAPACITY;
+		while (capacity < 2L * expectedSize)
+			{
+			capacity <<= 1;
+			}
+		allocate(capacity);
+		}
+
+	public LongIntHashMap(LongIntHashMap other)
+		{
+		keys = other.keys.clone();
+		values = other.values.clone();
+		size = other.size;
+		shift = other.shift;
+		}
+
+	// --------------------- GETTER / SETTER METHODS ---------------------
+
+	public int size()
+		{
+		return size;
+		}
+
+	// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * @return the value of the key, or zero if it's absent
+	 */
+	public int get(long key)
+		{
+		int slot = find(key);
+		return keys[slot] == FREE ? 0 : values[slot];
+		}
+
+	/**
+	 * Adds to the value of the key, removing the entry if it becomes zero
+	 *
+	 * @return the new value
+	 */
+	public int add(long key, int delta)
+		{
+		if (key < 0)
+			{
+			throw new IllegalArgumentException("Negative key: " + key);
+			}
+		if (delta == 0)
+			{
+			return get(key);
+			}
+		int slot = find(key);
+		if (keys[slot] == FREE)
+			{
+			keys[slot] = key;
+			values[slot] = delta;
+			if (++size > keys.length >>> 1)
+				{
+				grow();
+				}
+			return delta;
+			}
+		int result = values[slot] + delta;
+		if (result == 0)
+			{
+			removeSlot(slot);
+			}
+		else
+			{
+			values[slot] = result;
+			}
+		return result;
+		}
+
+	/**
+	 * Replaces every value with the given function of it, removing the entries that become zero
+	 */
+	public void replaceAll(IntFunction f)
+		{
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(keys.length);
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++)
+			{
+			if (oldKeys[i] != FREE)
+				{
+				add(oldKeys[i], f.apply(oldValues[i]));
+				}
+			}
+		}
+
+	public void clear()
+		{
+		Arrays.fill(keys, FREE);
+		size = 0;
+		}
+
+	public Cursor cursor()
+		{
+		return new Cursor();
+		}
+
+	/**
+	 * @return the slot holding the key, or the empty slot where it would go
+	 */
+	private int find(long key)
+		{
+		int mask = keys.length - 1;
+		int slot = hash(key);
+		while (keys[slot] != FREE && keys[slot] != key)
+			{
+			slot = (slot + 1) & mask;
+			}
+		return slot;
+		}
+
+	private int hash(long key)
+		{
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+		}
+
+	/**
+	 * Empties a slot, moving later entries of the same probe run back so that none is cut off from its home slot
+	 */
+	private void removeSlot(int slot)
+		{
+		int mask = keys.length - 1;
+		int gap = slot;
+		int next = (gap + 1) & mask;
+		while (keys[next] != FREE)
+			{
+			int home = hash(keys[next]);
+			// move the entry into the gap unless its home lies cyclically after the gap, up to where it is
+			if (((next - home) & mask) >= ((next - gap) & mask))
+				{
+				keys[gap] = keys[next];
+				values[gap] = values[next];
+				gap = next;
+				}
+			next = (next + 1) & mask;
+			}
+		keys[gap] = FREE;
+		size--;
+		}
+
+	private void grow()
+		{
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(keys.length << 1);
+		for (int i = 0; i < oldKeys.length; i++)
+			{
+			if (oldKeys[i] != FREE)
+				{
+				int slot = find(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+				}
+			}
+		}
+
+	private void allocate(int capacity)
+		{
+		keys = new long[capacity];
+		values = new int[capacity];
+		Arrays.fill(keys, FREE);
+		shift = 64 - Integer.numberOfTrailingZeros(capacity);
+		}
+
+	// -------------------------- INNER CLASSES --------------------------
+
+	public interface IntFunction
+		{
+		int apply(int value);
+		}
+
+	/**
+	 * Visits the entries in no particular order.  The map must not be changed while a cursor is in use.
+	 */
+	public class Cursor
+		{
+		private int slot = -1;
+
+		/**
+		 * Moves to the next entry
+		 *
+		 * @return false if there are no more
+		 */
+		public boolean next()
+			{
+			while (++slot < keys.length)
+				{
+				if (keys[slot] != FREE)
+					{
+					return true;
+					}
+				}
+			return false;
+			}
+
+		public long key()
+			{
+			return keys[slot];
+			}
+
+		public int value()
+			{
+			return values[slot];
+			}
+		}
+	}
@@ -0,0 +1,515 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.strings;
+
+import edu.berkeley.compbio.sequtils.SequenceArrayUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * Counts all words of exactly length k over an alphabet, in a dense array of long counters held outside the Java heap.
+ * An IntKcount needs an int[] of alphabet^k bins on the heap, which for DNA is no longer practical past about k = 13 and
+ * whose counts can overflow on very large scans; here the counters are in direct buffers of 64K bins (512 KB) each,
+ * allocated only when a bin in them is first counted, so the garbage collector never scans them.  The chunks are kept
+ * small because the words of a sparse scan fall all over the id space: at k = 16 there are 64K chunks, and a scan of a
+ * few million words allocates only those its words land in, rather than nearly all of 32 GB.
+ * <p/>
+ * The memory of a direct buffer is released only when the garbage collector finds the buffer unreachable, not when it
+ * is dropped, so a LongKcount that is cleared or discarded may hold its memory for some time after.
+ * <p/>
+ * Words are numbered in lexical order of the alphabet, the first symbol being the most significant.  Ids are unsigned
+ * 32-bit values, so there may be up to 2^32 bins (e.g. DNA with k = 16); where an int id is taken or returned it holds
+ * those 32 bits, and getNumberOfBins() is capped at Integer.MAX_VALUE (see getNumberOfBinsLong()).
+ * <p/>
+ * The parent of a LongKcount counts the words of length k - 1, by summing over the last symbol.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public abstract class LongKcount<T extends LongKcount> extends Kcount<T>
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private static final int CHUNK_BITS = 16;
+	static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private static final long MAX_BINS = 1L << 32;
+
+	protected final byte[] alphabet;
+	private final int[] symbolIndexes;
+
+	private final long bins;
+
+	// the number of bins for words of length k - 1, i.e. the place value of the first symbol
+	private final long firstSymbolPlace;
+
+	private final LongBuffer[] chunks;
+
+	private long sum = 0;
+
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	/**
+	 * Creates an empty LongKcount.  No memory is allocated for counters until something is counted.
+	 *
+	 * @param alphabet the symbols that words are made of
+	 * @param k        the length of the words to count
+	 * @throws IllegalArgumentException if there would be more than 2^32 bins
+	 */
+	public LongKcount(final byte[] alphabet, final int k)
+		{
+		super();
+		this.alphabet = alphabet;
+		this.k = k;
+		symbolIndexes = SequenceArrayUtils.translationTable(alphabet);
+
+		long b = 1;
+		for (int i = 0; i < k; i++)
+			{
+			b *= alphabet.length;
+			if (b > MAX_BINS)
+				{
+				throw new IllegalArgumentException(
+						"Can't count words of length " + k + " over an alphabet of " + alphabet.length + " symbols");
+				}
+			}
+		bins = b;
+		firstSymbolPlace = k == 0 ? 1 : b / alphabet.length;
+		numberOfBins = (int) Math.min(bins, Integer.MAX_VALUE);
+		chunks = new LongBuffer[(int) ((bins + CHUNK_SIZE - 1) >>> CHUNK_BITS)];
+		}
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+	public byte[] getAlphabet()
+		{
+		return alphabet;
+		}
+
+	/**
+	 * @return the number of bins, which may exceed Integer.MAX_VALUE
+	 */
+	public long getNumberOfBinsLong()
+		{
+		return bins;
+		}
+
+	/**
+	 * @return the total of all the counts
+	 */
+	public long getSum()
+		{
+		return sum;
+		}
+
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface AdditiveClusterable ---------------------
+
+	public synchronized void decrementBy(final T object)
+		{
+		addScaled(object, -1);
+		}
+
+	public synchronized void incrementBy(final T object)
+		{
+		addScaled(object, 1);
+		}
+
+	/**
+	 * Counts are whole numbers, so the weighted counts are rounded
+	 */
+	public synchronized void decrementByWeighted(final T object, final double weight)
+		{
+		addScaled(object, -weight);
+		}
+
+	/**
+	 * Counts are whole numbers, so the weighted counts are rounded
+	 */
+	public synchronized void incrementByWeighted(final T object, final double weight)
+		{
+		addScaled(object, weight);
+		}
+
+	/**
+	 * Counts are whole numbers, so the results are rounded
+	 */
+	public synchronized void multiplyBy(final double v)
+		{
+		sum = 0;
+		for (final LongBuffer chunk : chunks)
+			{
+			if (chunk != null)
+				{
+				for (int j = 0; j < chunk.capacity(); j++)
+					{
+					final long c = Math.round(chunk.get(j) * v);
+					chunk.put(j, c);
+					sum += c;
+					}
+				}
+			}
+		}
+
+// --------------------- Interface Clusterable ---------------------
+
+	/**
+	 * Tests whether the given pattern counts are equal to those stored here.  Chunks that were never allocated count as
+	 * all zero.
+	 */
+	public synchronized boolean equalValue(final T other)
+		{
+		final LongKcount<?> o = other;
+		if (o.bins != bins || o.sum != sum)
+			{
+			return false;
+			}
+		for (int i = 0; i < chunks.length; i++)
+			{
+			final LongBuffer a = chunks[i];
+			final LongBuffer b = o.chunks[i];
+			if (a == null && b == null)
+				{
+				continue;
+				}
+			final int n = chunkLength(i);
+			for (int j = 0; j < n; j++)
+				{
+				if ((a == null ? 0 : a.get(j)) != (b == null ? 0 : b.get(j)))
+					{
+					return false;
+					}
+				}
+			}
+		return true;
+		}
+
+// --------------------- Interface SequenceSpectrum ---------------------
+
+	/**
+	 * Tests whether the given sequence statistics are equivalent to this one.  Equivalent to {@link
+	 * #equalValue(LongKcount)} in this case.
+	 */
+	public boolean spectrumEquals(final SequenceSpectrum spectrum)
+		{
+		return equalValue((T) spectrum);
+		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * @return the count of the word with the given id
+	 */
+	public long getCount(final int id)
+		{
+		return getCountAt(unsigned(id));
+		}
+
+	/**
+	 * Counts one occurrence of the word with the given id
+	 */
+	public void increment(final int id)
+		{
+		add(id, 1);
+		}
+
+	/**
+	 * Adds to the count of the word with the given id
+	 */
+	public void add(final int id, final long n)
+		{
+		final long bin = unsigned(id);
+		final LongBuffer chunk = chunkFor(bin);
+		final int j = (int) (bin & CHUNK_MASK);
+		chunk.put(j, chunk.get(j) + n);
+		sum += n;
+		}
+
+	public double getSumOfCounts()
+		{
+		return sum;
+		}
+
+	/**
+	 * @return the number of chunks of counters that have been allocated, each of CHUNK_SIZE bins or fewer
+	 */
+	synchronized int getNumberOfAllocatedChunks()
+		{
+		int result = 0;
+		for (final LongBuffer chunk : chunks)
+			{
+			if (chunk != null)
+				{
+				result++;
+				}
+			}
+		return result;
+		}
+
+	/**
+	 * Drops all the counts.  The chunks holding them become unreachable, but their memory is released only when the
+	 * garbage collector gets to them.
+	 */
+	public synchronized void clear()
+		{
+		for (int i = 0; i < chunks.length; i++)
+			{
+			chunks[i] = null;
+			}
+		sum = 0;
+		}
+
+	public int idForSequence(final byte[] seq)
+		{
+		long id = 0;
+		for (final byte b : seq)
+			{
+			final int s = symbolIndexes[b & 0xFF];
+			if (s < 0)
+				{
+				throw new SequenceSpectrumRuntimeException("Symbol not in alphabet: " + (char) b);
+				}
+			id = id * alphabet.length + s;
+			}
+		return (int) id;
+		}
+
+	public byte lastSymbolForId(final int id)
+		{
+		return alphabet[(int) (unsigned(id) % alphabet.length)];
+		}
+
+	/**
+	 * @return the id, among words of length k - 1, of the word without its last symbol
+	 */
+	public int prefixId(final int id)
+		{
+		return (int) (unsigned(id) / alphabet.length);
+		}
+
+	/**
+	 * @return the id, among words of length k - 1, of the word without its first symbol
+	 */
+	public int suffixId(final int id)
+		{
+		return (int) (unsigned(id) % firstSymbolPlace);
+		}
+
+	public byte[] prefixForId(final int id)
+		{
+		return sequenceForId(prefixId(id), k - 1);
+		}
+
+	public byte[] sequenceForId(final int id)
+		{
+		return sequenceForId(id, k);
+		}
+
+	private byte[] sequenceForId(final int id, final int length)
+		{
+		final byte[] result = new byte[length];
+		long rest = unsigned(id);
+		for (int i = length - 1; i >= 0; i--)
+			{
+			result[i] = alphabet[(int) (rest % alphabet.length)];
+			rest /= alphabet.length;
+			}
+		return result;
+		}
+
+	/**
+	 * @return an empty LongKcount of the same kind, counting words of the given length over the same alphabet
+	 */
+	protected abstract T newEmpty(int k);
+
+	/**
+	 * Makes the parent by summing the counts of each word of length k - 1 over its last symbol
+	 */
+	protected synchronized void newParent()
+		{
+		final T p = newEmpty(k - 1);
+		final LongKcount<?> result = p;
+		for (int i = 0; i < chunks.length; i++)
+			{
+			final LongBuffer chunk = chunks[i];
+			if (chunk != null)
+				{
+				final long base = (long) i << CHUNK_BITS;
+				for (int j = 0; j < chunk.capacity(); j++)
+					{
+					final long c = chunk.get(j);
+					if (c != 0)
+						{
+						result.add(prefixId((int) (base + j)), c);
+						}
+					}
+				}
+			}
+		result.originalSequenceLength = originalSequenceLength;
+		result.unknownCount = unknownCount;
+		parent = p;
+		}
+
+	/**
+	 * Copies the counts of another LongKcount over the same bins, e.g. to implement clone()
+	 */
+	protected synchronized void copyCountsFrom(final LongKcount<?> source)
+		{
+		if (source.bins != bins)
+			{
+			throw new IllegalArgumentException("Can't copy counts between Kcounts with different numbers of bins");
+			}
+		for (int i = 0; i < chunks.length; i++)
+			{
+			if (source.chunks[i] == null)
+				{
+				chunks[i] = null;
+				}
+			else
+				{
+				final LongBuffer copy = allocate(chunkLength(i));
+				final LongBuffer from = source.chunks[i].duplicate();
+				from.rewind();
+				copy.put(from);
+				copy.rewind();
+				chunks[i] = copy;
+				}
+			}
+		sum = source.sum;
+		originalSequenceLength = source.originalSequenceLength;
+		unknownCount = source.unknownCount;
+		}
+
+	/**
+	 * Writes the nonzero counts and the lengths scanned, for a SpectrumStore; the alphabet and k are left to the caller.
+	 * Only the bins counted are written, since the allocated chunks of a sparse scan are mostly zeros.
+	 */
+	synchronized void writeCounts(final DataOutput out) throws IOException
+		{
+		out.writeLong(originalSequenceLength);
+		out.writeLong(unknownCount);
+		int n = 0;
+		for (final LongBuffer chunk : chunks)
+			{
+			for (int j = 0; chunk != null && j < chunk.limit(); j++)
+				{
+				if (chunk.get(j) != 0)
+					{
+					n++;
+					}
+				}
+			}
+		out.writeInt(n);
+		for (int i = 0; i < chunks.length; i++)
+			{
+			final LongBuffer chunk = chunks[i];
+			for (int j = 0; chunk != null && j < chunk.limit(); j++)
+				{
+				final long count = chunk.get(j);
+				if (count != 0)
+					{
+					out.writeInt((int) (((long) i << CHUNK_BITS) + j));
+					out.writeLong(count);
+					}
+				}
+			}
+		}
+
+	/**
+	 * Replaces the counts with those written by writeCounts() from a LongKcount of the same alphabet and k
+	 *
+	 * @throws StreamCorruptedException if an id is beyond the last bin
+	 */
+	synchronized void readCounts(final DataInput in) throws IOException
+		{
+		clear();
+		originalSequenceLength = in.readLong();
+		unknownCount = in.readLong();
+		final int n = in.readInt();
+		for (int i = 0; i < n; i++)
+			{
+			final int id = in.readInt();
+			if (unsigned(id) >= bins)
+				{
+				throw new StreamCorruptedException("Id " + unsigned(id) + " is beyond the " + bins + " bins");
+				}
+			add(id, in.readLong());
+			}
+		}
+
+	private void addScaled(final LongKcount<?> other, final double weight)
+		{
+		if (other.bins != bins)
+			{
+			throw new SequenceSpectrumRuntimeException("Can't add Kcounts with different numbers of bins");
+			}
+		for (int i = 0; i < chunks.length; i++)
+			{
+			final LongBuffer from = other.chunks[i];
+			if (from == null)
+				{
+				continue;
+				}
+			final LongBuffer to = chunkFor((long) i << CHUNK_BITS);
+			for (int j = 0; j < from.capacity(); j++)
+				{
+				final long c = from.get(j);
+				if (c != 0)
+					{
+					final long d = weight == 1 ? c : weight == -1 ? -c : Math.round(c * weight);
+					to.put(j, to.get(j) + d);
+					sum += d;
+					}
+				}
+			}
+		}
+
+	private long getCountAt(final long bin)
+		{
+		final LongBuffer chunk = chunks[(int) (bin >>> CHUNK_BITS)];
+		return chunk == null ? 0 : chunk.get((int) (bin & CHUNK_MASK));
+		}
+
+	private LongBuffer chunkFor(final long bin)
+		{
+		final int i = (int) (bin >>> CHUNK_BITS);
+		LongBuffer chunk = chunks[i];
+		if (chunk == null)
+			{
+			chunk = allocate(chunkLength(i));
+			chunks[i] = chunk;
+			}
+		return chunk;
+		}
+
+	private int chunkLength(final int i)
+		{
+		return (int) Math.min(CHUNK_SIZE, bins - ((long) i << CHUNK_BITS));
+		}
+
+	private static LongBuffer allocate(final int length)
+		{
+		// direct buffers start out zeroed
+		return ByteBuffer.allocateDirect(length * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+		}
+
+	private static long unsigned(final int id)
+		{
+		return id & 0xFFFFFFFFL;
+		}
+	}
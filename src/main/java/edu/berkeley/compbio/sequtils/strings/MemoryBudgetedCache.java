@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.strings;
+
+import com.davidsoergel.dsutils.CachedResourceReleaser;
+import com.davidsoergel.dsutils.HasReleaseableResources;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of values that can be recomputed, holding at most a fixed number of bytes.  Each value is stored with an
+ * estimate of its size, and values that haven't been used recently are evicted when the total would exceed the budget,
+ * so the memory held stays predictable however many keys there are.  Callers must treat a miss as normal and recompute
+ * the value, or let getOrCompute() do so.
+ * <p/>
+ * Lookups take no lock: a hit just marks the entry as used, and eviction follows the CLOCK approximation of LRU, giving
+ * used entries a second chance.  Only adding and removing entries is serialized.
+ * <p/>
+ * Values are held strongly until evicted; releaseCachedResources() empties the cache entirely.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class MemoryBudgetedCache<K, V> implements HasReleaseableResources
+	{
+	// ------------------------------ FIELDS ------------------------------
+
+	private final ConcurrentHashMap<K, Entry<K, V>> entries = new ConcurrentHashMap<K, Entry<K, V>>();
+
+	// computations under way in getOrCompute(), so that concurrent requests for the same key wait for one result
+	private final ConcurrentHashMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+
+	// the entries in insertion order, swept by the clock hand; guarded by this, and may hold entries already removed
+	private final ArrayDeque<Entry<K, V>> clock = new ArrayDeque<Entry<K, V>>();
+	private int staleInClock = 0;
+
+	private volatile long maxBytes;
+	private volatile long bytes = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+
+	// --------------------------- CONSTRUCTORS ---------------------------
+
+	/**
+	 * @param maxBytes the most bytes, by the estimates given to put(), to hold at once
+	 */
+	public MemoryBudgetedCache(long maxBytes)
+		{
+		this.maxBytes = maxBytes;
+		CachedResourceReleaser.register(this);
+		}
+
+	// --------------------- GETTER / SETTER METHODS ---------------------
+
+	public long getMaxBytes()
+		{
+		return maxBytes;
+		}
+
+	/**
+	 * Changes the budget, evicting values at once if it has shrunk
+	 *
+	 * @param maxBytes the most bytes to hold at once
+	 */
+	public synchronized void setMaxBytes(long maxBytes)
+		{
+		this.maxBytes = maxBytes;
+		evictDownTo(maxBytes);
+		}
+
+	/**
+	 * @return the estimated size of the values now held
+	 */
+	public long getBytes()
+		{
+		return bytes;
+		}
+
+	public int size()
+		{
+		return entries.size();
+		}
+
+	public long getHits()
+		{
+		return hits.get();
+		}
+
+	public long getMisses()
+		{
+		return misses.get();
+		}
+
+	public long getEvictions()
+		{
+		return evictions.get();
+		}
+
+	// ------------------------ INTERFACE METHODS ------------------------
+
+
+	// --------------------- Interface HasReleaseableResources ---------------------
+
+	public synchronized void releaseCachedResources()
+		{
+		entries.clear();
+		clock.clear();
+		staleInClock = 0;
+		bytes = 0;
+		}
+
+	// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * @return the cached value, or null if there is none (perhaps because it was evicted)
+	 */
+	public V get(K key)
+		{
+		V result = lookup(key);
+		if (result == null)
+			{
+			misses.incrementAndGet();
+			}
+		else
+			{
+			hits.incrementAndGet();
+			}
+		return result;
+		}
+
+	/**
+	 * Returns the cached value, computing and caching it on a miss.  If other threads ask for the same key while it's
+	 * being computed, they wait for that result rather than computing it again.
+	 *
+	 * @param key         the key
+	 * @param computation makes the value
+	 * @param weigher     estimates the memory held by the value
+	 * @return the value
+	 * @throws ExecutionException   if the computation threw an exception, which is the cause
+	 * @throws InterruptedException if interrupted while waiting for another thread's computation
+	 */
+	public V getOrCompute(K key, Callable<V> computation, Weigher<? super V> weigher)
+			throws ExecutionException, InterruptedException
+		{
+		V result = get(key);
+		if (result != null)
+			{
+			return result;
+			}
+		FutureTask<V> task = new FutureTask<V>(computation);
+		FutureTask<V> running = inFlight.putIfAbsent(key, task);
+		if (running != null)
+			{
+			return running.get();
+			}
+		try
+			{
+			// another thread may have finished computing it between our miss and taking the slot; that was still a miss
+			result = lookup(key);
+			if (result != null)
+				{
+				task.cancel(false);
+				return result;
+				}
+			task.run();
+			result = task.get();
+			put(key, result, weigher.bytes(result));
+			return result;
+			}
+		finally
+			{
+			inFlight.remove(key, task);
+			}
+		}
+
+	/**
+	 * Like get(), but without counting a hit or miss
+	 */
+	private V lookup(K key)
+		{
+		Entry<K, V> e = entries.get(key);
+		if (e == null)
+			{
+			return null;
+			}
+		e.referenced = true;
+		return e.value;
+		}
+
+	/**
+	 * Caches a value, evicting values that haven't been used recently as needed to stay within the budget.  A value larger
+	 * than the whole budget is not cached at all.
+	 *
+	 * @param key       the key
+	 * @param value     the value
+	 * @param sizeBytes an estimate of the memory held by the value
+	 */
+	public synchronized void put(K key, V value, long sizeBytes)
+		{
+		remove(key);
+		if (sizeBytes > maxBytes)
+			{
+			return;
+			}
+		evictDownTo(maxBytes - sizeBytes);
+		Entry<K, V> e = new Entry<K, V>(key, value, sizeBytes);
+		entries.put(key, e);
+		clock.addLast(e);
+		bytes += sizeBytes;
+		}
+
+	public synchronized void remove(K key)
+		{
+		Entry<K, V> e = entries.remove(key);
+		if (e != null)
+			{
+			bytes -= e.sizeBytes;
+			staleInClock++;
+			if (staleInClock > entries.size() + 16)
+				{
+				purgeStale();
+				}
+			}
+		}
+
+	private void evictDownTo(long limit)
+		{
+		while (bytes > limit && !clock.isEmpty())
+			{
+			Entry<K, V> e = clock.removeFirst();
+			if (entries.get(e.key) != e)
+				{
+				// already removed or replaced
+				staleInClock--;
+				}
+			else if (e.referenced)
+				{
+				e.referenced = false;
+				clock.addLast(e);
+				}
+			else
+				{
+				entries.remove(e.key, e);
+				bytes -= e.sizeBytes;
+				evictions.incrementAndGet();
+				}
+			}
+		}
+
+	/**
+	 * Drops entries that have been removed from the clock, so that it doesn't grow when values are removed rather than
+	 * evicted
+	 */
+	private void purgeStale()
+		{
+		Iterator<Entry<K, V>> it = clock.iterator();
+		while (it.hasNext())
+			{
+			Entry<K, V> e = it.next();
+			if (entries.get(e.key) != e)
+				{
+				it.remove();
+				}
+			}
+		staleInClock = 0;
+		}
+
+	// -------------------------- INNER CLASSES --------------------------
+
+	/**
+	 * Estimates the memory held by a value
+	 */
+	public interface Weigher<V>
+		{
+		long bytes(V value);
+		}
+
+	private static class Entry<K, V>
+		{
+		final K key;
+		final V value;
+		final long sizeBytes;
+		volatile boolean referenced = false;
+
+		Entry(K key, V value, long sizeBytes)
+			{
+			this.key = key;
+			this.value = value;
+			this.sizeBytes = sizeBytes;
+			}
+		}
+	}
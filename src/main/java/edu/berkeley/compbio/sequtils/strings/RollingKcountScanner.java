@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.strings;
+
+import com.davidsoergel.dsutils.GenericFactoryException;
+import com.davidsoergel.stats.DistributionProcessorException;
+import edu.berkeley.compbio.sequtils.FilterException;
+import edu.berkeley.compbio.sequtils.NotEnoughSequenceException;
+import edu.berkeley.compbio.sequtils.SubstitutionFilter;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Scans a sequence into a SparseKcount, keeping the key of the current word in a register that is shifted two bits and
+ * masked for each symbol, rather than building each word and looking up its id.  The sequence is read in blocks
+ * through the reader's translation table, so the inner loop sees only 2-bit symbol codes; a symbol not in the alphabet
+ * is counted with addUnknown() and starts the next word afresh after it.
+ * <p/>
+ * In the multi-pass mode of scanSequence(fragment, prefix), the symbols that drop off the front of the word are shifted
+ * into a second register, and a word is counted only when that register holds the prefix.
+ * <p/>
+ * Being an AccumulatingSpectrumScanner, this can also share a read of the sequence with other scanners in a
+ * CompositeSpectrumScanner.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class RollingKcountScanner<T extends SparseKcount<T>> implements KcountScanner, AccumulatingSpectrumScanner
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private final T prototype;
+	private final SubstitutionFilter nucleotideFilter;
+
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	/**
+	 * @param prototype a SparseKcount of the kind to produce, whose alphabet and word length are used
+	 */
+	public RollingKcountScanner(final T prototype)
+		{
+		this(prototype, null);
+		}
+
+	/**
+	 * @param prototype        a SparseKcount of the kind to produce, whose alphabet and word length are used
+	 * @param nucleotideFilter the filter to report from getNucleotideFilter(), or null
+	 */
+	public RollingKcountScanner(final T prototype, final SubstitutionFilter nucleotideFilter)
+		{
+		this.prototype = prototype;
+		this.nucleotideFilter = nucleotideFilter;
+		}
+
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface AccumulatingSpectrumScanner ---------------------
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public SpectrumAccumulator newAccumulator(final SequenceFragment fragment)
+		{
+		return new RollingAccumulator(getEmpty(), 0, 0);
+		}
+
+// --------------------- Interface KcountScanner ---------------------
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public T scanSequence(final SequenceFragment fragment)
+			throws IOException, FilterException, NotEnoughSequenceException, DistributionProcessorException,
+			       GenericFactoryException
+		{
+		return scan(fragment, new RollingAccumulator(getEmpty(), 0, 0));
+		}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * @throws SequenceSpectrumRuntimeException if the prefix is longer than SparseKcount.MAX_K or has a symbol not in the
+	 *                                          alphabet
+	 */
+	public T scanSequence(final SequenceFragment fragment, final byte[] prefix)
+			throws IOException, FilterException, NotEnoughSequenceException, DistributionProcessorException,
+			       GenericFactoryException
+		{
+		if (prefix.length > SparseKcount.MAX_K)
+			{
+			throw new SequenceSpectrumRuntimeException("Can't match a prefix of length " + prefix.length);
+			}
+		final T kcount = getEmpty();
+		return scan(fragment, new RollingAccumulator(kcount, prefix.length, kcount.keyForSequence(prefix)));
+		}
+
+// --------------------- Interface SequenceSpectrumScanner ---------------------
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public T getEmpty()
+		{
+		return prototype.newEmpty(prototype.getK());
+		}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public SubstitutionFilter getNucleotideFilter()
+		{
+		return nucleotideFilter;
+		}
+
+	/**
+	 * Describes the kind of Kcount made, its alphabet and its word length.  The nucleotide filter is only reported, not
+	 * applied, so it doesn't enter into it.
+	 */
+	public String getPersistentId()
+		{
+		return getClass().getName() + "(" + prototype.getClass().getName() + ", "
+		       + Arrays.toString(prototype.getAlphabet()) + ", k=" + prototype.getK() + ")";
+		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	private T scan(final SequenceFragment fragment, final RollingAccumulator accumulator)
+			throws IOException, FilterException, NotEnoughSequenceException
+		{
+		CompositeSpectrumScanner.readBlocks(fragment, prototype.getAlphabet(), accumulator);
+		return accumulator.finish();
+		}
+
+// -------------------------- INNER CLASSES --------------------------
+
+	/**
+	 * Holds the rolling registers between blocks, so that words may span them
+	 */
+	private class RollingAccumulator implements SpectrumAccumulator
+		{
+		private final T kcount;
+		private final int k;
+		private final long wordMask;
+		private final int firstSymbolShift;
+
+		private final long prefixMask;
+		private final long prefixKey;
+
+		// the number of valid symbols needed before a word can be counted
+		private final int needed;
+
+		private long word = 0;
+		private long preceding = 0;
+		private int run = 0;
+		private long known = 0;
+
+		RollingAccumulator(final T kcount, final int prefixLength, final long prefixKey)
+			{
+			this.kcount = kcount;
+			k = kcount.getK();
+			wordMask = (1L << (2 * k)) - 1;
+			firstSymbolShift = k == 0 ? 0 : 2 * (k - 1);
+			prefixMask = (1L << (2 * prefixLength)) - 1;
+			this.prefixKey = prefixKey;
+			needed = prefixLength + k;
+			}
+
+		public void add(final int[] symbols, final int length)
+			{
+			if (prefixMask == 0)
+				{
+				addWithoutPrefix(symbols, length);
+				}
+			else
+				{
+				addWithPrefix(symbols, length);
+				}
+			}
+
+		private void addWithoutPrefix(final int[] symbols, final int length)
+			{
+			long w = word;
+			int r = run;
+			for (int i = 0; i < length; i++)
+				{
+				final int s = symbols[i];
+				if (s < 0)
+					{
+					kcount.addUnknown();
+					w = 0;
+					r = 0;
+					continue;
+					}
+				known++;
+				w = ((w << 2) | s) & wordMask;
+				if (r < needed)
+					{
+					r++;
+					}
+				if (r == needed)
+					{
+					kcount.increment(w);
+					}
+				}
+			word = w;
+			run = r;
+			}
+
+		private void addWithPrefix(final int[] symbols, final int length)
+			{
+			long w = word;
+			long p = preceding;
+			int r = run;
+			for (int i = 0; i < length; i++)
+				{
+				final int s = symbols[i];
+				if (s < 0)
+					{
+					kcount.addUnknown();
+					w = 0;
+					p = 0;
+					r = 0;
+					continue;
+					}
+				known++;
+				// the symbol leaving the word enters the prefix register; until the word is full this shifts in
+				// zeros, which are shifted out again before a word is counted
+				p = ((p << 2) | ((w >>> firstSymbolShift) & 3)) & prefixMask;
+				w = ((w << 2) | s) & wordMask;
+				if (r < needed)
+					{
+					r++;
+					}
+				if (r == needed && p == prefixKey)
+					{
+					kcount.increment(w);
+					}
+				}
+			word = w;
+			preceding = p;
+			run = r;
+			}
+
+		public T finish()
+			{
+			kcount.originalSequenceLength += known;
+			return kcount;
+			}
+		}
+	}
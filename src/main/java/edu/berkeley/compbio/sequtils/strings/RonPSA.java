@@ -32,6 +32,8 @@ public class RonPSA extends RonPSANode
 
 	private static final Logger logger = Logger.getLogger(RonPSA.class);
 
+	private static final int TRANSLATED_CHUNK_SIZE = 4096;
+
 
 // --------------------------- CONSTRUCTORS ---------------------------
 
@@ -93,34 +95,21 @@ public class RonPSA extends RonPSANode
 			long count = 0;
 			int samples = 0;
 			final long desiredLength = sequenceFragment.getDesiredLength();
+			final int[] chunk = new int[(int) Math.min(desiredLength, TRANSLATED_CHUNK_SIZE)];
 			while (count < desiredLength)
 				{
+				final int wanted = (int) Math.min(desiredLength - count, chunk.length);
+				final int got;
 				try
 					{
-					final int c = in.readTranslated();
-					final double logConditionalProbability = currentNode.logConditionalProbabilityByAlphabetIndex(c);
-
-					/*	logger.debug(
-				  "Conditional at " + new String(currentNode.getIdBytes()) + " " + (char) getAlphabet()[c] + " = "
-						  + currentNode.conditionalProbabilityByAlphabetIndex(c));
-						  */
-					logprob += logConditionalProbability;
-					samples++;
-					currentNode = currentNode.nextNodeByAlphabetIndex(c);
+					got = in.readTranslated(chunk, wanted);
 					}
-				catch (NotEnoughSequenceException e)
+				catch (TranslationException e)
 					{
+					// no translation alphabet set
 					logger.error("Error", e);
 					throw new SequenceSpectrumException(e);
 					}
-				catch (TranslationException e)
-					{
-					// probably a bad input character
-					logger.debug(" at " + in, e);
-
-					// ignore it, but reset the state machine
-					currentNode = this;
-					}
 				catch (IOException e)
 					{
 					logger.error("Error", e);
@@ -131,7 +120,30 @@ public class RonPSA extends RonPSANode
 					logger.error("Error", e);
 					throw new SequenceSpectrumException(e);
 					}
-				count++;
+				catch (NotEnoughSequenceException e)
+					{
+					logger.error("Error", e);
+					throw new SequenceSpectrumException(e);
+					}
+				if (got < wanted)
+					{
+					throw new SequenceSpectrumException("Sequence ended before the desired length at " + in);
+					}
+
+				for (int i = 0; i < got; i++)
+					{
+					final int c = chunk[i];
+					if (c == -1)
+						{
+						// probably a bad input character; ignore it, but reset the state machine
+						currentNode = this;
+						continue;
+						}
+					logprob += currentNode.logConditionalProbabilityByAlphabetIndex(c);
+					samples++;
+					currentNode = currentNode.nextNodeByAlphabetIndex(c);
+					}
+				count += got;
 				}
 
 
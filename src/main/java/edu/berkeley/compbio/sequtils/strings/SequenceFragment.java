@@ -7,15 +7,17 @@
 
 package edu.berkeley.compbio.sequtils.strings;
 
-import com.davidsoergel.dsutils.DSArrayUtils;
 import com.davidsoergel.dsutils.GenericFactory;
 import com.davidsoergel.dsutils.GenericFactoryException;
 import com.davidsoergel.stats.DistributionProcessorException;
+import com.davidsoergel.stats.DoubleArrayContainer;
+import com.davidsoergel.stats.IntArrayContainer;
 import edu.berkeley.compbio.ml.cluster.AdditiveClusterable;
 import edu.berkeley.compbio.sequtils.ByteArraySequenceReader;
 import edu.berkeley.compbio.sequtils.FilterException;
 import edu.berkeley.compbio.sequtils.NotEnoughSequenceException;
 import edu.berkeley.compbio.sequtils.SequenceException;
+import edu.berkeley.compbio.sequtils.SequenceFragmentIntervalIndex;
 import edu.berkeley.compbio.sequtils.SequenceFragmentMetadata;
 import edu.berkeley.compbio.sequtils.SequenceReader;
 import edu.berkeley.compbio.sequtils.TranslationException;
@@ -23,14 +25,17 @@ import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Manages information about a sequence fragment, including its metadata and any statistics that have been calculated
@@ -49,19 +54,84 @@ public class SequenceFragment extends SequenceFragmentMetadata<SequenceFragment>
 
 	private static final Logger logger = Logger.getLogger(SequenceFragment.class);
 
-	protected transient final Map<Class, SequenceSpectrum> theDerivedSpectra =
-			new WeakHashMap<Class, SequenceSpectrum>();
+	// the factory that made each derived spectrum, so that it can be remade if it's evicted from the spectrum cache
+	protected transient final Map<Class, GenericFactory> theDerivedSpectrumFactories =
+			new ConcurrentHashMap<Class, GenericFactory>();
+
+	// the class of the spectra made by each of the other scanners of a CompositeSpectrumScanner, found as needed, so that
+	// getSpectrum(Class) can find the spectra made alongside the base spectrum
+	private transient final Map<SequenceSpectrumScanner, Class> theDerivedSpectrumClasses =
+			new ConcurrentHashMap<SequenceSpectrumScanner, Class>();
 
 	// ** weak references cause problems for additive clusters that can't be rescanned
 	//protected WeakReference<SequenceSpectrum> _baseSpectrum;
 
-	private SequenceSpectrum baseSpectrum;
+	// set only if the base spectrum can't be rescanned (e.g. it's been modified), so must not be evicted
+	private volatile SequenceSpectrum baseSpectrum;
 	protected final SequenceSpectrumScanner theScanner;
 
-	private FirstWordProvider firstWordProvider;
 	private final SequenceReader theReader;
 	private final long desiredlength;
-	private boolean ignoreEdges;
+	private volatile boolean ignoreEdges;
+
+	// fragments up to this length are copied out of the reader and scanned from the copy, so the reader isn't locked for
+	// the whole scan; longer ones are scanned straight from the reader, to avoid holding them in memory
+	private static final long DETACHED_SCAN_MAX_LENGTH = 1 << 24;
+
+	/**
+	 * The default budget of the shared sequence cache: an eighth of the maximum heap
+	 */
+	public static final long DEFAULT_SEQUENCE_CACHE_BYTES = Runtime.getRuntime().maxMemory() / 8;
+
+	// an array's header, added to each cached sequence's length when estimating its size
+	private static final int ARRAY_OVERHEAD_BYTES = 16;
+
+	// raw and translated sequences of all fragments, which are reread from the reader if they've been evicted
+	private static final MemoryBudgetedCache<SequenceKey, byte[]> sequenceCache =
+			new MemoryBudgetedCache<SequenceKey, byte[]>(DEFAULT_SEQUENCE_CACHE_BYTES);
+
+	private static final MemoryBudgetedCache.Weigher<byte[]> sequenceWeigher = new MemoryBudgetedCache.Weigher<byte[]>()
+	{
+	public long bytes(final byte[] sequence)
+		{
+		return sequence.length + ARRAY_OVERHEAD_BYTES;
+		}
+	};
+
+	private final SequenceKey rawSequenceKey = new SequenceKey();
+	private final SequenceKey translatedSequenceKey = new SequenceKey();
+
+	/**
+	 * The default budget of the shared spectrum cache: a quarter of the maximum heap
+	 */
+	public static final long DEFAULT_SPECTRUM_CACHE_BYTES = Runtime.getRuntime().maxMemory() / 4;
+
+	// charged for a spectrum whose size can't be estimated from its arrays, e.g. a suffix tree
+	private static final long UNKNOWN_SPECTRUM_BYTES = 65536;
+	private static final long SPECTRUM_OVERHEAD_BYTES = 128;
+
+	// base spectra that can be rescanned, and derived spectra, of all fragments
+	private static final MemoryBudgetedCache<SpectrumKey, SequenceSpectrum> spectrumCache =
+			new MemoryBudgetedCache<SpectrumKey, SequenceSpectrum>(DEFAULT_SPECTRUM_CACHE_BYTES);
+
+	private static final MemoryBudgetedCache.Weigher<SequenceSpectrum> spectrumWeigher =
+			new MemoryBudgetedCache.Weigher<SequenceSpectrum>()
+			{
+			public long bytes(final SequenceSpectrum spectrum)
+				{
+				return estimateBytes(spectrum);
+				}
+			};
+
+	// base spectra kept from earlier runs, if any
+	private static volatile SpectrumStore spectrumStore;
+
+	// replaced whenever the base spectrum changes, so that spectra computed from an old base are never found again
+	private volatile SequenceKey spectrumKey = new SequenceKey();
+
+	// guards replacing the base spectrum.  Distinct from the fragment's own monitor, which guards only the length and
+	// name and is never held while a spectrum is computed or waited for.
+	private final Object spectrumLock = new Object();
 
 
 // --------------------------- CONSTRUCTORS ---------------------------
@@ -145,70 +215,134 @@ public class SequenceFragment extends SequenceFragmentMetadata<SequenceFragment>
 		}
 
 	public SequenceFragment(byte[] rawSequence, final SequenceSpectrumScanner scanner)
+		{
+		this(rawSequence, scanner, true);
+		}
+
+	private SequenceFragment(byte[] rawSequence, final SequenceSpectrumScanner scanner, final boolean cacheSequence)
 		{
 		super(null, null, null, 0, rawSequence.length);
 
 		theScanner = scanner;
 		theReader = new ByteArraySequenceReader(rawSequence);
 		this.desiredlength = rawSequence.length;
-		this.rawSequence = rawSequence;
+		if (cacheSequence)
+			{
+			cacheSequence(rawSequenceKey, rawSequence);
+			}
 		}
 
 // --------------------- GETTER / SETTER METHODS ---------------------
 
 	/**
-	 * Gets the base spectrum from which all other spectra are derived
+	 * Returns the cache holding the raw and translated sequences of all fragments, e.g. to change its budget with
+	 * setMaxBytes()
+	 *
+	 * @return the shared sequence cache
+	 */
+	public static MemoryBudgetedCache<SequenceKey, byte[]> getSequenceCache()
+		{
+		return sequenceCache;
+		}
+
+	/**
+	 * Returns the cache holding the spectra of all fragments, e.g. to change its budget or to read its hit and eviction
+	 * counts
+	 *
+	 * @return the shared spectrum cache
+	 */
+	public static MemoryBudgetedCache<SpectrumKey, SequenceSpectrum> getSpectrumCache()
+		{
+		return spectrumCache;
+		}
+
+	public static SpectrumStore getSpectrumStore()
+		{
+		return spectrumStore;
+		}
+
+	/**
+	 * Sets a persistent store of base spectra, which is consulted before scanning a fragment of known length and given
+	 * every such spectrum scanned.  The store is keyed by the persistent ids of the reader and the scanner and by the
+	 * position and length of the fragment; nothing is stored for a reader or scanner without a persistent id.
+	 *
+	 * @param store the store, or null to scan every time
+	 */
+	public static void setSpectrumStore(final SpectrumStore store)
+		{
+		spectrumStore = store;
+		}
+
+	/**
+	 * Gets the base spectrum from which all other spectra are derived, rescanning the sequence if it's been evicted from
+	 * the spectrum cache.  Once the spectrum is available this takes no lock; if several threads ask for it before then,
+	 * only one of them scans.
 	 *
 	 * @return the base spectrum of this sequence
 	 */
-	public final synchronized SequenceSpectrum getBaseSpectrum()
+	public final SequenceSpectrum getBaseSpectrum()
 		{
 		// ** weak references cause problems for additive clusters that can't be rescanned
 		//	SequenceSpectrum baseSpectrum = _baseSpectrum == null ? null : _baseSpectrum.get();
-		if (baseSpectrum == null)
+		final SequenceSpectrum pinned = baseSpectrum;
+		if (pinned != null)
 			{
-			try
-				{
-				rescanSpectrum();
-				}
-			catch (NotEnoughSequenceException e)
+			return pinned;
+			}
+		try
+			{
+			return spectrumCache.getOrCompute(new SpectrumKey(spectrumKey, null), new Callable<SequenceSpectrum>()
+			{
+			public SequenceSpectrum call() throws NotEnoughSequenceException
 				{
-				throw new SequenceSpectrumRuntimeException(e);
+				final SequenceSpectrum result = rescanSpectrum();
+				//baseSpectrum = _baseSpectrum.get();
+				result.setIgnoreEdges(ignoreEdges);
+				return result;
 				}
-			//baseSpectrum = _baseSpectrum.get();
-			baseSpectrum.setIgnoreEdges(ignoreEdges);
+			}, spectrumWeigher);
+			}
+		catch (ExecutionException e)
+			{
+			throw new SequenceSpectrumRuntimeException(unwrap(e));
+			}
+		catch (InterruptedException e)
+			{
+			Thread.currentThread().interrupt();
+			throw new SequenceSpectrumRuntimeException(e);
 			}
-		return baseSpectrum;
 		}
 
 	/**
-	 * Just get the baseSpectrum as is, with no synchronization or lazy initialization
+	 * Just get the baseSpectrum as is, with no lazy initialization
 	 *
-	 * @return
+	 * @return the base spectrum, or null if it hasn't been scanned or has been evicted
 	 */
 	public final SequenceSpectrum getBaseSpectrumRaw()
 		{
-		return baseSpectrum;
+		final SequenceSpectrum pinned = baseSpectrum;
+		return pinned != null ? pinned : spectrumCache.get(new SpectrumKey(spectrumKey, null));
 		}
 
-	public synchronized FirstWordProvider getFirstWordProvider() throws SequenceSpectrumException
+	public FirstWordProvider getFirstWordProvider() throws SequenceSpectrumException
 		{
 		if (ignoreEdges)
 			{
 			throw new SequenceSpectrumException("We're ignoring edges");
 			}
-		getBaseSpectrum(); //scanIfNeeded();
-		return firstWordProvider;
+		final SequenceSpectrum s = getBaseSpectrum(); //scanIfNeeded();
+		return s instanceof FirstWordProvider ? (FirstWordProvider) s : null;
 		}
 
 	/**
-	 * Returns the length of this sequence
+	 * Returns the length of this sequence, scanning it first if the length isn't known yet.  The fragment's monitor isn't
+	 * held during the scan, which takes the reader's lock and calls back into this fragment.
 	 *
 	 * @return the length of this sequence
 	 */
-	public synchronized long getLength()
+	public long getLength()
 		{
-		if (length == UNKNOWN_LENGTH)
+		if (lengthSoFar() == UNKNOWN_LENGTH)
 			{
 			if (theScanner != null)
 				{
@@ -227,10 +361,21 @@ public class SequenceFragment extends SequenceFragmentMetadata<SequenceFragment>
 				}
 			else
 				{
-				rescanRawSequence();
-				length = rawSequence.length;
+				final long rawLength = getRawSequence().length;
+				synchronized (this)
+					{
+					length = rawLength;
+					}
 				}
 			}
+		return lengthSoFar();
+		}
+
+	/**
+	 * @return the length as known so far, possibly UNKNOWN_LENGTH
+	 */
+	private synchronized long lengthSoFar()
+		{
 		return length;
 		}
 
@@ -244,35 +389,35 @@ public class SequenceFragment extends SequenceFragmentMetadata<SequenceFragment>
 		return unknownCount;*/
 		}
 
-	// ** should be weak
-	byte[] translatedSequence = null;
-
-	protected synchronized void rescanTranslatedSequence()
+	protected byte[] rescanTranslatedSequence()
 		{
 		try
 			{
-			if (theReader != null)
+			if (theReader == null)
 				{
-				synchronized (theReader)
-					{
-					//BAD long->int
-					translatedSequence = new byte[(int) desiredlength];
+				return null;
+				}
+			final byte[] translatedSequence;
+			synchronized (theReader)
+				{
+				//BAD long->int
+				translatedSequence = new byte[(int) desiredlength];
 
-					theReader.seek(parentMetadata, startPosition);
-					for (int i = 0; i < desiredlength; i++)
-						{
-						try
-							{
-							translatedSequence[i] = (byte) theReader.readTranslated();
-							}
-						catch (TranslationException e)
-							{
-							// probably a bad input character, e.g. an ambiguous nucleotide
-							translatedSequence[i] = -1;
-							}
-						}
+				theReader.seek(getParentMetadata(), getStartPosition());
+
+				// symbols not in the alphabet (e.g. ambiguous nucleotides) come back as -1
+				final int[] translated = new int[(int) desiredlength];
+				if (theReader.readTranslated(translated, (int) desiredlength) < desiredlength)
+					{
+					throw new NotEnoughSequenceException("Sequence ended before the desired length");
+					}
+				for (int i = 0; i < desiredlength; i++)
+					{
+					translatedSequence[i] = (byte) translated[i];
 					}
 				}
+			cacheSequence(translatedSequenceKey, translatedSequence);
+			return translatedSequence;
 			}
 		catch (NotEnoughSequenceException e)
 			{
@@ -290,80 +435,162 @@ public class SequenceFragment extends SequenceFragmentMetadata<SequenceFragment>
 			logger.error("Error", e);
 			throw new SequenceSpectrumRuntimeException(e);
 			}
+		catch (TranslationException e)
+			{
+			// no translation alphabet set
+			logger.error("Error", e);
+			throw new SequenceSpectrumRuntimeException(e);
+			}
 		}
 
-	// ** should be weak
-	private byte[] rawSequence = null;
+	/**
+	 * Reads the sequence in bulk into an array of exactly its length; if the desired length is unknown, reads to the end
+	 * of the section.
+	 */
+	protected byte[] rescanRawSequence()// throws NotEnoughSequenceException
+		{
+		try
+			{
+			final byte[] rawSequence = readRawSequence();
+			cacheSequence(rawSequenceKey, rawSequence);
+			return rawSequence;
+			}
+		catch (NotEnoughSequenceException e)
+			{
+			logger.error("Error", e);
+			throw new SequenceSpectrumRuntimeException(e);
+			}
+		catch (IOException e)
+			{
+			logger.error("Error", e);
+			throw new SequenceSpectrumRuntimeException(e);
+			}
+		catch (FilterException e)
+			{
+			logger.error("Error", e);
+			throw new SequenceSpectrumRuntimeException(e);
+			}
+		}
 
-	protected synchronized void rescanRawSequence()// throws NotEnoughSequenceException
-	{
-	List<Byte> rawSequenceBuilder = new ArrayList<Byte>(); //byte[desiredlength];
-	try
+	/**
+	 * Reads the sequence from the reader, without consulting or filling the sequence cache
+	 *
+	 * @throws NotEnoughSequenceException if the desired length is known and the reader can't supply that much
+	 */
+	private byte[] readRawSequence() throws IOException, FilterException, NotEnoughSequenceException
 		{
-		if (theReader != null)
+		if (theReader == null)
+			{
+			return new byte[0];
+			}
+		final boolean toEnd = desiredLengthUnknown();
+		//BAD long->int
+		byte[] rawSequence = new byte[toEnd ? 4096 : (int) desiredlength];
+		int count = 0;
+		try
 			{
 			synchronized (theReader)
 				{
+				theReader.seek(getParentMetadata(), getStartPosition());
 
-				theReader.seek(parentMetadata, startPosition);
-				for (int i = 0; i < desiredlength; i++)
+				// read(byte[], int) always fills from the start of the buffer, so only the first read goes in directly
+				byte[] chunk = null;
+				while (toEnd || count < desiredlength)
 					{
-					rawSequenceBuilder.add(new Byte((byte) theReader.read()));
+					if (count == rawSequence.length)
+						{
+						rawSequence = Arrays.copyOf(rawSequence, 2 * count);
+						}
+					final int wanted = rawSequence.length - count;
+					final int r;
+					if (count == 0)
+						{
+						r = theReader.read(rawSequence, wanted);
+						}
+					else
+						{
+						if (chunk == null || chunk.length < wanted)
+							{
+							chunk = new byte[wanted];
+							}
+						r = theReader.read(chunk, wanted);
+						System.arraycopy(chunk, 0, rawSequence, count, Math.max(r, 0));
+						}
+					if (r <= 0)
+						{
+						break;
+						}
+					count += r;
 					}
 				}
 			}
-		}
-	catch (NotEnoughSequenceException e)
-		{
-		if (desiredLengthUnknown())
+		catch (NotEnoughSequenceException e)
 			{
+			if (!toEnd)
+				{
+				throw e;
+				}
 			// OK, no problem, we're done
 			}
-		else
+		if (!toEnd && count < desiredlength)
 			{
-			logger.error("Error", e);
-			throw new SequenceSpectrumRuntimeException(e);
+			throw new NotEnoughSequenceException("Sequence ended before the desired length");
+			}
+		if (count < rawSequence.length)
+			{
+			rawSequence = Arrays.copyOf(rawSequence, count);
 			}
+		return rawSequence;
 		}
 
-	catch (IOException e)
+	private static void cacheSequence(SequenceKey key, byte[] sequence)
 		{
-		logger.error("Error", e);
-		throw new SequenceSpectrumRuntimeException(e);
+		sequenceCache.put(key, sequence, sequenceWeigher.bytes(sequence));
 		}
-	catch (FilterException e)
-		{
-		logger.error("Error", e);
-		throw new SequenceSpectrumRuntimeException(e);
-		}
-	rawSequence = DSArrayUtils.toPrimitive(rawSequenceBuilder.toArray(DSArrayUtils.EMPTY_BYTE_OBJECT_ARRAY));
-	}
 
-	protected synchronized void rescanSpectrum() throws NotEnoughSequenceException
+	/**
+	 * Scans the sequence to make a new base spectrum.  Since it can be made again the same way, it's held in the spectrum
+	 * cache rather than pinned.  If the scanner is a CompositeSpectrumScanner, the spectra of its other scanners are cached
+	 * alongside as derived spectra.  If a base spectrum is set meanwhile, the scan is stale and isn't installed.
+	 *
+	 * @return the new base spectrum
+	 */
+	protected SequenceSpectrum rescanSpectrum() throws NotEnoughSequenceException
 		{
 		/*	if (_baseSpectrum.get() != null)
 			 {
 			 return;
 			 }
 	 */
+		final SequenceKey scannedKey = spectrumKey;
 		try
 			{
-			final SequenceSpectrum s;
 			if (theReader == null)
 				{
-				s = theScanner.getEmpty();
+				final SequenceSpectrum s = theScanner.getEmpty();
+				installRescan(scannedKey, Collections.singletonList(s));
+				return s;
 				}
-			else
+			final SpectrumStore store = spectrumStore;
+			final String storeKey = store == null || desiredLengthUnknown() ? null : storeKey();
+			if (storeKey != null)
 				{
-				synchronized (theReader)
+				final SequenceSpectrum stored = store.getQuietly(storeKey, theScanner.getEmpty());
+				if (stored != null)
 					{
-					theReader.seek(parentMetadata, startPosition);
-					s = theScanner.scanSequence(this);//theReader, desiredlength);//, firstWords, FIRSTWORD_LENGTH);
-					//prefix = new byte[PREFIX_LENGTH];
+					// the other spectra weren't stored, so they'll be scanned when asked for
+					installRescan(scannedKey, Collections.singletonList(stored));
+					return stored;
 					}
 				}
+			final List<SequenceSpectrum> spectra = scanWith(theScanner);
+			if (storeKey != null)
+				{
+				store.putQuietly(storeKey, spectra.get(0));
+				}
 			//prefixValid = Math.min(PREFIX_LENGTH, s.getNumberOfSamples() + s.getK() - 1);
-			setBaseSpectrum(s);
+			installRescan(scannedKey, spectra);
+			return spectra.get(0);
 
 			// so far the weights were set per character, because we didn't necessarily know the length...??
 			// getWeightedLabels().multiplyBy(length);
@@ -395,6 +622,123 @@ public class SequenceFragment extends SequenceFragmentMetadata<SequenceFragment>
 			}
 		}
 
+	/**
+	 * Scans the sequence with the given scanner.  A fragment of known, moderate length is copied out of the reader in bulk
+	 * and scanned from the copy, so the reader is locked only while the bytes are pulled and other fragments on it can be
+	 * scanned at the same time.
+	 *
+	 * @return the spectrum made by the scanner, followed by those of its other scanners if it's a CompositeSpectrumScanner
+	 */
+	private List<SequenceSpectrum> scanWith(final SequenceSpectrumScanner scanner)
+			throws IOException, FilterException, NotEnoughSequenceException, DistributionProcessorException,
+			       GenericFactoryException
+		{
+		if (!desiredLengthUnknown() && desiredlength <= DETACHED_SCAN_MAX_LENGTH)
+			{
+			return scanAll(scanner, detachedCopy());
+			}
+		synchronized (theReader)
+			{
+			theReader.seek(getParentMetadata(), getStartPosition());
+			return scanAll(scanner, this);//theReader, desiredlength);//, firstWords, FIRSTWORD_LENGTH);
+			//prefix = new byte[PREFIX_LENGTH];
+			}
+		}
+
+	/**
+	 * @return the key of this fragment's base spectrum in a SpectrumStore, or null if the reader's sequence or the
+	 *         scanner's configuration can't be identified from one run to the next, in which case the spectrum shouldn't
+	 *         be stored
+	 */
+	private String storeKey()
+		{
+		final String source = theReader.getPersistentId();
+		final String scanner = theScanner.getPersistentId();
+		if (source == null || scanner == null)
+			{
+			return null;
+			}
+		return source + "\t" + getRootSequenceName() + "\t" + getStartPositionFromRoot() + "\t" + desiredlength + "\t"
+		       + scanner;
+		}
+
+	private static List<SequenceSpectrum> scanAll(final SequenceSpectrumScanner scanner, final SequenceFragment fragment)
+			throws IOException, FilterException, NotEnoughSequenceException, DistributionProcessorException,
+			       GenericFactoryException
+		{
+		if (scanner instanceof CompositeSpectrumScanner)
+			{
+			return ((CompositeSpectrumScanner) scanner).scanAll(fragment);
+			}
+		return Collections.singletonList(scanner.scanSequence(fragment));
+		}
+
+	/**
+	 * Installs the spectra of a rescan, the first as the base spectrum, provided the base spectrum hasn't been set since
+	 * the scan began.  Otherwise a pinned spectrum would be overwritten by one that doesn't reflect it.
+	 *
+	 * @param scannedKey the spectrum key when the scan began
+	 */
+	private void installRescan(final SequenceKey scannedKey, final List<SequenceSpectrum> spectra)
+		{
+		synchronized (spectrumLock)
+			{
+			if (spectrumKey != scannedKey || baseSpectrum != null)
+				{
+				return;
+				}
+			installBaseSpectrum(spectra.get(0), false);
+			installDerivedSpectra(spectra.subList(1, spectra.size()));
+			}
+		}
+
+	/**
+	 * Caches the spectra made along with the base spectrum by the other scanners of a CompositeSpectrumScanner, each under
+	 * the scanner that made it, so that several may be of the same class.  Each is remade by its own scanner if it's
+	 * evicted.  Must be called holding the spectrumLock, so that they're cached under the same key as the base spectrum.
+	 */
+	private void installDerivedSpectra(final List<SequenceSpectrum> spectra)
+		{
+		final SequenceKey key = spectrumKey;
+		final List<? extends SequenceSpectrumScanner> scanners = getDerivedScanners();
+		for (int i = 0; i < spectra.size(); i++)
+			{
+			final SequenceSpectrum s = spectra.get(i);
+			final SequenceSpectrumScanner scanner = scanners.get(i);
+			s.setIgnoreEdges(ignoreEdges);
+			theDerivedSpectrumClasses.put(scanner, s.getClass());
+			spectrumCache.put(new SpectrumKey(key, scanner), s, estimateBytes(s));
+			}
+		}
+
+	/**
+	 * @return the scanners that make spectra alongside the base spectrum, i.e. the other scanners of a
+	 *         CompositeSpectrumScanner; otherwise none
+	 */
+	private List<? extends SequenceSpectrumScanner> getDerivedScanners()
+		{
+		if (theScanner instanceof CompositeSpectrumScanner)
+			{
+			return ((CompositeSpectrumScanner) theScanner).getDerivedScanners();
+			}
+		return Collections.emptyList();
+		}
+
+	/**
+	 * @return the class of the spectra made by the given derived scanner, asking it for an empty one if none of its spectra
+	 *         has been seen yet
+	 */
+	private Class getDerivedSpectrumClass(final SequenceSpectrumScanner scanner)
+		{
+		Class result = theDerivedSpectrumClasses.get(scanner);
+		if (result == null)
+			{
+			result = scanner.getEmpty().getClass();
+			theDerivedSpectrumClasses.put(scanner, result);
+			}
+		return result;
+		}
+
 	/*byte[] getPrefix(int length) throws NotEnoughSequenceException
 	   {
 	   if (length > prefixValid)
@@ -406,37 +750,112 @@ public class SequenceFragment extends SequenceFragmentMetadata<SequenceFragment>
 	   }*/
 
 	/**
-	 * Sets the base spectrum from which all other spectra are derived
+	 * Sets the base spectrum from which all other spectra are derived.  Since it can't be assumed to match a rescan of the
+	 * sequence, it's held by this fragment and never evicted.
 	 *
 	 * @param spectrum the new base spectrum describing statistics of this sequence
 	 */
-	public synchronized void setBaseSpectrum(@NotNull final SequenceSpectrum spectrum)
+	public void setBaseSpectrum(@NotNull final SequenceSpectrum spectrum)
 		{
-		//	SequenceSpectrum baseSpectrum = _baseSpectrum == null ? null : _baseSpectrum.get();
-		/*	if (baseSpectrum == spectrum && theSpectra.size() == 1)
-		   {
-		   // nothing has changed
-		   return;
-		   }*/
-		theDerivedSpectra.clear();
-		baseSpectrum = spectrum;
-		length = baseSpectrum.getOriginalSequenceLength();// how much sequence was actually read
-		if (!ignoreEdges)
+		installBaseSpectrum(spectrum, true);
+		}
+
+	/**
+	 * A rescan reproduces the previous scan, so spectra derived from it stay valid; otherwise the derived spectra, and any
+	 * computations of them under way, are abandoned by moving to a new key.
+	 */
+	private void installBaseSpectrum(@NotNull final SequenceSpectrum spectrum, final boolean pinned)
+		{
+		synchronized (spectrumLock)
 			{
-			if (!(spectrum instanceof FirstWordProvider))
+			//	SequenceSpectrum baseSpectrum = _baseSpectrum == null ? null : _baseSpectrum.get();
+			/*	if (baseSpectrum == spectrum && theSpectra.size() == 1)
+			   {
+			   // nothing has changed
+			   return;
+			   }*/
+			if (pinned || baseSpectrum != null)
 				{
-				//throw new SequenceSpectrumRuntimeException("Base spectrum must implement FirstWordProvider");
+				final SequenceKey oldKey = spectrumKey;
+				spectrumKey = new SequenceKey();
+				spectrumCache.remove(new SpectrumKey(oldKey, null));
+				for (final Class c : theDerivedSpectrumFactories.keySet())
+					{
+					spectrumCache.remove(new SpectrumKey(oldKey, c));
+					}
+				for (final SequenceSpectrumScanner scanner : getDerivedScanners())
+					{
+					spectrumCache.remove(new SpectrumKey(oldKey, scanner));
+					}
+				}
+			if (pinned)
+				{
+				baseSpectrum = spectrum;
 				}
 			else
 				{
-				firstWordProvider = (FirstWordProvider) spectrum;
+				baseSpectrum = null;
+				spectrumCache.put(new SpectrumKey(spectrumKey, null), spectrum, estimateBytes(spectrum));
+				}
+			synchronized (this)
+				{
+				length = spectrum.getOriginalSequenceLength();// how much sequence was actually read
 				}
+			//_baseSpectrum = new WeakReference<SequenceSpectrum>(baseSpectrum);
+			//theSpectra.put(baseSpectrum.getClass(), baseSpectrum);
+			}
+		}
+
+	/**
+	 * @return a fragment over a copy of this one's sequence, translated as this one's reader is
+	 * @throws NotEnoughSequenceException if the reader can't supply the desired length
+	 */
+	private SequenceFragment detachedCopy() throws IOException, FilterException, NotEnoughSequenceException
+		{
+		byte[] rawSequence = sequenceCache.get(rawSequenceKey);
+		if (rawSequence == null)
+			{
+			rawSequence = readRawSequence();
+			cacheSequence(rawSequenceKey, rawSequence);
+			}
+		final SequenceFragment copy = new SequenceFragment(rawSequence, theScanner, false);
+		copy.setTranslationAlphabet(theReader.getTranslationAlphabet());
+		return copy;
+		}
+
+	private static Exception unwrap(final ExecutionException e)
+		{
+		final Throwable cause = e.getCause();
+		if (cause instanceof Error)
+			{
+			throw (Error) cause;
+			}
+		if (cause instanceof SequenceSpectrumRuntimeException)
+			{
+			throw (SequenceSpectrumRuntimeException) cause;
+			}
+		return (Exception) cause;
+		}
+
+	/**
+	 * @return a rough size in bytes of the given spectrum: its count array if it has one, or a fixed guess if not
+	 */
+	private static long estimateBytes(final SequenceSpectrum spectrum)
+		{
+		if (spectrum instanceof IntArrayContainer)
+			{
+			final int[] a = ((IntArrayContainer) spectrum).getArray();
+			return SPECTRUM_OVERHEAD_BYTES + (a == null ? 0 : 4L * a.length);
+			}
+		if (spectrum instanceof DoubleArrayContainer)
+			{
+			final double[] a = ((DoubleArrayContainer) spectrum).getArray();
+			return SPECTRUM_OVERHEAD_BYTES + (a == null ? 0 : 8L * a.length);
 			}
-		//_baseSpectrum = new WeakReference<SequenceSpectrum>(baseSpectrum);
-		//theSpectra.put(baseSpectrum.getClass(), baseSpectrum);
+		return UNKNOWN_SPECTRUM_BYTES;
 		}
 
-	public synchronized boolean isIgnoreEdges()
+	public boolean isIgnoreEdges()
 		{
 		return ignoreEdges;
 		}
@@ -453,10 +872,10 @@ public class SequenceFragment extends SequenceFragmentMetadata<SequenceFragment>
 	 * @see java.lang.Cloneable
 	 */
 	@Override
-	public synchronized SequenceFragment clone()
+	public SequenceFragment clone()
 		{
 		final SequenceFragment result =
-				new SequenceFragment(parentMetadata, sequenceName, startPosition, length, theScanner);
+				new SequenceFragment(getParentMetadata(), sequenceName, getStartPosition(), lengthSoFar(), theScanner);
 		result.setBaseSpectrum(getBaseSpectrum().clone());
 		return result;
 		}
@@ -468,104 +887,108 @@ public class SequenceFragment extends SequenceFragmentMetadata<SequenceFragment>
 
 	/* these methods are here so that a SequenceFragment object can represent the centroid of a cluster.  Obviously its metadata will be meaningless, though. */
 
-	public synchronized void decrementBy(final SequenceFragment object)
+	/* the spectra are found before taking this fragment's monitor, since finding them may wait on a scan of either
+	fragment, and a scan takes the reader's lock before calling back into the fragment. */
+
+	public void decrementBy(final SequenceFragment object)
 		{
 		final SequenceSpectrum baseSpectrum = getBaseSpectrum();
-		try
+		final SequenceSpectrum other = getMatchingSpectrum(object, baseSpectrum);
+		final long otherLength = object.getLength();
+		synchronized (this)
 			{
-			length -= object.getLength();
-			baseSpectrum.decrementBy(object.getSpectrum(baseSpectrum.getClass(), baseSpectrum.getFactory()));
-			}
-		catch (SequenceSpectrumException e)
-			{
-			logger.error("Error", e);
-			throw new Error(e);
+			length -= otherLength;
+			baseSpectrum.decrementBy(other);
 			}
 		fireUpdated(baseSpectrum);
 		}
 
-	public synchronized void decrementByWeighted(final SequenceFragment object, final double weight)
+	public void decrementByWeighted(final SequenceFragment object, final double weight)
 		{
 		final SequenceSpectrum baseSpectrum = getBaseSpectrum();
-		try
+		final SequenceSpectrum other = getMatchingSpectrum(object, baseSpectrum);
+		final long otherLength = object.getLength();
+		synchronized (this)
 			{
-			length -= object.getLength();
-			baseSpectrum.decrementByWeighted(object.getSpectrum(baseSpectrum.getClass(), baseSpectrum.getFactory()),
-			                                 weight);
-			}
-		catch (SequenceSpectrumException e)
-			{
-			logger.error("Error", e);
-			throw new Error(e);
+			length -= otherLength;
+			baseSpectrum.decrementByWeighted(other, weight);
 			}
 		fireUpdated(baseSpectrum);
 		}
 
-	public synchronized void incrementBy(final SequenceFragment object)
+	public void incrementBy(final SequenceFragment object)
 		{
 		final SequenceSpectrum baseSpectrum = getBaseSpectrum();
-
-		if (sequenceName == null)
+		final SequenceSpectrum other = getMatchingSpectrum(object, baseSpectrum);
+		final long otherLength = object.getLength();
+		synchronized (this)
 			{
-			this.sequenceName = object.getSequenceName();
-			}
-
-		try
-			{
-			length += object.getLength();
-			baseSpectrum.incrementBy(object.getSpectrum(baseSpectrum.getClass(), baseSpectrum.getFactory()));
-			}
-		catch (SequenceSpectrumException e)
-			{
-			logger.error("Error", e);
-			throw new Error(e);
+			if (sequenceName == null)
+				{
+				this.sequenceName = object.getSequenceName();
+				}
+			length += otherLength;
+			baseSpectrum.incrementBy(other);
 			}
 		fireUpdated(baseSpectrum);
 		}
 
-	public synchronized void incrementByWeighted(final SequenceFragment object, final double weight)
+	public void incrementByWeighted(final SequenceFragment object, final double weight)
 		{
 		final SequenceSpectrum baseSpectrum = getBaseSpectrum();
-		if (sequenceName == null)
+		final SequenceSpectrum other = getMatchingSpectrum(object, baseSpectrum);
+		final long otherLength = object.getLength();
+		synchronized (this)
 			{
-			this.sequenceName += object.getSequenceName();
+			if (sequenceName == null)
+				{
+				this.sequenceName += object.getSequenceName();
+				}
+			length += otherLength;
+			baseSpectrum.incrementByWeighted(other, weight);
 			}
+		fireUpdated(baseSpectrum);
+		}
+
+	/**
+	 * @return the spectrum of the other fragment of the same class as the given base spectrum, for adding to it
+	 */
+	private static SequenceSpectrum getMatchingSpectrum(final SequenceFragment object,
+	                                                    final SequenceSpectrum baseSpectrum)
+		{
 		try
 			{
-			length += object.getLength();
-			baseSpectrum.incrementByWeighted(object.getSpectrum(baseSpectrum.getClass(), baseSpectrum.getFactory()),
-			                                 weight);
+			return object.getSpectrum(baseSpectrum.getClass(), baseSpectrum.getFactory());
 			}
 		catch (SequenceSpectrumException e)
 			{
 			logger.error("Error", e);
 			throw new Error(e);
 			}
-		fireUpdated(baseSpectrum);
 		}
 
-	public synchronized SequenceFragment minus(final SequenceFragment k2)
+	public SequenceFragment minus(final SequenceFragment k2)
 		{
 		final SequenceFragment result = clone();
 		result.decrementBy(k2);
 		return result;
 		}
 
-	public synchronized void multiplyBy(final double v)
+	public void multiplyBy(final double v)
 		{
 		final SequenceSpectrum baseSpectrum = getBaseSpectrum();
 		baseSpectrum.multiplyBy(v);
 		fireUpdated(baseSpectrum);// ensure that any derived spectra are cleared
 		}
 
-	public synchronized SequenceFragment plus(final SequenceFragment k2)
+	public SequenceFragment plus(final SequenceFragment k2)
 		{
 		final SequenceFragment result = clone();
 		result.incrementBy(k2);
 		return result;
 		}
 
-	public synchronized SequenceFragment times(final double v)
+	public SequenceFragment times(final double v)
 		{
 		final SequenceFragment result = clone();
 		result.multiplyBy(v);
@@ -582,7 +1005,7 @@ public class SequenceFragment extends SequenceFragmentMetadata<SequenceFragment>
 	 * @param other The clusterable object to compare against
 	 * @return True if they are equivalent, false otherwise
 	 */
-	public synchronized boolean equalValue(final SequenceFragment other)
+	public boolean equalValue(final SequenceFragment other)
 		{
 		final SequenceSpectrum baseSpectrum = getBaseSpectrum();
 		try
@@ -624,7 +1047,7 @@ public class SequenceFragment extends SequenceFragmentMetadata<SequenceFragment>
 
 	// the only way to do this is to scan the sequence.  It sucks but we have no choice
 
-	public synchronized void checkAvailable() throws NotEnoughSequenceException
+	public void checkAvailable() throws NotEnoughSequenceException
 		{
 		if (desiredlength == UNKNOWN_LENGTH)
 			{
@@ -750,7 +1173,7 @@ public class SequenceFragment extends SequenceFragmentMetadata<SequenceFragment>
 	   return result;
 	   }*/
 
-	public synchronized List<byte[]> getFirstWords(final int k) throws SequenceSpectrumException
+	public List<byte[]> getFirstWords(final int k) throws SequenceSpectrumException
 		{
 		return getFirstWordProvider().getFirstWords(k);
 		}
@@ -771,22 +1194,30 @@ public class SequenceFragment extends SequenceFragmentMetadata<SequenceFragment>
 		 return getBaseSpectrum().getNumberOfSamples();//theKcount.getNumberOfSamples();
 		 }
  */
-	public synchronized SequenceReader getResetReader() throws NotEnoughSequenceException
+	/**
+	 * Seeks the reader to the start of this fragment.  Takes only the reader's lock, which a scanner calling this holds
+	 * already; taking the fragment's monitor too would invert the order in which getLength() takes them.
+	 *
+	 * @return the reader, positioned at the start of this fragment
+	 */
+	public SequenceReader getResetReader() throws NotEnoughSequenceException
 		{
-		try
-			{
-			theReader.seek(parentMetadata, startPosition);
-			return theReader;
-			}
-		catch (IOException e)
+		if (theReader == null)
 			{
-			logger.error("Error", e);
-			throw new SequenceSpectrumRuntimeException(e);
+			throw new NotEnoughSequenceException("This sequence fragment is not based on a reader.");
 			}
-		catch (NullPointerException e)
+		synchronized (theReader)
 			{
-			logger.error("Error", e);
-			throw new NotEnoughSequenceException("This sequence fragment is not based on a reader.");
+			try
+				{
+				theReader.seek(getParentMetadata(), getStartPosition());
+				return theReader;
+				}
+			catch (IOException e)
+				{
+				logger.error("Error", e);
+				throw new SequenceSpectrumRuntimeException(e);
+				}
 			}
 		}
 
@@ -803,79 +1234,143 @@ public class SequenceFragment extends SequenceFragmentMetadata<SequenceFragment>
 	 * spectrum of a given class always has the same value-- that is, that it doesn't make sense to store multiple spectra
 	 * of the same class associated with the same SequenceFragment.  If in fact the spectra have some parameters associated
 	 * with their computation, then this isn't really true, and can create confusion.
+	 * <p/>
+	 * Derived spectra are held in the shared spectrum cache, and are made again with the same factory if they've been
+	 * evicted.  Spectra made alongside the base spectrum by a CompositeSpectrumScanner are kept per scanner, so there may
+	 * be several of one class (e.g. Kcounts for various k); this returns that of the first such scanner whose spectra are
+	 * assignable to c, and getSpectrum(SequenceSpectrumScanner) tells them apart.
 	 *
 	 * @param c the Class of a SequenceSpectrum implementation that is requested
 	 * @return the SequenceSpectrum of the requested type describing statistics of this sequence
 	 * @throws SequenceSpectrumException when a spectrum of the requested type cannot be found or generated
 	 */
-	public synchronized <X extends SequenceSpectrum> SequenceSpectrum getSpectrum(final Class<X> c,
-	                                                                              final GenericFactory<X> factory)
+	public <X extends SequenceSpectrum> SequenceSpectrum getSpectrum(final Class<X> c, final GenericFactory<X> factory)
 			throws SequenceSpectrumException
 		{
 		final SequenceSpectrum baseSpectrum = getBaseSpectrum();  // scan if needed
-		SequenceSpectrum s = theDerivedSpectra.get(c);
-		if (s == null)
+		if (c.isAssignableFrom(baseSpectrum.getClass()))
 			{
-			if (c.isAssignableFrom(baseSpectrum.getClass()))
-				{
-				return baseSpectrum;
-				}
+			return baseSpectrum;
+			}
+		final SequenceKey key = spectrumKey;
 
-			for (final Map.Entry<Class, SequenceSpectrum> classSequenceSpectrumEntry : theDerivedSpectra.entrySet())
+		final SequenceSpectrum assignable = findAssignable(key, c, theDerivedSpectrumFactories.keySet());
+		if (assignable != null)
+			{
+			return assignable;
+			}
+
+		for (final SequenceSpectrumScanner scanner : getDerivedScanners())
+			{
+			if (c.isAssignableFrom(getDerivedSpectrumClass(scanner)))
 				{
-				if (c.isAssignableFrom(classSequenceSpectrumEntry.getKey()))
-					{
-					//logger.debug(c + " is assignable from " + sc + ".");
-					return classSequenceSpectrumEntry.getValue();
-					}
+				return getDerivedSpectrum(key, scanner);
 				}
+			}
 
-
-			try
+		final GenericFactory f = factory != null ? factory : theDerivedSpectrumFactories.get(c);
+		if (f == null)
+			{
+			throw new SequenceSpectrumException("Need to create new spectrum, but no factory was provided");
+			}
+		theDerivedSpectrumFactories.put(c, f);
+		try
+			{
+			return spectrumCache.getOrCompute(new SpectrumKey(key, c), new Callable<SequenceSpectrum>()
+			{
+			public SequenceSpectrum call() throws Exception
 				{
-				if (factory == null)
-					{
-					throw new SequenceSpectrumException("Need to create new spectrum, but no factory was provided");
-					}
-				s = factory.create(this);
 				//s = c.getConstructor(SequenceFragment.class).newInstance(this);
-				theDerivedSpectra.put(c, s);
+				return (SequenceSpectrum) f.create(SequenceFragment.this);
 				}
-			catch (GenericFactoryException e)
+			}, spectrumWeigher);
+			}
+		catch (ExecutionException e)
+			{
+			logger.error("Error", e.getCause());
+			throw new SequenceSpectrumException(unwrap(e), "Requested spectrum unavailable");
+			}
+		catch (InterruptedException e)
+			{
+			Thread.currentThread().interrupt();
+			throw new SequenceSpectrumException(e, "Requested spectrum unavailable");
+			}
+		}
+
+
+	/**
+	 * Provides the spectrum made by one of the scanners of this fragment's CompositeSpectrumScanner, which is the base
+	 * spectrum in the case of the primary scanner (or of this fragment's own scanner in any case).  A spectrum made by
+	 * another scanner is made again by that scanner alone if it's been evicted.
+	 *
+	 * @param scanner the scanner whose spectrum is requested
+	 * @return the SequenceSpectrum made by the given scanner from this sequence
+	 * @throws SequenceSpectrumException when the scanner isn't one of this fragment's, or the spectrum can't be made
+	 */
+	public SequenceSpectrum getSpectrum(final SequenceSpectrumScanner scanner) throws SequenceSpectrumException
+		{
+		final SequenceSpectrum baseSpectrum = getBaseSpectrum();  // scan if needed
+		if (scanner == theScanner || (theScanner instanceof CompositeSpectrumScanner
+		                              && scanner == ((CompositeSpectrumScanner) theScanner).getPrimaryScanner()))
+			{
+			return baseSpectrum;
+			}
+		if (!getDerivedScanners().contains(scanner))
+			{
+			throw new SequenceSpectrumException("Not one of this fragment's scanners: " + scanner);
+			}
+		return getDerivedSpectrum(spectrumKey, scanner);
+		}
+
+	private SequenceSpectrum getDerivedSpectrum(final SequenceKey key, final SequenceSpectrumScanner scanner)
+			throws SequenceSpectrumException
+		{
+		try
+			{
+			return spectrumCache.getOrCompute(new SpectrumKey(key, scanner), new Callable<SequenceSpectrum>()
+			{
+			public SequenceSpectrum call() throws Exception
 				{
-				logger.error("Error", e);
-				throw new SequenceSpectrumException(e, "Requested spectrum unavailable");
+				// made by a CompositeSpectrumScanner, and since evicted
+				final SequenceSpectrum result = scanWith(scanner).get(0);
+				result.setIgnoreEdges(ignoreEdges);
+				return result;
 				}
-			catch (NullPointerException e)
+			}, spectrumWeigher);
+			}
+		catch (ExecutionException e)
+			{
+			logger.error("Error", e.getCause());
+			throw new SequenceSpectrumException(unwrap(e), "Requested spectrum unavailable");
+			}
+		catch (InterruptedException e)
+			{
+			Thread.currentThread().interrupt();
+			throw new SequenceSpectrumException(e, "Requested spectrum unavailable");
+			}
+		}
+
+	/**
+	 * @return a cached spectrum of one of the given classes, other than c itself, that is assignable to c; or null if
+	 *         there is none
+	 */
+	private static SequenceSpectrum findAssignable(final SequenceKey key, final Class c, final Set<Class> classes)
+		{
+		for (final Class sc : classes)
+			{
+			if (sc != c && c.isAssignableFrom(sc))
 				{
-				logger.error("Error", e);
-				throw new SequenceSpectrumException(e, "Requested spectrum unavailable");
+				//logger.debug(c + " is assignable from " + sc + ".");
+				final SequenceSpectrum assignable = spectrumCache.get(new SpectrumKey(key, sc));
+				if (assignable != null)
+					{
+					return assignable;
+					}
 				}
-			/*	catch (NoSuchMethodException e)
-			   {
-			   logger.error("Error", e);
-			   throw new SequenceSpectrumException(e, "Requested spectrum unavailable");
-			   }
-		   catch (IllegalAccessException e)
-			   {
-			   logger.error("Error", e);
-			   throw new SequenceSpectrumException(e, "Requested spectrum unavailable");
-			   }
-		   catch (InvocationTargetException e)
-			   {
-			   logger.error("Error", e);
-			   throw new SequenceSpectrumException(e, "Requested spectrum unavailable");
-			   }
-		   catch (InstantiationException e)
-			   {
-			   logger.error("Error", e);
-			   throw new SequenceSpectrumException(e, "Requested spectrum unavailable");
-			   }*/
 			}
-		return s;
+		return null;
 		}
 
-
 	/*
    public void releaseCachedResources()
 
@@ -896,27 +1391,58 @@ public class SequenceFragment extends SequenceFragmentMetadata<SequenceFragment>
 	 * @return
 	 * @throws SequenceException
 	 */
-	public synchronized Set<SequenceFragment> removeOverlaps(final Collection<SequenceFragment> remove)
+	public Set<SequenceFragment> removeOverlaps(final Collection<SequenceFragment> remove) throws SequenceException
+		{
+		return removeOverlaps(new SequenceFragmentIntervalIndex<SequenceFragment>(remove));
+		}
+
+	/**
+	 * Removes every held-out fragment from every training fragment, indexing the held-out fragments once rather than
+	 * comparing each pair.  Training fragments that overlap none of them are returned as they are, so any spectra already
+	 * computed for them are kept; the rest are split as by removeOverlaps(Collection).
+	 *
+	 * @param training the fragments from which to remove the held-out sequence
+	 * @param heldOut  the fragments to remove
+	 * @return the training sequence that doesn't overlap any held-out fragment
+	 * @throws SequenceException if a fragment has an unknown length
+	 */
+	public static Set<SequenceFragment> removeOverlaps(final Collection<SequenceFragment> training,
+	                                                   final Collection<SequenceFragment> heldOut)
 			throws SequenceException
 		{
+		final SequenceFragmentIntervalIndex<SequenceFragment> index =
+				new SequenceFragmentIntervalIndex<SequenceFragment>(heldOut);
 		final Set<SequenceFragment> result = new HashSet<SequenceFragment>();
+		for (final SequenceFragment sf : training)
+			{
+			if (index.overlapping(sf).isEmpty())
+				{
+				result.add(sf);
+				}
+			else
+				{
+				result.addAll(sf.removeOverlaps(index));
+				}
+			}
+		return result;
+		}
 
-		final List<SequenceFragment> conflicts = new ArrayList<SequenceFragment>();
+	/**
+	 * As removeOverlaps(Collection), with the fragments to remove already indexed
+	 */
+	public Set<SequenceFragment> removeOverlaps(
+			final SequenceFragmentIntervalIndex<? extends SequenceFragmentMetadata> remove) throws SequenceException
+		{
+		final Set<SequenceFragment> result = new HashSet<SequenceFragment>();
 
 		final SequenceFragmentMetadata root =
 				getRootMetadata(); // do all arithmetic with respect to the root to avoid confusion
 
-		for (final SequenceFragment sf : remove)
-			{
-			if (overlaps(sf))  //sf.getRootMetadata().equalValue(root)) //
-				{
-				conflicts.add(sf);
-				}
-			}
-		Collections.sort(conflicts);
+		// already in order of start position
+		final List<? extends SequenceFragmentMetadata> conflicts = remove.overlapping(this);
 
 		long trav = getStartPositionFromRoot();
-		for (final SequenceFragment conflict : conflicts)
+		for (final SequenceFragmentMetadata conflict : conflicts)
 			{
 			final long trav2 = conflict.getStartPositionFromRoot();
 			final int len = (int) (trav2 - trav);
@@ -927,12 +1453,13 @@ public class SequenceFragment extends SequenceFragmentMetadata<SequenceFragment>
 				final SequenceFragment sf = new SequenceFragment(root, null, trav, theReader, len, theScanner);
 				result.add(sf);
 				}
-			trav = trav2 + conflict.length;
+			// a conflict may lie within an earlier one
+			trav = Math.max(trav, trav2 + conflict.getLength());
 			}
 
 		// add the last fragment after the last conflict
 
-		final int len = (int) (getStartPositionFromRoot() + length - trav);
+		final int len = (int) (getStartPositionFromRoot() + lengthSoFar() - trav);
 		if (len > 0)
 			{
 			assert theReader != null;
@@ -990,15 +1517,11 @@ public class SequenceFragment extends SequenceFragmentMetadata<SequenceFragment>
 		 }
  */
 
-	public synchronized void setIgnoreEdges(final boolean b)
+	public void setIgnoreEdges(final boolean b)
 		{
 		ignoreEdges = b;
 		final SequenceSpectrum baseSpectrum = getBaseSpectrum();
 		baseSpectrum.setIgnoreEdges(b);
-		if (ignoreEdges)
-			{
-			firstWordProvider = null;
-			}
 		}
 
 	/**
@@ -1011,7 +1534,7 @@ public class SequenceFragment extends SequenceFragmentMetadata<SequenceFragment>
 	 * @return True if the spectra are equivalent, false otherwise
 	 * @see SequenceSpectrum#spectrumEquals(SequenceSpectrum)
 	 */
-	public synchronized boolean spectrumEquals(final SequenceSpectrum spectrum)
+	public boolean spectrumEquals(final SequenceSpectrum spectrum)
 		{
 		try
 			{
@@ -1029,26 +1552,101 @@ public class SequenceFragment extends SequenceFragmentMetadata<SequenceFragment>
 		// perf
 		if (theReader.setTranslationAlphabet(alphabet))
 			{
-			translatedSequence = null;
+			sequenceCache.remove(translatedSequenceKey);
 			}
 		}
 
 
+	/**
+	 * Returns the sequence translated through the reader's alphabet, from the shared sequence cache or reread if it's
+	 * been evicted
+	 */
 	public byte[] getTranslatedSequence() //final byte[] alphabet)
 	{
-	if (translatedSequence == null)
+	return getSequence(translatedSequenceKey, new Callable<byte[]>()
+	{
+	public byte[] call()
 		{
-		rescanTranslatedSequence();
+		return rescanTranslatedSequence();
 		}
-	return translatedSequence;
+	});
 	}
 
+	/**
+	 * Returns the sequence, from the shared sequence cache or reread if it's been evicted
+	 */
 	public byte[] getRawSequence()
 		{
-		if (rawSequence == null)
+		return getSequence(rawSequenceKey, new Callable<byte[]>()
+		{
+		public byte[] call()
 			{
-			rescanRawSequence();
+			return rescanRawSequence();
+			}
+		});
+		}
+
+	private static byte[] getSequence(final SequenceKey key, final Callable<byte[]> rescan)
+		{
+		try
+			{
+			// rescanning caches the result itself, so the extra put here just replaces it
+			return sequenceCache.getOrCompute(key, rescan, sequenceWeigher);
+			}
+		catch (ExecutionException e)
+			{
+			throw new SequenceSpectrumRuntimeException(unwrap(e));
+			}
+		catch (InterruptedException e)
+			{
+			Thread.currentThread().interrupt();
+			throw new SequenceSpectrumRuntimeException(e);
+			}
+		}
+
+// -------------------------- INNER CLASSES --------------------------
+
+	/**
+	 * Identifies one of a fragment's sequences in the shared cache.  Equality is identity, so the cache holds neither the
+	 * fragment nor its reader, and entries of fragments that have been discarded simply age out.
+	 */
+	public static final class SequenceKey implements Serializable
+		{
+		private SequenceKey()
+			{
+			}
+		}
+
+	/**
+	 * Identifies a spectrum of one fragment in the shared cache: the one derived as a given class, or made by a given
+	 * scanner alongside the base spectrum, or the base spectrum itself if the kind is null
+	 */
+	public static final class SpectrumKey
+		{
+		private final SequenceKey fragment;
+		private final Object kind;
+
+		private SpectrumKey(final SequenceKey fragment, final Object kind)
+			{
+			this.fragment = fragment;
+			this.kind = kind;
+			}
+
+		@Override
+		public boolean equals(final Object o)
+			{
+			if (!(o instanceof SpectrumKey))
+				{
+				return false;
+				}
+			final SpectrumKey other = (SpectrumKey) o;
+			return fragment == other.fragment && (kind == null ? other.kind == null : kind.equals(other.kind));
+			}
+
+		@Override
+		public int hashCode()
+			{
+			return 31 * System.identityHashCode(fragment) + (kind == null ? 0 : kind.hashCode());
 			}
-		return rawSequence;
 		}
 	}
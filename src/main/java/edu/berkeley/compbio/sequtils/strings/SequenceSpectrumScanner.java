@@ -33,6 +33,15 @@ public interface SequenceSpectrumScanner
 	SequenceSpectrum getEmpty();
 
 	SubstitutionFilter getNucleotideFilter();
+
+	/**
+	 * Returns a description of everything that determines the spectra this scanner makes (e.g. its class, the kind of
+	 * spectrum, the alphabet and the word length) that is the same from one run to the next, so that its spectra can be
+	 * kept between runs.
+	 *
+	 * @return the description, or null if the scanner's configuration can't be identified across runs
+	 */
+	String getPersistentId();
 	/*	Kcount scanSequence(SequenceReader in, int desiredlength, List<byte[]> firstWords) //, int firstWordLength)
 				throws IOException, FilterException, NotEnoughSequenceException;*/
 
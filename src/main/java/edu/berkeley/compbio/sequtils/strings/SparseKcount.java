@@ -0,0 +1,418 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.strings;
+
+import edu.berkeley.compbio.sequtils.SequenceArrayUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+/**
+ * Counts the words of length k over an alphabet of exactly four symbols (e.g. DNA), holding only the words that occur.
+ * Past k of about 14, most of the 4^k possible words are absent from any one fragment, so a dense array is mostly
+ * zeros; here each word is packed two bits per symbol into a long key, for k up to 31, and the counts are kept in a
+ * LongIntHashMap, so memory and time are proportional to the number of distinct words.
+ * <p/>
+ * Keys are in lexical order of the alphabet, the first symbol being the most significant.  The int ids of Kcount are the
+ * same values, and so are available only for k up to 16 (taken as unsigned for k = 16); beyond that, use the methods
+ * taking and returning long keys.  Every two-bit value stands for a symbol, so each of the 4^k keys is a word; to count
+ * over a smaller alphabet, use a LongKcount, whose ids run over alphabet^k.
+ * <p/>
+ * The parent of a SparseKcount counts the words of length k - 1, by summing over the last symbol.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public abstract class SparseKcount<T extends SparseKcount> extends Kcount<T>
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	public static final int MAX_K = 31;
+
+	private static final int MAX_INT_ID_K = 16;
+
+	protected final byte[] alphabet;
+	private final int[] symbolIndexes;
+
+	// the bits of a key of length k - 1
+	private final long suffixMask;
+
+	protected final LongIntHashMap counts;
+
+	private long sum = 0;
+
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	/**
+	 * @param alphabet the symbols that words are made of, exactly four
+	 * @param k        the length of the words to count, at most 31
+	 */
+	public SparseKcount(final byte[] alphabet, final int k)
+		{
+		super();
+		if (alphabet.length != 4)
+			{
+			throw new IllegalArgumentException("Can't pack " + alphabet.length + " symbols two bits to a symbol");
+			}
+		if (k < 0 || k > MAX_K)
+			{
+			throw new IllegalArgumentException("Can't pack words of length " + k + " into a long");
+			}
+		this.alphabet = alphabet;
+		this.k = k;
+		symbolIndexes = SequenceArrayUtils.translationTable(alphabet);
+		suffixMask = k == 0 ? 0 : (1L << (2 * (k - 1))) - 1;
+		numberOfBins = k >= 16 ? Integer.MAX_VALUE : 1 << (2 * k);
+		counts = new LongIntHashMap();
+		}
+
+// --------------------- GETTER / SETTER METHODS ---------------------
+
+	public byte[] getAlphabet()
+		{
+		return alphabet;
+		}
+
+	/**
+	 * @return the number of distinct words counted
+	 */
+	public int getNumberOfDistinctWords()
+		{
+		return counts.size();
+		}
+
+	/**
+	 * @return the total of all the counts
+	 */
+	public long getSum()
+		{
+		return sum;
+		}
+
+// ------------------------ INTERFACE METHODS ------------------------
+
+
+// --------------------- Interface AdditiveClusterable ---------------------
+
+	/**
+	 * Visits only the words present in the other Kcount
+	 */
+	public synchronized void decrementBy(final T object)
+		{
+		addScaled(object, -1);
+		}
+
+	/**
+	 * Visits only the words present in the other Kcount
+	 */
+	public synchronized void incrementBy(final T object)
+		{
+		addScaled(object, 1);
+		}
+
+	/**
+	 * Counts are whole numbers, so the weighted counts are rounded
+	 */
+	public synchronized void decrementByWeighted(final T object, final double weight)
+		{
+		addScaled(object, -weight);
+		}
+
+	/**
+	 * Counts are whole numbers, so the weighted counts are rounded
+	 */
+	public synchronized void incrementByWeighted(final T object, final double weight)
+		{
+		addScaled(object, weight);
+		}
+
+	/**
+	 * Counts are whole numbers, so the results are rounded
+	 */
+	public synchronized void multiplyBy(final double v)
+		{
+		counts.replaceAll(new LongIntHashMap.IntFunction()
+		{
+		public int apply(final int value)
+			{
+			return (int) Math.round(value * v);
+			}
+		});
+		sum = 0;
+		final LongIntHashMap.Cursor c = counts.cursor();
+		while (c.next())
+			{
+			sum += c.value();
+			}
+		}
+
+// --------------------- Interface Clusterable ---------------------
+
+	public synchronized boolean equalValue(final T other)
+		{
+		final SparseKcount<?> o = other;
+		if (o.k != k || o.sum != sum || o.counts.size() != counts.size())
+			{
+			return false;
+			}
+		final LongIntHashMap.Cursor c = counts.cursor();
+		while (c.next())
+			{
+			if (o.counts.get(c.key()) != c.value())
+				{
+				return false;
+				}
+			}
+		return true;
+		}
+
+// --------------------- Interface SequenceSpectrum ---------------------
+
+	/**
+	 * Equivalent to {@link #equalValue(SparseKcount)} in this case.
+	 */
+	public boolean spectrumEquals(final SequenceSpectrum spectrum)
+		{
+		return equalValue((T) spectrum);
+		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * @return the count of the word with the given key
+	 */
+	public int getCount(final long key)
+		{
+		return counts.get(key);
+		}
+
+	/**
+	 * Counts one occurrence of the word with the given key
+	 */
+	public void increment(final long key)
+		{
+		counts.add(key, 1);
+		sum++;
+		}
+
+	/**
+	 * Adds to the count of the word with the given key
+	 */
+	public void add(final long key, final int n)
+		{
+		counts.add(key, n);
+		sum += n;
+		}
+
+	public double getSumOfCounts()
+		{
+		return sum;
+		}
+
+	/**
+	 * Visits the words that have nonzero counts, without scanning the absent ones.  The counts must not be changed while
+	 * the cursor is in use.
+	 */
+	public LongIntHashMap.Cursor entries()
+		{
+		return counts.cursor();
+		}
+
+	public long keyForSequence(final byte[] seq)
+		{
+		long key = 0;
+		for (final byte b : seq)
+			{
+			final int s = symbolIndexes[b & 0xFF];
+			if (s < 0)
+				{
+				throw new SequenceSpectrumRuntimeException("Symbol not in alphabet: " + (char) b);
+				}
+			key = (key << 2) | s;
+			}
+		return key;
+		}
+
+	public byte[] sequenceForKey(final long key)
+		{
+		return sequenceForKey(key, k);
+		}
+
+	/**
+	 * @return the key, among words of length k - 1, of the word without its last symbol
+	 */
+	public long prefixKey(final long key)
+		{
+		return key >>> 2;
+		}
+
+	/**
+	 * @return the key, among words of length k - 1, of the word without its first symbol
+	 */
+	public long suffixKey(final long key)
+		{
+		return key & suffixMask;
+		}
+
+	public int idForSequence(final byte[] seq)
+		{
+		checkIntIds();
+		return (int) keyForSequence(seq);
+		}
+
+	public byte lastSymbolForId(final int id)
+		{
+		return alphabet[id & 3];
+		}
+
+	public byte[] prefixForId(final int id)
+		{
+		checkIntIds();
+		return sequenceForKey(prefixKey(unsigned(id)), k - 1);
+		}
+
+	public int prefixId(final int id)
+		{
+		checkIntIds();
+		return (int) prefixKey(unsigned(id));
+		}
+
+	public byte[] sequenceForId(final int id)
+		{
+		checkIntIds();
+		return sequenceForKey(unsigned(id), k);
+		}
+
+	public int suffixId(final int id)
+		{
+		checkIntIds();
+		return (int) suffixKey(unsigned(id));
+		}
+
+	/**
+	 * @return an empty SparseKcount of the same kind, counting words of the given length over the same alphabet
+	 */
+	protected abstract T newEmpty(int k);
+
+	/**
+	 * Makes the parent by summing the counts of each word of length k - 1 over its last symbol, visiting only the words
+	 * present
+	 */
+	protected synchronized void newParent()
+		{
+		final T p = newEmpty(k - 1);
+		final SparseKcount<?> result = p;
+		final LongIntHashMap.Cursor c = counts.cursor();
+		while (c.next())
+			{
+			result.add(prefixKey(c.key()), c.value());
+			}
+		result.originalSequenceLength = originalSequenceLength;
+		result.unknownCount = unknownCount;
+		parent = p;
+		}
+
+	/**
+	 * Copies the counts of another SparseKcount, e.g. to implement clone()
+	 */
+	protected synchronized void copyCountsFrom(final SparseKcount<?> source)
+		{
+		counts.clear();
+		final LongIntHashMap.Cursor c = source.counts.cursor();
+		while (c.next())
+			{
+			counts.add(c.key(), c.value());
+			}
+		sum = source.sum;
+		originalSequenceLength = source.originalSequenceLength;
+		unknownCount = source.unknownCount;
+		}
+
+	/**
+	 * Writes the counts and the lengths scanned, for a SpectrumStore; the alphabet and k are left to the caller
+	 */
+	synchronized void writeCounts(final DataOutput out) throws IOException
+		{
+		out.writeLong(originalSequenceLength);
+		out.writeLong(unknownCount);
+		out.writeInt(counts.size());
+		final LongIntHashMap.Cursor c = counts.cursor();
+		while (c.next())
+			{
+			out.writeLong(c.key());
+			out.writeInt(c.value());
+			}
+		}
+
+	/**
+	 * Replaces the counts with those written by writeCounts() from a SparseKcount of the same alphabet and k
+	 *
+	 * @throws StreamCorruptedException if a key doesn't fit in k symbols
+	 */
+	synchronized void readCounts(final DataInput in) throws IOException
+		{
+		counts.clear();
+		sum = 0;
+		originalSequenceLength = in.readLong();
+		unknownCount = in.readLong();
+		final int n = in.readInt();
+		for (int i = 0; i < n; i++)
+			{
+			final long key = in.readLong();
+			if (key >>> (2 * k) != 0)
+				{
+				throw new StreamCorruptedException("Key " + key + " is too long for words of length " + k);
+				}
+			add(key, in.readInt());
+			}
+		}
+
+	private void addScaled(final SparseKcount<?> other, final double weight)
+		{
+		if (other.k != k)
+			{
+			throw new SequenceSpectrumRuntimeException("Can't add Kcounts of different word lengths");
+			}
+		// adding to the map under its own cursor could rehash it or remove entries that reach zero, so read a snapshot
+		final LongIntHashMap source = other == this ? new LongIntHashMap(counts) : other.counts;
+		final LongIntHashMap.Cursor c = source.cursor();
+		while (c.next())
+			{
+			final int v = c.value();
+			final int d = weight == 1 ? v : weight == -1 ? -v : (int) Math.round(v * weight);
+			add(c.key(), d);
+			}
+		}
+
+	private byte[] sequenceForKey(long key, final int length)
+		{
+		final byte[] result = new byte[length];
+		for (int i = length - 1; i >= 0; i--)
+			{
+			result[i] = alphabet[(int) (key & 3)];
+			key >>>= 2;
+			}
+		return result;
+		}
+
+	private void checkIntIds()
+		{
+		if (k > MAX_INT_ID_K)
+			{
+			throw new SequenceSpectrumRuntimeException("Words of length " + k + " don't fit in an int id; use the long keys");
+			}
+		}
+
+	private static long unsigned(final int id)
+		{
+		return id & 0xFFFFFFFFL;
+		}
+	}
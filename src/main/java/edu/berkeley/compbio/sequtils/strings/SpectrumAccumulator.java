@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.strings;
+
+import com.davidsoergel.stats.DistributionProcessorException;
+
+/**
+ * Builds one SequenceSpectrum from the symbols of a sequence, fed to it in consecutive runs rather than read by the
+ * accumulator itself.  This lets several spectra be built from a single read of the sequence; see
+ * CompositeSpectrumScanner.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public interface SpectrumAccumulator
+	{
+// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * Counts the next run of symbols.  Successive calls continue the same sequence, so words may span runs.
+	 *
+	 * @param symbols the symbols translated through the scanner's alphabet, with -1 for a symbol not in the alphabet
+	 * @param length  the number of symbols to count from the start of the array
+	 */
+	void add(int[] symbols, int length);
+
+	/**
+	 * Called once after the last run has been added
+	 *
+	 * @return the spectrum of all the symbols added
+	 */
+	SequenceSpectrum finish() throws DistributionProcessorException;
+	}
@@ -0,0 +1,529 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.strings;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
+import java.io.RandomAccessFile;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A file of spectra kept from one run to the next, so that a warm start need not rescan the same reference sequences.
+ * Spectra are encoded, compressed and appended to the file, each preceded by its key and a checksum; the records are
+ * never rewritten, so a crash can lose at most the record being written, which is dropped when the store is next opened.
+ * SparseKcounts and LongKcounts are written as their class, alphabet, k and nonzero counts, and read back into an empty
+ * Kcount made from the spectrum the caller expects, so they don't depend on Java serialization; other spectra are
+ * serialized.
+ * The index from key to record is held in memory and rebuilt from the record headers on opening, skipping the spectra
+ * themselves.
+ * <p/>
+ * The file begins with a header recording the scanner configuration and the length and modification time of each source
+ * file.  If any of those has changed, every stored spectrum may be wrong, so the store is emptied.
+ * <p/>
+ * Reads and writes may happen from any number of threads.  Other spectra that can't be serialized are simply not
+ * stored.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class SpectrumStore implements Closeable
+	{
+	// ------------------------------ FIELDS ------------------------------
+
+	private static final Logger logger = Logger.getLogger(SpectrumStore.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// "SPECTRA" and a format version
+	private static final long MAGIC = 0x5350454354524102L;
+
+	// the first byte of each value, saying how the rest is encoded
+	private static final byte SERIALIZED = 0;
+	private static final byte SPARSE_KCOUNT = 1;
+	private static final byte LONG_KCOUNT = 2;
+
+	// key length, value length and checksum
+	private static final int RECORD_HEADER_BYTES = 12;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+
+	private final ConcurrentHashMap<String, Location> index = new ConcurrentHashMap<String, Location>();
+
+	// the end of the last complete record; guarded by this
+	private long end;
+
+	// classes already reported as unserializable, so the warning is given once each
+	private final Set<Class> unserializable = Collections.synchronizedSet(new HashSet<Class>());
+
+
+	// --------------------------- CONSTRUCTORS ---------------------------
+
+	/**
+	 * Opens the store in the given file, creating it if need be
+	 *
+	 * @param file          the file holding the store
+	 * @param configuration a description of how the spectra are made (e.g. the scanner class and its parameters); a store
+	 *                      made with a different description is emptied
+	 * @param sources       the files from which the sequences are read; a store made when any of them had a different
+	 *                      length or modification time is emptied
+	 * @throws IOException if the file can't be read or written
+	 */
+	public SpectrumStore(final File file, final String configuration, final Collection<File> sources)
+			throws IOException
+		{
+		this.file = file;
+		final byte[] header = header(configuration, sources);
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		try
+			{
+			if (headerMatches(header))
+				{
+				end = loadIndex(header.length);
+				if (end < channel.size())
+					{
+					logger.warn("Discarding a partly written record at the end of " + file);
+					channel.truncate(end);
+					}
+				}
+			else
+				{
+				if (channel.size() > 0)
+					{
+					logger.info("Spectrum store " + file
+					            + " was made with another configuration or from other sources; emptying it");
+					}
+				channel.truncate(0);
+				writeFully(ByteBuffer.wrap(header), 0);
+				end = header.length;
+				}
+			}
+		catch (IOException e)
+			{
+			raf.close();
+			throw e;
+			}
+		}
+
+	// --------------------- GETTER / SETTER METHODS ---------------------
+
+	public File getFile()
+		{
+		return file;
+		}
+
+	/**
+	 * @return the number of spectra stored
+	 */
+	public int size()
+		{
+		return index.size();
+		}
+
+	// ------------------------ CANONICAL METHODS ------------------------
+
+	@Override
+	public String toString()
+		{
+		return "SpectrumStore(" + file + ")";
+		}
+
+	// ------------------------ INTERFACE METHODS ------------------------
+
+
+	// --------------------- Interface Closeable ---------------------
+
+	public synchronized void close() throws IOException
+		{
+		raf.close();
+		}
+
+	// -------------------------- OTHER METHODS --------------------------
+
+	public boolean contains(final String key)
+		{
+		return index.containsKey(key);
+		}
+
+	/**
+	 * @param prototype a spectrum of the kind expected (e.g. the scanner's empty spectrum), into a copy of which a stored
+	 *                  Kcount is read
+	 * @return the stored spectrum, or null if there is none or it can no longer be read (e.g. its class has changed, or
+	 *         it's a Kcount of another class, alphabet or k than the prototype)
+	 * @throws IOException if the file can't be read
+	 */
+	public SequenceSpectrum get(final String key, final SequenceSpectrum prototype) throws IOException
+		{
+		return (SequenceSpectrum) getObject(key, prototype);
+		}
+
+	/**
+	 * Stores a spectrum, replacing any already stored under the same key.  Nothing is stored if it's neither a
+	 * SparseKcount, a LongKcount nor serializable.
+	 *
+	 * @throws IOException if the file can't be written
+	 */
+	public void put(final String key, final SequenceSpectrum spectrum) throws IOException
+		{
+		putObject(key, spectrum);
+		}
+
+	/**
+	 * Gets a stored spectrum if possible; failing to read the file just means that the spectrum must be scanned again.
+	 *
+	 * @return the stored spectrum, or null if it isn't available
+	 */
+	public SequenceSpectrum getQuietly(final String key, final SequenceSpectrum prototype)
+		{
+		try
+			{
+			return get(key, prototype);
+			}
+		catch (IOException e)
+			{
+			logger.warn("Could not read spectrum " + key + " from " + file + ": " + e.getMessage());
+			return null;
+			}
+		}
+
+	/**
+	 * Stores a spectrum if possible; failing to write the file just means that it will be scanned again next time.
+	 */
+	public void putQuietly(final String key, final SequenceSpectrum spectrum)
+		{
+		try
+			{
+			put(key, spectrum);
+			}
+		catch (IOException e)
+			{
+			logger.warn("Could not write spectrum " + key + " to " + file + ": " + e.getMessage());
+			}
+		}
+
+	/**
+	 * @param prototype the spectrum for reading a Kcount into, or null if only serialized values are expected
+	 */
+	Object getObject(final String key, final SequenceSpectrum prototype) throws IOException
+		{
+		final Location location = index.get(key);
+		if (location == null)
+			{
+			return null;
+			}
+		final ByteBuffer buf = ByteBuffer.allocate(location.length);
+		while (buf.hasRemaining())
+			{
+			if (channel.read(buf, location.position + buf.position()) < 0)
+				{
+				throw new EOFException("Spectrum store " + file + " is shorter than its index");
+				}
+			}
+		final CRC32 crc = new CRC32();
+		crc.update(buf.array());
+		if ((int) crc.getValue() != location.crc)
+			{
+			logger.warn("Stored spectrum " + key + " in " + file + " is corrupt; discarding it");
+			index.remove(key, location);
+			return null;
+			}
+		try
+			{
+			final DataInputStream in =
+					new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(buf.array())));
+			try
+				{
+				final Object result = decode(in, prototype);
+				if (result == null)
+					{
+					logger.warn("Stored spectrum " + key + " in " + file + " isn't of the kind expected; discarding it");
+					index.remove(key, location);
+					}
+				return result;
+				}
+			finally
+				{
+				in.close();
+				}
+			}
+		catch (ClassNotFoundException e)
+			{
+			logger.warn("Stored spectrum " + key + " in " + file + " can't be read: " + e.getMessage());
+			index.remove(key, location);
+			return null;
+			}
+		catch (ObjectStreamException e)
+			{
+			logger.warn("Stored spectrum " + key + " in " + file + " can't be read: " + e.getMessage());
+			index.remove(key, location);
+			return null;
+			}
+		}
+
+	void putObject(final String key, final Object value) throws IOException
+		{
+		final byte[] bytes;
+		try
+			{
+			bytes = encode(value);
+			}
+		catch (NotSerializableException e)
+			{
+			if (unserializable.add(value.getClass()))
+				{
+				logger.warn("Can't store spectra of " + value.getClass() + ": " + e.getMessage());
+				}
+			return;
+			}
+		final CRC32 crc = new CRC32();
+		crc.update(bytes);
+		final byte[] keyBytes = key.getBytes(UTF8);
+
+		final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + keyBytes.length + bytes.length);
+		record.putInt(keyBytes.length);
+		record.put(keyBytes);
+		record.putInt(bytes.length);
+		record.putInt((int) crc.getValue());
+		record.put(bytes);
+		record.flip();
+
+		synchronized (this)
+			{
+			final long position = end;
+			writeFully(record, position);
+			end += record.limit();
+			index.put(key, new Location(end - bytes.length, bytes.length, (int) crc.getValue()));
+			}
+		}
+
+	private static byte[] encode(final Object value) throws IOException
+		{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes));
+		try
+			{
+			if (value instanceof SparseKcount)
+				{
+				final SparseKcount kcount = (SparseKcount) value;
+				writeKcountHeader(out, SPARSE_KCOUNT, kcount);
+				kcount.writeCounts(out);
+				}
+			else if (value instanceof LongKcount)
+				{
+				final LongKcount kcount = (LongKcount) value;
+				writeKcountHeader(out, LONG_KCOUNT, kcount);
+				kcount.writeCounts(out);
+				}
+			else
+				{
+				out.writeByte(SERIALIZED);
+				final ObjectOutputStream objects = new ObjectOutputStream(out);
+				objects.writeObject(value);
+				objects.flush();
+				}
+			}
+		finally
+			{
+			out.close();
+			}
+		return bytes.toByteArray();
+		}
+
+	private static void writeKcountHeader(final DataOutputStream out, final byte type, final Kcount kcount)
+			throws IOException
+		{
+		out.writeByte(type);
+		out.writeUTF(kcount.getClass().getName());
+		final byte[] alphabet = kcount.getAlphabet();
+		out.writeInt(alphabet.length);
+		out.write(alphabet);
+		out.writeInt(kcount.getK());
+		}
+
+	/**
+	 * @return the value, or null if it's a Kcount that doesn't match the prototype
+	 */
+	private static Object decode(final DataInputStream in, final SequenceSpectrum prototype)
+			throws IOException, ClassNotFoundException
+		{
+		final byte type = in.readByte();
+		if (type == SERIALIZED)
+			{
+			return new ObjectInputStream(in).readObject();
+			}
+		final String className = in.readUTF();
+		final byte[] alphabet = new byte[in.readInt()];
+		in.readFully(alphabet);
+		final int k = in.readInt();
+		if (prototype == null || !prototype.getClass().getName().equals(className)
+		    || !Arrays.equals(prototype.getAlphabet(), alphabet) || ((Kcount) prototype).getK() != k)
+			{
+			return null;
+			}
+		if (type == SPARSE_KCOUNT && prototype instanceof SparseKcount)
+			{
+			final SparseKcount result = (SparseKcount) ((SparseKcount) prototype).newEmpty(k);
+			result.readCounts(in);
+			return result;
+			}
+		if (type == LONG_KCOUNT && prototype instanceof LongKcount)
+			{
+			final LongKcount result = (LongKcount) ((LongKcount) prototype).newEmpty(k);
+			result.readCounts(in);
+			return result;
+			}
+		throw new StreamCorruptedException("Unknown kind of stored spectrum: " + type);
+		}
+
+	private static byte[] header(final String configuration, final Collection<File> sources) throws IOException
+		{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeLong(MAGIC);
+		out.writeUTF(configuration);
+		out.writeInt(sources.size());
+		for (final File source : sources)
+			{
+			out.writeUTF(source.getAbsolutePath());
+			out.writeLong(source.length());
+			out.writeLong(source.lastModified());
+			}
+		out.close();
+		return bytes.toByteArray();
+		}
+
+	private boolean headerMatches(final byte[] header) throws IOException
+		{
+		if (channel.size() < header.length)
+			{
+			return false;
+			}
+		final ByteBuffer buf = ByteBuffer.allocate(header.length);
+		while (buf.hasRemaining())
+			{
+			if (channel.read(buf, buf.position()) < 0)
+				{
+				return false;
+				}
+			}
+		return Arrays.equals(buf.array(), header);
+		}
+
+	/**
+	 * Reads the header of every record, skipping the spectra
+	 *
+	 * @return the end of the last complete record
+	 */
+	private long loadIndex(final long start) throws IOException
+		{
+		final long size = channel.size();
+		long position = start;
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try
+			{
+			skipFully(in, start);
+			while (true)
+				{
+				final int keyLength = in.readInt();
+				final long valueStart = position + RECORD_HEADER_BYTES + keyLength;
+				if (keyLength < 0 || valueStart > size)
+					{
+					break;
+					}
+				final byte[] key = new byte[keyLength];
+				in.readFully(key);
+				final int valueLength = in.readInt();
+				final int crc = in.readInt();
+				if (valueLength < 0 || valueStart + valueLength > size)
+					{
+					break;
+					}
+				skipFully(in, valueLength);
+				index.put(new String(key, UTF8), new Location(valueStart, valueLength, crc));
+				position = valueStart + valueLength;
+				}
+			}
+		catch (EOFException e)
+			{
+			// the last record is incomplete
+			}
+		finally
+			{
+			in.close();
+			}
+		return position;
+		}
+
+	private static void skipFully(final DataInputStream in, long n) throws IOException
+		{
+		while (n > 0)
+			{
+			final long skipped = in.skip(n);
+			if (skipped <= 0)
+				{
+				throw new EOFException();
+				}
+			n -= skipped;
+			}
+		}
+
+	private void writeFully(final ByteBuffer buf, final long position) throws IOException
+		{
+		while (buf.hasRemaining())
+			{
+			channel.write(buf, position + buf.position());
+			}
+		}
+
+	// -------------------------- INNER CLASSES --------------------------
+
+	/**
+	 * Where a spectrum is stored in the file
+	 */
+	private static class Location
+		{
+		final long position;
+		final int length;
+		final int crc;
+
+		Location(final long position, final int length, final int crc)
+			{
+			this.position = position;
+			this.length = length;
+			this.crc = crc;
+			}
+		}
+	}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils;
+
+import com.davidsoergel.dsutils.math.MersenneTwisterFast;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+
+public class SequenceFragmentIntervalIndexTest {
+    // -------------------------- OTHER METHODS --------------------------
+
+    @Test
+    public void queriesFindOverlapsInOrderOfStart() throws SequenceException {
+        SequenceFragmentMetadata root = new SequenceFragmentMetadata(null, "chr1", null, 0, 1000);
+        SequenceFragmentMetadata section = new SequenceFragmentMetadata(root, "part", null, 100, 500);
+        SequenceFragmentMetadata a = new SequenceFragmentMetadata(section, null, null, 0, 50); // 100-150
+        SequenceFragmentMetadata b = new SequenceFragmentMetadata(root, null, null, 120, 300); // 120-420
+        SequenceFragmentMetadata c = new SequenceFragmentMetadata(root, null, null, 200, 10); // 200-210
+        SequenceFragmentMetadata d = new SequenceFragmentMetadata(root, null, null, 600, 10); // 600-610
+
+        SequenceFragmentIntervalIndex<SequenceFragmentMetadata> index =
+                new SequenceFragmentIntervalIndex<SequenceFragmentMetadata>(Arrays.asList(d, c, b, a));
+        assert index.size() == 4;
+
+        assert index.containing(root, 130).equals(Arrays.asList(a, b));
+        assert index.containing(root, 150).equals(Arrays.asList(b));
+        assert index.containing(root, 99).isEmpty();
+        assert index.overlapping(root, 140, 205).equals(Arrays.asList(a, b, c));
+        assert index.overlapping(root, 420, 600).isEmpty();
+
+        // a root with an equal value is the same root
+        SequenceFragmentMetadata sameRoot = new SequenceFragmentMetadata(null, "chr1", null, 0, 1000);
+        assert index.overlapping(new SequenceFragmentMetadata(sameRoot, null, null, 605, 1)).equals(Arrays.asList(d));
+
+        SequenceFragmentMetadata otherRoot = new SequenceFragmentMetadata(null, "chr2", null, 0, 1000);
+        assert index.containing(otherRoot, 130).isEmpty();
+    }
+
+    @Test
+    public void agreesWithPairwiseOverlaps() throws SequenceException {
+        SequenceFragmentMetadata root = new SequenceFragmentMetadata(null, "chr1", null, 0, 100000);
+        MersenneTwisterFast random = new MersenneTwisterFast(17);
+        List<SequenceFragmentMetadata> fragments = new ArrayList<SequenceFragmentMetadata>();
+        for (int i = 0; i < 500; i++) {
+            fragments.add(new SequenceFragmentMetadata(root, null, null, random.nextInt(100000), 1 + random.nextInt(2000)));
+        }
+        SequenceFragmentIntervalIndex<SequenceFragmentMetadata> index =
+                new SequenceFragmentIntervalIndex<SequenceFragmentMetadata>(fragments);
+
+        for (int i = 0; i < 200; i++) {
+            long start = random.nextInt(100000);
+            long end = start + 1 + random.nextInt(3000);
+            int expected = 0;
+            for (SequenceFragmentMetadata f : fragments) {
+                long s = f.getStartPositionFromRoot();
+                if (s == start || (s < end && s + f.getLength() > start)) {
+                    expected++;
+                }
+            }
+            List<SequenceFragmentMetadata> found = index.overlapping(root, start, end);
+            assert found.size() == expected;
+            for (int j = 1; j < found.size(); j++) {
+                assert found.get(j - 1).getStartPositionFromRoot() <= found.get(j).getStartPositionFromRoot();
+            }
+        }
+    }
+}
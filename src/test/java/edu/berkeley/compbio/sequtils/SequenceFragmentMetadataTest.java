@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils;
+
+import org.testng.annotations.Test;
+
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+
+public class SequenceFragmentMetadataTest {
+    // -------------------------- OTHER METHODS --------------------------
+
+    @Test
+    public void coordinatesAreResolvedThroughTheWholeChain() {
+        SequenceFragmentMetadata root = new SequenceFragmentMetadata(null, "file", null, 5, 10000);
+        SequenceFragmentMetadata section = new SequenceFragmentMetadata(root, "section", null, 1000, 5000);
+        SequenceFragmentMetadata read = new SequenceFragmentMetadata(section, null, null, 200, 100);
+        SequenceFragmentMetadata window = new SequenceFragmentMetadata(read, null, null, 10, 20);
+
+        assert root.getStartPositionFromRoot() == 5;
+        assert root.getRootMetadata() == root;
+        assert section.getStartPositionFromRoot() == 1005;
+        assert window.getStartPositionFromRoot() == 1215;
+        assert window.getRootMetadata() == root;
+        assert window.getRootSequenceName().equals("file");
+    }
+
+    @Test
+    public void flattenedMetadataHasTheSameCoordinates() {
+        SequenceFragmentMetadata root = new SequenceFragmentMetadata(null, "file", 7, 0, 10000);
+        SequenceFragmentMetadata section = new SequenceFragmentMetadata(root, "section", 7, 1000, 5000);
+        SequenceFragmentMetadata read = new SequenceFragmentMetadata(section, null, 7, 200, 100);
+
+        SequenceFragmentMetadata flat = SequenceFragmentMetadata.flattened(read, null, 10, 20);
+        assert flat.getParentMetadata() == root;
+        assert flat.getStartPositionFromRoot() == 1210;
+        assert flat.getLength() == 20;
+        assert flat.getTaxid() == 7;
+        assert flat.getRootSequenceName().equals("file");
+    }
+}
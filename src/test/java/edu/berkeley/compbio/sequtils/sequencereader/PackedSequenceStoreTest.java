@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.sequencereader;
+
+import com.davidsoergel.dsutils.math.MersenneTwisterFast;
+import edu.berkeley.compbio.sequtils.NotEnoughSequenceException;
+import edu.berkeley.compbio.sequtils.SequenceFragmentMetadata;
+import edu.berkeley.compbio.sequtils.sequencereader.fasta.FastaFileSet;
+import edu.berkeley.compbio.sequtils.sequencereader.fasta.FastaParser;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.URL;
+
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+
+public class PackedSequenceStoreTest {
+    // ------------------------------ FIELDS ------------------------------
+
+    FastaParser fp;
+    PackedSequenceStore store;
+
+
+    // -------------------------- OTHER METHODS --------------------------
+
+    @Test
+    public void sectionsMatchTheParser() throws Exception {
+        assert store.getTotalSequence() == 700 + 910 + 700 + 840;
+
+        fp.reset();
+        byte[] expected = new byte[1000];
+        byte[] actual = new byte[1000];
+        for (String name : new String[]{"testgenome.1.1", "testgenome.1.2", "testgenome.2.1", "testgenome.2.2"}) {
+            fp.seek(fp.next());
+            int n = fp.read(expected, expected.length);
+
+            SequenceFragmentMetadata section = store.next();
+            assert section.getSequenceName().equals(name);
+            assert section.getLength() == n;
+            assert store.read(actual, actual.length) == n;
+            for (int i = 0; i < n; i++) {
+                assert actual[i] == expected[i];
+            }
+        }
+    }
+
+    @Test(expectedExceptions = NotEnoughSequenceException.class)
+    public void readingEndOfSectionProducesNotEnoughSequenceException() throws Exception {
+        store.seek(store.next(), 699);
+        store.read();
+        store.read();
+    }
+
+    @Test
+    public void ambiguousAndLowercaseBasesAreKept() throws Exception {
+        File dir = File.createTempFile("packedtest", "");
+        dir.delete();
+        dir.mkdir();
+        File f = new File(dir, "mixed.fna");
+        String s1 = "ACGTNNNNacgtRYacgtACGTACGTACGTACGTACGTACGTACGTACGTAC--GTacgTnAAAA";
+        String s2 = "TTTTnnnnGGGG";
+        FileWriter w = new FileWriter(f);
+        w.write(">one\n" + s1.substring(0, 40) + "\n" + s1.substring(40) + "\n>empty\n>two\n" + s2 + "\n");
+        w.close();
+
+        PackedSequenceStore mixed = new PackedSequenceStore(new FastaParser(new FastaFileSet(dir), false));
+        String all = s1 + s2;
+        assert mixed.getTotalSequence() == all.length();
+
+        SequenceFragmentMetadata one = mixed.getSequenceFragmentMetadata("one");
+        for (int offset = 0; offset < s1.length(); offset++) {
+            mixed.seek(one, offset);
+            byte[] buf = new byte[100];
+            int n = mixed.read(buf, buf.length);
+            assert new String(buf, 0, n).equals(s1.substring(offset));
+        }
+
+        mixed.seek(mixed.getSequenceFragmentMetadata("two"), 2);
+        for (int i = 2; i < s2.length(); i++) {
+            assert mixed.read() == s2.charAt(i);
+        }
+
+        assert mixed.getSequenceFragmentMetadata("empty").getLength() == 0;
+
+        mixed.setTranslationAlphabet(new byte[]{'A', 'C', 'G', 'T'});
+        mixed.seek(one);
+        int[] translated = new int[100];
+        int n = mixed.readTranslated(translated, translated.length);
+        assert n == s1.length();
+        mixed.seek(one);
+        for (int i = 0; i < n; i++) {
+            char c = s1.charAt(i);
+            int expected = "ACGT".indexOf(c);
+            assert translated[i] == expected;
+            if (expected >= 0) {
+                assert mixed.readTranslated() == expected;
+            } else {
+                mixed.read();
+            }
+        }
+
+        f.delete();
+        dir.delete();
+    }
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        MersenneTwisterFast.init();
+        URL url = ClassLoader.getSystemResource("Test_Genome");
+        fp = new FastaParser(new FastaFileSet(new File(url.getPath())), true);
+        store = new PackedSequenceStore(fp);
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.sequencereader;
+
+import org.testng.annotations.Test;
+
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+
+public class SectionTableTest {
+    // -------------------------- OTHER METHODS --------------------------
+
+    @Test
+    public void namesAndPositionsAreFoundAfterGrowing() throws Exception {
+        SectionTable table = new SectionTable();
+        for (int i = 0; i < 10000; i++) {
+            assert table.add("read." + i + (i % 7 == 0 ? "/\u00e9" : ""), 100L * i, i) == i;
+        }
+        table.trim();
+
+        assert table.size() == 10000;
+        for (int i = 0; i < 10000; i += 37) {
+            String name = "read." + i + (i % 7 == 0 ? "/\u00e9" : "");
+            assert table.indexOf(name) == i;
+            assert table.getName(i).equals(name);
+            assert table.getLength(i) == i;
+            assert table.indexOfStart(100L * i) == i;
+            assert table.indexOfStart(100L * i + 1) == -1;
+            assert table.sectionContaining(100L * i + 99) == i;
+        }
+        assert table.indexOf("read.10000") == -1;
+        assert table.sectionContaining(-1) == -1;
+    }
+
+    @Test
+    public void laterDuplicateNamesWin() throws Exception {
+        SectionTable table = new SectionTable();
+        table.add("a", 0, 10);
+        table.add("b", 10, 10);
+        table.add("a", 20, 10);
+        assert table.indexOf("a") == 2;
+        assert table.indexOf("b") == 1;
+    }
+}
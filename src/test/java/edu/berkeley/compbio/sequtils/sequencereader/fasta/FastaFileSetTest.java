@@ -8,13 +8,19 @@
 package edu.berkeley.compbio.sequtils.sequencereader.fasta;
 
 import edu.berkeley.compbio.sequtils.NotEnoughSequenceException;
+import edu.berkeley.compbio.sequtils.SequenceError;
 import org.apache.log4j.Logger;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URL;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 /**
@@ -52,6 +58,139 @@ public class FastaFileSetTest {
         assert (got.equals(expected));
     }
 
+    @Test
+    public void memoryMappedReadAtCrossesFileBoundaries() throws IOException, NotEnoughSequenceException {
+        fs.setMemoryMapped(true);
+        byte[] buf2 = new byte[10];
+        fs.readAt(buf2, 1706, 10);
+        String got = new String(buf2);
+        String expected = "TTCT\n>test";
+        assert (got.equals(expected));
+    }
+
+    @Test
+    public void memoryMappedAttemptToReadPastEndJustReadsLess() throws IOException, NotEnoughSequenceException {
+        fs.setMemoryMapped(true);
+        int charsRead = fs.readAt(buf, 3336, 20);
+        assert (charsRead == 10);
+    }
+
+    @Test
+    public void compressedFilesReadAsUncompressed() throws IOException, NotEnoughSequenceException {
+        // part1 is BGZF in 500-byte blocks, part2 is plain gzip
+        File gzDirectory = new File(ClassLoader.getSystemResource("Test_Genome_Gzipped").getPath());
+        FastaFileSet gz = new FastaFileSet(gzDirectory);
+        assert gz.getTotalSequence() == fs.getTotalSequence();
+
+        // again, using the BGZF block index written the first time
+        gz = new FastaFileSet(gzDirectory);
+        assert gz.getTotalSequence() == fs.getTotalSequence();
+
+        byte[] expected = new byte[(int) fs.getTotalSequence()];
+        byte[] got = new byte[expected.length];
+        fs.readAt(expected, 0, expected.length);
+
+        // backwards, in odd-sized pieces, so that reads straddle blocks and files
+        for (int position = expected.length - 37; position > -37; position -= 37) {
+            int start = Math.max(position, 0);
+            gz.readAt(got, start, 37);
+            for (int i = 0; i < Math.min(37, expected.length - start); i++) {
+                assert got[i] == expected[start + i];
+            }
+        }
+
+        gz.releaseCachedResources();
+        gz.readAt(got, 1706, 10);
+        assert new String(got, 0, 10).equals("TTCT\n>test");
+    }
+
+    @Test
+    public void plainGzipIsDecompressedOnlyWhenUsed() throws IOException {
+        File gz = new File(ClassLoader.getSystemResource("Test_Genome_Gzipped").getPath(), "test_genome_part2.fna.gz");
+        byte[] compressed = new byte[(int) gz.length()];
+        FileInputStream in = new FileInputStream(gz);
+        try {
+            assert in.read(compressed) == compressed.length;
+        } finally {
+            in.close();
+        }
+
+        // a truncated copy opens, since nothing is decompressed until a position is needed
+        File truncated = File.createTempFile("truncated", ".fna.gz");
+        truncated.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(truncated);
+        try {
+            out.write(compressed, 0, compressed.length / 2);
+        } finally {
+            out.close();
+        }
+        FastaFileSet set = new FastaFileSet(truncated);
+        assert set.getFiles().size() == 1;
+        try {
+            set.getTotalSequence();
+            assert false;
+        } catch (SequenceError e) {
+            // expected: the length could only be found by decompressing it
+        }
+    }
+
+    @Test
+    public void plainGzipIsIndexedLikeTheUncompressedFile() throws IOException {
+        File gzDirectory = new File(ClassLoader.getSystemResource("Test_Genome_Gzipped").getPath());
+        FastaFileSet gz = new FastaFileSet(gzDirectory);
+        File plainFile = fs.getFiles().get(1);
+        File gzFile = gz.getFiles().get(1);
+        assert !gz.isRandomAccess(gzFile);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            // the chunk size is ignored, since the file can only be read from the start
+            List<FastaIndex.Entry> expected = FastaIndex.build(fs, plainFile, Long.MAX_VALUE, executor).getEntries();
+            List<FastaIndex.Entry> got = FastaIndex.build(gz, gzFile, 7, executor).getEntries();
+            assert got.size() == expected.size();
+            for (int i = 0; i < got.size(); i++) {
+                assert got.get(i).getName().equals(expected.get(i).getName());
+                assert got.get(i).getOffset() == expected.get(i).getOffset();
+                assert got.get(i).getLength() == expected.get(i).getLength();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void fileHandlePoolEvictsIdleHandlesOnly() throws IOException, NotEnoughSequenceException {
+        FileHandlePool pool = new FileHandlePool(1);
+        fs.setFileHandlePool(pool);
+        byte[] buf2 = new byte[10];
+        for (int i = 0; i < 3; i++) {
+            fs.readAt(buf2, 1706, 10);
+            assert new String(buf2).equals("TTCT\n>test");
+            assert pool.getOpenFiles() == 1;
+        }
+        assert pool.getMisses() == 6;
+        assert pool.getEvictions() == 5;
+
+        // a handle in use survives while the pool briefly goes over its limit for the other file
+        FileHandlePool.Handle held = pool.acquire(fs.getFiles().get(0));
+        fs.readAt(buf2, 1706, 10);
+        assert new String(buf2).equals("TTCT\n>test");
+        assert pool.getOpenFiles() == 1;
+        assert held.read(buf2, 0, 0, 1) == 1;
+        pool.release(held);
+        assert pool.getOpenFiles() == 1;
+    }
+
+    @Test
+    public void persistentIdDependsOnlyOnTheFiles() throws IOException {
+        String id = fs.getPersistentId();
+        assert id != null;
+        assert new FastaFileSet(theDirectory).getPersistentId().equals(id);
+
+        FastaFileSet first = new FastaFileSet(fs.getFiles().get(0));
+        assert !first.getPersistentId().equals(id);
+    }
+
     @Test(expectedExceptions = NotEnoughSequenceException.class)
     public void readAtPositionPastEndThrowsException() throws IOException, NotEnoughSequenceException {
         fs.readAt(buf, 4000, 10);
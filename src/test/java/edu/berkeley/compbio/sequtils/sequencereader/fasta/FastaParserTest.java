@@ -15,10 +15,12 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.net.URL;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 /**
@@ -39,40 +41,6 @@ public class FastaParserTest {
 
     // -------------------------- OTHER METHODS --------------------------
 
-    @Test
-    public void currentPositionIsInHeaderWorksCorrectly()
-            throws NoSuchMethodException, IllegalAccessException, InvocationTargetException, IOException {
-        // trick to test private method
-        final Method checkCurrentPositionIsValidSequence =
-                FastaParser.class.getDeclaredMethod("checkCurrentPositionIsValidSequence");
-        checkCurrentPositionIsValidSequence.setAccessible(true);
-
-        expectPositionValid(checkCurrentPositionIsValidSequence, 0, false);
-        expectPositionValid(checkCurrentPositionIsValidSequence, 7, false);
-        expectPositionValid(checkCurrentPositionIsValidSequence, 35, false);
-        expectPositionValid(checkCurrentPositionIsValidSequence, 36, false);
-        expectPositionValid(checkCurrentPositionIsValidSequence, 37, true);
-        expectPositionValid(checkCurrentPositionIsValidSequence, 37, true);
-        expectPositionValid(checkCurrentPositionIsValidSequence, 50, true);
-        expectPositionValid(checkCurrentPositionIsValidSequence, 500, true);
-        expectPositionValid(checkCurrentPositionIsValidSequence, 5000, false);
-    }
-
-    private void expectPositionValid(Method checkCurrentPositionIsValidSequence, int position, boolean validExpected)
-            throws IOException {
-        fp.seek(position);
-        try {
-            checkCurrentPositionIsValidSequence.invoke(fp);
-        } catch (IllegalAccessException e) {
-            logger.error("Error", e);
-            assert false;
-        } catch (InvocationTargetException e) {
-            assert !validExpected;
-            return;
-        }
-        assert validExpected;
-    }
-
     @Test
     public void headersAreReadCorrectly() throws Exception {
         seq = fp.next().getSequenceName();
@@ -202,6 +170,219 @@ public class FastaParserTest {
         assertSection1p1();
     }
 
+    @Test
+    public void sectionIndexIsWrittenAndReloaded() throws Exception {
+        for (File file : fs.getFiles()) {
+            FastaIndex.indexFileFor(file).delete();
+        }
+
+        // building the index must agree with scanning the headers, and must leave a .fai behind for each file
+        SequenceFragmentMetadata section2p1 = fp.getSequenceFragmentMetadata("testgenome.2.1");
+        for (String name : new String[]{"testgenome.1.1", "testgenome.1.2", "testgenome.2.1", "testgenome.2.2"}) {
+            assert fp.getSequenceFragmentMetadata(name).getStartPosition() == fp.next().getStartPosition();
+        }
+        for (File file : fs.getFiles()) {
+            assert FastaIndex.indexFileFor(file).exists();
+        }
+
+        FastaIndex.Entry entry = FastaIndex.readIfCurrent(fs.getFiles().get(1), fs.getFiles().get(1).length()).getEntries().get(0);
+        assert entry.getName().equals("testgenome.2.1");
+        assert entry.getLineBases() == 70;
+        assert entry.getLineWidth() == 71;
+        assert fs.getFileStart(fs.getFiles().get(1)) + entry.getOffset() == section2p1.getStartPosition();
+
+        FastaParser reloaded = new FastaParser(new FastaFileSet(theDirectory), true);
+        reloaded.seek(reloaded.getSequenceFragmentMetadata("testgenome.2.1"));
+        fp = reloaded;
+        assertSection2p1();
+    }
+
+    @Test
+    public void bulkReadMatchesSingleReadsAndSignalsSectionEnd() throws Exception {
+        SequenceFragmentMetadata section1p1 = fp.next();
+        fp.seek(section1p1);
+        byte[] bulk = new byte[2000];
+        int count = fp.read(bulk, 0, 2000);
+        assert count == 700;
+        assert fp.read(bulk, count, 10) == -1;
+
+        fp.seek(section1p1);
+        for (int i = 0; i < count; i++) {
+            assert fp.read() == bulk[i];
+        }
+
+        // across a buffer refill, and up to the end of the file set
+        fp = new FastaParser(fs, 64, true);
+        fp.next();
+        fp.next();
+        fp.next();
+        fp.seek(fp.next());
+        assert fp.read(bulk, 0, 2000) == 840;
+        assert fp.read(bulk, 0, 2000) == -1;
+    }
+
+    @Test
+    public void bulkTranslatedReadMatchesSingleReads() throws Exception {
+        fp.setTranslationAlphabet(new byte[]{'A', 'C', 'G'});
+        fp.seek(fp.next());
+        int[] translated = new int[5];
+        assert fp.readTranslated(translated, 5) == 5;
+
+        // GCAAC; a symbol outside the alphabet would be -1
+        assert translated[0] == 2;
+        assert translated[1] == 1;
+        assert translated[2] == 0;
+        assert translated[3] == 0;
+        assert translated[4] == 1;
+
+        fp.setTranslationAlphabet(new byte[]{'A', 'C', 'T'});
+        fp.reset();
+        fp.seek(fp.next());
+        assert fp.readTranslated(translated, 1) == 1;
+        assert translated[0] == -1;
+        assert fp.readTranslated() == 1;
+    }
+
+    @Test
+    public void sectionIndexDoesNotDependOnChunkSize() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (File file : fs.getFiles()) {
+                List<FastaIndex.Entry> expected = FastaIndex.build(fs, file, Long.MAX_VALUE, executor).getEntries();
+                for (long chunkSize = 1; chunkSize < 300; chunkSize += 7) {
+                    List<FastaIndex.Entry> got = FastaIndex.build(fs, file, chunkSize, executor).getEntries();
+                    assert got.size() == expected.size();
+                    for (int i = 0; i < got.size(); i++) {
+                        assert got.get(i).getName().equals(expected.get(i).getName());
+                        assert got.get(i).getLength() == expected.get(i).getLength();
+                        assert got.get(i).getOffset() == expected.get(i).getOffset();
+                        assert got.get(i).getLineBases() == expected.get(i).getLineBases();
+                        assert got.get(i).getLineWidth() == expected.get(i).getLineWidth();
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void parserAndIndexAgreeOnCrlfAndTabbedHeaders() throws Exception {
+        File dir = File.createTempFile("crlftest", "");
+        dir.delete();
+        dir.mkdir();
+        File file = new File(dir, "crlf.fna");
+        FileWriter w = new FileWriter(file);
+        w.write(">one\tfirst section\r\nACGT\r\nAC\r\n>two three\r\nGGG\r\n");
+        w.close();
+        FastaFileSet crlf = new FastaFileSet(dir);
+
+        List<FastaIndex.Entry> entries;
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            entries = FastaIndex.build(crlf, file, Long.MAX_VALUE, executor).getEntries();
+        } finally {
+            executor.shutdown();
+        }
+        assert entries.size() == 2;
+        assert entries.get(0).getName().equals("one");
+        assert entries.get(1).getName().equals("two");
+
+        // scanning for headers finds the same names, and the same starts, just past the '\n'
+        FastaParser parser = new FastaParser(crlf, true);
+        for (FastaIndex.Entry entry : entries) {
+            SequenceFragmentMetadata section = parser.next();
+            assert section.getSequenceName().equals(entry.getName());
+            assert section.getStartPosition() == entry.getOffset();
+        }
+        assert parser.getSequenceFragmentMetadata("one").getStartPosition() == entries.get(0).getOffset();
+    }
+
+    @Test
+    public void residueSeekMatchesReadingForward() throws Exception {
+        // 1.1 has ragged lines and is scanned; the others are computed from the line width
+        byte[] section = new byte[1000];
+        for (String name : new String[]{"testgenome.1.1", "testgenome.1.2", "testgenome.2.1", "testgenome.2.2"}) {
+            SequenceFragmentMetadata s = fp.getSequenceFragmentMetadata(name);
+            fp.seek(s);
+            int length = fp.read(section, 0, section.length);
+            for (int residue = 0; residue < length; residue += 23) {
+                fp.seekToResidue(s, residue);
+                assert fp.read() == section[residue];
+            }
+            fp.seekToResidue(s, length);
+            assert fp.read(section, 0, 1) == -1;
+        }
+    }
+
+    @Test
+    public void readAheadMatchesDirectReads() throws Exception {
+        FastaParser ahead = new FastaParser(fs, 64, true);
+        ahead.setReadAhead(3, 100);
+        byte[] expected = new byte[1000];
+        byte[] got = new byte[1000];
+        for (int i = 0; i < 4; i++) {
+            fp.seek(fp.next());
+            SequenceFragmentMetadata section = ahead.next();
+            assert section.getStartPosition() == fp.getSequenceFragmentMetadata(section.getSequenceName()).getStartPosition();
+            ahead.seek(section);
+            int n = fp.read(expected, 0, expected.length);
+            assert ahead.read(got, 0, got.length) == n;
+            for (int j = 0; j < n; j++) {
+                assert got[j] == expected[j];
+            }
+        }
+
+        // back outside the prefetched window
+        ahead.seek(ahead.getSequenceFragmentMetadata("testgenome.1.1"));
+        fp = ahead;
+        assertSection1p1();
+        ahead.close();
+    }
+
+    @Test
+    public void randomFragmentsStartInSequence() throws Exception {
+        for (int i = 0; i < 500; i++) {
+            fp.seek(fp.randomSectionFragment());
+            fp.read();
+        }
+    }
+
+    @Test
+    public void seededShuffleVisitsEachSectionOnceReproducibly() throws Exception {
+        fp.setShuffleSeed(42);
+        String order = "";
+        for (int i = 0; i < 4; i++) {
+            String name = fp.nextShuffled().getSequenceName();
+            assert !order.contains(name);
+            order += name + " ";
+        }
+        try {
+            fp.nextShuffled();
+            assert false;
+        } catch (NotEnoughSequenceException e) {
+            // expected
+        }
+
+        FastaParser again = new FastaParser(fs, true);
+        again.setShuffleSeed(42);
+        for (String name : order.trim().split(" ")) {
+            assert again.nextShuffled().getSequenceName().equals(name);
+        }
+    }
+
+    @Test
+    public void lengthWeightedSectionsAreProportionalToLength() throws Exception {
+        int section1p2 = 0;
+        for (int i = 0; i < 3150; i++) {
+            if (fp.randomSectionLengthWeighted().getSequenceName().equals("testgenome.1.2")) {
+                section1p2++;
+            }
+        }
+        // expect 910, with a standard deviation of about 25
+        assert section1p2 > 800 && section1p2 < 1020;
+    }
+
     @Test
     public void sequenceIsProvidedCorrectlyAcrossFiles() throws Exception {
         fp.seek(fp.next());
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.sequencereader.fasta;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+
+public class ReadAheadBufferTest {
+    // ------------------------------ FIELDS ------------------------------
+
+    FastaFileSet fs;
+
+
+    // -------------------------- OTHER METHODS --------------------------
+
+    @Test
+    public void seekingAwayMoreOftenThanThereAreBuffersKeepsReadingAhead() throws Exception {
+        // each prefetch waits before it starts, so a seek finds the later ones not yet started
+        ExecutorService slow = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>()) {
+            protected void beforeExecute(Thread t, Runnable r) {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        try {
+            ReadAheadBuffer readAhead = new ReadAheadBuffer(fs, 3, 16, slow);
+            for (int i = 0; i < 10; i++) {
+                assertReadsAsFileSet(readAhead, 100);
+                // all three buffers are back in use after each seek
+                assert readAhead.covers(100 + 3 * 16 - 1);
+                assertReadsAsFileSet(readAhead, 3000);
+                assert readAhead.covers(3000 + 3 * 16 - 1);
+            }
+            readAhead.cancel();
+        } finally {
+            slow.shutdown();
+        }
+    }
+
+    private void assertReadsAsFileSet(ReadAheadBuffer readAhead, long position) throws Exception {
+        byte[] got = new byte[16];
+        byte[] expected = new byte[16];
+        int n = readAhead.readAt(got, position, got.length);
+        assert n > 0;
+        assert fs.readAt(expected, position, n) == n;
+        for (int j = 0; j < n; j++) {
+            assert got[j] == expected[j];
+        }
+    }
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        URL url = ClassLoader.getSystemResource("Test_Genome");
+        fs = new FastaFileSet(new File(url.getPath()));
+    }
+}
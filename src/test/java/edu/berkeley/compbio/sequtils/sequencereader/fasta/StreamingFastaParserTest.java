@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.sequencereader.fasta;
+
+import edu.berkeley.compbio.sequtils.NotEnoughSequenceException;
+import edu.berkeley.compbio.sequtils.SequenceFragmentMetadata;
+import org.apache.commons.lang.NotImplementedException;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.SequenceInputStream;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+
+public class StreamingFastaParserTest {
+    // ------------------------------ FIELDS ------------------------------
+
+    FastaFileSet fs;
+    StreamingFastaParser sp;
+
+
+    // -------------------------- OTHER METHODS --------------------------
+
+    @Test
+    public void sectionsMatchTheSeekableParser() throws Exception {
+        FastaParser fp = new FastaParser(fs, true);
+        byte[] expected = new byte[1000];
+        byte[] got = new byte[1000];
+        for (int i = 0; i < 4; i++) {
+            SequenceFragmentMetadata section = fp.next();
+            fp.seek(section);
+            int n = fp.read(expected, 0, expected.length);
+
+            SequenceFragmentMetadata streamed = sp.next();
+            assert streamed.getSequenceName().equals(section.getSequenceName());
+            assert streamed.getStartPosition() == section.getStartPosition();
+            sp.seek(streamed);
+
+            // a single read, then bulk reads in small pieces
+            assert sp.read() == expected[0];
+            int count = 1;
+            int r;
+            while ((r = sp.read(got, count, 17)) > 0) {
+                count += r;
+            }
+            assert count == n;
+            for (int j = 1; j < n; j++) {
+                assert got[j] == expected[j];
+            }
+        }
+    }
+
+    @Test(expectedExceptions = NotEnoughSequenceException.class)
+    public void requestingTooManySectionsProducesNotEnoughSequenceException() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            sp.next();
+        }
+    }
+
+    @Test(expectedExceptions = NotImplementedException.class)
+    public void seekingBackwardsFails() throws Exception {
+        SequenceFragmentMetadata section = sp.next();
+        sp.read();
+        sp.seek(section);
+    }
+
+    @Test
+    public void gzippedStreamIsParsed() throws Exception {
+        File gz = new File(ClassLoader.getSystemResource("Test_Genome_Gzipped").getPath(), "test_genome_part2.fna.gz");
+        sp = new StreamingFastaParser(new GZIPInputStream(new FileInputStream(gz)), "gz", null, false);
+        assert sp.next().getSequenceName().equals("testgenome.2.1");
+        assert sp.read() == 'C';
+        assert sp.next().getSequenceName().equals("testgenome.2.2");
+    }
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        fs = new FastaFileSet(new File(ClassLoader.getSystemResource("Test_Genome").getPath()));
+        sp = new StreamingFastaParser(new SequenceInputStream(new FileInputStream(fs.getFiles().get(0)),
+                                                              new FileInputStream(fs.getFiles().get(1))),
+                                      fs.getName(), null, 64, true);
+    }
+}
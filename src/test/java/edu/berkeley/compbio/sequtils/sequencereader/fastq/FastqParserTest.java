@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.sequencereader.fastq;
+
+import com.davidsoergel.dsutils.math.MersenneTwisterFast;
+import edu.berkeley.compbio.sequtils.NotEnoughSequenceException;
+import edu.berkeley.compbio.sequtils.SequenceFragmentMetadata;
+import edu.berkeley.compbio.sequtils.sequencereader.fasta.FastaFileSet;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+
+public class FastqParserTest {
+    // ------------------------------ FIELDS ------------------------------
+
+    FastqParser fp;
+
+
+    // -------------------------- OTHER METHODS --------------------------
+
+    @Test
+    public void recordsAreReadAsSections() throws Exception {
+        SequenceFragmentMetadata read1 = fp.next();
+        assert read1.getSequenceName().equals("read1");
+        assert read1.getLength() == 10;
+        SequenceFragmentMetadata read2 = fp.next();
+        assert read2.getSequenceName().equals("read2");
+        assert fp.read() == 'G';
+        assert fp.next().getSequenceName().equals("read3");
+
+        fp.seek(read1, 4);
+        byte[] bases = new byte[20];
+        byte[] qualities = new byte[20];
+        assert fp.read(bases, qualities, 20) == 6;
+        assert new String(bases, 0, 6).equals("ACGTAC");
+        assert qualities[0] == 40;
+        assert qualities[4] == 2;
+    }
+
+    @Test(expectedExceptions = NotEnoughSequenceException.class)
+    public void readingPastEndOfRecordProducesNotEnoughSequenceException() throws Exception {
+        fp.seek(fp.next());
+        for (int i = 0; i < 11; i++) {
+            fp.read();
+        }
+    }
+
+    @Test(expectedExceptions = NotEnoughSequenceException.class)
+    public void requestingTooManySectionsProducesNotEnoughSequenceException() throws Exception {
+        fp.next();
+        fp.next();
+        fp.next();
+        fp.next();
+    }
+
+    @Test
+    public void lowQualityBasesAreMaskedWhenTranslating() throws Exception {
+        fp.setTranslationAlphabet(new byte[]{'A', 'C', 'G', 'T', 'N'});
+        fp.setMinQuality(20);
+        fp.seek(fp.getSequenceFragmentMetadata("read2"));
+        int[] translated = new int[10];
+        assert fp.readTranslated(translated, 10) == 10;
+        assert translated[0] == 4;
+        assert translated[1] == 4;
+        assert translated[2] == 2;
+        assert translated[9] == 3;
+    }
+
+    @Test
+    public void randomFragmentsLieInsideReads() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            SequenceFragmentMetadata fragment = fp.randomSectionFragment();
+            fp.seek(fragment);
+            int remaining = fp.read(new byte[20], 20);
+            assert remaining > 0;
+            assert fragment.getStartPosition() + remaining == fragment.getParentMetadata().getLength();
+        }
+    }
+
+    @Test
+    public void randomFragmentsSkipEmptyReads() throws Exception {
+        // three empty reads after the first repeat its total, and a search for the first base after it lands on one
+        File theDirectory = new File(ClassLoader.getSystemResource("Test_Reads_Empty").getPath());
+        FastqParser parser = new FastqParser(new FastaFileSet(theDirectory, FastqParser.FASTQ_EXTENSIONS));
+        for (int i = 0; i < 200; i++) {
+            SequenceFragmentMetadata fragment = parser.randomSectionFragment();
+            assert fragment.getParentMetadata().getSequenceName().startsWith("read");
+            assert fragment.getStartPosition() < fragment.getParentMetadata().getLength();
+        }
+    }
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        MersenneTwisterFast.init();
+        File theDirectory = new File(ClassLoader.getSystemResource("Test_Reads").getPath());
+        fp = new FastqParser(new FastaFileSet(theDirectory, FastqParser.FASTQ_EXTENSIONS));
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.strings;
+
+import com.davidsoergel.dsutils.GenericFactoryException;
+import com.davidsoergel.dsutils.math.MersenneTwisterFast;
+import com.davidsoergel.stats.DistributionProcessorException;
+import edu.berkeley.compbio.sequtils.FilterException;
+import edu.berkeley.compbio.sequtils.NotEnoughSequenceException;
+import edu.berkeley.compbio.sequtils.SubstitutionFilter;
+import edu.berkeley.compbio.sequtils.strings.KcountFixtures.SimpleLongKcount;
+import edu.berkeley.compbio.sequtils.strings.KcountFixtures.SimpleSparseKcount;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+
+public class CompositeSpectrumScannerTest {
+    // ------------------------------ FIELDS ------------------------------
+
+    private static final byte[] DNA = new byte[]{'A', 'C', 'G', 'T'};
+
+
+    // -------------------------- OTHER METHODS --------------------------
+
+    @Test
+    public void oneReadMakesKcountsForVariousK() throws Exception {
+        byte[] seq = randomSequence(40000);
+        CountingScanner k3 = new CountingScanner(3);
+        CountingScanner k5 = new CountingScanner(5);
+        CountingScanner k8 = new CountingScanner(8);
+        CompositeSpectrumScanner composite = new CompositeSpectrumScanner(DNA, k3, k5, k8);
+        SequenceFragment fragment = new SequenceFragment(seq, composite);
+
+        SequenceSpectrum base = fragment.getBaseSpectrum();
+        SequenceSpectrum s5 = fragment.getSpectrum(k5);
+        SequenceSpectrum s8 = fragment.getSpectrum(k8);
+
+        // one pass fed all three, and none was scanned on its own
+        assert k3.accumulators == 1 && k5.accumulators == 1 && k8.accumulators == 1;
+        assert k3.scans == 0 && k5.scans == 0 && k8.scans == 0;
+
+        // the spectra of the same class are kept apart
+        assert fragment.getSpectrum(k3) == base;
+        assert ((Kcount) base).getK() == 3;
+        assert ((Kcount) s5).getK() == 5;
+        assert ((Kcount) s8).getK() == 8;
+        assert fragment.getSpectrum(k5) == s5;
+        assert fragment.getSpectrum(k8) == s8;
+
+        // and agree with separate scans
+        assert s5.spectrumEquals(scanAlone(seq, 5));
+        assert s8.spectrumEquals(scanAlone(seq, 8));
+        assert base.spectrumEquals(scanAlone(seq, 3));
+
+        // asking by class finds the base spectrum first
+        assert fragment.getSpectrum(SimpleSparseKcount.class, null) == base;
+    }
+
+    @Test
+    public void derivedSpectraByClassComeFromTheFirstMatchingScanner() throws Exception {
+        byte[] seq = randomSequence(1000);
+        CompositeSpectrumScanner composite =
+                new CompositeSpectrumScanner(DNA, new OtherScanner(), new CountingScanner(4), new CountingScanner(6));
+        SequenceFragment fragment = new SequenceFragment(seq, composite);
+
+        SequenceSpectrum s = fragment.getSpectrum(SimpleSparseKcount.class, null);
+        assert ((Kcount) s).getK() == 4;
+    }
+
+    @Test
+    public void evictedDerivedSpectraAreMadeAgain() throws Exception {
+        byte[] seq = randomSequence(5000);
+        CountingScanner k3 = new CountingScanner(3);
+        CountingScanner k7 = new CountingScanner(7);
+        SequenceFragment fragment = new SequenceFragment(seq, new CompositeSpectrumScanner(DNA, k3, k7));
+        SequenceSpectrum before = fragment.getSpectrum(k7);
+
+        // rescanning the evicted base spectrum makes the other again in the same read
+        SequenceFragment.getSpectrumCache().releaseCachedResources();
+        SequenceSpectrum after = fragment.getSpectrum(k7);
+        assert after != before;
+        assert after.spectrumEquals(before);
+        assert k7.accumulators == 2;
+        assert k7.scans == 0;
+
+        // but with a base spectrum that can't be rescanned, it's made by its own scanner alone
+        fragment.setBaseSpectrum(fragment.getBaseSpectrum().clone());
+        after = fragment.getSpectrum(k7);
+        assert after.spectrumEquals(before);
+        assert k7.scans == 1;
+        assert k3.scans == 0;
+    }
+
+    @Test(expectedExceptions = SequenceSpectrumException.class)
+    public void otherScannersAreRefused() throws Exception {
+        SequenceFragment fragment =
+                new SequenceFragment(randomSequence(100), new CompositeSpectrumScanner(DNA, new CountingScanner(2)));
+        fragment.getSpectrum(new CountingScanner(2));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void aScannerGivenTwiceIsRefused() {
+        CountingScanner k5 = new CountingScanner(5);
+        new CompositeSpectrumScanner(DNA, new CountingScanner(3), k5, k5);
+    }
+
+    private static SimpleSparseKcount scanAlone(byte[] seq, int k) throws Exception {
+        RollingKcountScanner<SimpleSparseKcount> scanner =
+                new RollingKcountScanner<SimpleSparseKcount>(new SimpleSparseKcount(DNA, k));
+        return scanner.scanSequence(new SequenceFragment(seq, scanner));
+    }
+
+    private static byte[] randomSequence(int length) {
+        MersenneTwisterFast random = new MersenneTwisterFast(7);
+        byte[] seq = new byte[length];
+        for (int i = 0; i < seq.length; i++) {
+            seq[i] = random.nextInt(50) == 0 ? (byte) 'N' : DNA[random.nextInt(4)];
+        }
+        return seq;
+    }
+
+    /**
+     * Counts k-mers like a RollingKcountScanner, noting how often it's used on its own and in a shared read
+     */
+    private static class CountingScanner implements AccumulatingSpectrumScanner {
+        private final RollingKcountScanner<SimpleSparseKcount> delegate;
+        private int accumulators = 0;
+        private int scans = 0;
+
+        private CountingScanner(int k) {
+            delegate = new RollingKcountScanner<SimpleSparseKcount>(new SimpleSparseKcount(DNA, k));
+        }
+
+        public synchronized SpectrumAccumulator newAccumulator(SequenceFragment fragment) {
+            accumulators++;
+            return delegate.newAccumulator(fragment);
+        }
+
+        public SequenceSpectrum getEmpty() {
+            return delegate.getEmpty();
+        }
+
+        public SubstitutionFilter getNucleotideFilter() {
+            return null;
+        }
+
+        public String getPersistentId() {
+            return null;
+        }
+
+        public synchronized SequenceSpectrum scanSequence(SequenceFragment fragment)
+                throws IOException, FilterException, NotEnoughSequenceException, DistributionProcessorException,
+                       GenericFactoryException {
+            scans++;
+            return delegate.scanSequence(fragment);
+        }
+
+        public SequenceSpectrum scanSequence(SequenceFragment fragment, byte[] prefix)
+                throws IOException, FilterException, NotEnoughSequenceException, DistributionProcessorException,
+                       GenericFactoryException {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Makes empty spectra of a class other than SimpleSparseKcount, to stand first in a CompositeSpectrumScanner
+     */
+    private static class OtherScanner implements AccumulatingSpectrumScanner {
+        public SpectrumAccumulator newAccumulator(SequenceFragment fragment) {
+            return new SpectrumAccumulator() {
+                public void add(int[] symbols, int length) {
+                }
+
+                public SequenceSpectrum finish() {
+                    return getEmpty();
+                }
+            };
+        }
+
+        public SequenceSpectrum getEmpty() {
+            return new SimpleLongKcount(DNA, 2);
+        }
+
+        public SubstitutionFilter getNucleotideFilter() {
+            return null;
+        }
+
+        public String getPersistentId() {
+            return null;
+        }
+
+        public SequenceSpectrum scanSequence(SequenceFragment fragment) {
+            return getEmpty();
+        }
+
+        public SequenceSpectrum scanSequence(SequenceFragment fragment, byte[] prefix) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
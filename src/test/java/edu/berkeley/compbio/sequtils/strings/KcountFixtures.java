@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.strings;
+
+import com.davidsoergel.dsutils.collections.MutableWeightedSet;
+import com.davidsoergel.dsutils.collections.WeightedSet;
+import com.davidsoergel.stats.Multinomial;
+
+
+/**
+ * The simplest concrete Kcounts, for testing the counting itself.  The methods of SequenceSpectrum and Clusterable that
+ * have nothing to do with counting are declared only because they're abstract, and aren't supported.  The two classes
+ * can't share a superclass for them, since each must extend the Kcount it tests.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+
+public final class KcountFixtures {
+    // --------------------------- CONSTRUCTORS ---------------------------
+
+    private KcountFixtures() {
+    }
+
+    // -------------------------- OTHER METHODS --------------------------
+
+    private static UnsupportedOperationException unsupported() {
+        return new UnsupportedOperationException("Test Kcounts only count");
+    }
+
+    // -------------------------- INNER CLASSES --------------------------
+
+    /**
+     * The simplest concrete SparseKcount
+     */
+    public static class SimpleSparseKcount extends SparseKcount<SimpleSparseKcount> {
+        public SimpleSparseKcount(final byte[] alphabet, final int k) {
+            super(alphabet, k);
+        }
+
+        public SimpleSparseKcount clone() {
+            final SimpleSparseKcount result = new SimpleSparseKcount(alphabet, k);
+            result.copyCountsFrom(this);
+            return result;
+        }
+
+        protected SimpleSparseKcount newEmpty(final int k) {
+            return new SimpleSparseKcount(alphabet, k);
+        }
+
+        public SimpleSparseKcount times(final double v) {
+            final SimpleSparseKcount result = clone();
+            result.multiplyBy(v);
+            return result;
+        }
+
+        public String getId() {
+            return getClass().getSimpleName();
+        }
+
+        public int getMaxDepth() {
+            return k;
+        }
+
+        public void setIgnoreEdges(final boolean b) {
+        }
+
+        public void setImmutable() {
+        }
+
+        public MutableWeightedSet<String> getMutableWeightedLabels() {
+            throw unsupported();
+        }
+
+        public WeightedSet<String> getImmutableWeightedLabels() {
+            throw unsupported();
+        }
+
+        public double conditionalProbability(final byte sigma, final byte[] prefix) {
+            throw unsupported();
+        }
+
+        public Multinomial<Byte> conditionalsFrom(final byte[] prefix) {
+            throw unsupported();
+        }
+
+        public double fragmentLogProbability(final SequenceFragment sequenceFragment, final boolean perSample) {
+            throw unsupported();
+        }
+
+        public byte sample(final byte[] prefix) {
+            throw unsupported();
+        }
+
+        public byte[] sample(final int length) {
+            throw unsupported();
+        }
+
+        public double totalProbability(final byte[] s) {
+            throw unsupported();
+        }
+    }
+
+    /**
+     * The simplest concrete LongKcount
+     */
+    public static class SimpleLongKcount extends LongKcount<SimpleLongKcount> {
+        public SimpleLongKcount(final byte[] alphabet, final int k) {
+            super(alphabet, k);
+        }
+
+        public SimpleLongKcount clone() {
+            final SimpleLongKcount result = new SimpleLongKcount(alphabet, k);
+            result.copyCountsFrom(this);
+            return result;
+        }
+
+        protected SimpleLongKcount newEmpty(final int k) {
+            return new SimpleLongKcount(alphabet, k);
+        }
+
+        public SimpleLongKcount times(final double v) {
+            final SimpleLongKcount result = clone();
+            result.multiplyBy(v);
+            return result;
+        }
+
+        public String getId() {
+            return getClass().getSimpleName();
+        }
+
+        public int getMaxDepth() {
+            return k;
+        }
+
+        public void setIgnoreEdges(final boolean b) {
+        }
+
+        public void setImmutable() {
+        }
+
+        public MutableWeightedSet<String> getMutableWeightedLabels() {
+            throw unsupported();
+        }
+
+        public WeightedSet<String> getImmutableWeightedLabels() {
+            throw unsupported();
+        }
+
+        public double conditionalProbability(final byte sigma, final byte[] prefix) {
+            throw unsupported();
+        }
+
+        public Multinomial<Byte> conditionalsFrom(final byte[] prefix) {
+            throw unsupported();
+        }
+
+        public double fragmentLogProbability(final SequenceFragment sequenceFragment, final boolean perSample) {
+            throw unsupported();
+        }
+
+        public byte sample(final byte[] prefix) {
+            throw unsupported();
+        }
+
+        public byte[] sample(final int length) {
+            throw unsupported();
+        }
+
+        public double totalProbability(final byte[] s) {
+            throw unsupported();
+        }
+    }
+}
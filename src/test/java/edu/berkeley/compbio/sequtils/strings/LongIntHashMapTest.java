@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.strings;
+
+import com.davidsoergel.dsutils.math.MersenneTwisterFast;
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+
+public class LongIntHashMapTest {
+    // -------------------------- OTHER METHODS --------------------------
+
+    @Test
+    public void entriesThatReachZeroAreRemoved() {
+        LongIntHashMap map = new LongIntHashMap();
+        assert map.add(5L, 3) == 3;
+        assert map.add(1L << 60, 1) == 1;
+        assert map.add(5L, -3) == 0;
+        assert map.size() == 1;
+        assert map.get(5L) == 0;
+        assert map.get(1L << 60) == 1;
+
+        LongIntHashMap.Cursor c = map.cursor();
+        assert c.next();
+        assert c.key() == 1L << 60;
+        assert c.value() == 1;
+        assert !c.next();
+    }
+
+    @Test
+    public void agreesWithHashMapThroughGrowthAndRemoval() {
+        MersenneTwisterFast random = new MersenneTwisterFast(17);
+        LongIntHashMap map = new LongIntHashMap();
+        Map<Long, Integer> expected = new HashMap<Long, Integer>();
+        for (int i = 0; i < 20000; i++) {
+            // few enough keys that many are brought back to zero
+            long key = random.nextInt(2000) * 1000003L;
+            int delta = random.nextInt(5) - 2;
+            map.add(key, delta);
+            Integer old = expected.get(key);
+            int v = (old == null ? 0 : old) + delta;
+            if (v == 0) {
+                expected.remove(key);
+            } else {
+                expected.put(key, v);
+            }
+        }
+
+        assert map.size() == expected.size();
+        int visited = 0;
+        LongIntHashMap.Cursor c = map.cursor();
+        while (c.next()) {
+            assert expected.get(c.key()) == c.value();
+            visited++;
+        }
+        assert visited == expected.size();
+        for (Map.Entry<Long, Integer> e : expected.entrySet()) {
+            assert map.get(e.getKey()) == e.getValue();
+        }
+    }
+}
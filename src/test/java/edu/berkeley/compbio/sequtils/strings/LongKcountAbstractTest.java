@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.sequtils.strings;
+
+import com.davidsoergel.dsutils.AtomicContractTest;
+import com.davidsoergel.dsutils.TestInstanceFactory;
+import org.testng.annotations.Test;
+
+/**
+ * Tests that any LongKcount keeps its counts consistent through copying, adding and aggregating.  The instance factory
+ * should provide a LongKcount with some words counted, and with few enough bins (say 4^8) that they can all be visited.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class LongKcountAbstractTest<T extends LongKcount> extends AtomicContractTest
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private final TestInstanceFactory<T> tif;
+
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	public LongKcountAbstractTest(final TestInstanceFactory<T> tif)
+		{
+		this.tif = tif;
+		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	@Test
+	public void cloneHasEqualValueButSeparateCounts() throws Exception
+		{
+		final T kc = tif.createInstance();
+		final LongKcount copy = (LongKcount) kc.clone();
+		assert copy != kc;
+		assert copy.equalValue(kc);
+
+		copy.increment(0);
+		assert kc.getCount(0) == copy.getCount(0) - 1;
+		assert !copy.equalValue(kc);
+		}
+
+	@Test
+	public void incrementingByItselfDoublesEveryCount() throws Exception
+		{
+		final T kc = tif.createInstance();
+		final LongKcount before = (LongKcount) kc.clone();
+		kc.incrementBy(kc);
+		assert kc.getSum() == 2 * before.getSum();
+		for (long bin = 0; bin < kc.getNumberOfBinsLong(); bin++)
+			{
+			assert kc.getCount((int) bin) == 2 * before.getCount((int) bin);
+			}
+		}
+
+	@Test
+	public void parentSumsOverTheLastSymbol() throws Exception
+		{
+		final T kc = tif.createInstance();
+		final LongKcount parent = (LongKcount) kc.getParent();
+		assert parent.getK() == kc.getK() - 1;
+		assert parent.getSum() == kc.getSum();
+
+		final int symbols = kc.getAlphabet().length;
+		for (long bin = 0; bin < parent.getNumberOfBinsLong(); bin++)
+			{
+			long expected = 0;
+			for (int s = 0; s < symbols; s++)
+				{
+				expected += kc.getCount((int) (bin * symbols + s));
+				}
+			assert parent.getCount((int) bin) == expected;
+			}
+		}
+	}
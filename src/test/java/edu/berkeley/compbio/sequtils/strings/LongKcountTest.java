@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.strings;
+
+import com.davidsoergel.dsutils.ContractTest;
+import com.davidsoergel.dsutils.ContractTestAware;
+import com.davidsoergel.dsutils.TestInstanceFactory;
+import edu.berkeley.compbio.sequtils.strings.KcountFixtures.SimpleLongKcount;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Queue;
+
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+
+public class LongKcountTest extends ContractTestAware<LongKcountTest>
+        implements TestInstanceFactory<SimpleLongKcount> {
+    // ------------------------------ FIELDS ------------------------------
+
+    private static final byte[] DNA = new byte[]{'a', 'c', 'g', 't'};
+
+
+    // ------------------------ INTERFACE METHODS ------------------------
+
+
+    // --------------------- Interface TestInstanceFactory ---------------------
+
+    public SimpleLongKcount createInstance() {
+        SimpleLongKcount kc = new SimpleLongKcount(DNA, 6);
+        kc.increment(kc.idForSequence("acgtac".getBytes()));
+        kc.increment(kc.idForSequence("cgtacg".getBytes()));
+        return kc;
+    }
+
+    // -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addContractTestsToQueue(final Queue<ContractTest> theContractTests) {
+        theContractTests.add(new KcountAbstractTest<SimpleLongKcount>(this));
+        theContractTests.add(new LongKcountAbstractTest<SimpleLongKcount>(this));
+    }
+
+    @Test
+    public void onlyTheChunksCountedInAreAllocated() {
+        SimpleLongKcount kc = new SimpleLongKcount(DNA, 16);
+        assert kc.getNumberOfBinsLong() == 1L << 32;
+        assert kc.getNumberOfBins() == Integer.MAX_VALUE;
+        assert kc.getNumberOfAllocatedChunks() == 0;
+
+        int size = LongKcount.CHUNK_SIZE;
+        kc.increment(0);
+        kc.increment(size - 1);
+        kc.add(size, 3);
+        kc.increment(0xFFFFFFFF);
+        assert kc.getNumberOfAllocatedChunks() == 3;
+
+        assert kc.getCount(0) == 1;
+        assert kc.getCount(size - 1) == 1;
+        assert kc.getCount(size) == 3;
+        assert kc.getCount(size + 1) == 0;
+        assert kc.getCount(0xFFFFFFFF) == 1;
+        assert kc.getCount(0x7FFFFFFF) == 0;
+        assert kc.getSum() == 6;
+
+        kc.clear();
+        assert kc.getNumberOfAllocatedChunks() == 0;
+        assert kc.getSum() == 0;
+        assert kc.getCount(size) == 0;
+    }
+
+    @Test
+    public void unallocatedChunksEqualZeroedOnes() {
+        SimpleLongKcount a = new SimpleLongKcount(DNA, 10);
+        SimpleLongKcount b = new SimpleLongKcount(DNA, 10);
+        a.increment(3 * LongKcount.CHUNK_SIZE + 5);
+        a.add(3 * LongKcount.CHUNK_SIZE + 5, -1);
+        assert a.getNumberOfAllocatedChunks() == 1;
+        assert a.equalValue(b);
+        assert b.equalValue(a);
+
+        b.increment(7);
+        assert !a.equalValue(b);
+    }
+
+    @Test
+    public void idsAreUnsignedAtKSixteen() {
+        SimpleLongKcount kc = new SimpleLongKcount(DNA, 16);
+        byte[] seq = new byte[16];
+        Arrays.fill(seq, (byte) 't');
+        int id = kc.idForSequence(seq);
+        assert id == 0xFFFFFFFF;
+        assert Arrays.equals(kc.sequenceForId(id), seq);
+        assert kc.prefixId(id) == 0x3FFFFFFF;
+        assert kc.suffixId(id) == 0x3FFFFFFF;
+        assert Arrays.equals(kc.prefixForId(id), Arrays.copyOf(seq, 15));
+        assert kc.lastSymbolForId(id) == 't';
+
+        // the first symbol is the most significant, so a word starting with g has the top bit set
+        seq[0] = 'g';
+        id = kc.idForSequence(seq);
+        assert id < 0;
+        assert Arrays.equals(kc.sequenceForId(id), seq);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void moreThanTwoToTheThirtyTwoBinsAreRefused() {
+        new SimpleLongKcount(DNA, 17);
+    }
+
+    @Test
+    public void parentSumsOverTheLastSymbolAcrossChunks() {
+        // 4^9 bins span four chunks, and the parent's 4^8 bins fit in one
+        SimpleLongKcount kc = new SimpleLongKcount(DNA, 9);
+        kc.add(kc.idForSequence("aaaaaaaac".getBytes()), 2);
+        kc.add(kc.idForSequence("aaaaaaaat".getBytes()), 3);
+        kc.add(kc.idForSequence("tttttttta".getBytes()), 4);
+        kc.add(kc.idForSequence("gcgcgcgcg".getBytes()), 1);
+        kc.addUnknown();
+        assert kc.getNumberOfAllocatedChunks() == 3;
+
+        SimpleLongKcount parent = kc.getParent();
+        assert parent.getK() == 8;
+        assert parent.getCount(parent.idForSequence("aaaaaaaa".getBytes())) == 5;
+        assert parent.getCount(parent.idForSequence("tttttttt".getBytes())) == 4;
+        assert parent.getCount(parent.idForSequence("gcgcgcgc".getBytes())) == 1;
+        assert parent.getSum() == 10;
+        assert parent.getOriginalSequenceLength() == kc.getOriginalSequenceLength();
+        assert parent.getUnknownCount() == 1;
+    }
+
+    @Test
+    public void addScaledVisitsOnlyAllocatedChunks() {
+        SimpleLongKcount a = new SimpleLongKcount(DNA, 12);
+        a.add(5, 2);
+        a.add(200 * LongKcount.CHUNK_SIZE + 9, 3);
+
+        SimpleLongKcount b = new SimpleLongKcount(DNA, 12);
+        b.add(5, 1);
+        b.incrementBy(a);
+        assert b.getNumberOfAllocatedChunks() == 2;
+        assert b.getCount(5) == 3;
+        assert b.getCount(200 * LongKcount.CHUNK_SIZE + 9) == 3;
+        assert b.getSum() == 6;
+
+        b.incrementByWeighted(a, 2.5);
+        assert b.getCount(5) == 8;
+        assert b.getCount(200 * LongKcount.CHUNK_SIZE + 9) == 11;
+        assert b.getSum() == 19;
+
+        b.decrementBy(a);
+        assert b.getCount(5) == 6;
+        assert b.getSum() == 14;
+
+        b.incrementBy(b);
+        assert b.getCount(5) == 12;
+        assert b.getCount(200 * LongKcount.CHUNK_SIZE + 9) == 16;
+        assert b.getSum() == 28;
+    }
+
+    @Test(expectedExceptions = SequenceSpectrumRuntimeException.class)
+    public void addingDifferentWordLengthsIsRefused() {
+        new SimpleLongKcount(DNA, 4).incrementBy(new SimpleLongKcount(DNA, 5));
+    }
+
+    @Test
+    public void multiplyByRounds() {
+        SimpleLongKcount kc = new SimpleLongKcount(DNA, 10);
+        kc.add(1, 1);
+        kc.add(2 * LongKcount.CHUNK_SIZE, 5);
+        kc.multiplyBy(0.3);
+        assert kc.getCount(1) == 0;
+        assert kc.getCount(2 * LongKcount.CHUNK_SIZE) == 2;
+        assert kc.getSum() == 2;
+    }
+
+    @Test
+    public void cloneCopiesTheChunks() {
+        SimpleLongKcount kc = new SimpleLongKcount(DNA, 10);
+        kc.add(2 * LongKcount.CHUNK_SIZE + 1, 4);
+        SimpleLongKcount copy = kc.clone();
+        assert copy.equalValue(kc);
+        assert copy.getNumberOfAllocatedChunks() == 1;
+
+        copy.increment(2 * LongKcount.CHUNK_SIZE + 1);
+        assert kc.getCount(2 * LongKcount.CHUNK_SIZE + 1) == 4;
+        assert !copy.equalValue(kc);
+    }
+}
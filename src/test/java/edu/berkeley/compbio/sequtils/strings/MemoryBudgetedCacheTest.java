@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.strings;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+
+public class MemoryBudgetedCacheTest {
+    // -------------------------- OTHER METHODS --------------------------
+
+    @Test
+    public void leastRecentlyUsedValuesAreEvictedToStayWithinBudget() {
+        MemoryBudgetedCache<String, String> cache = new MemoryBudgetedCache<String, String>(100);
+        cache.put("a", "A", 40);
+        cache.put("b", "B", 40);
+        assert cache.get("a").equals("A");
+
+        // b is now the least recently used
+        cache.put("c", "C", 40);
+        assert cache.get("b") == null;
+        assert cache.get("a").equals("A");
+        assert cache.get("c").equals("C");
+        assert cache.getBytes() == 80;
+        assert cache.getEvictions() == 1;
+        assert cache.getHits() == 3;
+        assert cache.getMisses() == 1;
+
+        // too big to cache at all
+        cache.put("d", "D", 101);
+        assert cache.get("d") == null;
+        assert cache.size() == 2;
+
+        cache.setMaxBytes(50);
+        assert cache.size() == 1;
+        assert cache.get("c").equals("C");
+    }
+
+    @Test
+    public void concurrentRequestsComputeOnce() throws Exception {
+        final MemoryBudgetedCache<String, String> cache = new MemoryBudgetedCache<String, String>(100);
+        final AtomicInteger computations = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final MemoryBudgetedCache.Weigher<String> weigher = new MemoryBudgetedCache.Weigher<String>() {
+            public long bytes(String value) {
+                return value.length();
+            }
+        };
+        ExecutorService exec = Executors.newFixedThreadPool(8);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        for (int i = 0; i < 8; i++) {
+            results.add(exec.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    start.await();
+                    return cache.getOrCompute("k", new Callable<String>() {
+                        public String call() throws Exception {
+                            computations.incrementAndGet();
+                            Thread.sleep(50);
+                            return "value";
+                        }
+                    }, weigher);
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<String> f : results) {
+            assert f.get().equals("value");
+        }
+        exec.shutdown();
+        assert computations.get() == 1;
+        assert cache.getBytes() == 5;
+        // each request is one hit or one miss, and at least the one that computed the value missed
+        assert cache.getHits() + cache.getMisses() == 8;
+        assert cache.getMisses() >= 1;
+    }
+
+    @Test
+    public void evictedSequencesAreReread() {
+        byte[] sequence = "ACGTTGCA".getBytes();
+        SequenceFragment fragment = new SequenceFragment(sequence, null);
+        assert fragment.getRawSequence() == sequence;
+
+        MemoryBudgetedCache<?, byte[]> cache = SequenceFragment.getSequenceCache();
+        cache.releaseCachedResources();
+        long hits = cache.getHits();
+        long misses = cache.getMisses();
+        byte[] reread = fragment.getRawSequence();
+        assert reread != sequence;
+        assert new String(reread).equals("ACGTTGCA");
+        assert cache.getMisses() == misses + 1;
+        assert fragment.getRawSequence() == reread;
+        assert cache.getHits() == hits + 1;
+    }
+}
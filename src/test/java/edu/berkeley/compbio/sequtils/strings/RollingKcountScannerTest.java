@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.strings;
+
+import com.davidsoergel.dsutils.math.MersenneTwisterFast;
+import edu.berkeley.compbio.sequtils.strings.KcountFixtures.SimpleSparseKcount;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+
+public class RollingKcountScannerTest {
+    // ------------------------------ FIELDS ------------------------------
+
+    private static final byte[] DNA = new byte[]{'A', 'C', 'G', 'T'};
+
+    // the block size used by CompositeSpectrumScanner.readBlocks()
+    private static final int BLOCK = 16384;
+
+
+    // -------------------------- OTHER METHODS --------------------------
+
+    @Test
+    public void countsAgreeWithNaiveCounting() throws Exception {
+        byte[] seq = randomSequence();
+        for (int k : new int[]{1, 3, 8, 12, SparseKcount.MAX_K}) {
+            RollingKcountScanner<SimpleSparseKcount> scanner =
+                    new RollingKcountScanner<SimpleSparseKcount>(new SimpleSparseKcount(DNA, k));
+            SimpleSparseKcount kc = scanner.scanSequence(new SequenceFragment(seq, scanner));
+            assertCounts(kc, naiveCounts(seq, k, new byte[0]));
+            assert kc.getOriginalSequenceLength() == seq.length;
+            assert kc.getUnknownCount() == countUnknown(seq);
+        }
+    }
+
+    @Test
+    public void wordsSpanningBlocksAreCounted() throws Exception {
+        byte[] seq = randomSequence();
+        byte[] word = "GATTACAGATTACA".getBytes();
+        System.arraycopy(word, 0, seq, BLOCK - 5, word.length);
+        System.arraycopy(word, 0, seq, 2 * BLOCK - 9, word.length);
+
+        RollingKcountScanner<SimpleSparseKcount> scanner =
+                new RollingKcountScanner<SimpleSparseKcount>(new SimpleSparseKcount(DNA, word.length));
+        SimpleSparseKcount kc = scanner.scanSequence(new SequenceFragment(seq, scanner));
+        Map<Long, Integer> expected = naiveCounts(seq, word.length, new byte[0]);
+        assert expected.get(kc.keyForSequence(word)) >= 2;
+        assertCounts(kc, expected);
+    }
+
+    @Test
+    public void unknownSymbolsRestartTheWord() throws Exception {
+        RollingKcountScanner<SimpleSparseKcount> scanner =
+                new RollingKcountScanner<SimpleSparseKcount>(new SimpleSparseKcount(DNA, 3));
+        SimpleSparseKcount kc = scanner.scanSequence(new SequenceFragment("ACGNTACNNGT".getBytes(), scanner));
+
+        // only ACG and TAC are whole words of known symbols
+        assert kc.getNumberOfDistinctWords() == 2;
+        assert kc.getCount(kc.keyForSequence("ACG".getBytes())) == 1;
+        assert kc.getCount(kc.keyForSequence("TAC".getBytes())) == 1;
+        assert kc.getUnknownCount() == 3;
+        assert kc.getOriginalSequenceLength() == 11;
+    }
+
+    @Test
+    public void prefixedScanCountsOnlyWordsAfterThePrefix() throws Exception {
+        byte[] seq = randomSequence();
+        for (String prefix : new String[]{"A", "CA", "GTTA"}) {
+            for (int k : new int[]{1, 5}) {
+                RollingKcountScanner<SimpleSparseKcount> scanner =
+                        new RollingKcountScanner<SimpleSparseKcount>(new SimpleSparseKcount(DNA, k));
+                SimpleSparseKcount kc = scanner.scanSequence(new SequenceFragment(seq, scanner), prefix.getBytes());
+                Map<Long, Integer> expected = naiveCounts(seq, k, prefix.getBytes());
+                assert !expected.isEmpty();
+                assertCounts(kc, expected);
+                assert kc.getOriginalSequenceLength() == seq.length;
+                assert kc.getUnknownCount() == countUnknown(seq);
+            }
+        }
+    }
+
+    @Test
+    public void prefixedScanRestartsAfterUnknownSymbols() throws Exception {
+        RollingKcountScanner<SimpleSparseKcount> scanner =
+                new RollingKcountScanner<SimpleSparseKcount>(new SimpleSparseKcount(DNA, 2));
+        SimpleSparseKcount kc =
+                scanner.scanSequence(new SequenceFragment("ACGTNACTTACGAACNGT".getBytes(), scanner), "AC".getBytes());
+
+        // GT, TT and GA follow AC; the last GT follows AC only across the N, so isn't counted
+        assert kc.getNumberOfDistinctWords() == 3;
+        assert kc.getCount(kc.keyForSequence("GT".getBytes())) == 1;
+        assert kc.getCount(kc.keyForSequence("TT".getBytes())) == 1;
+        assert kc.getCount(kc.keyForSequence("GA".getBytes())) == 1;
+        assert kc.getUnknownCount() == 2;
+    }
+
+    @Test(expectedExceptions = SequenceSpectrumRuntimeException.class)
+    public void prefixedScanRefusesSymbolsNotInTheAlphabet() throws Exception {
+        RollingKcountScanner<SimpleSparseKcount> scanner =
+                new RollingKcountScanner<SimpleSparseKcount>(new SimpleSparseKcount(DNA, 2));
+        scanner.scanSequence(new SequenceFragment("ACGT".getBytes(), scanner), "AN".getBytes());
+    }
+
+    /**
+     * @return a sequence over three blocks, with single unknown symbols and runs of them scattered through it
+     */
+    private static byte[] randomSequence() {
+        MersenneTwisterFast random = new MersenneTwisterFast(42);
+        byte[] seq = new byte[2 * BLOCK + 5000];
+        for (int i = 0; i < seq.length; i++) {
+            seq[i] = DNA[random.nextInt(4)];
+        }
+        for (int i = 0; i < 60; i++) {
+            int start = random.nextInt(seq.length - 20);
+            Arrays.fill(seq, start, start + 1 + random.nextInt(i % 3 == 0 ? 20 : 1), (byte) 'N');
+        }
+        // an unknown symbol at the very end of the first block
+        seq[BLOCK - 1] = 'N';
+        return seq;
+    }
+
+    /**
+     * Counts every word of known symbols that is immediately preceded by the given prefix, by looking at each position
+     */
+    private static Map<Long, Integer> naiveCounts(byte[] seq, int k, byte[] prefix) {
+        SimpleSparseKcount keys = new SimpleSparseKcount(DNA, k);
+        Map<Long, Integer> result = new HashMap<Long, Integer>();
+        for (int i = prefix.length; i + k <= seq.length; i++) {
+            byte[] word = Arrays.copyOfRange(seq, i, i + k);
+            if (!Arrays.equals(Arrays.copyOfRange(seq, i - prefix.length, i), prefix) || hasUnknown(word)) {
+                continue;
+            }
+            long key = keys.keyForSequence(word);
+            Integer old = result.get(key);
+            result.put(key, old == null ? 1 : old + 1);
+        }
+        return result;
+    }
+
+    private static void assertCounts(SimpleSparseKcount kc, Map<Long, Integer> expected) {
+        assert kc.getNumberOfDistinctWords() == expected.size();
+        long sum = 0;
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            assert kc.getCount(entry.getKey()) == entry.getValue();
+            sum += entry.getValue();
+        }
+        assert kc.getSum() == sum;
+    }
+
+    private static boolean hasUnknown(byte[] word) {
+        for (byte b : word) {
+            if (b == 'N') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int countUnknown(byte[] seq) {
+        int result = 0;
+        for (byte b : seq) {
+            if (b == 'N') {
+                result++;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.strings;
+
+import com.davidsoergel.dsutils.GenericFactoryException;
+import com.davidsoergel.stats.DistributionProcessorException;
+import edu.berkeley.compbio.sequtils.FilterException;
+import edu.berkeley.compbio.sequtils.NotEnoughSequenceException;
+import edu.berkeley.compbio.sequtils.SequenceFragmentMetadata;
+import edu.berkeley.compbio.sequtils.SubstitutionFilter;
+import edu.berkeley.compbio.sequtils.sequencereader.fasta.FastaFileSet;
+import edu.berkeley.compbio.sequtils.sequencereader.fasta.FastaParser;
+import edu.berkeley.compbio.sequtils.strings.KcountFixtures.SimpleSparseKcount;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+
+public class SequenceFragmentTest {
+    // ------------------------------ FIELDS ------------------------------
+
+    private static final byte[] DNA = new byte[]{'A', 'C', 'G', 'T'};
+
+
+    // -------------------------- OTHER METHODS --------------------------
+
+    @Test
+    public void lengthAndSpectrumCanBeAskedForTogether() throws Exception {
+        FastaParser fp = new FastaParser(
+                new FastaFileSet(new File(ClassLoader.getSystemResource("Test_Genome").getPath())), true);
+        SequenceFragmentMetadata section = fp.getSequenceFragmentMetadata("testgenome.1.1");
+        CompositeSpectrumScanner scanner = new CompositeSpectrumScanner(DNA,
+                new RollingKcountScanner<SimpleSparseKcount>(new SimpleSparseKcount(DNA, 3)));
+
+        // of unknown length, so each scans under the reader's lock; the scanner then resets the reader through the
+        // fragment, while the other thread asks the fragment for its length
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int i = 0; i < 200; i++) {
+                final SequenceFragment fragment = new SequenceFragment(section, null, 0, fp,
+                        SequenceFragmentMetadata.UNKNOWN_LENGTH, scanner);
+                final CyclicBarrier start = new CyclicBarrier(2);
+                Future<Long> length = executor.submit(new Callable<Long>() {
+                    public Long call() throws Exception {
+                        start.await();
+                        return fragment.getLength();
+                    }
+                });
+                Future<SequenceSpectrum> spectrum = executor.submit(new Callable<SequenceSpectrum>() {
+                    public SequenceSpectrum call() throws Exception {
+                        start.await();
+                        return fragment.getBaseSpectrum();
+                    }
+                });
+
+                // a deadlock shows up as a timeout
+                assert spectrum.get(30, TimeUnit.SECONDS).getOriginalSequenceLength() > 0;
+                assert length.get(30, TimeUnit.SECONDS) == fragment.getBaseSpectrum().getOriginalSequenceLength();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void aBaseSpectrumSetDuringARescanIsKept() throws Exception {
+        final BlockingScanner scanner = new BlockingScanner();
+        final SequenceFragment fragment = new SequenceFragment("ACGTACGTTGCA".getBytes(), scanner);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<SequenceSpectrum> rescan = executor.submit(new Callable<SequenceSpectrum>() {
+                public SequenceSpectrum call() {
+                    return fragment.getBaseSpectrum();
+                }
+            });
+            scanner.started.await();
+
+            SimpleSparseKcount pinned = new SimpleSparseKcount(DNA, 2);
+            pinned.add(pinned.keyForSequence("GG".getBytes()), 7);
+            fragment.setBaseSpectrum(pinned);
+            scanner.proceed.countDown();
+
+            assert rescan.get(30, TimeUnit.SECONDS) != pinned;
+            assert fragment.getBaseSpectrum() == pinned;
+            assert fragment.getBaseSpectrumRaw() == pinned;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void aStoredSpectrumIsReadBackOnlyForTheSameScanner() throws Exception {
+        File genome = new File(ClassLoader.getSystemResource("Test_Genome").getPath());
+        FastaParser fp = new FastaParser(new FastaFileSet(genome), true);
+        SequenceFragmentMetadata section = fp.getSequenceFragmentMetadata("testgenome.1.1");
+        File file = File.createTempFile("spectra", ".store");
+        file.deleteOnExit();
+        SpectrumStore store = new SpectrumStore(file, "test", Collections.singletonList(genome));
+        SequenceFragment.setSpectrumStore(store);
+        try {
+            CountingScanner k3 = new CountingScanner(3);
+            SequenceFragment fragment = new SequenceFragment(section, null, 10, fp, 200, k3);
+            SequenceSpectrum scanned = fragment.getBaseSpectrum();
+            assert k3.scans == 1;
+            assert store.size() == 1;
+
+            // once evicted, it's read back from the store rather than scanned again
+            SequenceFragment.getSpectrumCache().releaseCachedResources();
+            SequenceSpectrum stored = fragment.getBaseSpectrum();
+            assert k3.scans == 1;
+            assert stored != scanned;
+            assert stored.spectrumEquals(scanned);
+            assert stored.getOriginalSequenceLength() == scanned.getOriginalSequenceLength();
+
+            // the same sequence with another k isn't found
+            CountingScanner k4 = new CountingScanner(4);
+            SequenceSpectrum other = new SequenceFragment(section, null, 10, fp, 200, k4).getBaseSpectrum();
+            assert k4.scans == 1;
+            assert ((Kcount) other).getK() == 4;
+            assert store.size() == 2;
+        } finally {
+            SequenceFragment.setSpectrumStore(null);
+            store.close();
+        }
+    }
+
+    /**
+     * Counts k-mers like a RollingKcountScanner, noting how often it scans
+     */
+    private static class CountingScanner implements SequenceSpectrumScanner {
+        private final RollingKcountScanner<SimpleSparseKcount> delegate;
+        private int scans = 0;
+
+        private CountingScanner(int k) {
+            delegate = new RollingKcountScanner<SimpleSparseKcount>(new SimpleSparseKcount(DNA, k));
+        }
+
+        public SequenceSpectrum getEmpty() {
+            return delegate.getEmpty();
+        }
+
+        public SubstitutionFilter getNucleotideFilter() {
+            return null;
+        }
+
+        public String getPersistentId() {
+            return delegate.getPersistentId();
+        }
+
+        public synchronized SequenceSpectrum scanSequence(SequenceFragment fragment)
+                throws IOException, FilterException, NotEnoughSequenceException, DistributionProcessorException,
+                       GenericFactoryException {
+            scans++;
+            return delegate.scanSequence(fragment);
+        }
+
+        public SequenceSpectrum scanSequence(SequenceFragment fragment, byte[] prefix) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Counts 2-mers, but waits to be told to finish once it has started
+     */
+    private static class BlockingScanner implements SequenceSpectrumScanner {
+        private final RollingKcountScanner<SimpleSparseKcount> delegate =
+                new RollingKcountScanner<SimpleSparseKcount>(new SimpleSparseKcount(DNA, 2));
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch proceed = new CountDownLatch(1);
+
+        public SequenceSpectrum getEmpty() {
+            return delegate.getEmpty();
+        }
+
+        public SubstitutionFilter getNucleotideFilter() {
+            return null;
+        }
+
+        public String getPersistentId() {
+            return null;
+        }
+
+        public SequenceSpectrum scanSequence(SequenceFragment fragment)
+                throws IOException, FilterException, NotEnoughSequenceException, DistributionProcessorException,
+                       GenericFactoryException {
+            started.countDown();
+            try {
+                proceed.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return delegate.scanSequence(fragment);
+        }
+
+        public SequenceSpectrum scanSequence(SequenceFragment fragment, byte[] prefix) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
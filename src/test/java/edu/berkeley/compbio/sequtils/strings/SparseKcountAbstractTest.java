@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.berkeley.compbio.sequtils.strings;
+
+import com.davidsoergel.dsutils.AtomicContractTest;
+import com.davidsoergel.dsutils.TestInstanceFactory;
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests that any SparseKcount keeps its counts consistent through copying, adding and aggregating, visiting only the
+ * words present.  The instance factory should provide a SparseKcount with some words counted.
+ *
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+public class SparseKcountAbstractTest<T extends SparseKcount> extends AtomicContractTest
+	{
+// ------------------------------ FIELDS ------------------------------
+
+	private final TestInstanceFactory<T> tif;
+
+
+// --------------------------- CONSTRUCTORS ---------------------------
+
+	public SparseKcountAbstractTest(final TestInstanceFactory<T> tif)
+		{
+		this.tif = tif;
+		}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	@Test
+	public void cloneHasEqualValueButSeparateCounts() throws Exception
+		{
+		final T kc = tif.createInstance();
+		final SparseKcount copy = (SparseKcount) kc.clone();
+		assert copy != kc;
+		assert copy.equalValue(kc);
+		assert copy.getNumberOfDistinctWords() == kc.getNumberOfDistinctWords();
+
+		copy.increment(0);
+		assert !copy.equalValue(kc);
+		}
+
+	@Test
+	public void incrementingByItselfDoublesEveryCount() throws Exception
+		{
+		final T kc = tif.createInstance();
+		final SparseKcount before = (SparseKcount) kc.clone();
+		kc.incrementBy(kc);
+		assert kc.getSum() == 2 * before.getSum();
+		assert kc.getNumberOfDistinctWords() == before.getNumberOfDistinctWords();
+		final LongIntHashMap.Cursor c = before.entries();
+		while (c.next())
+			{
+			assert kc.getCount(c.key()) == 2 * c.value();
+			}
+		}
+
+	@Test
+	public void parentSumsOverTheLastSymbol() throws Exception
+		{
+		final T kc = tif.createInstance();
+		final Map<Long, Integer> expected = new HashMap<Long, Integer>();
+		final LongIntHashMap.Cursor c = kc.entries();
+		while (c.next())
+			{
+			final long prefix = kc.prefixKey(c.key());
+			final Integer old = expected.get(prefix);
+			expected.put(prefix, (old == null ? 0 : old) + c.value());
+			}
+
+		final SparseKcount parent = (SparseKcount) kc.getParent();
+		assert parent.getK() == kc.getK() - 1;
+		assert parent.getSum() == kc.getSum();
+		assert parent.getNumberOfDistinctWords() == expected.size();
+		for (final Map.Entry<Long, Integer> entry : expected.entrySet())
+			{
+			assert parent.getCount(entry.getKey()) == entry.getValue();
+			}
+		}
+	}
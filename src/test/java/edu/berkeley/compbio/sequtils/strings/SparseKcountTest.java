@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.strings;
+
+import com.davidsoergel.dsutils.ContractTest;
+import com.davidsoergel.dsutils.ContractTestAware;
+import com.davidsoergel.dsutils.TestInstanceFactory;
+import edu.berkeley.compbio.sequtils.strings.KcountFixtures.SimpleSparseKcount;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Queue;
+
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+
+public class SparseKcountTest extends ContractTestAware<SparseKcountTest>
+        implements TestInstanceFactory<SimpleSparseKcount> {
+    // ------------------------------ FIELDS ------------------------------
+
+    private static final byte[] DNA = new byte[]{'a', 'c', 'g', 't'};
+
+
+    // ------------------------ INTERFACE METHODS ------------------------
+
+
+    // --------------------- Interface TestInstanceFactory ---------------------
+
+    public SimpleSparseKcount createInstance() {
+        SimpleSparseKcount kc = new SimpleSparseKcount(DNA, 6);
+        kc.increment(kc.keyForSequence("acgtac".getBytes()));
+        kc.increment(kc.keyForSequence("cgtacg".getBytes()));
+        return kc;
+    }
+
+    // -------------------------- OTHER METHODS --------------------------
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addContractTestsToQueue(final Queue<ContractTest> theContractTests) {
+        theContractTests.add(new KcountAbstractTest<SimpleSparseKcount>(this));
+        theContractTests.add(new SparseKcountAbstractTest<SimpleSparseKcount>(this));
+    }
+
+    @Test
+    public void keysArePackedInLexicalOrder() {
+        SimpleSparseKcount kc = new SimpleSparseKcount(DNA, 4);
+        assert kc.keyForSequence("aaaa".getBytes()) == 0;
+        assert kc.keyForSequence("acgt".getBytes()) == 0x1B;
+        assert kc.keyForSequence("tttt".getBytes()) == 0xFF;
+        assert Arrays.equals(kc.sequenceForKey(0x1B), "acgt".getBytes());
+        assert kc.prefixKey(0x1B) == kc.keyForSequence("acg".getBytes());
+        assert kc.suffixKey(0x1B) == kc.keyForSequence("cgt".getBytes());
+    }
+
+    @Test
+    public void keysUseAllSixtyTwoBitsAtMaxK() {
+        SimpleSparseKcount kc = new SimpleSparseKcount(DNA, SparseKcount.MAX_K);
+        byte[] seq = new byte[SparseKcount.MAX_K];
+        Arrays.fill(seq, (byte) 't');
+        seq[SparseKcount.MAX_K - 1] = 'g';
+        long key = kc.keyForSequence(seq);
+        assert key == (1L << 62) - 2;
+        assert Arrays.equals(kc.sequenceForKey(key), seq);
+    }
+
+    @Test(expectedExceptions = SequenceSpectrumRuntimeException.class)
+    public void keyForSequenceRejectsSymbolsNotInTheAlphabet() {
+        new SimpleSparseKcount(DNA, 4).keyForSequence("acnt".getBytes());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void alphabetsOfOtherThanFourSymbolsAreRefused() {
+        // with three symbols, a key holding the unused two-bit value would be no word at all
+        new SimpleSparseKcount(new byte[]{'a', 'c', 'g'}, 4);
+    }
+
+    @Test
+    public void intIdsAreUnsignedAtKSixteen() {
+        SimpleSparseKcount kc = new SimpleSparseKcount(DNA, 16);
+        byte[] seq = new byte[16];
+        Arrays.fill(seq, (byte) 't');
+        int id = kc.idForSequence(seq);
+        assert id == 0xFFFFFFFF;
+        assert Arrays.equals(kc.sequenceForId(id), seq);
+        assert kc.prefixId(id) == 0x3FFFFFFF;
+        assert kc.suffixId(id) == 0x3FFFFFFF;
+        assert Arrays.equals(kc.prefixForId(id), Arrays.copyOf(seq, 15));
+        assert kc.lastSymbolForId(id) == 't';
+    }
+
+    @Test(expectedExceptions = SequenceSpectrumRuntimeException.class)
+    public void intIdsAreRefusedAtKSeventeen() {
+        SimpleSparseKcount kc = new SimpleSparseKcount(DNA, 17);
+        byte[] seq = new byte[17];
+        Arrays.fill(seq, (byte) 'a');
+
+        // the long keys still work
+        assert kc.keyForSequence(seq) == 0;
+        kc.idForSequence(seq);
+    }
+
+    @Test
+    public void parentSumsOverTheLastSymbol() {
+        SimpleSparseKcount kc = new SimpleSparseKcount(DNA, 3);
+        kc.add(kc.keyForSequence("aca".getBytes()), 2);
+        kc.add(kc.keyForSequence("act".getBytes()), 3);
+        kc.add(kc.keyForSequence("gta".getBytes()), 1);
+        kc.addUnknown();
+
+        SimpleSparseKcount parent = kc.getParent();
+        assert parent.getK() == 2;
+        assert parent.getNumberOfDistinctWords() == 2;
+        assert parent.getCount(parent.keyForSequence("ac".getBytes())) == 5;
+        assert parent.getCount(parent.keyForSequence("gt".getBytes())) == 1;
+        assert parent.getSum() == 6;
+        assert parent.getOriginalSequenceLength() == kc.getOriginalSequenceLength();
+        assert parent.getUnknownCount() == 1;
+    }
+
+    @Test
+    public void multiplyByRoundsAndDropsZeros() {
+        SimpleSparseKcount kc = new SimpleSparseKcount(DNA, 2);
+        kc.add(kc.keyForSequence("ac".getBytes()), 1);
+        kc.add(kc.keyForSequence("gt".getBytes()), 5);
+        kc.multiplyBy(0.3);
+        assert kc.getCount(kc.keyForSequence("ac".getBytes())) == 0;
+        assert kc.getCount(kc.keyForSequence("gt".getBytes())) == 2;
+        assert kc.getNumberOfDistinctWords() == 1;
+        assert kc.getSum() == 2;
+    }
+
+    @Test
+    public void incrementingByItselfDoublesEveryCount() {
+        // enough words that adding to the map would make it grow
+        SimpleSparseKcount kc = new SimpleSparseKcount(DNA, 8);
+        for (long key = 0; key < 1000; key++) {
+            kc.add(key * 37, (int) (key % 5) + 1);
+        }
+        long sum = kc.getSum();
+        kc.incrementBy(kc);
+        assert kc.getNumberOfDistinctWords() == 1000;
+        assert kc.getSum() == 2 * sum;
+        for (long key = 0; key < 1000; key++) {
+            assert kc.getCount(key * 37) == 2 * ((int) (key % 5) + 1);
+        }
+
+        kc.decrementBy(kc);
+        assert kc.getNumberOfDistinctWords() == 0;
+        assert kc.getSum() == 0;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2007-2013  David Soergel  <dev@davidsoergel.com>
+ * Licensed under the Apache License, Version 2.0
+ * http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+
+package edu.berkeley.compbio.sequtils.strings;
+
+import edu.berkeley.compbio.sequtils.strings.KcountFixtures.SimpleLongKcount;
+import edu.berkeley.compbio.sequtils.strings.KcountFixtures.SimpleSparseKcount;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * @author <a href="mailto:dev@davidsoergel.com">David Soergel</a>
+ * @version $Id$
+ */
+
+public class SpectrumStoreTest {
+    // -------------------------- OTHER METHODS --------------------------
+
+    @Test
+    public void storedValuesSurviveReopening() throws IOException {
+        File file = File.createTempFile("spectra", ".store");
+        file.deleteOnExit();
+        List<File> sources = Collections.singletonList(file.getParentFile());
+
+        SpectrumStore store = new SpectrumStore(file, "k=3", sources);
+        store.putObject("a", new int[]{1, 2, 3});
+        store.putObject("b", "B");
+        store.putObject("a", new int[]{4, 5, 6});
+        store.close();
+
+        store = new SpectrumStore(file, "k=3", sources);
+        assert store.size() == 2;
+        assert Arrays.equals((int[]) store.getObject("a", null), new int[]{4, 5, 6});
+        assert store.getObject("b", null).equals("B");
+        assert store.getObject("c", null) == null;
+        store.close();
+    }
+
+    @Test
+    public void aDifferentConfigurationEmptiesTheStore() throws IOException {
+        File file = File.createTempFile("spectra", ".store");
+        file.deleteOnExit();
+        List<File> sources = Collections.emptyList();
+
+        SpectrumStore store = new SpectrumStore(file, "k=3", sources);
+        store.putObject("a", "A");
+        store.close();
+
+        store = new SpectrumStore(file, "k=4", sources);
+        assert store.size() == 0;
+        assert store.getObject("a", null) == null;
+        store.close();
+    }
+
+    @Test
+    public void aPartlyWrittenRecordIsDropped() throws IOException {
+        File file = File.createTempFile("spectra", ".store");
+        file.deleteOnExit();
+        List<File> sources = Collections.emptyList();
+
+        SpectrumStore store = new SpectrumStore(file, "k=3", sources);
+        store.putObject("a", "A");
+        store.putObject("b", "B");
+        store.close();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        store = new SpectrumStore(file, "k=3", sources);
+        assert store.size() == 1;
+        assert store.getObject("a", null).equals("A");
+
+        // appending continues from the end of the last complete record
+        store.putObject("b", "B2");
+        store.close();
+        store = new SpectrumStore(file, "k=3", sources);
+        assert store.getObject("b", null).equals("B2");
+        store.close();
+    }
+
+    @Test
+    public void kcountsAreReadBackIntoTheExpectedKind() throws IOException {
+        File file = File.createTempFile("spectra", ".store");
+        file.deleteOnExit();
+        List<File> sources = Collections.singletonList(file.getParentFile());
+        byte[] dna = new byte[]{'a', 'c', 'g', 't'};
+
+        SimpleSparseKcount sparse = new SimpleSparseKcount(dna, 20);
+        sparse.add(sparse.keyForSequence("acgtacgtacgtacgtacgt".getBytes()), 3);
+        sparse.add(sparse.keyForSequence("tttttttttttttttttttg".getBytes()), 1);
+        sparse.addUnknown();
+        SimpleLongKcount dense = new SimpleLongKcount(dna, 12);
+        dense.add(5, 2);
+        dense.add(0xFFFFFF, 7);
+
+        SpectrumStore store = new SpectrumStore(file, "k=20", sources);
+        store.put("sparse", sparse);
+        store.put("dense", dense);
+        store.close();
+
+        store = new SpectrumStore(file, "k=20", sources);
+        SequenceSpectrum s = store.get("sparse", new SimpleSparseKcount(dna, 20));
+        assert s instanceof SimpleSparseKcount;
+        assert ((SimpleSparseKcount) s).equalValue(sparse);
+        assert s.getOriginalSequenceLength() == sparse.getOriginalSequenceLength();
+        assert ((SimpleSparseKcount) s).getUnknownCount() == 1;
+
+        SequenceSpectrum d = store.get("dense", new SimpleLongKcount(dna, 12));
+        assert ((SimpleLongKcount) d).equalValue(dense);
+        assert ((SimpleLongKcount) d).getNumberOfAllocatedChunks() == 2;
+
+        // a Kcount of another k isn't what was stored, so it's dropped
+        assert store.get("sparse", new SimpleSparseKcount(dna, 19)) == null;
+        assert !store.contains("sparse");
+        store.close();
+    }
+}